@@ -0,0 +1,205 @@
+package com.netsniff.app;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the app that owns each new flow in {@link FlowTables} and stores
+ * its UID on the flow entry, in whichever partition holds it.
+ *
+ * The tables call {@link #onFlowCreated} once per flow, on the capture
+ * worker that saw its first packet. That only copies the flow's endpoints into a
+ * queue; the lookup itself runs on this class's own thread, so the first
+ * packets of a connection are never held up. If the queue is full the flow
+ * is marked unknown rather than waiting.
+ *
+ * The initiator is tried as the local end first. If that finds no owner, for
+ * example because the first packet seen came from the network, the ends are
+ * swapped and tried again.
+ *
+ * As a {@link PipelineStages.Stage}, signalling stops new lookups and
+ * interrupts the thread out of its queue.
+ */
+public final class AppAttribution implements FlowTable.Listener, PipelineStages.Stage {
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /** Asks the system which UID owns a socket; see ConnectivityManager#getConnectionOwnerUid. */
+    public interface OwnerLookup {
+        /** @return the UID, or {@link FlowTable#UID_UNKNOWN} */
+        int ownerUid(int protocol, InetSocketAddress local, InetSocketAddress remote);
+    }
+
+    /** One flow waiting to be looked up. */
+    private static final class Request {
+        final FlowTable table;
+        final int entry;
+        final long flowId;
+        final int protocol;
+        final byte[] initiator;
+        final int initiatorPort;
+        final byte[] responder;
+        final int responderPort;
+
+        Request(FlowTable table, int entry, long flowId) {
+            this.table = table;
+            this.entry = entry;
+            this.flowId = flowId;
+            this.protocol = table.protocol(entry);
+            byte[] scratch = new byte[16];
+            this.initiator = copy(scratch, table.copyAddress(entry, FlowTable.FORWARD, scratch));
+            this.initiatorPort = table.port(entry, FlowTable.FORWARD);
+            this.responder = copy(scratch, table.copyAddress(entry, FlowTable.REVERSE, scratch));
+            this.responderPort = table.port(entry, FlowTable.REVERSE);
+        }
+
+        private static byte[] copy(byte[] scratch, int length) {
+            byte[] address = new byte[length];
+            System.arraycopy(scratch, 0, address, 0, length);
+            return address;
+        }
+    }
+
+    private final FlowTables tables;
+    private final OwnerLookup lookup;
+    private final ArrayBlockingQueue<Request> queue;
+    private final Thread thread;
+
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong unresolved = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+
+    public AppAttribution(FlowTables tables, OwnerLookup lookup) {
+        this(tables, lookup, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public AppAttribution(FlowTables tables, OwnerLookup lookup, int queueCapacity) {
+        this.tables = tables;
+        this.lookup = lookup;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AppAttribution");
+        this.thread.setDaemon(true);
+    }
+
+    /** Starts the lookup thread and begins hearing about new flows. */
+    public void start() {
+        thread.start();
+        tables.setListener(this);
+    }
+
+    /** Stops hearing about flows; lookups already queued are abandoned. */
+    public void stop() {
+        signal();
+        try {
+            awaitUntil(System.nanoTime() + 1_000_000_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "attribution";
+    }
+
+    @Override
+    public void signal() {
+        tables.setListener(null);
+        thread.interrupt();
+    }
+
+    @Override
+    public boolean awaitUntil(long deadlineNanos) throws InterruptedException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 0) {
+            thread.join(remaining / 1_000_000, (int) (remaining % 1_000_000));
+        }
+        return !thread.isAlive();
+    }
+
+    @Override
+    public void interrupt() {
+        thread.interrupt();
+    }
+
+    @Override
+    public void onFlowCreated(FlowTable table, int entry, long flowId) {
+        int protocol = table.protocol(entry);
+        if (protocol != PacketView.PROTO_TCP && protocol != PacketView.PROTO_UDP) {
+            // The system only tracks owners of TCP and UDP sockets
+            table.setOwner(entry, flowId, FlowTable.UID_UNKNOWN);
+            return;
+        }
+        if (!queue.offer(new Request(table, entry, flowId))) {
+            overflowed.incrementAndGet();
+            table.setOwner(entry, flowId, FlowTable.UID_UNKNOWN);
+        }
+    }
+
+    private void drain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            int uid = resolve(request);
+            if (uid >= 0) {
+                resolved.incrementAndGet();
+            } else {
+                unresolved.incrementAndGet();
+            }
+            request.table.setOwner(request.entry, request.flowId, uid);
+        }
+    }
+
+    private int resolve(Request request) {
+        try {
+            InetSocketAddress initiator = new InetSocketAddress(
+                    InetAddress.getByAddress(request.initiator), request.initiatorPort);
+            InetSocketAddress responder = new InetSocketAddress(
+                    InetAddress.getByAddress(request.responder), request.responderPort);
+            int uid = lookup.ownerUid(request.protocol, initiator, responder);
+            if (uid < 0) {
+                uid = lookup.ownerUid(request.protocol, responder, initiator);
+            }
+            return uid < 0 ? FlowTable.UID_UNKNOWN : uid;
+        } catch (UnknownHostException | RuntimeException e) {
+            // Only thrown for a malformed address, or by the system refusing the lookup
+            return FlowTable.UID_UNKNOWN;
+        }
+    }
+
+    /** Flows whose owner was found. */
+    public long resolved() {
+        return resolved.get();
+    }
+
+    /** Flows looked up without finding an owner. */
+    public long unresolved() {
+        return unresolved.get();
+    }
+
+    /** Flows not looked up because the queue was full. */
+    public long overflowed() {
+        return overflowed.get();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "AppAttribution{resolved=" + resolved.get() + ", unresolved=" + unresolved.get()
+                + ", overflowed=" + overflowed.get() + ", queued=" + queue.size() + "}";
+    }
+}
@@ -0,0 +1,756 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A capture filter expression, parsed once and compiled into a tree of
+ * predicates that read header fields straight out of the raw packet bytes,
+ * so packets it rejects are never decoded.
+ *
+ * The language is a small tcpdump-like subset:
+ * <pre>
+ *   expr      := term ( ("and" | "&&" | "or" | "||") term )*   and binds tighter than or
+ *   term      := ("not" | "!") term | "(" expr ")" | primitive
+ *   primitive := [src | dst] host ADDRESS
+ *              | [src | dst] net ADDRESS/BITS
+ *              | [src | dst] port N[-M]
+ *              | proto NAME-OR-NUMBER | tcp | udp | icmp | icmp6 | ip | ip6
+ *              | inbound | outbound | direction (in | out)
+ *              | len (< | <= | > | >= | = | == | !=) N
+ * </pre>
+ * Addresses are numeric IPv4 or IPv6; names are never resolved. Ports match
+ * TCP and UDP only, and not on fragments after the first. {@code len} is the
+ * IP total length.
+ *
+ * A compiled filter is immutable apart from its counters and may be shared
+ * by the capture threads.
+ */
+public final class CaptureFilter {
+    // Longs per direction in rejected; keeps the two stripes on separate cache lines
+    private static final int STRIPE = 16;
+
+    private static final int IPV4_MIN_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+
+    // Which address or port a primitive looks at
+    private static final int EITHER = 0;
+    private static final int SOURCE = 1;
+    private static final int DESTINATION = 2;
+
+    private final Node root;
+    private final String expression;
+    private final AtomicLongArray rejected = new AtomicLongArray(2 * STRIPE);
+
+    private CaptureFilter(Node root) {
+        this.root = root;
+        this.expression = root.toString();
+    }
+
+    /**
+     * Parses {@code expression}.
+     * @throws IllegalArgumentException naming what was expected and where
+     */
+    public static CaptureFilter compile(String expression) {
+        return new CaptureFilter(new Parser(expression).parse());
+    }
+
+    /**
+     * Tests {@code length} bytes of {@code packet} starting at absolute index
+     * {@code offset}, which must lie below the limit; the buffer's position
+     * is neither used nor changed. Anything that is not an IP packet is
+     * rejected.
+     */
+    public boolean matches(ByteBuffer packet, int offset, int length, boolean incoming) {
+        if (version(packet, offset, length) != 0 && root.matches(packet, offset, length, incoming)) {
+            return true;
+        }
+        rejected.incrementAndGet(incoming ? 0 : STRIPE);
+        return false;
+    }
+
+    /** Packets this filter has turned away. */
+    public long rejected() {
+        return rejected.get(0) + rejected.get(STRIPE);
+    }
+
+    /** The expression in canonical form, fully parenthesised. */
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    // ---- Reading the raw packet ----
+
+    private static int version(ByteBuffer b, int off, int len) {
+        if (len < 1) {
+            return 0;
+        }
+        int version = (b.get(off) >> 4) & 0xF;
+        if (version == 4 && len >= IPV4_MIN_HEADER) {
+            return 4;
+        }
+        if (version == 6 && len >= IPV6_HEADER) {
+            return 6;
+        }
+        return 0;
+    }
+
+    private static int readUnsignedShort(ByteBuffer b, int index) {
+        return ((b.get(index) & 0xFF) << 8) | (b.get(index + 1) & 0xFF);
+    }
+
+    /**
+     * Finds the transport protocol and header, walking IPv6 extension headers
+     * the same way {@link PacketView} does.
+     * @return -1 if not IP, otherwise the protocol in bits 32-39 and the
+     *         absolute transport header index plus one in the low 32 bits,
+     *         which are 0 when there is no usable transport header
+     */
+    private static long locateTransport(ByteBuffer b, int off, int len) {
+        int version = version(b, off, len);
+        if (version == 4) {
+            int headerLength = (b.get(off) & 0xF) * 4;
+            if (headerLength < IPV4_MIN_HEADER || headerLength > len) {
+                return -1;
+            }
+            long protocol = b.get(off + 9) & 0xFF;
+            boolean firstFragment = (readUnsignedShort(b, off + 6) & 0x1FFF) == 0;
+            return protocol << 32 | (firstFragment ? off + headerLength + 1 : 0);
+        }
+        if (version != 6) {
+            return -1;
+        }
+        int nextHeader = b.get(off + 6) & 0xFF;
+        int position = off + IPV6_HEADER;
+        int end = off + len;
+        boolean firstFragment = true;
+        for (int step = 0; step < PacketView.MAX_EXTENSION_HEADERS; step++) {
+            int headerLength;
+            switch (nextHeader) {
+                case 0:   // hop-by-hop
+                case 43:  // routing
+                case 60:  // destination options
+                    if (position + 2 > end) return (long) nextHeader << 32;
+                    headerLength = ((b.get(position + 1) & 0xFF) + 1) * 8;
+                    break;
+                case 44:  // fragment
+                    if (position + 8 > end) return (long) nextHeader << 32;
+                    headerLength = 8;
+                    firstFragment = (readUnsignedShort(b, position + 2) >>> 3) == 0;
+                    break;
+                case 51:  // authentication header
+                    if (position + 2 > end) return (long) nextHeader << 32;
+                    headerLength = ((b.get(position + 1) & 0xFF) + 2) * 4;
+                    break;
+                default:
+                    return (long) nextHeader << 32 | (firstFragment ? position + 1 : 0);
+            }
+            if (position + headerLength > end) {
+                return (long) nextHeader << 32;
+            }
+            nextHeader = b.get(position) & 0xFF;
+            position += headerLength;
+        }
+        return (long) nextHeader << 32;
+    }
+
+    // ---- Compiled predicates ----
+
+    private abstract static class Node {
+        abstract boolean matches(ByteBuffer b, int off, int len, boolean incoming);
+    }
+
+    private static final class And extends Node {
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            return left.matches(b, off, len, incoming) && right.matches(b, off, len, incoming);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " and " + right + ")";
+        }
+    }
+
+    private static final class Or extends Node {
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            return left.matches(b, off, len, incoming) || right.matches(b, off, len, incoming);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            return !operand.matches(b, off, len, incoming);
+        }
+
+        @Override
+        public String toString() {
+            return "not " + operand;
+        }
+    }
+
+    /** host and net: compares the leading {@code bits} of an address. */
+    private static final class Address extends Node {
+        private final byte[] address;
+        private final int bits;
+        private final int which;
+
+        Address(byte[] address, int bits, int which) {
+            this.address = address;
+            this.bits = bits;
+            this.which = which;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            int version = version(b, off, len);
+            int source;
+            if (version == 4 && address.length == 4) {
+                source = off + 12;
+            } else if (version == 6 && address.length == 16) {
+                source = off + 8;
+            } else {
+                return false;
+            }
+            int destination = source + address.length;
+            return (which != DESTINATION && prefixMatches(b, source))
+                    || (which != SOURCE && prefixMatches(b, destination));
+        }
+
+        private boolean prefixMatches(ByteBuffer b, int index) {
+            int whole = bits / 8;
+            for (int i = 0; i < whole; i++) {
+                if (b.get(index + i) != address[i]) {
+                    return false;
+                }
+            }
+            int rest = bits % 8;
+            if (rest == 0) {
+                return true;
+            }
+            int mask = (0xFF << (8 - rest)) & 0xFF;
+            return (b.get(index + whole) & mask) == (address[whole] & mask);
+        }
+
+        @Override
+        public String toString() {
+            String text = formatAddress(address);
+            if (bits == address.length * 8) {
+                return qualifier(which) + "host " + text;
+            }
+            return qualifier(which) + "net " + text + "/" + bits;
+        }
+    }
+
+    private static final class Port extends Node {
+        private final int low;
+        private final int high;
+        private final int which;
+
+        Port(int low, int high, int which) {
+            this.low = low;
+            this.high = high;
+            this.which = which;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            long location = locateTransport(b, off, len);
+            if (location < 0) {
+                return false;
+            }
+            int protocol = (int) (location >>> 32);
+            int l4 = (int) location - 1;
+            if ((protocol != PacketView.PROTO_TCP && protocol != PacketView.PROTO_UDP)
+                    || l4 < 0 || l4 + 4 > off + len) {
+                return false;
+            }
+            int source = readUnsignedShort(b, l4);
+            int destination = readUnsignedShort(b, l4 + 2);
+            return (which != DESTINATION && source >= low && source <= high)
+                    || (which != SOURCE && destination >= low && destination <= high);
+        }
+
+        @Override
+        public String toString() {
+            return qualifier(which) + "port " + (low == high ? String.valueOf(low) : low + "-" + high);
+        }
+    }
+
+    private static final class Protocol extends Node {
+        private final int protocol;
+
+        Protocol(int protocol) {
+            this.protocol = protocol;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            long location = locateTransport(b, off, len);
+            return location >= 0 && (int) (location >>> 32) == protocol;
+        }
+
+        @Override
+        public String toString() {
+            return "proto " + protocol;
+        }
+    }
+
+    private static final class Version extends Node {
+        private final int version;
+
+        Version(int version) {
+            this.version = version;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            return version(b, off, len) == version;
+        }
+
+        @Override
+        public String toString() {
+            return version == 4 ? "ip" : "ip6";
+        }
+    }
+
+    private static final class Direction extends Node {
+        private final boolean incoming;
+
+        Direction(boolean incoming) {
+            this.incoming = incoming;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            return incoming == this.incoming;
+        }
+
+        @Override
+        public String toString() {
+            return incoming ? "inbound" : "outbound";
+        }
+    }
+
+    private static final class Length extends Node {
+        private final String operator;
+        private final int value;
+
+        Length(String operator, int value) {
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        boolean matches(ByteBuffer b, int off, int len, boolean incoming) {
+            int version = version(b, off, len);
+            int total;
+            if (version == 4) {
+                total = readUnsignedShort(b, off + 2);
+            } else if (version == 6) {
+                total = IPV6_HEADER + readUnsignedShort(b, off + 4);
+            } else {
+                return false;
+            }
+            if (total == 0 || (version == 6 && total == IPV6_HEADER)) {
+                // Offloaded or jumbo packets leave the field empty; use what was read
+                total = len;
+            }
+            switch (operator) {
+                case "<": return total < value;
+                case "<=": return total <= value;
+                case ">": return total > value;
+                case ">=": return total >= value;
+                case "!=": return total != value;
+                default: return total == value;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "len " + operator + " " + value;
+        }
+    }
+
+    private static String qualifier(int which) {
+        return which == SOURCE ? "src " : which == DESTINATION ? "dst " : "";
+    }
+
+    // ---- Parsing ----
+
+    private static final class Parser {
+        private final String text;
+        private final List<String> tokens = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+        private int next;
+
+        Parser(String text) {
+            this.text = text == null ? "" : text;
+            tokenize();
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                if (c == '(' || c == ')') {
+                    i++;
+                } else if (c == '&' || c == '|') {
+                    if (i + 1 >= text.length() || text.charAt(i + 1) != c) {
+                        throw error("Expected " + c + c, start);
+                    }
+                    i += 2;
+                } else if (c == '<' || c == '>' || c == '=' || c == '!') {
+                    i++;
+                    if (i < text.length() && text.charAt(i) == '=') {
+                        i++;
+                    }
+                } else if (isWordChar(c)) {
+                    while (i < text.length() && isWordChar(text.charAt(i))) {
+                        i++;
+                    }
+                } else {
+                    throw error("Unexpected '" + c + "'", start);
+                }
+                tokens.add(text.substring(start, i).toLowerCase(Locale.US));
+                positions.add(start);
+            }
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '.' || c == ':' || c == '/' || c == '-' || c == '_';
+        }
+
+        Node parse() {
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("Empty capture filter");
+            }
+            Node node = parseOr();
+            if (next < tokens.size()) {
+                throw error("Unexpected '" + tokens.get(next) + "'", position());
+            }
+            return node;
+        }
+
+        private Node parseOr() {
+            Node node = parseAnd();
+            while (accept("or") || accept("||")) {
+                node = new Or(node, parseAnd());
+            }
+            return node;
+        }
+
+        private Node parseAnd() {
+            Node node = parseTerm();
+            while (accept("and") || accept("&&")) {
+                node = new And(node, parseTerm());
+            }
+            return node;
+        }
+
+        private Node parseTerm() {
+            if (accept("not") || accept("!")) {
+                return new Not(parseTerm());
+            }
+            if (accept("(")) {
+                Node node = parseOr();
+                expect(")");
+                return node;
+            }
+            return parsePrimitive();
+        }
+
+        private Node parsePrimitive() {
+            int which = EITHER;
+            if (accept("src")) {
+                which = SOURCE;
+            } else if (accept("dst")) {
+                which = DESTINATION;
+            }
+            int at = position();
+            String word = take("a filter term");
+            switch (word) {
+                case "host": {
+                    byte[] address = parseAddress(take("an address"), at);
+                    return new Address(address, address.length * 8, which);
+                }
+                case "net":
+                    return parseNet(take("a network"), which, at);
+                case "port":
+                    return parsePort(take("a port"), which);
+                default:
+                    break;
+            }
+            if (which != EITHER) {
+                throw error("Expected host, net or port after src/dst", at);
+            }
+            switch (word) {
+                case "tcp": return new Protocol(PacketView.PROTO_TCP);
+                case "udp": return new Protocol(PacketView.PROTO_UDP);
+                case "icmp": return new Protocol(PacketView.PROTO_ICMP);
+                case "icmp6":
+                case "icmpv6": return new Protocol(PacketView.PROTO_ICMPV6);
+                case "ip": return new Version(4);
+                case "ip6": return new Version(6);
+                case "proto": return new Protocol(parseProtocol(take("a protocol")));
+                case "inbound": return new Direction(true);
+                case "outbound": return new Direction(false);
+                case "direction": return parseDirection(take("in or out"));
+                case "len": {
+                    String operator = take("a comparison");
+                    if (!operator.matches("<|<=|>|>=|=|==|!=")) {
+                        throw error("Expected a comparison after len", positions.get(next - 1));
+                    }
+                    return new Length(operator.equals("==") ? "=" : operator,
+                            parseNumber(take("a length"), 0, 0xFFFF));
+                }
+                default:
+                    throw error("Unknown filter term '" + word + "'", at);
+            }
+        }
+
+        private Node parseNet(String word, int which, int at) {
+            int slash = word.indexOf('/');
+            if (slash < 0) {
+                throw error("Expected ADDRESS/BITS", at);
+            }
+            byte[] address = parseAddress(word.substring(0, slash), at);
+            int bits = parseNumber(word.substring(slash + 1), 0, address.length * 8);
+            return new Address(address, bits, which);
+        }
+
+        private Node parsePort(String word, int which) {
+            int dash = word.indexOf('-');
+            if (dash < 0) {
+                int port = parseNumber(word, 0, 0xFFFF);
+                return new Port(port, port, which);
+            }
+            int low = parseNumber(word.substring(0, dash), 0, 0xFFFF);
+            int high = parseNumber(word.substring(dash + 1), 0, 0xFFFF);
+            if (low > high) {
+                throw error("Port range is backwards", positions.get(next - 1));
+            }
+            return new Port(low, high, which);
+        }
+
+        private int parseProtocol(String word) {
+            for (int p = 0; p < 256; p++) {
+                if (PacketView.protocolName(p).equalsIgnoreCase(word)) {
+                    return p;
+                }
+            }
+            if ("icmp6".equals(word)) {
+                return PacketView.PROTO_ICMPV6;
+            }
+            return parseNumber(word, 0, 255);
+        }
+
+        private Node parseDirection(String word) {
+            switch (word) {
+                case "in":
+                case "incoming":
+                    return new Direction(true);
+                case "out":
+                case "outgoing":
+                    return new Direction(false);
+                default:
+                    throw error("Expected in or out after direction", positions.get(next - 1));
+            }
+        }
+
+        private int parseNumber(String word, int min, int max) {
+            int at = positions.get(next - 1);
+            try {
+                int value = Integer.parseInt(word);
+                if (value >= min && value <= max) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw error("Expected a number from " + min + " to " + max + ", got '" + word + "'", at);
+        }
+
+        private byte[] parseAddress(String word, int at) {
+            byte[] address = word.indexOf(':') >= 0 ? parseIpv6(word) : parseIpv4(word);
+            if (address == null) {
+                throw error("Expected a numeric IP address, got '" + word + "'", at);
+            }
+            return address;
+        }
+
+        private boolean accept(String token) {
+            if (next < tokens.size() && tokens.get(next).equals(token)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'", position());
+            }
+        }
+
+        private String take(String what) {
+            if (next >= tokens.size()) {
+                throw error("Expected " + what, text.length());
+            }
+            return tokens.get(next++);
+        }
+
+        private int position() {
+            return next < positions.size() ? positions.get(next) : text.length();
+        }
+
+        private IllegalArgumentException error(String message, int at) {
+            return new IllegalArgumentException(message + " at position " + at + " in '" + text + "'");
+        }
+    }
+
+    // ---- Numeric addresses ----
+
+    static byte[] parseIpv4(String text) {
+        String[] parts = text.split("\\.", -1);
+        if (parts.length != 4) {
+            return null;
+        }
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            if (parts[i].isEmpty() || parts[i].length() > 3) {
+                return null;
+            }
+            for (int j = 0; j < parts[i].length(); j++) {
+                if (!Character.isDigit(parts[i].charAt(j))) {
+                    return null;
+                }
+            }
+            int value = Integer.parseInt(parts[i]);
+            if (value > 255) {
+                return null;
+            }
+            address[i] = (byte) value;
+        }
+        return address;
+    }
+
+    static byte[] parseIpv6(String text) {
+        int gap = text.indexOf("::");
+        if (gap >= 0 && text.indexOf("::", gap + 1) >= 0) {
+            return null;
+        }
+        List<Integer> head = new ArrayList<>();
+        List<Integer> tail = new ArrayList<>();
+        if (gap < 0) {
+            if (!parseGroups(text, head)) {
+                return null;
+            }
+        } else if (!parseGroups(text.substring(0, gap), head) || !parseGroups(text.substring(gap + 2), tail)) {
+            return null;
+        }
+        int groups = head.size() + tail.size();
+        if (gap < 0 ? groups != 8 : groups > 7) {
+            return null;
+        }
+        byte[] address = new byte[16];
+        for (int i = 0; i < head.size(); i++) {
+            address[2 * i] = (byte) (head.get(i) >> 8);
+            address[2 * i + 1] = (byte) (int) head.get(i);
+        }
+        for (int i = 0; i < tail.size(); i++) {
+            int index = 8 - tail.size() + i;
+            address[2 * index] = (byte) (tail.get(i) >> 8);
+            address[2 * index + 1] = (byte) (int) tail.get(i);
+        }
+        return address;
+    }
+
+    /** Reads colon-separated hex groups, allowing a trailing dotted IPv4 part. */
+    private static boolean parseGroups(String text, List<Integer> groups) {
+        if (text.isEmpty()) {
+            return true;
+        }
+        String[] parts = text.split(":", -1);
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            if (i == parts.length - 1 && part.indexOf('.') >= 0) {
+                byte[] ipv4 = parseIpv4(part);
+                if (ipv4 == null) {
+                    return false;
+                }
+                groups.add(((ipv4[0] & 0xFF) << 8) | (ipv4[1] & 0xFF));
+                groups.add(((ipv4[2] & 0xFF) << 8) | (ipv4[3] & 0xFF));
+                return true;
+            }
+            if (part.isEmpty() || part.length() > 4) {
+                return false;
+            }
+            for (int j = 0; j < part.length(); j++) {
+                if (Character.digit(part.charAt(j), 16) < 0) {
+                    return false;
+                }
+            }
+            groups.add(Integer.parseInt(part, 16));
+        }
+        return true;
+    }
+
+    private static String formatAddress(byte[] address) {
+        StringBuilder text = new StringBuilder();
+        if (address.length == 4) {
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    text.append('.');
+                }
+                text.append(address[i] & 0xFF);
+            }
+            return text.toString();
+        }
+        for (int i = 0; i < 16; i += 2) {
+            if (i > 0) {
+                text.append(':');
+            }
+            text.append(Integer.toHexString(((address[i] & 0xFF) << 8) | (address[i + 1] & 0xFF)));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,457 @@
+package com.netsniff.app;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-memory history of captured packets, kept as {@link PacketRecords}
+ * records in preallocated byte arenas.
+ *
+ * Every packet gets the next sequence number, starting at 1. The history is
+ * split into {@link Partition}s, one per capture worker, each with its own
+ * arena, index and lock, so workers append without waiting on each other.
+ * Numbers come from one counter shared by all partitions, so they follow
+ * the order packets were stored in; each partition holds an increasing
+ * subset of them.
+ *
+ * Within a partition, records are written to the arena back to back and
+ * wrap around at the end; a record that would not fit before the end starts
+ * again at 0. When space or index slots run out, the partition forgets its
+ * oldest records, so {@link #oldestSeq()} only moves forward. A busy
+ * partition forgets sooner than a quiet one, which can leave gaps in the
+ * older numbers. Nothing is allocated per packet.
+ *
+ * Queries merge the partitions by sequence number and hand back records in
+ * the same batch layout as packetRecords events, so the page decodes both
+ * with the same code. A query looks at no more than {@link #MAX_SCAN}
+ * records, shared between the partitions and each partition locked only
+ * while its own are read, which bounds how long it can hold up a capture
+ * worker; {@link Page#nextSeq} says where to carry on.
+ */
+public final class CaptureHistory {
+    public static final int DEFAULT_MAX_RECORDS = 1 << 18;
+    public static final int DEFAULT_ARENA_BYTES = 16 << 20;
+    public static final int MAX_QUERY_LIMIT = 1000;
+    public static final int MAX_SCAN = 1 << 16;
+    // Two IPv6 addresses and the longest preview a record can describe
+    private static final int MAX_RECORD_BYTES = PacketRecords.RECORD_HEADER + 32 + 0xffff;
+
+    /** Selects records by their encoded fields. */
+    public interface Filter {
+        boolean matches(byte[] record, int offset);
+    }
+
+    /** One query result: records framed as a batch, and their sequence numbers. */
+    public static final class Page {
+        public final byte[] data;
+        public final long[] seqs;
+        // Where the next query in the same direction should start; 0 once nothing is left
+        public final long nextSeq;
+        public final long oldestSeq;
+        public final long newestSeq;
+
+        Page(byte[] data, long[] seqs, long nextSeq, long oldestSeq, long newestSeq) {
+            this.data = data;
+            this.seqs = seqs;
+            this.nextSeq = nextSeq;
+            this.oldestSeq = oldestSeq;
+            this.newestSeq = newestSeq;
+        }
+    }
+
+    private final Partition[] partitions;
+    // Handed out under the appending partition's lock, so each partition's numbers increase
+    private final AtomicLong nextSeq = new AtomicLong(1);
+
+    public CaptureHistory() {
+        this(DEFAULT_MAX_RECORDS, DEFAULT_ARENA_BYTES);
+    }
+
+    public CaptureHistory(int maxRecords, int arenaBytes) {
+        this(maxRecords, arenaBytes, 1);
+    }
+
+    /** A history in {@code partitions} parts, which share the record limit and arena bytes evenly. */
+    public CaptureHistory(int maxRecords, int arenaBytes, int partitions) {
+        if (partitions < 1 || maxRecords < partitions || arenaBytes / Math.max(1, partitions) < MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("History too small: records=" + maxRecords + ", bytes=" + arenaBytes
+                    + ", partitions=" + partitions);
+        }
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition((maxRecords + partitions - 1) / partitions, arenaBytes / partitions);
+        }
+    }
+
+    public int partitions() {
+        return partitions.length;
+    }
+
+    /** The partition worker {@code index} appends to. */
+    public Partition partition(int index) {
+        return partitions[index];
+    }
+
+    /**
+     * Stores one decoded packet in the first partition, for a history
+     * written by one thread.
+     * @return its sequence number
+     */
+    public long append(PacketView view, boolean incoming, long timestampMs,
+                       int previewOffset, int snapLength) {
+        return partitions[0].append(view, incoming, timestampMs, previewOffset, snapLength, 0);
+    }
+
+    /** As {@link #append}, tagging the record with an application protocol. */
+    public long append(PacketView view, boolean incoming, long timestampMs,
+                       int previewOffset, int snapLength, int appProtocol) {
+        return partitions[0].append(view, incoming, timestampMs, previewOffset, snapLength, appProtocol);
+    }
+
+    /**
+     * Finds up to {@code limit} records matching {@code filter} (null for
+     * all), starting at {@code fromSeq} and moving towards newer records, or
+     * older ones if {@code backward}. A start outside the history is clamped
+     * to its ends.
+     */
+    public Page query(long fromSeq, int limit, boolean backward, Filter filter) {
+        limit = Math.max(0, Math.min(limit, MAX_QUERY_LIMIT));
+        int n = partitions.length;
+        Scan[] scans = new Scan[n];
+        // Every partition has looked at all of its records before this one
+        long frontier = backward ? Long.MIN_VALUE : Long.MAX_VALUE;
+        for (int p = 0; p < n; p++) {
+            scans[p] = partitions[p].scan(fromSeq, limit, MAX_SCAN / n, backward, filter);
+            frontier = backward ? Math.max(frontier, scans[p].frontier) : Math.min(frontier, scans[p].frontier);
+        }
+
+        // Merge by sequence number, up to the frontier: past it, a partition may hold records not yet looked at
+        int[] taken = new int[n];
+        int[] from = new int[limit];
+        int[] which = new int[limit];
+        int count = 0;
+        int bytes = PacketRecords.BATCH_HEADER;
+        while (count < limit) {
+            int best = -1;
+            for (int p = 0; p < n; p++) {
+                if (taken[p] < scans[p].count && (best < 0
+                        || (backward ? scans[p].seqs[taken[p]] > scans[best].seqs[taken[best]]
+                                     : scans[p].seqs[taken[p]] < scans[best].seqs[taken[best]]))) {
+                    best = p;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            long seq = scans[best].seqs[taken[best]];
+            if (backward ? seq <= frontier : seq >= frontier) {
+                break;
+            }
+            from[count] = best;
+            which[count] = taken[best]++;
+            bytes += scans[best].lengths[which[count]];
+            count++;
+        }
+
+        byte[] data = new byte[bytes];
+        PacketRecords.writeBatchHeader(data, 0, count, 0);
+        int offset = PacketRecords.BATCH_HEADER;
+        long[] seqs = new long[count];
+        for (int i = 0; i < count; i++) {
+            Scan scan = scans[from[i]];
+            int record = which[i];
+            System.arraycopy(scan.data, scan.offsets[record], data, offset, scan.lengths[record]);
+            offset += scan.lengths[record];
+            seqs[i] = scan.seqs[record];
+        }
+
+        long oldest = oldestSeq();
+        long newest = newestSeq();
+        long next;
+        if (count == limit && count > 0) {
+            next = seqs[count - 1] + (backward ? -1 : 1);
+        } else {
+            next = frontier == Long.MIN_VALUE || frontier == Long.MAX_VALUE ? 0 : frontier;
+        }
+        if (next < oldest || next > newest) {
+            next = 0;
+        }
+        return new Page(data, seqs, next, oldest, newest);
+    }
+
+    /** One record framed as a batch, or null if {@code seq} is not (or no longer) held. */
+    public byte[] get(long seq) {
+        for (Partition partition : partitions) {
+            byte[] data = partition.get(seq);
+            if (data != null) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    public void clear() {
+        for (Partition partition : partitions) {
+            partition.clear();
+        }
+    }
+
+    /** Oldest sequence number still held; greater than {@link #newestSeq()} when empty. */
+    public long oldestSeq() {
+        long newest = newestSeq();
+        long oldest = newest + 1;
+        for (Partition partition : partitions) {
+            oldest = Math.min(oldest, partition.oldestSeq());
+        }
+        return oldest;
+    }
+
+    /** Most recent sequence number handed out; 0 before the first packet. */
+    public long newestSeq() {
+        return nextSeq.get() - 1;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    public long evicted() {
+        long evicted = 0;
+        for (Partition partition : partitions) {
+            evicted += partition.evicted();
+        }
+        return evicted;
+    }
+
+    public int arenaBytes() {
+        int bytes = 0;
+        for (Partition partition : partitions) {
+            bytes += partition.arena.length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureHistory{size=" + size() + ", seq=" + oldestSeq() + ".." + newestSeq()
+                + ", evicted=" + evicted() + ", arenaBytes=" + arenaBytes() + ", partitions=" + partitions.length + "}";
+    }
+
+    /** The records one partition found for a query, in the order it found them. */
+    private static final class Scan {
+        long[] seqs;
+        int[] offsets;
+        int[] lengths;
+        byte[] data;
+        int count;
+        int bytes;
+        // First record not looked at, or MIN/MAX_VALUE once the partition has none left in that direction
+        long frontier;
+
+        Scan(int limit) {
+            int capacity = Math.min(limit, 64);
+            seqs = new long[capacity];
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+            data = new byte[capacity * 128];
+        }
+
+        void add(long seq, byte[] arena, int offset, int length) {
+            if (count == seqs.length) {
+                int capacity = count * 2;
+                seqs = Arrays.copyOf(seqs, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            if (bytes + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, bytes + length));
+            }
+            System.arraycopy(arena, offset, data, bytes, length);
+            seqs[count] = seq;
+            offsets[count] = bytes;
+            lengths[count] = length;
+            bytes += length;
+            count++;
+        }
+    }
+
+    /** The part of the history one capture worker appends to. */
+    public final class Partition {
+        private final byte[] arena;
+        private final int maxRecords;
+        // Per index slot (record number % maxRecords): sequence number, absolute arena position and length
+        private final long[] seqs;
+        private final long[] starts;
+        private final int[] lengths;
+
+        // Guarded by this. Records held are numbered [first, next) in the order appended
+        private long first;
+        private long next;
+        // Absolute write position; the arena index is writePos % arena.length
+        private long writePos;
+        private long evicted;
+
+        Partition(int maxRecords, int arenaBytes) {
+            this.arena = new byte[arenaBytes];
+            this.maxRecords = maxRecords;
+            this.seqs = new long[maxRecords];
+            this.starts = new long[maxRecords];
+            this.lengths = new int[maxRecords];
+        }
+
+        /**
+         * Stores one decoded packet, tagged with an application protocol.
+         * @return its sequence number
+         */
+        public synchronized long append(PacketView view, boolean incoming, long timestampMs,
+                                        int previewOffset, int snapLength, int appProtocol) {
+            int length = PacketRecords.recordLength(view, previewOffset, snapLength);
+            long start = writePos;
+            int at = (int) (start % arena.length);
+            if (at + length > arena.length) {
+                start += arena.length - at;
+                at = 0;
+            }
+            long end = start + length;
+            // Forget whatever the new record overwrites, and the oldest if the index is full
+            while (first < next
+                    && (starts[slot(first)] < end - arena.length || next - first >= maxRecords)) {
+                first++;
+                evicted++;
+            }
+            long seq = nextSeq.getAndIncrement();
+            PacketRecords.encodeInto(view, incoming, timestampMs, previewOffset, snapLength, appProtocol, seq,
+                    arena, at);
+            int slot = slot(next);
+            seqs[slot] = seq;
+            starts[slot] = start;
+            lengths[slot] = length;
+            writePos = end;
+            next++;
+            return seq;
+        }
+
+        synchronized Scan scan(long fromSeq, int limit, int maxScan, boolean backward, Filter filter) {
+            Scan scan = new Scan(limit);
+            long record = backward ? after(fromSeq) - 1 : atOrAfter(fromSeq);
+            int scanned = 0;
+            while (scan.count < limit && scanned < maxScan && record >= first && record < next) {
+                int slot = slot(record);
+                int offset = arenaOffset(slot);
+                if (filter == null || filter.matches(arena, offset)) {
+                    scan.add(seqs[slot], arena, offset, lengths[slot]);
+                }
+                record += backward ? -1 : 1;
+                scanned++;
+            }
+            if (record >= first && record < next) {
+                scan.frontier = seqs[slot(record)];
+            } else {
+                scan.frontier = backward ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            return scan;
+        }
+
+        synchronized byte[] get(long seq) {
+            long record = atOrAfter(seq);
+            if (record >= next || seqs[slot(record)] != seq) {
+                return null;
+            }
+            int slot = slot(record);
+            byte[] data = new byte[PacketRecords.BATCH_HEADER + lengths[slot]];
+            PacketRecords.writeBatchHeader(data, 0, 1, 0);
+            System.arraycopy(arena, arenaOffset(slot), data, PacketRecords.BATCH_HEADER, lengths[slot]);
+            return data;
+        }
+
+        // The first record held with a sequence number of at least seq, or next if there is none
+        private long atOrAfter(long seq) {
+            return seq == Long.MIN_VALUE ? first : after(seq - 1);
+        }
+
+        // The first record held with a sequence number above seq, or next if there is none
+        private long after(long seq) {
+            long low = first;
+            long high = next;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (seqs[slot(middle)] <= seq) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        synchronized void clear() {
+            first = next;
+        }
+
+        /** Oldest sequence number held here, or Long.MAX_VALUE when empty. */
+        synchronized long oldestSeq() {
+            return first < next ? seqs[slot(first)] : Long.MAX_VALUE;
+        }
+
+        public synchronized int size() {
+            return (int) (next - first);
+        }
+
+        synchronized long evicted() {
+            return evicted;
+        }
+
+        private int slot(long record) {
+            return (int) (record % maxRecords);
+        }
+
+        private int arenaOffset(int slot) {
+            return (int) (starts[slot] % arena.length);
+        }
+    }
+
+    /**
+     * Matches on the fixed record fields. Each criterion is optional; a
+     * negative value matches anything.
+     */
+    public static final class FieldFilter implements Filter {
+        private final int protocol;
+        private final int incoming;
+        private final int port;
+
+        /**
+         * @param protocol IP protocol number
+         * @param incoming 1 for incoming only, 0 for outgoing only
+         * @param port source or destination port
+         */
+        public FieldFilter(int protocol, int incoming, int port) {
+            this.protocol = protocol;
+            this.incoming = incoming;
+            this.port = port;
+        }
+
+        @Override
+        public boolean matches(byte[] record, int offset) {
+            int flags = record[offset];
+            if (protocol >= 0 && (record[offset + 1] & 0xff) != protocol) {
+                return false;
+            }
+            if (incoming >= 0 && ((flags & PacketRecords.FLAG_INCOMING) != 0) != (incoming == 1)) {
+                return false;
+            }
+            if (port >= 0) {
+                if ((flags & PacketRecords.FLAG_PORTS) == 0) {
+                    return false;
+                }
+                int source = ((record[offset + 6] & 0xff) << 8) | (record[offset + 7] & 0xff);
+                int destination = ((record[offset + 8] & 0xff) << 8) | (record[offset + 9] & 0xff);
+                return source == port || destination == port;
+            }
+            return true;
+        }
+    }
+}
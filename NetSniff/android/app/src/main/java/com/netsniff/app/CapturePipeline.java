@@ -0,0 +1,426 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves capture work (decoding, counting, dissection, event building) off
+ * the forwarding threads onto a small pool of workers.
+ *
+ * A forwarding stage hands each packet to its direction's {@link #sink},
+ * which only reads the addresses and ports from the raw bytes, copies the
+ * packet into a pooled buffer and queues it for one worker. Nothing is
+ * decoded and nothing waits: if the worker is behind or the pool is empty
+ * the packet is counted as dropped for capture, and forwarding carries on.
+ *
+ * Packets are sharded by a hash of their flow that is the same in both
+ * directions, so one worker sees every packet of a flow. Each worker has a
+ * ring per direction, since each direction is fed by a single thread, and
+ * takes whichever queued packet was captured first, so a flow's packets are
+ * processed in the order they were seen.
+ *
+ * A worker that throws is counted as failed for that packet and carries on
+ * with the next. Only the first failure is passed to the
+ * {@link FailureListener}, so a worker that throws on every packet is
+ * reported once rather than per packet.
+ *
+ * As a {@link PipelineStages.Stage}, signalling closes every worker's rings
+ * and wakes it; the workers then discard what is still queued and end.
+ */
+public final class CapturePipeline implements PipelineStages.Stage {
+    /** Processes captured packets on one worker thread. */
+    public interface Worker {
+        /**
+         * @param packet one IP packet in [position, limit), valid only for
+         *        the duration of the call
+         */
+        void process(ByteBuffer packet, boolean incoming, long timestampMs);
+    }
+
+    /** Creates the per-thread state of each worker. */
+    public interface WorkerFactory {
+        Worker newWorker(int index);
+    }
+
+    /** Hears about the first packet any worker throws on. */
+    public interface FailureListener {
+        /** Called once, on the worker's thread. */
+        void onFirstFailure(int index, RuntimeException failure);
+    }
+
+    static final int MAX_WORKERS = 4;
+    static final int QUEUED_PER_DIRECTION = 256;
+    // Per queued copy: System.nanoTime at capture, capture time in milliseconds, direction
+    private static final int FRAME_HEADER = 8 + 8 + 1;
+    private static final long IDLE_PARK_NANOS = 50_000_000L;
+    private static final long STOP_TIMEOUT_MS = 500;
+
+    private final PacketBufferPool pool;
+    private final Shard[] shards;
+    private final int maxPacketSize;
+    private volatile boolean running;
+    private FailureListener failureListener;
+    private final AtomicBoolean failureReported = new AtomicBoolean();
+
+    /**
+     * @param maxPacketSize the largest packet that will be offered; longer
+     *        ones are dropped
+     */
+    public CapturePipeline(int workers, int maxPacketSize, WorkerFactory factory) {
+        if (workers < 1 || workers > MAX_WORKERS) {
+            throw new IllegalArgumentException("workers out of range: " + workers);
+        }
+        this.maxPacketSize = maxPacketSize;
+        this.pool = new PacketBufferPool(FRAME_HEADER + maxPacketSize, workers * 2 * QUEUED_PER_DIRECTION);
+        this.shards = new Shard[workers];
+        for (int i = 0; i < workers; i++) {
+            shards[i] = new Shard(i, factory.newWorker(i));
+        }
+    }
+
+    /**
+     * One worker per core left over once the TUN reader, TUN writer and
+     * network thread have one each, and at least one.
+     */
+    public static int defaultWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(MAX_WORKERS, cores - 3));
+    }
+
+    /** Set before {@link #start}. */
+    public void setFailureListener(FailureListener listener) {
+        this.failureListener = listener;
+    }
+
+    public void start() {
+        running = true;
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Stops the workers, discarding whatever is still queued. Waits at most
+     * {@link #STOP_TIMEOUT_MS} for all of them.
+     */
+    public void stop() {
+        signal();
+        try {
+            awaitUntil(System.nanoTime() + STOP_TIMEOUT_MS * 1_000_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "capture";
+    }
+
+    @Override
+    public void signal() {
+        running = false;
+        for (Shard shard : shards) {
+            shard.outgoing.close();
+            shard.incoming.close();
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    @Override
+    public boolean awaitUntil(long deadlineNanos) throws InterruptedException {
+        for (Shard shard : shards) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining > 0) {
+                shard.thread.join(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            }
+            if (shard.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void interrupt() {
+        for (Shard shard : shards) {
+            shard.thread.interrupt();
+        }
+    }
+
+    /**
+     * The entry point for one direction. Each direction's sink must only be
+     * called from one thread.
+     */
+    public PacketSink sink(final boolean incoming) {
+        return new PacketSink() {
+            @Override
+            public void onPacket(ByteBuffer packet) {
+                offer(packet, incoming);
+            }
+        };
+    }
+
+    /** @return false if the packet was dropped for capture */
+    boolean offer(ByteBuffer packet, boolean incoming) {
+        int offset = packet.position();
+        int length = packet.remaining();
+        Shard shard = shards[shardOf(packet, offset, length)];
+        if (!running || length > maxPacketSize) {
+            shard.dropped(incoming);
+            return false;
+        }
+        ByteBuffer frame = pool.acquire();
+        if (frame == null) {
+            shard.dropped(incoming);
+            return false;
+        }
+        frame.putLong(System.nanoTime())
+             .putLong(System.currentTimeMillis())
+             .put((byte) (incoming ? 1 : 0));
+        if (packet.hasArray()) {
+            frame.put(packet.array(), packet.arrayOffset() + offset, length);
+        } else {
+            frame.put(packet.duplicate());
+        }
+        frame.flip();
+        // A full ring counts the drop and recycles the frame through the drop handler
+        if (!(incoming ? shard.incoming : shard.outgoing).offer(frame)) {
+            return false;
+        }
+        if (shard.idle) {
+            LockSupport.unpark(shard.thread);
+        }
+        return true;
+    }
+
+    int shardOf(ByteBuffer packet, int offset, int length) {
+        return shards.length == 1 ? 0 : (flowHash(packet, offset, length) & 0x7FFFFFFF) % shards.length;
+    }
+
+    /**
+     * Hash of a packet's addresses, protocol and ports that is the same for
+     * both directions of a flow, read straight from the IP header. Ports
+     * are left out for fragments, which only the first one carries, so all
+     * of a fragmented datagram hashes alike; and for IPv6 packets with
+     * extension headers, rather than walking the chain.
+     */
+    static int flowHash(ByteBuffer packet, int offset, int length) {
+        if (length < 20) {
+            return 0;
+        }
+        int version = (packet.get(offset) >> 4) & 0xF;
+        long a;
+        long b;
+        int protocol;
+        int transport;
+        if (version == 4) {
+            protocol = packet.get(offset + 9) & 0xFF;
+            a = packet.getInt(offset + 12) & 0xFFFFFFFFL;
+            b = packet.getInt(offset + 16) & 0xFFFFFFFFL;
+            boolean fragment = (packet.getShort(offset + 6) & 0x3FFF) != 0;
+            transport = fragment ? -1 : offset + (packet.get(offset) & 0xF) * 4;
+        } else if (version == 6 && length >= 40) {
+            protocol = packet.get(offset + 6) & 0xFF;
+            a = mix(packet.getLong(offset + 8)) ^ packet.getLong(offset + 16);
+            b = mix(packet.getLong(offset + 24)) ^ packet.getLong(offset + 32);
+            transport = offset + 40;
+        } else {
+            return 0;
+        }
+        int ports = 0;
+        if ((protocol == PacketView.PROTO_TCP || protocol == PacketView.PROTO_UDP)
+                && transport >= 0 && transport + 4 <= offset + length) {
+            int source = packet.getShort(transport) & 0xFFFF;
+            int destination = packet.getShort(transport + 2) & 0xFFFF;
+            ports = Math.min(source, destination) << 16 | Math.max(source, destination);
+        }
+        long h = mix(Math.min(a, b) * 0x9E3779B97F4A7C15L + Math.max(a, b))
+                ^ mix(((long) protocol << 32 | ports) + 0x632BE59BD9B4E019L);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public int workers() {
+        return shards.length;
+    }
+
+    /** Packets worker {@code index} has processed. */
+    public long processed(int index) {
+        return shards[index].processed;
+    }
+
+    /** Bytes of the packets worker {@code index} has processed. */
+    public long bytes(int index) {
+        return shards[index].bytes;
+    }
+
+    /** Packets meant for worker {@code index} that were not queued. */
+    public long dropped(int index) {
+        Shard shard = shards[index];
+        return shard.droppedOutgoing + shard.droppedIncoming + shard.outgoing.dropped() + shard.incoming.dropped();
+    }
+
+    /** Time worker {@code index} has spent processing packets. */
+    public long busyNanos(int index) {
+        return shards[index].busyNanos;
+    }
+
+    /** Packets worker {@code index} threw on. */
+    public long failed(int index) {
+        return shards[index].failed;
+    }
+
+    public int queued(int index) {
+        return shards[index].outgoing.size() + shards[index].incoming.size();
+    }
+
+    /** Packets not queued, across every worker. */
+    public long dropped() {
+        long dropped = 0;
+        for (int i = 0; i < shards.length; i++) {
+            dropped += dropped(i);
+        }
+        return dropped;
+    }
+
+    /** Packets a worker threw on, across every worker. */
+    public long failed() {
+        long failed = 0;
+        for (int i = 0; i < shards.length; i++) {
+            failed += failed(i);
+        }
+        return failed;
+    }
+
+    /** Packets waiting, across every worker. */
+    public int queued() {
+        int queued = 0;
+        for (int i = 0; i < shards.length; i++) {
+            queued += queued(i);
+        }
+        return queued;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CapturePipeline{workers=").append(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            sb.append(", #").append(i)
+              .append("{processed=").append(processed(i))
+              .append(", bytes=").append(bytes(i))
+              .append(", dropped=").append(dropped(i))
+              .append(", failed=").append(failed(i))
+              .append(", queued=").append(queued(i))
+              .append(", busyMs=").append(busyNanos(i) / 1_000_000)
+              .append('}');
+        }
+        return sb.append(", ").append(pool).append('}').toString();
+    }
+
+    private final class Shard implements Runnable {
+        final SpscRing<ByteBuffer> outgoing;
+        final SpscRing<ByteBuffer> incoming;
+        final Worker worker;
+        final Thread thread;
+        final int index;
+        // Set while the worker is parked with nothing queued, so producers know to wake it
+        volatile boolean idle;
+
+        // Written by the worker only
+        volatile long processed;
+        volatile long bytes;
+        volatile long busyNanos;
+        volatile long failed;
+        // Written by each direction's producer only
+        volatile long droppedOutgoing;
+        volatile long droppedIncoming;
+
+        Shard(int index, Worker worker) {
+            SpscRing.DropHandler<ByteBuffer> release = new SpscRing.DropHandler<ByteBuffer>() {
+                @Override
+                public void onDrop(ByteBuffer frame) {
+                    pool.release(frame);
+                }
+            };
+            this.outgoing = new SpscRing<>(QUEUED_PER_DIRECTION, SpscRing.OverflowPolicy.DROP_NEWEST, release);
+            this.incoming = new SpscRing<>(QUEUED_PER_DIRECTION, SpscRing.OverflowPolicy.DROP_NEWEST, release);
+            this.worker = worker;
+            this.index = index;
+            this.thread = new Thread(this, "CaptureWorker-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void dropped(boolean incoming) {
+            if (incoming) {
+                droppedIncoming++;
+            } else {
+                droppedOutgoing++;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                ByteBuffer frame = next();
+                if (frame == null) {
+                    idle = true;
+                    // Re-check after publishing idle so an offer in between is not missed
+                    if (outgoing.isEmpty() && incoming.isEmpty() && running) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                    continue;
+                }
+                long start = System.nanoTime();
+                frame.getLong();
+                long timestampMs = frame.getLong();
+                boolean isIncoming = frame.get() != 0;
+                int length = frame.remaining();
+                try {
+                    worker.process(frame, isIncoming, timestampMs);
+                } catch (RuntimeException e) {
+                    // One bad packet must not take the worker down with it
+                    failed++;
+                    recordFailure(e);
+                } finally {
+                    pool.release(frame);
+                }
+                processed++;
+                bytes += length;
+                busyNanos += System.nanoTime() - start;
+            }
+            ByteBuffer frame;
+            while ((frame = outgoing.poll()) != null || (frame = incoming.poll()) != null) {
+                pool.release(frame);
+            }
+        }
+
+        private void recordFailure(RuntimeException e) {
+            FailureListener listener = failureListener;
+            if (listener != null && !failureReported.get() && failureReported.compareAndSet(false, true)) {
+                listener.onFirstFailure(index, e);
+            }
+        }
+
+        // The earlier captured of the two rings' oldest packets
+        private ByteBuffer next() {
+            ByteBuffer out = outgoing.peek();
+            ByteBuffer in = incoming.peek();
+            if (out == null && in == null) {
+                return null;
+            }
+            if (in == null || (out != null && out.getLong(0) - in.getLong(0) <= 0)) {
+                return outgoing.poll();
+            }
+            return incoming.poll();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The capture work done for every packet, in order: the raw-byte filter,
+ * decoding, the flow table (which classifies new flows), the session's
+ * traffic totals, the history, the PCAPNG recording, and finally the event
+ * for the page. ToyVpnService runs one per capture worker; the replay tool
+ * drives the same code from a capture file.
+ *
+ * The decoder and preview encoder belong to the instance, so each thread
+ * needs its own. So do the flow table and the history: each worker is given
+ * its partition of {@link FlowTables} and of {@link CaptureHistory}, which
+ * only it writes to. The traffic totals are shared atomics, and the
+ * recording is shared too: each worker offers into its own rings of the
+ * {@link PcapngRecorder}, picked by its worker index.
+ *
+ * With stage histograms attached, the time spent in each stage is recorded
+ * too, at the cost of a clock read per stage. A timing interval above one
+ * times only every n-th packet, which keeps that cost off most packets while
+ * the histograms stay representative.
+ */
+public final class CaptureProcessor implements CapturePipeline.Worker {
+    public static final int STAGE_FILTER = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_FLOW = 2;
+    public static final int STAGE_STATS = 3;
+    public static final int STAGE_HISTORY = 4;
+    public static final int STAGE_RECORD = 5;
+    public static final int STAGE_EVENT = 6;
+    public static final int STAGES = 7;
+    private static final String[] STAGE_NAMES = {"filter", "decode", "flow", "stats", "history", "record", "event"};
+
+    /** Where the current filter and recording come from; either may change between packets. */
+    public interface Taps {
+        /** @return the capture filter, or null to keep every packet */
+        CaptureFilter filter();
+
+        /**
+         * @return the running recording, or null; it must take
+         *         {@link CapturePipeline#MAX_WORKERS} producers
+         */
+        PcapngRecorder recorder();
+    }
+
+    /** Receives each kept packet once it has been counted, stored and recorded. */
+    public interface EventSink {
+        /**
+         * @return false to skip the event for this packet, because nobody is
+         *         listening or the page is behind
+         */
+        boolean admit();
+
+        /**
+         * @param previewOffset absolute index in the view's buffer where the payload preview starts
+         * @param seq the packet's sequence number in the history
+         */
+        void onPacket(PacketView view, boolean incoming, long timestampMs, int previewOffset,
+                      int appProtocol, long seq);
+    }
+
+    private final int worker;
+    private final PacketView view = new PacketView();
+    private final HexDump previewEncoder;
+    private final FlowTable flowTable;
+    private final TrafficStats trafficStats;
+    private final CaptureHistory.Partition history;
+    private final Taps taps;
+    private final EventSink events;
+    // Indexed by STAGE_; null when stages are not timed
+    private final LatencyHistogram[] stageLatency;
+    private final int timingMask;
+    private int processed;
+
+    /**
+     * @param worker the index of the capture worker running this processor,
+     *        below {@link CapturePipeline#MAX_WORKERS}; 0 when there is one
+     * @param historySnapLength payload bytes kept per packet in the history,
+     *        from the transport header
+     * @param stageLatency one histogram per stage, or null
+     */
+    public CaptureProcessor(int worker, FlowTable flowTable, TrafficStats trafficStats,
+                            CaptureHistory.Partition history, int historySnapLength, Taps taps, EventSink events,
+                            LatencyHistogram[] stageLatency) {
+        this(worker, flowTable, trafficStats, history, historySnapLength, taps, events, stageLatency, 1);
+    }
+
+    /**
+     * @param timingInterval time one packet in this many; a power of two
+     */
+    public CaptureProcessor(int worker, FlowTable flowTable, TrafficStats trafficStats,
+                            CaptureHistory.Partition history, int historySnapLength, Taps taps, EventSink events,
+                            LatencyHistogram[] stageLatency, int timingInterval) {
+        if (stageLatency != null && stageLatency.length != STAGES) {
+            throw new IllegalArgumentException("Need one histogram per stage");
+        }
+        if (timingInterval < 1 || Integer.bitCount(timingInterval) != 1) {
+            throw new IllegalArgumentException("Timing interval must be a power of two: " + timingInterval);
+        }
+        this.worker = worker;
+        this.flowTable = flowTable;
+        this.trafficStats = trafficStats;
+        this.history = history;
+        this.previewEncoder = new HexDump(historySnapLength, HexDump.FROM_TRANSPORT_HEADER);
+        this.taps = taps;
+        this.events = events;
+        this.stageLatency = stageLatency;
+        this.timingMask = timingInterval - 1;
+    }
+
+    public static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /** One histogram per stage, for the {@code stageLatency} argument. */
+    public static LatencyHistogram[] newStageHistograms() {
+        LatencyHistogram[] stages = new LatencyHistogram[STAGES];
+        for (int i = 0; i < STAGES; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+        return stages;
+    }
+
+    /** The registry's {@code capture.<stage>} histograms, for the {@code stageLatency} argument. */
+    public static LatencyHistogram[] stageHistograms(MetricsRegistry metrics) {
+        LatencyHistogram[] stages = new LatencyHistogram[STAGES];
+        for (int i = 0; i < STAGES; i++) {
+            stages[i] = metrics.histogram("capture." + STAGE_NAMES[i]);
+        }
+        return stages;
+    }
+
+    /**
+     * Runs one packet, held in [position, limit) of {@code packet}, through
+     * every stage. The buffer's position and limit are left as they were.
+     */
+    @Override
+    public void process(ByteBuffer packet, boolean incoming, long now) {
+        LatencyHistogram[] timed = (processed++ & timingMask) == 0 ? stageLatency : null;
+        long t = timed != null ? System.nanoTime() : 0;
+        int offset = packet.position();
+        int length = packet.remaining();
+
+        // Filtered out on the raw bytes: no decode, counters or bridge work
+        CaptureFilter filter = taps.filter();
+        boolean keep = filter == null || filter.matches(packet, offset, length, incoming);
+        if (timed != null) {
+            t = lap(timed, STAGE_FILTER, t);
+        }
+        if (!keep) {
+            return;
+        }
+
+        if (!view.wrap(packet, offset, length)) {
+            return;
+        }
+        int previewOffset = previewEncoder.previewOffset(view);
+        if (timed != null) {
+            t = lap(timed, STAGE_DECODE, t);
+        }
+
+        int app = Math.max(Dissectors.NONE, flowTable.recordAppProtocol(view, now));
+        if (timed != null) {
+            t = lap(timed, STAGE_FLOW, t);
+        }
+
+        trafficStats.record(view, incoming ? TrafficStats.INCOMING : TrafficStats.OUTGOING);
+        if (timed != null) {
+            t = lap(timed, STAGE_STATS, t);
+        }
+
+        long seq = history.append(view, incoming, now, previewOffset, previewEncoder.snapLength(), app);
+        if (timed != null) {
+            t = lap(timed, STAGE_HISTORY, t);
+        }
+
+        PcapngRecorder recorder = taps.recorder();
+        if (recorder != null) {
+            recorder.offer(worker, packet, offset, length, incoming, now);
+        }
+        if (timed != null) {
+            t = lap(timed, STAGE_RECORD, t);
+        }
+
+        // Nobody is listening, or the page is behind and this packet is shed:
+        // either way, don't pay for strings or JSON. Events that do go out carry
+        // only summary fields; payload bytes stay in the history until asked for
+        if (events.admit()) {
+            events.onPacket(view, incoming, now, previewOffset, app, seq);
+        }
+        if (timed != null) {
+            lap(timed, STAGE_EVENT, t);
+        }
+    }
+
+    private static long lap(LatencyHistogram[] timed, int stage, long since) {
+        long now = System.nanoTime();
+        timed[stage].record(now - since);
+        return now;
+    }
+}
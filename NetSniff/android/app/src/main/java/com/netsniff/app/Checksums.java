@@ -0,0 +1,56 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum (RFC 1071) helpers for headers synthesized by the forwarders.
+ * All offsets are absolute indexes into the buffer; positions are not touched.
+ */
+public final class Checksums {
+
+    private Checksums() {}
+
+    /** Adds {@code length} bytes to a running 32-bit one's complement sum. */
+    public static int sum(ByteBuffer buffer, int offset, int length, int initial) {
+        int sum = initial;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+        }
+        if ((length & 1) != 0) {
+            sum += (buffer.get(offset + length - 1) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /** Folds a running sum to 16 bits and complements it. */
+    public static int finish(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    /** Checksum of an IPv4 header whose checksum field is zero. */
+    public static int ipv4Header(ByteBuffer buffer, int offset, int headerLength) {
+        return finish(sum(buffer, offset, headerLength, 0));
+    }
+
+    /**
+     * TCP/UDP checksum including the pseudo header, for a transport segment of
+     * {@code length} bytes at {@code l4Offset} inside the IP packet at
+     * {@code ipOffset}. The segment's own checksum field must be zero.
+     */
+    public static int transport(ByteBuffer buffer, int ipOffset, int l4Offset, int length, int protocol) {
+        boolean ipv6 = ((buffer.get(ipOffset) >> 4) & 0xF) == 6;
+        int sum = ipv6
+                ? sum(buffer, ipOffset + 8, 32, 0)
+                : sum(buffer, ipOffset + 12, 8, 0);
+        sum += protocol;
+        sum += ipv6 ? 0 : length;
+        if (ipv6) {
+            sum += (length >>> 16) + (length & 0xFFFF);
+        }
+        return finish(sum(buffer, l4Offset, length, sum));
+    }
+}
@@ -0,0 +1,164 @@
+package com.netsniff.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which captured packets are sent to the UI, based on how far
+ * behind the UI is.
+ *
+ * Packets are delivered in one of three modes:
+ * <ul>
+ *   <li>{@link Mode#FULL}: every packet.</li>
+ *   <li>{@link Mode#SAMPLED}: one packet in {@link #sampleRate()}.</li>
+ *   <li>{@link Mode#SUMMARY}: no packets; the UI only gets periodic flow summaries.</li>
+ * </ul>
+ * The UI thread reports how late each delivery arrived through
+ * {@link #onBridgeLag}. Lag above {@link #HIGH_LAG_MS} doubles the sample
+ * rate, moving from FULL to SAMPLED and from SAMPLED to SUMMARY once the rate
+ * passes {@link #MAX_SAMPLE_RATE}. Lag below {@link #LOW_LAG_MS} steps back
+ * the same way. Mode changes are at least {@link #MIN_DWELL_MS} apart, so one
+ * slow frame does not flip the mode back and forth. If nothing delivered has
+ * been acknowledged for {@link #STALL_MS}, the UI is treated as stalled and
+ * delivery drops straight to SUMMARY.
+ *
+ * {@link #admit} is called on the capture threads. Apart from the switch to
+ * SUMMARY on a stall, it only touches volatile fields and atomic counters, so
+ * a slow UI never holds up forwarding.
+ */
+public final class DeliverySampler {
+    public enum Mode { FULL, SAMPLED, SUMMARY }
+
+    public static final long HIGH_LAG_MS = 250;
+    public static final long LOW_LAG_MS = 80;
+    public static final long MIN_DWELL_MS = 500;
+    public static final long STALL_MS = 2000;
+    public static final int MAX_SAMPLE_RATE = 64;
+
+    private volatile Mode mode = Mode.FULL;
+    private volatile int sampleRate = 1;
+    // Time of the first packet delivered since the UI last acknowledged one; 0 if none
+    private volatile long awaitingSince;
+
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    // Guarded by this
+    private long lagMs;
+    private boolean hasLag;
+    private long lastChangeMs = Long.MIN_VALUE / 2;
+    private long modeChanges;
+
+    /**
+     * Counts one captured packet.
+     * @return true if it should be delivered to the UI
+     */
+    public boolean admit(long nowMs) {
+        long n = seen.incrementAndGet();
+        long since = awaitingSince;
+        if (since != 0 && nowMs - since > STALL_MS && mode != Mode.SUMMARY) {
+            onStall(nowMs);
+        }
+
+        Mode current = mode;
+        boolean admit = current == Mode.FULL || (current == Mode.SAMPLED && n % sampleRate == 0);
+        if (admit) {
+            delivered.incrementAndGet();
+            if (awaitingSince == 0) {
+                // Racy between the capture threads, but either time will do
+                awaitingSince = nowMs;
+            }
+        } else {
+            shed.incrementAndGet();
+        }
+        return admit;
+    }
+
+    /**
+     * Reports how late a delivery reached the page, beyond any delay that
+     * batching adds on purpose.
+     */
+    public synchronized void onBridgeLag(long lagMs, long nowMs) {
+        // Smooth over single slow frames: new samples count for a quarter
+        this.lagMs = hasLag ? (3 * this.lagMs + lagMs) / 4 : lagMs;
+        hasLag = true;
+        awaitingSince = 0;
+        if (nowMs - lastChangeMs < MIN_DWELL_MS) {
+            return;
+        }
+        if (this.lagMs > HIGH_LAG_MS) {
+            if (mode == Mode.FULL) {
+                change(Mode.SAMPLED, 2, nowMs);
+            } else if (mode == Mode.SAMPLED) {
+                if (sampleRate * 2 > MAX_SAMPLE_RATE) {
+                    change(Mode.SUMMARY, sampleRate, nowMs);
+                } else {
+                    change(Mode.SAMPLED, sampleRate * 2, nowMs);
+                }
+            }
+        } else if (this.lagMs < LOW_LAG_MS) {
+            if (mode == Mode.SUMMARY) {
+                change(Mode.SAMPLED, MAX_SAMPLE_RATE, nowMs);
+            } else if (mode == Mode.SAMPLED) {
+                if (sampleRate <= 2) {
+                    change(Mode.FULL, 1, nowMs);
+                } else {
+                    change(Mode.SAMPLED, sampleRate / 2, nowMs);
+                }
+            }
+        }
+    }
+
+    private synchronized void onStall(long nowMs) {
+        long since = awaitingSince;
+        if (since != 0 && nowMs - since > STALL_MS && mode != Mode.SUMMARY) {
+            lagMs = nowMs - since;
+            change(Mode.SUMMARY, sampleRate, nowMs);
+        }
+    }
+
+    private void change(Mode mode, int sampleRate, long nowMs) {
+        this.sampleRate = sampleRate;
+        this.mode = mode;
+        lastChangeMs = nowMs;
+        awaitingSince = 0;
+        modeChanges++;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /** N in "1 in N" while {@link Mode#SAMPLED}. */
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    /** Smoothed lag from the most recent reports. */
+    public synchronized long lagMs() {
+        return lagMs;
+    }
+
+    public synchronized long modeChanges() {
+        return modeChanges;
+    }
+
+    public long seen() {
+        return seen.get();
+    }
+
+    public long delivered() {
+        return delivered.get();
+    }
+
+    /** Packets withheld from the UI by sampling or summary mode. */
+    public long shed() {
+        return shed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DeliverySampler{mode=" + mode + ", rate=1/" + sampleRate + ", lagMs=" + lagMs()
+                + ", seen=" + seen.get() + ", delivered=" + delivered.get() + ", shed=" + shed.get() + "}";
+    }
+}
@@ -0,0 +1,110 @@
+package com.netsniff.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decoded fields of one packet's application payload, as a tree of named
+ * values in the order they appear on the wire.
+ */
+public final class Dissection {
+    /** One named value, possibly with fields nested under it. */
+    public static final class Field {
+        public final String name;
+        // Null for a field that only groups its children
+        public final String value;
+        private List<Field> children;
+
+        Field(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public Field add(String name, String value) {
+            Field field = new Field(name, value);
+            if (children == null) {
+                children = new ArrayList<>();
+            }
+            children.add(field);
+            return field;
+        }
+
+        public Field add(String name, long value) {
+            return add(name, String.valueOf(value));
+        }
+
+        /** Adds a field that only holds others. */
+        public Field group(String name) {
+            return add(name, null);
+        }
+
+        public List<Field> children() {
+            return children == null ? Collections.<Field>emptyList() : children;
+        }
+
+        /** The first child called {@code name}, or null. */
+        public Field child(String name) {
+            for (Field field : children()) {
+                if (field.name.equals(name)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        void append(StringBuilder sb, int depth) {
+            for (Field field : children()) {
+                for (int i = 0; i < depth; i++) {
+                    sb.append("  ");
+                }
+                sb.append(field.name);
+                if (field.value != null) {
+                    sb.append(": ").append(field.value);
+                }
+                sb.append('\n');
+                field.append(sb, depth + 1);
+            }
+        }
+    }
+
+    public final String protocol;
+    public final Field root = new Field("", null);
+    private boolean truncated;
+
+    public Dissection(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public Field add(String name, String value) {
+        return root.add(name, value);
+    }
+
+    public Field add(String name, long value) {
+        return root.add(name, value);
+    }
+
+    public Field group(String name) {
+        return root.group(name);
+    }
+
+    public Field field(String name) {
+        return root.child(name);
+    }
+
+    /** Notes that the payload ended before decoding did. */
+    public void markTruncated() {
+        truncated = true;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(protocol).append(truncated ? " (truncated)\n" : "\n");
+        root.append(sb, 1);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Recognises and decodes one application protocol carried over TCP or UDP.
+ *
+ * {@link #looksLike} runs on the capture threads, once per flow, so it must
+ * be cheap and must not allocate. {@link #dissect} only runs when somebody
+ * asks for a packet's details. Both read bytes by absolute index and must
+ * cope with payloads cut short by the capture snap length.
+ */
+public interface Dissector {
+    /** Stable number stored in packet records, from 1 to 255. */
+    int id();
+
+    String name();
+
+    /** Well-known ports, tried before heuristics. */
+    int[] ports();
+
+    /** @param transport {@link PacketView#PROTO_TCP} or {@link PacketView#PROTO_UDP} */
+    boolean carriedBy(int transport);
+
+    /** Whether the start of a payload could belong to this protocol. */
+    boolean looksLike(ByteBuffer buffer, int offset, int length, int transport);
+
+    /** Decodes as much of the payload as is there into {@code out}. */
+    void dissect(ByteBuffer buffer, int offset, int length, int transport, Dissection out);
+}
@@ -0,0 +1,167 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registry of {@link Dissector}s, and the classifier that decides which one
+ * a flow belongs to.
+ *
+ * Classification happens once per flow, on its first packet with a payload:
+ * dissectors claiming the destination and then the source port are asked
+ * first, then every dissector for the transport in registration order. The
+ * answer is kept on the flow by {@link FlowTable} and written into each
+ * packet record, so decoding a packet's fields later goes straight to the
+ * right dissector.
+ *
+ * Register everything before the table starts using it; lookups are not
+ * synchronized.
+ */
+public final class Dissectors implements FlowTable.Classifier {
+    /** No application protocol recognised. */
+    public static final int NONE = 0;
+
+    private final Dissector[] byId = new Dissector[256];
+    private final List<Dissector> registered = new ArrayList<>();
+    // Dissector id claiming each port, per transport; 0 for none
+    private final byte[] tcpPorts = new byte[0x10000];
+    private final byte[] udpPorts = new byte[0x10000];
+
+    /** DNS, HTTP/1.x and TLS. */
+    public static Dissectors withDefaults() {
+        Dissectors dissectors = new Dissectors();
+        dissectors.register(new DnsDissector());
+        dissectors.register(new HttpDissector());
+        dissectors.register(new TlsDissector());
+        return dissectors;
+    }
+
+    public void register(Dissector dissector) {
+        int id = dissector.id();
+        if (id < 1 || id > 255 || byId[id] != null) {
+            throw new IllegalArgumentException("Dissector id " + id + " for " + dissector.name()
+                    + " is out of range or taken");
+        }
+        byId[id] = dissector;
+        registered.add(dissector);
+        for (int port : dissector.ports()) {
+            if (dissector.carriedBy(PacketView.PROTO_TCP) && tcpPorts[port] == 0) {
+                tcpPorts[port] = (byte) id;
+            }
+            if (dissector.carriedBy(PacketView.PROTO_UDP) && udpPorts[port] == 0) {
+                udpPorts[port] = (byte) id;
+            }
+        }
+    }
+
+    @Override
+    public int classify(PacketView view) {
+        if (!view.hasPorts()) {
+            return NONE;
+        }
+        if (view.payloadLength() == 0) {
+            return FlowTable.APP_UNCLASSIFIED;
+        }
+        return classify(view.protocol(), view.sourcePort(), view.destinationPort(),
+                view.buffer(), view.payloadOffset(), view.payloadLength());
+    }
+
+    /** @return the id of the dissector that recognises the payload, or {@link #NONE} */
+    public int classify(int transport, int sourcePort, int destinationPort,
+                        ByteBuffer buffer, int offset, int length) {
+        byte[] ports = transport == PacketView.PROTO_TCP ? tcpPorts
+                : transport == PacketView.PROTO_UDP ? udpPorts : null;
+        if (ports == null || length <= 0) {
+            return NONE;
+        }
+        int byPort = ports[destinationPort] & 0xFF;
+        if (byPort != 0 && byId[byPort].looksLike(buffer, offset, length, transport)) {
+            return byPort;
+        }
+        int bySourcePort = ports[sourcePort] & 0xFF;
+        if (bySourcePort != 0 && byId[bySourcePort].looksLike(buffer, offset, length, transport)) {
+            return bySourcePort;
+        }
+        for (int i = 0; i < registered.size(); i++) {
+            Dissector dissector = registered.get(i);
+            if (dissector.carriedBy(transport) && dissector.looksLike(buffer, offset, length, transport)) {
+                return dissector.id();
+            }
+        }
+        return NONE;
+    }
+
+    /** The protocol's name, or null for {@link #NONE} and unknown ids. */
+    public String name(int id) {
+        Dissector dissector = id > 0 && id < byId.length ? byId[id] : null;
+        return dissector != null ? dissector.name() : null;
+    }
+
+    /**
+     * Decodes a payload with the dissector {@code id}. A payload that ends
+     * early gives a partial, truncated dissection rather than an error.
+     * @return null if {@code id} is not registered
+     */
+    public Dissection dissect(int id, ByteBuffer buffer, int offset, int length, int transport) {
+        Dissector dissector = id > 0 && id < byId.length ? byId[id] : null;
+        if (dissector == null) {
+            return null;
+        }
+        Dissection out = new Dissection(dissector.name());
+        try {
+            dissector.dissect(buffer, offset, length, transport, out);
+        } catch (IndexOutOfBoundsException e) {
+            // Backstop for a dissector that read past what was captured
+            out.markTruncated();
+        }
+        return out;
+    }
+
+    /**
+     * Decodes the payload held in one {@link PacketRecords} record, using the
+     * application protocol the record was tagged with, or classifying it now
+     * if it was not.
+     * @return null if the record holds no TCP or UDP payload in a known protocol
+     */
+    public Dissection dissectRecord(byte[] data, int offset) {
+        ByteBuffer record = ByteBuffer.wrap(data);
+        int flags = data[offset];
+        int transport = data[offset + 1] & 0xFF;
+        if ((flags & PacketRecords.FLAG_PORTS) == 0
+                || (transport != PacketView.PROTO_TCP && transport != PacketView.PROTO_UDP)) {
+            return null;
+        }
+        int sourcePort = record.getShort(offset + 6) & 0xFFFF;
+        int destinationPort = record.getShort(offset + 8) & 0xFFFF;
+        int previewLength = PacketRecords.previewLength(data, offset);
+        // With ports present, the preview starts at the transport header
+        int transportHeader = PacketRecords.previewStart(data, offset);
+        int headerLength = 8;
+        if (transport == PacketView.PROTO_TCP) {
+            if (previewLength < 13) {
+                return null;
+            }
+            headerLength = ((data[transportHeader + 12] >> 4) & 0xF) * 4;
+        }
+        int payload = transportHeader + headerLength;
+        int payloadLength = previewLength - headerLength;
+        if (payloadLength <= 0) {
+            return null;
+        }
+        int id = data[offset + 3] & 0xFF;
+        if (id == NONE) {
+            id = classify(transport, sourcePort, destinationPort, record, payload, payloadLength);
+        }
+        return dissect(id, record, payload, payloadLength, transport);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Dissectors{");
+        for (int i = 0; i < registered.size(); i++) {
+            sb.append(i > 0 ? ", " : "").append(registered.get(i).name());
+        }
+        return sb.append('}').toString();
+    }
+}
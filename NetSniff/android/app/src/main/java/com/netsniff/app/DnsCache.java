@@ -0,0 +1,133 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TTL-respecting LRU cache of DNS responses, keyed by
+ * {@link DnsMessage#questionKey}.
+ *
+ * An answer lives for the smallest TTL among its records, capped at
+ * {@link #MAX_TTL_SECONDS}. Negative answers (NXDOMAIN, or NOERROR with no
+ * answers) are kept for the SOA TTL in their authority section, or
+ * {@link #NEGATIVE_TTL_SECONDS} when there is none. When an answer is served,
+ * every TTL is counted down by the time it has spent in the cache, so clients
+ * never hold a record longer than the server allowed.
+ *
+ * Not thread-safe; owned by the network thread.
+ */
+public final class DnsCache {
+    public static final int DEFAULT_CAPACITY = 512;
+    public static final int MAX_TTL_SECONDS = 3600;
+    public static final int NEGATIVE_TTL_SECONDS = 30;
+
+    private final Map<String, Entry> entries;
+
+    public DnsCache(final int capacity) {
+        // Access order, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** A cached response with the positions of its TTL fields. */
+    public static final class Entry {
+        final byte[] response;
+        final int[] ttlOffsets;
+        final long storedAt;
+        final long expiresAt;
+
+        Entry(byte[] response, int[] ttlOffsets, long storedAt, long expiresAt) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        public int length() {
+            return response.length;
+        }
+
+        /**
+         * Writes the response at absolute {@code index} with the given
+         * transaction id and every TTL reduced by the time spent in the cache.
+         */
+        public void copyTo(ByteBuffer buffer, int index, int id, long nowMs) {
+            for (int i = 0; i < response.length; i++) {
+                buffer.put(index + i, response[i]);
+            }
+            buffer.putShort(index, (short) id);
+            long elapsedSeconds = (nowMs - storedAt) / 1000;
+            for (int offset : ttlOffsets) {
+                long ttl = buffer.getInt(index + offset) & 0xFFFFFFFFL;
+                buffer.putInt(index + offset, (int) Math.max(0, ttl - elapsedSeconds));
+            }
+        }
+    }
+
+    /** @return the live entry for {@code key}, or null if there is none or it expired */
+    public Entry get(String key, long nowMs) {
+        Entry entry = entries.get(key);
+        if (entry != null && nowMs >= entry.expiresAt) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches the response held in {@code length} bytes at {@code offset}, if it
+     * is cacheable: a well-formed, untruncated NOERROR or NXDOMAIN answer with a
+     * non-zero lifetime.
+     * @return true if it was stored
+     */
+    public boolean put(String key, ByteBuffer buffer, int offset, int length, long nowMs) {
+        int flags = DnsMessage.flags(buffer, offset);
+        int rcode = flags & DnsMessage.RCODE_MASK;
+        if ((flags & DnsMessage.FLAG_TC) != 0
+                || (rcode != DnsMessage.RCODE_NOERROR && rcode != DnsMessage.RCODE_NXDOMAIN)) {
+            return false;
+        }
+        int[] offsets = new int[DnsMessage.recordCount(buffer, offset)];
+        int count = DnsMessage.ttlOffsets(buffer, offset, length, offsets);
+        if (count < 0) {
+            return false;
+        }
+
+        long ttl = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            ttl = Math.min(ttl, buffer.getInt(offsets[i]) & 0xFFFFFFFFL);
+            // Stored relative to the start of the message
+            offsets[i] -= offset;
+        }
+        boolean negative = rcode == DnsMessage.RCODE_NXDOMAIN || DnsMessage.answerCount(buffer, offset) == 0;
+        if (count == 0) {
+            ttl = negative ? NEGATIVE_TTL_SECONDS : 0;
+        }
+        ttl = Math.min(ttl, MAX_TTL_SECONDS);
+        if (ttl <= 0) {
+            return false;
+        }
+
+        byte[] response = new byte[length];
+        for (int i = 0; i < length; i++) {
+            response[i] = buffer.get(offset + i);
+        }
+        int[] ttlOffsets = new int[count];
+        System.arraycopy(offsets, 0, ttlOffsets, 0, count);
+        entries.put(key, new Entry(response, ttlOffsets, nowMs, nowMs + ttl * 1000));
+        return true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,317 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DNS queries and responses (RFC 1035), over UDP or over TCP with its
+ * two-byte length prefix. Also used for mDNS, which shares the format.
+ */
+public final class DnsDissector implements Dissector {
+    public static final int ID = 1;
+
+    private static final int HEADER = 12;
+    // Counts above this are not plausible in one message
+    private static final int MAX_RECORDS = 256;
+    // Records decoded per section before the rest are only counted
+    private static final int MAX_DECODED = 32;
+    private static final int MAX_NAME_LENGTH = 255;
+    // Compression pointers followed per name, so a loop cannot spin forever
+    private static final int MAX_POINTERS = 16;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_MX = 15;
+    private static final int TYPE_TXT = 16;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_SRV = 33;
+    private static final int TYPE_OPT = 41;
+    private static final int TYPE_HTTPS = 65;
+
+    private static final String[] OPCODES = {"QUERY", "IQUERY", "STATUS", "3", "NOTIFY", "UPDATE"};
+    private static final String[] RCODES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "DNS";
+    }
+
+    @Override
+    public int[] ports() {
+        return new int[] {53, 5353};
+    }
+
+    @Override
+    public boolean carriedBy(int transport) {
+        return transport == PacketView.PROTO_UDP || transport == PacketView.PROTO_TCP;
+    }
+
+    @Override
+    public boolean looksLike(ByteBuffer buffer, int offset, int length, int transport) {
+        if (transport == PacketView.PROTO_TCP) {
+            offset += 2;
+            length -= 2;
+        }
+        if (length < HEADER) {
+            return false;
+        }
+        int flags = u16(buffer, offset + 2);
+        int questions = u16(buffer, offset + 4);
+        int answers = u16(buffer, offset + 6);
+        int authority = u16(buffer, offset + 8);
+        int additional = u16(buffer, offset + 10);
+        if (((flags >> 11) & 0xF) > 5 || (flags & 0x0040) != 0) {
+            // Unassigned opcode, or the reserved Z bit set
+            return false;
+        }
+        if (questions > MAX_RECORDS || answers > MAX_RECORDS || authority > MAX_RECORDS
+                || additional > MAX_RECORDS || questions + answers + authority + additional == 0) {
+            return false;
+        }
+        if (questions == 0) {
+            return true;
+        }
+        return skipName(buffer, offset + HEADER, offset + length) > 0;
+    }
+
+    @Override
+    public void dissect(ByteBuffer buffer, int offset, int length, int transport, Dissection out) {
+        int end = offset + length;
+        if (transport == PacketView.PROTO_TCP) {
+            if (length < 2) {
+                out.markTruncated();
+                return;
+            }
+            out.add("Length", u16(buffer, offset));
+            offset += 2;
+        }
+        if (end - offset < HEADER) {
+            out.markTruncated();
+            return;
+        }
+        int message = offset;
+        int flags = u16(buffer, offset + 2);
+        boolean response = (flags & 0x8000) != 0;
+        int opcode = (flags >> 11) & 0xF;
+        int rcode = flags & 0xF;
+
+        out.add("Transaction ID", String.format("0x%04x", u16(buffer, offset)));
+        Dissection.Field flagField = out.add("Flags", String.format("0x%04x", flags));
+        flagField.add("Response", response ? "Message is a response" : "Message is a query");
+        flagField.add("Opcode", opcode < OPCODES.length ? OPCODES[opcode] : String.valueOf(opcode));
+        if (response) {
+            flagField.add("Authoritative", (flags & 0x0400) != 0 ? "yes" : "no");
+        }
+        flagField.add("Truncated", (flags & 0x0200) != 0 ? "yes" : "no");
+        flagField.add("Recursion desired", (flags & 0x0100) != 0 ? "yes" : "no");
+        if (response) {
+            flagField.add("Recursion available", (flags & 0x0080) != 0 ? "yes" : "no");
+            flagField.add("Reply code", rcode < RCODES.length ? RCODES[rcode] : String.valueOf(rcode));
+        }
+        int questions = u16(buffer, offset + 4);
+        int[] sections = {u16(buffer, offset + 6), u16(buffer, offset + 8), u16(buffer, offset + 10)};
+        out.add("Questions", questions);
+        out.add("Answer RRs", sections[0]);
+        out.add("Authority RRs", sections[1]);
+        out.add("Additional RRs", sections[2]);
+
+        int at = offset + HEADER;
+        StringBuilder name = new StringBuilder();
+        if (questions > 0) {
+            Dissection.Field queries = out.group("Queries");
+            for (int i = 0; i < questions; i++) {
+                if (i == MAX_DECODED) {
+                    queries.add("More", (questions - i) + " not shown");
+                    break;
+                }
+                name.setLength(0);
+                int next = readName(buffer, at, message, end, name);
+                if (next < 0 || next + 4 > end) {
+                    out.markTruncated();
+                    return;
+                }
+                Dissection.Field query = queries.add(name.toString(), typeName(u16(buffer, next)));
+                query.add("Name", name.toString());
+                query.add("Type", typeName(u16(buffer, next)));
+                query.add("Class", className(u16(buffer, next + 2)));
+                at = next + 4;
+            }
+        }
+        String[] titles = {"Answers", "Authoritative nameservers", "Additional records"};
+        for (int s = 0; s < sections.length; s++) {
+            if (sections[s] == 0) {
+                continue;
+            }
+            Dissection.Field group = out.group(titles[s]);
+            for (int i = 0; i < sections[s]; i++) {
+                if (i == MAX_DECODED) {
+                    group.add("More", (sections[s] - i) + " not shown");
+                    return;
+                }
+                at = readRecord(buffer, at, message, end, group, name);
+                if (at < 0) {
+                    out.markTruncated();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Decodes one resource record into parent; returns the index after it, or -1 if cut short
+    private static int readRecord(ByteBuffer buffer, int at, int message, int end,
+                                  Dissection.Field parent, StringBuilder name) {
+        name.setLength(0);
+        int next = readName(buffer, at, message, end, name);
+        if (next < 0 || next + 10 > end) {
+            return -1;
+        }
+        int type = u16(buffer, next);
+        int rdLength = u16(buffer, next + 8);
+        int rdata = next + 10;
+        String owner = name.length() == 0 ? "<Root>" : name.toString();
+        String value = type == TYPE_OPT ? null
+                : rdata + rdLength <= end ? rdataString(buffer, type, rdata, rdLength, message, end) : null;
+
+        Dissection.Field record = parent.add(owner, value != null ? typeName(type) + " " + value : typeName(type));
+        record.add("Name", owner);
+        record.add("Type", typeName(type));
+        if (type == TYPE_OPT) {
+            record.add("UDP payload size", u16(buffer, next + 2));
+        } else {
+            record.add("Class", className(u16(buffer, next + 2)));
+            record.add("Time to live", buffer.getInt(next + 4) & 0xFFFFFFFFL);
+        }
+        record.add("Data length", rdLength);
+        if (value != null) {
+            record.add("Data", value);
+        }
+        return rdata + rdLength <= end ? rdata + rdLength : -1;
+    }
+
+    // A readable form of the record data, or null for types only shown by length
+    private static String rdataString(ByteBuffer buffer, int type, int at, int length, int message, int end) {
+        StringBuilder sb = new StringBuilder();
+        switch (type) {
+            case TYPE_A:
+                if (length != 4) {
+                    return null;
+                }
+                return PacketView.appendIpv4(sb, buffer.getInt(at)).toString();
+            case TYPE_AAAA:
+                if (length != 16) {
+                    return null;
+                }
+                return PacketView.appendIpv6(sb, buffer, at).toString();
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                return readName(buffer, at, message, end, sb) > 0 ? sb.toString() : null;
+            case TYPE_MX:
+                if (length < 3) {
+                    return null;
+                }
+                sb.append(u16(buffer, at)).append(' ');
+                return readName(buffer, at + 2, message, end, sb) > 0 ? sb.toString() : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Appends the dotted name at {@code at}, following compression pointers
+     * into the message.
+     * @return the index just after the name where it started, or -1 if it is
+     *         malformed or runs past {@code end}
+     */
+    static int readName(ByteBuffer buffer, int at, int message, int end, StringBuilder out) {
+        int after = -1;
+        int pointers = 0;
+        int start = out.length();
+        while (at < end) {
+            int label = buffer.get(at) & 0xFF;
+            if (label == 0) {
+                return after >= 0 ? after : at + 1;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                if (at + 1 >= end || ++pointers > MAX_POINTERS) {
+                    return -1;
+                }
+                if (after < 0) {
+                    after = at + 2;
+                }
+                at = message + (((label & 0x3F) << 8) | (buffer.get(at + 1) & 0xFF));
+                continue;
+            }
+            if ((label & 0xC0) != 0 || at + 1 + label > end) {
+                return -1;
+            }
+            if (out.length() > start) {
+                out.append('.');
+            }
+            for (int i = 1; i <= label; i++) {
+                int c = buffer.get(at + i) & 0xFF;
+                out.append(c >= 0x21 && c < 0x7F ? (char) c : '?');
+            }
+            if (out.length() - start > MAX_NAME_LENGTH) {
+                return -1;
+            }
+            at += 1 + label;
+        }
+        return -1;
+    }
+
+    // Like readName, but only checks the name is well formed; no pointers are followed
+    private static int skipName(ByteBuffer buffer, int at, int end) {
+        int length = 0;
+        while (at < end) {
+            int label = buffer.get(at) & 0xFF;
+            if (label == 0) {
+                return at + 1;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                return at + 2 <= end ? at + 2 : -1;
+            }
+            if ((label & 0xC0) != 0) {
+                return -1;
+            }
+            length += label + 1;
+            if (length > MAX_NAME_LENGTH) {
+                return -1;
+            }
+            at += 1 + label;
+        }
+        return -1;
+    }
+
+    static String typeName(int type) {
+        switch (type) {
+            case TYPE_A: return "A";
+            case TYPE_NS: return "NS";
+            case TYPE_CNAME: return "CNAME";
+            case TYPE_PTR: return "PTR";
+            case TYPE_MX: return "MX";
+            case TYPE_TXT: return "TXT";
+            case TYPE_AAAA: return "AAAA";
+            case TYPE_SRV: return "SRV";
+            case TYPE_OPT: return "OPT";
+            case TYPE_HTTPS: return "HTTPS";
+            default: return "TYPE" + type;
+        }
+    }
+
+    private static String className(int dnsClass) {
+        // mDNS uses the top bit for unicast-response / cache-flush
+        int base = dnsClass & 0x7FFF;
+        return base == 1 ? "IN" : base == 255 ? "ANY" : "CLASS" + base;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+}
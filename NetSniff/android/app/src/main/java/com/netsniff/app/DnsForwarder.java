@@ -0,0 +1,537 @@
+package com.netsniff.app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Caching DNS forwarder answering on the VPN's own DNS address.
+ *
+ * Queries the device sends to that address are answered straight from a
+ * {@link DnsCache} when possible. On a miss the query is forwarded once over
+ * a single protected socket, however many identical queries arrive while it
+ * is in flight. The answer is cached and then sent to every waiting client
+ * with that client's own id and question spelling. Unanswered queries are
+ * retried once (on the next upstream server, if there is one) and then fail
+ * with SERVFAIL so the client does not wait out its own timeout. Queries the
+ * cache cannot key (other opcodes, compressed or multi-question names) are
+ * still forwarded, one upstream query each, and their answers never cached.
+ *
+ * Everything runs on the selector thread; nothing here is thread-safe.
+ */
+public final class DnsForwarder implements SelectionHandler {
+    public static final long QUERY_TIMEOUT_MS = 2000;
+    public static final int MAX_ATTEMPTS = 2;
+    public static final int MAX_PENDING = 256;
+
+    private static final int PAYLOAD_OFFSET = PacketHeaders.IPV4_HEADER + PacketHeaders.UDP_HEADER;
+    // Largest response accepted from upstream (EDNS0 commonly advertises 1232-4096)
+    private static final int MAX_RESPONSE = 4096;
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private final PacketBufferPool pool;
+    private final SpscRing<ByteBuffer> toDevice;
+    private final PacketSink capture;
+    private final DnsCache cache;
+    private final int dnsAddress;
+    private final byte[] dnsAddressBytes;
+    private final InetSocketAddress[] upstreams;
+    private final DatagramChannel channel;
+
+    private final Map<String, Pending> pendingByKey = new HashMap<>();
+    private final Map<Integer, Pending> pendingById = new HashMap<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_RESPONSE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_RESPONSE);
+    private final Random random = new Random();
+    private int nextIpId;
+    private long nowMs;
+
+    private long queries;
+    private long hits;
+    private long misses;
+    private long coalesced;
+    private long upstreamQueries;
+    private long upstreamTimeouts;
+    private long failures;
+    private long truncated;
+    private long dropped;
+    private long uncached;
+    private long upstreamResponses;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+
+    /**
+     * @param dnsAddress the IPv4 address (network order) handed to the system as the VPN's DNS server
+     * @param upstreams real resolvers, tried in turn on timeout
+     */
+    public DnsForwarder(Selector selector, SocketProtector protector, PacketBufferPool pool,
+                        SpscRing<ByteBuffer> toDevice, PacketSink capture, DnsCache cache,
+                        int dnsAddress, InetSocketAddress[] upstreams, long nowMs) throws IOException {
+        if (upstreams.length == 0) {
+            throw new IllegalArgumentException("no upstream resolvers");
+        }
+        this.pool = pool;
+        this.toDevice = toDevice;
+        this.capture = capture;
+        this.cache = cache;
+        this.dnsAddress = dnsAddress;
+        this.dnsAddressBytes = new byte[] {
+                (byte) (dnsAddress >>> 24), (byte) (dnsAddress >>> 16), (byte) (dnsAddress >>> 8), (byte) dnsAddress};
+        this.upstreams = upstreams.clone();
+        this.nowMs = nowMs;
+
+        channel = DatagramChannel.open();
+        try {
+            if (!protector.protect(channel.socket())) {
+                throw new IOException("Could not protect DNS socket");
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** True for UDP packets addressed to the VPN's DNS server. */
+    public boolean intercepts(PacketView view) {
+        return view.protocol() == PacketView.PROTO_UDP && !view.isIpv6() && view.hasPorts()
+                && view.destinationPort() == DnsMessage.PORT && view.destinationAddress() == dnsAddress;
+    }
+
+    /**
+     * Answers or forwards a query read from the TUN. {@code view} must already
+     * wrap the packet; the caller still owns the packet.
+     */
+    public void handleQuery(PacketView view, long nowMs) {
+        this.nowMs = nowMs;
+        queries++;
+        ByteBuffer packet = view.buffer();
+        int offset = view.payloadOffset();
+        int length = view.payloadLength();
+        if (length < DnsMessage.HEADER || (DnsMessage.flags(packet, offset) & DnsMessage.FLAG_QR) != 0) {
+            dropped++;
+            return;
+        }
+        int queryId = DnsMessage.id(packet, offset);
+        String key = (DnsMessage.flags(packet, offset) & DnsMessage.OPCODE_MASK) == 0
+                ? DnsMessage.questionKey(packet, offset, length) : null;
+        if (key == null) {
+            forwardUncached(view, queryId);
+            return;
+        }
+        int questionEnd = DnsMessage.questionEnd(packet, offset, length);
+
+        DnsCache.Entry entry = cache.get(key, nowMs);
+        if (entry != null) {
+            hits++;
+            replyFromCache(view, entry, queryId, questionEnd);
+            return;
+        }
+        misses++;
+
+        Waiter waiter = new Waiter(view, queryId, copy(packet, offset + DnsMessage.HEADER, questionEnd));
+        Pending pending = pendingByKey.get(key);
+        if (pending != null) {
+            coalesced++;
+            pending.waiters.add(waiter);
+            return;
+        }
+        if (pendingById.size() >= MAX_PENDING) {
+            dropped++;
+            return;
+        }
+        pending = new Pending(key, allocateId(), copy(packet, offset, offset + length), waiter.question);
+        pending.waiters.add(waiter);
+        pendingByKey.put(key, pending);
+        pendingById.put(pending.upstreamId, pending);
+        pending.firstSentNanos = System.nanoTime();
+        sendUpstream(pending);
+    }
+
+    /**
+     * Forwards a query the cache cannot key (another opcode, a compressed or
+     * multi-question name) on its own, and passes the answer back untouched.
+     */
+    private void forwardUncached(PacketView view, int queryId) {
+        if (pendingById.size() >= MAX_PENDING) {
+            dropped++;
+            return;
+        }
+        uncached++;
+        ByteBuffer packet = view.buffer();
+        int offset = view.payloadOffset();
+        int end = offset + view.payloadLength();
+        int questionEnd = DnsMessage.questionEnd(packet, offset, view.payloadLength());
+        byte[] question = questionEnd < 0 ? null : copy(packet, offset + DnsMessage.HEADER, questionEnd);
+        Waiter waiter = new Waiter(view, queryId, question != null ? question : new byte[0]);
+        Pending pending = new Pending(null, allocateId(), copy(packet, offset, end), question);
+        pending.waiters.add(waiter);
+        pendingById.put(pending.upstreamId, pending);
+        pending.firstSentNanos = System.nanoTime();
+        sendUpstream(pending);
+    }
+
+    private int allocateId() {
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (pendingById.containsKey(id));
+        return id;
+    }
+
+    private void sendUpstream(Pending pending) {
+        sendBuffer.clear();
+        sendBuffer.put(pending.query);
+        sendBuffer.putShort(0, (short) pending.upstreamId);
+        sendBuffer.flip();
+        InetSocketAddress upstream = upstreams[pending.attempts % upstreams.length];
+        pending.attempts++;
+        pending.sentAt = nowMs;
+        try {
+            channel.send(sendBuffer, upstream);
+            upstreamQueries++;
+        } catch (IOException e) {
+            // Retried from expire() like a lost datagram
+            dropped++;
+        }
+    }
+
+    /** Retries or fails queries upstream has not answered in time. */
+    public void expire(long nowMs) {
+        this.nowMs = nowMs;
+        if (pendingById.isEmpty()) {
+            return;
+        }
+        Iterator<Pending> it = pendingById.values().iterator();
+        while (it.hasNext()) {
+            Pending pending = it.next();
+            if (nowMs - pending.sentAt < QUERY_TIMEOUT_MS) {
+                continue;
+            }
+            upstreamTimeouts++;
+            if (pending.attempts < MAX_ATTEMPTS) {
+                sendUpstream(pending);
+                continue;
+            }
+            it.remove();
+            if (pending.key != null) {
+                pendingByKey.remove(pending.key);
+            }
+            for (Waiter waiter : pending.waiters) {
+                replyServfail(waiter);
+            }
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) throws IOException {
+        if (!key.isValid() || !key.isReadable()) {
+            return;
+        }
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            if (isUpstream(from)) {
+                handleResponse(receiveBuffer, receiveBuffer.limit());
+            } else {
+                dropped++;
+            }
+        }
+    }
+
+    private boolean isUpstream(SocketAddress address) {
+        for (InetSocketAddress upstream : upstreams) {
+            if (upstream.equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleResponse(ByteBuffer response, int length) {
+        if (length < DnsMessage.HEADER || (DnsMessage.flags(response, 0) & DnsMessage.FLAG_QR) == 0) {
+            dropped++;
+            return;
+        }
+        Pending pending = pendingById.get(DnsMessage.id(response, 0));
+        int questionEnd = DnsMessage.questionEnd(response, 0, length);
+        // Uncached queries without a single parseable question are matched on the id alone
+        if (pending == null || (pending.question != null
+                && (questionEnd < 0 || !sameQuestion(response, questionEnd, pending.question)))) {
+            // Late answer to a query we already gave up on, or a spoofing attempt
+            dropped++;
+            return;
+        }
+        pendingById.remove(pending.upstreamId);
+        if (pending.key != null) {
+            pendingByKey.remove(pending.key);
+        }
+
+        long latency = System.nanoTime() - pending.firstSentNanos;
+        upstreamResponses++;
+        totalLatencyNanos += latency;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+
+        if (pending.key != null) {
+            cache.put(pending.key, response, 0, length, nowMs);
+        }
+        for (Waiter waiter : pending.waiters) {
+            replyFromResponse(waiter, response, length, questionEnd < 0 ? DnsMessage.HEADER : questionEnd);
+        }
+    }
+
+    private static boolean sameQuestion(ByteBuffer response, int questionEnd, byte[] question) {
+        if (questionEnd - DnsMessage.HEADER != question.length) {
+            return false;
+        }
+        for (int i = 0; i < question.length; i++) {
+            int a = response.get(DnsMessage.HEADER + i) & 0xFF;
+            int b = question[i] & 0xFF;
+            if (a != b && toLower(a) != toLower(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private void replyFromCache(PacketView view, DnsCache.Entry entry, int queryId, int questionEnd) {
+        ByteBuffer packet = acquire();
+        if (packet == null) {
+            return;
+        }
+        int length = entry.length();
+        if (PAYLOAD_OFFSET + length > packet.capacity()) {
+            // Only happens for answers larger than the TUN MTU
+            length = writeTruncated(packet, view.buffer(), view.payloadOffset(), questionEnd, queryId);
+        } else {
+            entry.copyTo(packet, PAYLOAD_OFFSET, queryId, nowMs);
+            // Echo the client's own spelling of the name (0x20 randomization)
+            for (int i = view.payloadOffset() + DnsMessage.HEADER; i < questionEnd; i++) {
+                packet.put(PAYLOAD_OFFSET + i - view.payloadOffset(), view.buffer().get(i));
+            }
+        }
+        send(packet, PacketHeaders.copyAddress(view, view.sourceAddressOffset()), view.sourcePort(), length);
+    }
+
+    private void replyFromResponse(Waiter waiter, ByteBuffer response, int length, int questionEnd) {
+        ByteBuffer packet = acquire();
+        if (packet == null) {
+            return;
+        }
+        if (PAYLOAD_OFFSET + length > packet.capacity()) {
+            length = writeTruncated(packet, response, 0, questionEnd, waiter.queryId);
+        } else {
+            for (int i = 0; i < length; i++) {
+                packet.put(PAYLOAD_OFFSET + i, response.get(i));
+            }
+            packet.putShort(PAYLOAD_OFFSET, (short) waiter.queryId);
+        }
+        for (int i = 0; i < waiter.question.length; i++) {
+            packet.put(PAYLOAD_OFFSET + DnsMessage.HEADER + i, waiter.question[i]);
+        }
+        send(packet, waiter.deviceAddress, waiter.devicePort, length);
+    }
+
+    private void replyServfail(Waiter waiter) {
+        failures++;
+        ByteBuffer packet = acquire();
+        if (packet == null) {
+            return;
+        }
+        packet.putShort(PAYLOAD_OFFSET, (short) waiter.queryId);
+        packet.putShort(PAYLOAD_OFFSET + 2,
+                (short) (DnsMessage.FLAG_QR | DnsMessage.FLAG_RD | DnsMessage.FLAG_RA | DnsMessage.RCODE_SERVFAIL));
+        packet.putShort(PAYLOAD_OFFSET + 4, (short) (waiter.question.length > 0 ? 1 : 0));
+        packet.putShort(PAYLOAD_OFFSET + 6, (short) 0);
+        packet.putShort(PAYLOAD_OFFSET + 8, (short) 0);
+        packet.putShort(PAYLOAD_OFFSET + 10, (short) 0);
+        for (int i = 0; i < waiter.question.length; i++) {
+            packet.put(PAYLOAD_OFFSET + DnsMessage.HEADER + i, waiter.question[i]);
+        }
+        send(packet, waiter.deviceAddress, waiter.devicePort, DnsMessage.HEADER + waiter.question.length);
+    }
+
+    /** Header plus question with TC set, telling the client to retry over TCP. */
+    private int writeTruncated(ByteBuffer packet, ByteBuffer message, int offset, int questionEnd, int id) {
+        truncated++;
+        int length = questionEnd - offset;
+        for (int i = 0; i < length; i++) {
+            packet.put(PAYLOAD_OFFSET + i, message.get(offset + i));
+        }
+        packet.putShort(PAYLOAD_OFFSET, (short) id);
+        int flags = DnsMessage.flags(packet, PAYLOAD_OFFSET) | DnsMessage.FLAG_QR | DnsMessage.FLAG_TC;
+        packet.putShort(PAYLOAD_OFFSET + 2, (short) flags);
+        if (length == DnsMessage.HEADER) {
+            // No question was understood, so none is echoed
+            packet.putShort(PAYLOAD_OFFSET + 4, (short) 0);
+        }
+        packet.putShort(PAYLOAD_OFFSET + 6, (short) 0);
+        packet.putShort(PAYLOAD_OFFSET + 8, (short) 0);
+        packet.putShort(PAYLOAD_OFFSET + 10, (short) 0);
+        return length;
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer packet = pool.acquire();
+        if (packet == null) {
+            dropped++;
+            return null;
+        }
+        packet.clear();
+        return packet;
+    }
+
+    /** Wraps a response already written at PAYLOAD_OFFSET and queues it for the TUN writer. */
+    private void send(ByteBuffer packet, byte[] deviceAddress, int devicePort, int payloadLength) {
+        int l4Offset = PacketHeaders.writeIp(packet, false, dnsAddressBytes, deviceAddress,
+                PacketView.PROTO_UDP, PacketHeaders.UDP_HEADER + payloadLength, nextIpId++);
+        PacketHeaders.writeUdp(packet, l4Offset, DnsMessage.PORT, devicePort, payloadLength);
+        packet.position(0);
+        packet.limit(PAYLOAD_OFFSET + payloadLength);
+        capture.onPacket(packet);
+        // Ownership passes to the TUN writer (or back to the pool if the ring drops it)
+        toDevice.offer(packet);
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return bytes;
+    }
+
+    public void close() {
+        pendingById.clear();
+        pendingByKey.clear();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public long queries() {
+        return queries;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    /** Fraction of cacheable queries answered from the cache. */
+    public double hitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Queries that joined an identical query already waiting on upstream. */
+    public long coalesced() {
+        return coalesced;
+    }
+
+    public long upstreamQueries() {
+        return upstreamQueries;
+    }
+
+    public long upstreamTimeouts() {
+        return upstreamTimeouts;
+    }
+
+    /** Clients answered with SERVFAIL after every attempt timed out. */
+    public long failures() {
+        return failures;
+    }
+
+    public long truncated() {
+        return truncated;
+    }
+
+    /** Queries the cache cannot key, forwarded on their own and never cached. */
+    public long uncached() {
+        return uncached;
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    public int pending() {
+        return pendingById.size();
+    }
+
+    /** Mean time from forwarding a miss to its answer arriving, in milliseconds. */
+    public double averageUpstreamLatencyMs() {
+        return upstreamResponses == 0 ? 0 : totalLatencyNanos / 1e6 / upstreamResponses;
+    }
+
+    public double maxUpstreamLatencyMs() {
+        return maxLatencyNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return "DnsForwarder{queries=" + queries + ", hits=" + hits + ", misses=" + misses
+                + ", hitRatio=" + Math.round(hitRatio() * 100) + "%"
+                 + ", coalesced=" + coalesced + ", uncached=" + uncached + ", cached=" + cache.size() + ", timeouts=" + upstreamTimeouts
+                + ", failures=" + failures + ", avgLatencyMs=" + averageUpstreamLatencyMs() + "}";
+    }
+
+    private static final class Pending {
+        // Null for a query forwarded uncached
+        final String key;
+        final int upstreamId;
+        final byte[] query;
+        // Null when the query has no single question to check the answer against
+        final byte[] question;
+        final List<Waiter> waiters = new ArrayList<>(1);
+        int attempts;
+        long sentAt;
+        long firstSentNanos;
+
+        Pending(String key, int upstreamId, byte[] query, byte[] question) {
+            this.key = key;
+            this.upstreamId = upstreamId;
+            this.query = query;
+            this.question = question;
+        }
+    }
+
+    /** A client waiting on a forwarded query. */
+    private static final class Waiter {
+        final byte[] deviceAddress;
+        final int devicePort;
+        final int queryId;
+        // The client's question section, echoed back verbatim
+        final byte[] question;
+
+        Waiter(PacketView view, int queryId, byte[] question) {
+            this.deviceAddress = PacketHeaders.copyAddress(view, view.sourceAddressOffset());
+            this.devicePort = view.sourcePort();
+            this.queryId = queryId;
+            this.question = question;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal DNS wire-format (RFC 1035) helpers: just enough to key a cache on
+ * the question and find the TTLs in an answer. All offsets are absolute
+ * indexes into the buffer; positions are not touched.
+ */
+public final class DnsMessage {
+    public static final int HEADER = 12;
+    public static final int PORT = 53;
+
+    public static final int FLAG_QR = 0x8000;
+    public static final int FLAG_TC = 0x0200;
+    public static final int FLAG_RD = 0x0100;
+    public static final int FLAG_RA = 0x0080;
+    public static final int FLAG_CD = 0x0010;
+    public static final int OPCODE_MASK = 0x7800;
+    public static final int RCODE_MASK = 0x000F;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    public static final int TYPE_OPT = 41;
+
+    private static final int MAX_LABEL = 63;
+
+    private DnsMessage() {}
+
+    public static int id(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    public static int flags(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + 2) & 0xFFFF;
+    }
+
+    public static int questionCount(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + 4) & 0xFFFF;
+    }
+
+    public static int answerCount(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + 6) & 0xFFFF;
+    }
+
+    public static int authorityCount(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + 8) & 0xFFFF;
+    }
+
+    public static int additionalCount(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + 10) & 0xFFFF;
+    }
+
+    /**
+     * Skips a possibly compressed name starting at {@code index}.
+     * @return the index after the name, or -1 if it is malformed or runs past {@code end}
+     */
+    public static int skipName(ByteBuffer buffer, int index, int end) {
+        while (index < end) {
+            int length = buffer.get(index) & 0xFF;
+            if (length == 0) {
+                return index + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                // A pointer ends the name as far as the enclosing record is concerned
+                return index + 2 <= end ? index + 2 : -1;
+            }
+            if (length > MAX_LABEL) {
+                return -1;
+            }
+            index += 1 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Index just past the single question of a message (name, type and class),
+     * or -1 if the message does not have exactly one well-formed question.
+     */
+    public static int questionEnd(ByteBuffer buffer, int offset, int length) {
+        int end = offset + length;
+        if (length < HEADER || questionCount(buffer, offset) != 1) {
+            return -1;
+        }
+        int nameEnd = skipName(buffer, offset + HEADER, end);
+        if (nameEnd < 0 || nameEnd + 4 > end) {
+            return -1;
+        }
+        return nameEnd + 4;
+    }
+
+    /**
+     * Cache key for the question: the name lowercased, type, class, and the
+     * header bits that change what an answer looks like (CD and whether EDNS
+     * is in use). Questions with compressed names are not keyed.
+     * @return the key, or null if the message is not a plain single-question message
+     */
+    public static String questionKey(ByteBuffer buffer, int offset, int length) {
+        int questionEnd = questionEnd(buffer, offset, length);
+        if (questionEnd < 0) {
+            return null;
+        }
+        int index = offset + HEADER;
+        int nameEnd = questionEnd - 4;
+        StringBuilder key = new StringBuilder(nameEnd - index + 4);
+        while (index < nameEnd) {
+            int labelLength = buffer.get(index) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                return null;
+            }
+            key.append((char) labelLength);
+            for (int i = index + 1; i <= index + labelLength; i++) {
+                int b = buffer.get(i) & 0xFF;
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                key.append((char) b);
+            }
+            index += 1 + labelLength;
+        }
+        key.append((char) (buffer.getShort(questionEnd - 4) & 0xFFFF));
+        key.append((char) (buffer.getShort(questionEnd - 2) & 0xFFFF));
+        key.append((flags(buffer, offset) & FLAG_CD) != 0 ? 'c' : '-');
+        key.append(additionalCount(buffer, offset) > 0 ? 'e' : '-');
+        return key.toString();
+    }
+
+    /**
+     * Collects the absolute indexes of every resource record's TTL field,
+     * skipping OPT pseudo-records whose TTL field carries EDNS flags.
+     * @param ttlOffsets receives the indexes; must be large enough for every record
+     * @return the number of TTL fields found, or -1 if the message is malformed
+     */
+    public static int ttlOffsets(ByteBuffer buffer, int offset, int length, int[] ttlOffsets) {
+        int end = offset + length;
+        int index = questionEnd(buffer, offset, length);
+        if (index < 0) {
+            return -1;
+        }
+        int records = recordCount(buffer, offset);
+        int count = 0;
+        for (int r = 0; r < records; r++) {
+            index = skipName(buffer, index, end);
+            if (index < 0 || index + 10 > end) {
+                return -1;
+            }
+            int type = buffer.getShort(index) & 0xFFFF;
+            int dataLength = buffer.getShort(index + 8) & 0xFFFF;
+            if (type != TYPE_OPT) {
+                if (count == ttlOffsets.length) {
+                    return -1;
+                }
+                ttlOffsets[count++] = index + 4;
+            }
+            index += 10 + dataLength;
+            if (index > end) {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    /** Number of resource records a message claims to carry, for sizing {@link #ttlOffsets}. */
+    public static int recordCount(ByteBuffer buffer, int offset) {
+        return answerCount(buffer, offset) + authorityCount(buffer, offset) + additionalCount(buffer, offset);
+    }
+}
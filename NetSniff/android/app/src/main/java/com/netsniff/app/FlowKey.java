@@ -0,0 +1,65 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Device-side 5-tuple (addresses, ports, IP version) used to key the NAT tables.
+ *
+ * Mutable, so a forwarder can reuse a single probe instance for lookups and
+ * only {@link #copy()} it when a new flow is created.
+ */
+public final class FlowKey {
+    long sourceHigh;
+    long sourceLow;
+    long destinationHigh;
+    long destinationLow;
+    int ports;
+    boolean ipv6;
+
+    public void set(PacketView view) {
+        ByteBuffer buffer = view.buffer();
+        ipv6 = view.isIpv6();
+        int src = view.sourceAddressOffset();
+        int dst = view.destinationAddressOffset();
+        if (ipv6) {
+            sourceHigh = buffer.getLong(src);
+            sourceLow = buffer.getLong(src + 8);
+            destinationHigh = buffer.getLong(dst);
+            destinationLow = buffer.getLong(dst + 8);
+        } else {
+            sourceHigh = 0;
+            sourceLow = buffer.getInt(src) & 0xFFFFFFFFL;
+            destinationHigh = 0;
+            destinationLow = buffer.getInt(dst) & 0xFFFFFFFFL;
+        }
+        ports = (view.sourcePort() << 16) | view.destinationPort();
+    }
+
+    public FlowKey copy() {
+        FlowKey copy = new FlowKey();
+        copy.sourceHigh = sourceHigh;
+        copy.sourceLow = sourceLow;
+        copy.destinationHigh = destinationHigh;
+        copy.destinationLow = destinationLow;
+        copy.ports = ports;
+        copy.ipv6 = ipv6;
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FlowKey)) return false;
+        FlowKey k = (FlowKey) o;
+        return ports == k.ports && sourceLow == k.sourceLow && destinationLow == k.destinationLow
+                && sourceHigh == k.sourceHigh && destinationHigh == k.destinationHigh && ipv6 == k.ipv6;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = sourceLow * 31 + destinationLow;
+        h = h * 31 + sourceHigh;
+        h = h * 31 + destinationHigh;
+        h = h * 31 + ports;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,639 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-connection counters for every flow seen on the TUN, kept in primitive
+ * arrays so updating it costs no allocation.
+ *
+ * A flow is the bidirectional 5-tuple. Both directions of a connection map to
+ * the same entry because the key is stored with its endpoints in a canonical
+ * order. The endpoint that sent the first packet is the initiator, and
+ * counters are kept separately for {@link #FORWARD} (initiator to responder)
+ * and {@link #REVERSE} traffic.
+ *
+ * Entries live in fixed-size parallel arrays, allocated once for
+ * {@code maxFlows} entries. They are found through an open-addressing index
+ * (linear probing, backward-shift deletion, so no tombstones) and threaded on
+ * an LRU list. When the table is full the least recently active flow is
+ * evicted, and {@link #expire(long)} drops flows idle for longer than the
+ * timeout by walking the LRU list from its cold end.
+ *
+ * Each flow can be attributed to the app (Linux UID) that owns it. A
+ * {@link Listener} hears about every new flow once, and whoever resolves the
+ * owner reports back through {@link #setOwner}. Counters of removed flows are
+ * folded into per-app totals, so {@link #appUsage()} covers flows that have
+ * since been evicted or expired.
+ *
+ * A {@link Classifier} may tag each flow with its application protocol. It
+ * is asked on the flow's packets until it gives an answer, normally the
+ * first one carrying a payload, and the answer is kept for the flow's
+ * lifetime.
+ *
+ * Methods are synchronized. Packets are recorded by a single capture worker,
+ * which owns the table as its partition of {@link FlowTables}; the lookup
+ * thread setting owners, the network thread expiring flows and the plugin
+ * reading summaries take the same lock.
+ */
+public final class FlowTable {
+    public static final int FORWARD = 0;
+    public static final int REVERSE = 1;
+
+    public static final int DEFAULT_MAX_FLOWS = 4096;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 120_000;
+
+    // Owner UIDs besides real ones: looked up and not found, or not looked up yet
+    public static final int UID_UNKNOWN = -1;
+    public static final int UID_PENDING = -2;
+
+    /** Application protocol of a flow the {@link Classifier} has not decided on yet. */
+    public static final int APP_UNCLASSIFIED = -1;
+
+    /** Approximate heap cost of one entry, index slots included. */
+    public static final int BYTES_PER_FLOW = 5 * 8 + 3 * 4 + 1 + 2 * (8 + 8 + 4) + 2 * 8 + 2 * 4 + 2 * 4 + 4 + 8 + 4;
+
+    /** Hears about new flows, e.g. to look up their owner. */
+    public interface Listener {
+        /**
+         * Called inside {@link #record} with the table locked, so it must not
+         * block; the per-entry accessors may be used.
+         * @param flowId identifies this flow even after its entry is reused
+         */
+        void onFlowCreated(FlowTable table, int entry, long flowId);
+    }
+
+    /** Decides which application protocol a flow carries. */
+    public interface Classifier {
+        /**
+         * Called inside {@link #record} with the table locked, so it must be
+         * cheap and must not block.
+         * @return a protocol id, 0 for none, or {@link #APP_UNCLASSIFIED} to be
+         *         asked again on the flow's next packet
+         */
+        int classify(PacketView view);
+    }
+
+    private static final int NONE = -1;
+
+    private final int maxFlows;
+    private final long idleTimeoutMs;
+
+    // Open-addressing index of entry numbers; NONE marks an empty slot
+    private final int[] index;
+    private final int mask;
+
+    // Key, in canonical endpoint order (A < B)
+    private final long[] aHigh;
+    private final long[] aLow;
+    private final long[] bHigh;
+    private final long[] bLow;
+    // protocol << 32 | portA << 16 | portB, with bit 40 set for IPv6
+    private final long[] meta;
+    private final int[] hash;
+    // Index slot currently holding each entry
+    private final int[] slot;
+    private final boolean[] initiatorIsA;
+
+    // Counters, two per entry: [entry * 2 + direction]
+    private final long[] packets;
+    private final long[] bytes;
+    private final int[] tcpFlags;
+    private final long[] firstSeen;
+    private final long[] lastSeen;
+    private final int[] owner;
+    // Number of the flow in creation order, from 1; 0 while the entry is free
+    private final long[] flowId;
+    private Listener listener;
+    private final int[] appProtocol;
+    private Classifier classifier;
+    // Counters of removed flows, by owner
+    private final Map<Integer, AppUsage> retired = new HashMap<>();
+
+    // LRU list, most recently active first; free entries are chained through next
+    private final int[] prev;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int free;
+    private int size;
+
+    private long flowsCreated;
+    private long flowsEvicted;
+    private long flowsExpired;
+
+    public FlowTable() {
+        this(DEFAULT_MAX_FLOWS, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public FlowTable(int maxFlows, long idleTimeoutMs) {
+        if (maxFlows < 1 || maxFlows > (1 << 28)) {
+            throw new IllegalArgumentException("maxFlows out of range: " + maxFlows);
+        }
+        this.maxFlows = maxFlows;
+        this.idleTimeoutMs = idleTimeoutMs;
+
+        // Keep the index at most half full so probe sequences stay short
+        int slots = 1;
+        while (slots < maxFlows * 2) {
+            slots <<= 1;
+        }
+        index = new int[slots];
+        mask = slots - 1;
+        for (int i = 0; i < slots; i++) {
+            index[i] = NONE;
+        }
+
+        aHigh = new long[maxFlows];
+        aLow = new long[maxFlows];
+        bHigh = new long[maxFlows];
+        bLow = new long[maxFlows];
+        meta = new long[maxFlows];
+        hash = new int[maxFlows];
+        slot = new int[maxFlows];
+        initiatorIsA = new boolean[maxFlows];
+        packets = new long[maxFlows * 2];
+        bytes = new long[maxFlows * 2];
+        tcpFlags = new int[maxFlows * 2];
+        firstSeen = new long[maxFlows];
+        lastSeen = new long[maxFlows];
+        owner = new int[maxFlows];
+        flowId = new long[maxFlows];
+        appProtocol = new int[maxFlows];
+        prev = new int[maxFlows];
+        next = new int[maxFlows];
+        for (int i = 0; i < maxFlows; i++) {
+            next[i] = i + 1 < maxFlows ? i + 1 : NONE;
+        }
+        free = 0;
+    }
+
+    /** Largest table that fits in {@code budgetBytes}. */
+    public static int maxFlowsFor(long budgetBytes) {
+        return (int) Math.max(1, Math.min(1 << 28, budgetBytes / BYTES_PER_FLOW));
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void setClassifier(Classifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * Counts one packet against its flow, creating the flow (and evicting the
+     * least recently active one if the table is full) when it is new.
+     * @return the entry number, or -1 if {@code view} has no usable header
+     */
+    public synchronized int record(PacketView view, long nowMs) {
+        return put(view, nowMs);
+    }
+
+    /**
+     * As {@link #record}, for a caller that only needs the flow's
+     * application protocol. It is read before the lock is released, so
+     * another thread cannot expire or reuse the entry first.
+     * @return the protocol id, 0 for none, or {@link #APP_UNCLASSIFIED},
+     *         also returned if {@code view} has no usable header
+     */
+    public synchronized int recordAppProtocol(PacketView view, long nowMs) {
+        int entry = put(view, nowMs);
+        return entry != NONE ? appProtocol[entry] : APP_UNCLASSIFIED;
+    }
+
+    private int put(PacketView view, long nowMs) {
+        int version = view.version();
+        if (version != 4 && version != 6) {
+            return NONE;
+        }
+        ByteBuffer buffer = view.buffer();
+        long srcHigh, srcLow, dstHigh, dstLow;
+        int src = view.sourceAddressOffset();
+        int dst = view.destinationAddressOffset();
+        if (version == 6) {
+            srcHigh = buffer.getLong(src);
+            srcLow = buffer.getLong(src + 8);
+            dstHigh = buffer.getLong(dst);
+            dstLow = buffer.getLong(dst + 8);
+        } else {
+            srcHigh = 0;
+            srcLow = buffer.getInt(src) & 0xFFFFFFFFL;
+            dstHigh = 0;
+            dstLow = buffer.getInt(dst) & 0xFFFFFFFFL;
+        }
+        int srcPort = view.hasPorts() ? view.sourcePort() : 0;
+        int dstPort = view.hasPorts() ? view.destinationPort() : 0;
+
+        // Canonical order: the smaller endpoint is A
+        boolean srcIsA = compare(srcHigh, srcLow, srcPort, dstHigh, dstLow, dstPort) <= 0;
+        long keyAHigh = srcIsA ? srcHigh : dstHigh;
+        long keyALow = srcIsA ? srcLow : dstLow;
+        long keyBHigh = srcIsA ? dstHigh : srcHigh;
+        long keyBLow = srcIsA ? dstLow : srcLow;
+        long keyMeta = ((long) view.protocol() << 32)
+                | ((long) (srcIsA ? srcPort : dstPort) << 16)
+                | (srcIsA ? dstPort : srcPort)
+                | (version == 6 ? 1L << 40 : 0);
+        int h = hash(keyAHigh, keyALow, keyBHigh, keyBLow, keyMeta);
+
+        int position = h & mask;
+        int entry;
+        while ((entry = index[position]) != NONE) {
+            if (hash[entry] == h && meta[entry] == keyMeta
+                    && aLow[entry] == keyALow && bLow[entry] == keyBLow
+                    && aHigh[entry] == keyAHigh && bHigh[entry] == keyBHigh) {
+                break;
+            }
+            position = (position + 1) & mask;
+        }
+
+        if (entry == NONE) {
+            if (size == maxFlows) {
+                flowsEvicted++;
+                remove(tail);
+                // Removal may have shifted entries into the probe sequence; find the free slot again
+                position = h & mask;
+                while (index[position] != NONE) {
+                    position = (position + 1) & mask;
+                }
+            }
+            entry = free;
+            free = next[entry];
+            size++;
+            flowsCreated++;
+
+            aHigh[entry] = keyAHigh;
+            aLow[entry] = keyALow;
+            bHigh[entry] = keyBHigh;
+            bLow[entry] = keyBLow;
+            meta[entry] = keyMeta;
+            hash[entry] = h;
+            slot[entry] = position;
+            index[position] = entry;
+            initiatorIsA[entry] = srcIsA;
+            packets[entry * 2] = packets[entry * 2 + 1] = 0;
+            bytes[entry * 2] = bytes[entry * 2 + 1] = 0;
+            tcpFlags[entry * 2] = tcpFlags[entry * 2 + 1] = 0;
+            firstSeen[entry] = nowMs;
+            owner[entry] = UID_PENDING;
+            flowId[entry] = flowsCreated;
+            appProtocol[entry] = APP_UNCLASSIFIED;
+            linkFirst(entry);
+            if (listener != null) {
+                listener.onFlowCreated(this, entry, flowsCreated);
+            }
+        } else if (entry != head) {
+            unlink(entry);
+            linkFirst(entry);
+        }
+
+        int direction = srcIsA == initiatorIsA[entry] ? FORWARD : REVERSE;
+        int counter = entry * 2 + direction;
+        packets[counter]++;
+        bytes[counter] += view.totalLength();
+        tcpFlags[counter] |= view.tcpFlags();
+        lastSeen[entry] = nowMs;
+        if (appProtocol[entry] == APP_UNCLASSIFIED && classifier != null) {
+            appProtocol[entry] = classifier.classify(view);
+        }
+        return entry;
+    }
+
+    /**
+     * Records who owns a flow.
+     * @return false if the flow has gone since {@code flowId} was handed out
+     */
+    public synchronized boolean setOwner(int entry, long flowId, int uid) {
+        if (entry < 0 || entry >= maxFlows || this.flowId[entry] != flowId || flowId == 0) {
+            return false;
+        }
+        owner[entry] = uid;
+        return true;
+    }
+
+    /**
+     * Drops flows with no packets for longer than the idle timeout.
+     * @return the number of flows removed
+     */
+    public synchronized int expire(long nowMs) {
+        int removed = 0;
+        while (tail != NONE && nowMs - lastSeen[tail] > idleTimeoutMs) {
+            remove(tail);
+            removed++;
+        }
+        flowsExpired += removed;
+        return removed;
+    }
+
+    /** Drops every flow; their counters stay in the per-app totals. */
+    public synchronized void clear() {
+        while (tail != NONE) {
+            remove(tail);
+        }
+    }
+
+    /** Forgets the per-app totals of flows already removed. */
+    public synchronized void resetAppUsage() {
+        retired.clear();
+    }
+
+    private void remove(int entry) {
+        int uid = owner[entry] >= 0 ? owner[entry] : UID_UNKNOWN;
+        AppUsage usage = retired.get(uid);
+        if (usage == null) {
+            usage = new AppUsage(uid);
+            retired.put(uid, usage);
+        }
+        usage.add(this, entry);
+        flowId[entry] = 0;
+        unlink(entry);
+        deleteFromIndex(slot[entry]);
+        next[entry] = free;
+        free = entry;
+        size--;
+    }
+
+    /** Backward-shift deletion: pulls later members of the probe run into the gap. */
+    private void deleteFromIndex(int gap) {
+        int position = gap;
+        while (true) {
+            position = (position + 1) & mask;
+            int entry = index[position];
+            if (entry == NONE) {
+                break;
+            }
+            int home = hash[entry] & mask;
+            // The entry may move into the gap only if its home slot is not in (gap, position]
+            boolean homeInRange = gap <= position
+                    ? home > gap && home <= position
+                    : home > gap || home <= position;
+            if (!homeInRange) {
+                index[gap] = entry;
+                slot[entry] = gap;
+                gap = position;
+            }
+        }
+        index[gap] = NONE;
+    }
+
+    private void linkFirst(int entry) {
+        prev[entry] = NONE;
+        next[entry] = head;
+        if (head != NONE) {
+            prev[head] = entry;
+        }
+        head = entry;
+        if (tail == NONE) {
+            tail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        int p = prev[entry];
+        int n = next[entry];
+        if (p != NONE) {
+            next[p] = n;
+        } else {
+            head = n;
+        }
+        if (n != NONE) {
+            prev[n] = p;
+        } else {
+            tail = p;
+        }
+    }
+
+    private static int compare(long aHigh, long aLow, int aPort, long bHigh, long bLow, int bPort) {
+        if (aHigh != bHigh) return aHigh < bHigh ? -1 : 1;
+        if (aLow != bLow) return aLow < bLow ? -1 : 1;
+        return aPort - bPort;
+    }
+
+    private static int hash(long aHigh, long aLow, long bHigh, long bLow, long meta) {
+        long h = mix(aLow) ^ mix(bLow + 0x9E3779B97F4A7C15L) ^ mix(meta + 0x632BE59BD9B4E019L);
+        if ((aHigh | bHigh) != 0) {
+            h ^= mix(aHigh ^ 0x85EBCA77C2B2AE63L) ^ mix(bHigh ^ 0x27D4EB2F165667C5L);
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // MurmurHash3 64-bit finalizer
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /** Visits live flows, most recently active first. */
+    public interface Visitor {
+        /** @return false to stop early */
+        boolean visit(FlowTable table, int entry);
+    }
+
+    /** Calls {@code visitor} for each flow, holding the table's lock throughout. */
+    public synchronized void forEach(Visitor visitor) {
+        for (int entry = head; entry != NONE; entry = next[entry]) {
+            if (!visitor.visit(this, entry)) {
+                return;
+            }
+        }
+    }
+
+    // Per-entry accessors. Only meaningful with the table locked: inside
+    // forEach() or a Listener. Once record() returns, another thread may
+    // expire the entry or reuse it for a different flow.
+
+    public int protocol(int entry) {
+        return (int) (meta[entry] >>> 32) & 0xFF;
+    }
+
+    public boolean isIpv6(int entry) {
+        return (meta[entry] & (1L << 40)) != 0;
+    }
+
+    public long packets(int entry, int direction) {
+        return packets[entry * 2 + direction];
+    }
+
+    public long bytes(int entry, int direction) {
+        return bytes[entry * 2 + direction];
+    }
+
+    /** TCP flags seen in one direction, OR-ed together. */
+    public int tcpFlags(int entry, int direction) {
+        return tcpFlags[entry * 2 + direction];
+    }
+
+    public long firstSeen(int entry) {
+        return firstSeen[entry];
+    }
+
+    public long lastSeen(int entry) {
+        return lastSeen[entry];
+    }
+
+    /** Owning UID, {@link #UID_PENDING} until looked up, or {@link #UID_UNKNOWN}. */
+    public int owner(int entry) {
+        return owner[entry];
+    }
+
+    /** Application protocol id, 0 for none, or {@link #APP_UNCLASSIFIED}. */
+    public int appProtocol(int entry) {
+        return appProtocol[entry];
+    }
+
+    /**
+     * Copies the initiator's or responder's address into {@code out}, which
+     * needs room for 16 bytes.
+     * @return the address length, 4 or 16
+     */
+    public int copyAddress(int entry, int direction, byte[] out) {
+        boolean a = initiatorIsA[entry] == (direction == FORWARD);
+        long high = a ? aHigh[entry] : bHigh[entry];
+        long low = a ? aLow[entry] : bLow[entry];
+        if (!isIpv6(entry)) {
+            for (int i = 0; i < 4; i++) {
+                out[i] = (byte) (low >>> (24 - 8 * i));
+            }
+            return 4;
+        }
+        for (int i = 0; i < 8; i++) {
+            out[i] = (byte) (high >>> (56 - 8 * i));
+            out[8 + i] = (byte) (low >>> (56 - 8 * i));
+        }
+        return 16;
+    }
+
+    /** Port of the initiator ({@link #FORWARD}) or responder ({@link #REVERSE}) endpoint. */
+    public int port(int entry, int direction) {
+        boolean a = initiatorIsA[entry] == (direction == FORWARD);
+        return (int) (a ? meta[entry] >>> 16 : meta[entry]) & 0xFFFF;
+    }
+
+    /**
+     * Appends the initiator's or responder's address ("[v6]:port" or
+     * "a.b.c.d:port" when the flow has ports).
+     */
+    public StringBuilder appendEndpoint(StringBuilder sb, int entry, int direction) {
+        boolean a = initiatorIsA[entry] == (direction == FORWARD);
+        long high = a ? aHigh[entry] : bHigh[entry];
+        long low = a ? aLow[entry] : bLow[entry];
+        int port = port(entry, direction);
+        boolean hasPort = protocol(entry) == PacketView.PROTO_TCP || protocol(entry) == PacketView.PROTO_UDP;
+        if (isIpv6(entry)) {
+            ByteBuffer scratch = ByteBuffer.allocate(16).putLong(0, high).putLong(8, low);
+            if (hasPort) sb.append('[');
+            PacketView.appendIpv6(sb, scratch, 0);
+            if (hasPort) sb.append(']');
+        } else {
+            PacketView.appendIpv4(sb, (int) low);
+        }
+        if (hasPort) {
+            sb.append(':').append(port);
+        }
+        return sb;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Totals per owning app over live and removed flows, most bytes first.
+     * Flows whose owner is unknown or still being looked up are reported
+     * under {@link #UID_UNKNOWN}.
+     */
+    public synchronized List<AppUsage> appUsage() {
+        Map<Integer, AppUsage> byUid = new HashMap<>();
+        for (AppUsage usage : retired.values()) {
+            AppUsage copy = new AppUsage(usage.uid);
+            copy.add(usage);
+            byUid.put(usage.uid, copy);
+        }
+        for (int entry = head; entry != NONE; entry = next[entry]) {
+            int uid = owner[entry] >= 0 ? owner[entry] : UID_UNKNOWN;
+            AppUsage usage = byUid.get(uid);
+            if (usage == null) {
+                usage = new AppUsage(uid);
+                byUid.put(uid, usage);
+            }
+            usage.add(this, entry);
+        }
+        List<AppUsage> result = new ArrayList<>(byUid.values());
+        Collections.sort(result, new Comparator<AppUsage>() {
+            @Override
+            public int compare(AppUsage x, AppUsage y) {
+                return Long.compare(y.bytesOut + y.bytesIn, x.bytesOut + x.bytesIn);
+            }
+        });
+        return result;
+    }
+
+    /** Traffic of one app; "out" is from the flow's initiator, normally the app. */
+    public static final class AppUsage {
+        public final int uid;
+        public long flows;
+        public long packetsOut;
+        public long packetsIn;
+        public long bytesOut;
+        public long bytesIn;
+
+        AppUsage(int uid) {
+            this.uid = uid;
+        }
+
+        void add(FlowTable table, int entry) {
+            flows++;
+            packetsOut += table.packets(entry, FORWARD);
+            packetsIn += table.packets(entry, REVERSE);
+            bytesOut += table.bytes(entry, FORWARD);
+            bytesIn += table.bytes(entry, REVERSE);
+        }
+
+        void add(AppUsage other) {
+            flows += other.flows;
+            packetsOut += other.packetsOut;
+            packetsIn += other.packetsIn;
+            bytesOut += other.bytesOut;
+            bytesIn += other.bytesIn;
+        }
+
+        @Override
+        public String toString() {
+            return "AppUsage{uid=" + uid + ", flows=" + flows + ", packets=" + packetsOut + "/" + packetsIn
+                    + ", bytes=" + bytesOut + "/" + bytesIn + "}";
+        }
+    }
+
+    public int maxFlows() {
+        return maxFlows;
+    }
+
+    public synchronized long flowsCreated() {
+        return flowsCreated;
+    }
+
+    /** Flows dropped to make room for a new one. */
+    public synchronized long flowsEvicted() {
+        return flowsEvicted;
+    }
+
+    public synchronized long flowsExpired() {
+        return flowsExpired;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FlowTable{flows=" + size + "/" + maxFlows + ", created=" + flowsCreated
+                + ", evicted=" + flowsEvicted + ", expired=" + flowsExpired + "}";
+    }
+}
@@ -0,0 +1,180 @@
+package com.netsniff.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The session's flows, split into one {@link FlowTable} per capture worker.
+ *
+ * {@link CapturePipeline} sends every packet of a flow to the same worker,
+ * so each worker can record into a partition of its own and never waits on
+ * the others for a lock. A partition is only locked against the threads
+ * that read or trim it: the lookup thread setting owners, the network
+ * thread expiring idle flows, and the plugin building summaries. Those go
+ * through this class and see every partition in turn.
+ *
+ * The flow limit is divided evenly, so a partition that happens to get
+ * more than its share of flows starts evicting before the others do.
+ */
+public final class FlowTables {
+    private final FlowTable[] partitions;
+
+    public FlowTables(int partitions) {
+        this(partitions, FlowTable.DEFAULT_MAX_FLOWS, FlowTable.DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /** @param maxFlows the limit across all partitions */
+    public FlowTables(int partitions, int maxFlows, long idleTimeoutMs) {
+        if (partitions < 1 || partitions > maxFlows) {
+            throw new IllegalArgumentException("partitions out of range: " + partitions);
+        }
+        this.partitions = new FlowTable[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new FlowTable((maxFlows + partitions - 1) / partitions, idleTimeoutMs);
+        }
+    }
+
+    public int partitions() {
+        return partitions.length;
+    }
+
+    /** The table worker {@code index} records into. */
+    public FlowTable partition(int index) {
+        return partitions[index];
+    }
+
+    /** Sets the listener of every partition; it hears which partition each flow is in. */
+    public void setListener(FlowTable.Listener listener) {
+        for (FlowTable table : partitions) {
+            table.setListener(listener);
+        }
+    }
+
+    public void setClassifier(FlowTable.Classifier classifier) {
+        for (FlowTable table : partitions) {
+            table.setClassifier(classifier);
+        }
+    }
+
+    /** @return the number of flows removed */
+    public int expire(long nowMs) {
+        int removed = 0;
+        for (FlowTable table : partitions) {
+            removed += table.expire(nowMs);
+        }
+        return removed;
+    }
+
+    public void clear() {
+        for (FlowTable table : partitions) {
+            table.clear();
+        }
+    }
+
+    public void resetAppUsage() {
+        for (FlowTable table : partitions) {
+            table.resetAppUsage();
+        }
+    }
+
+    /**
+     * Visits at most {@code limit} flows, an equal share from each
+     * partition, most recently active first within each. Every partition
+     * is locked only while its own flows are visited.
+     */
+    public void forEach(final int limit, final FlowTable.Visitor visitor) {
+        final int share = (limit + partitions.length - 1) / partitions.length;
+        final boolean[] stopped = new boolean[1];
+        for (FlowTable table : partitions) {
+            table.forEach(new FlowTable.Visitor() {
+                int visited;
+
+                @Override
+                public boolean visit(FlowTable t, int entry) {
+                    if (!visitor.visit(t, entry)) {
+                        stopped[0] = true;
+                        return false;
+                    }
+                    return ++visited < share;
+                }
+            });
+            if (stopped[0]) {
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (FlowTable table : partitions) {
+            size += table.size();
+        }
+        return size;
+    }
+
+    /** {@link FlowTable#appUsage()} over every partition, most bytes first. */
+    public List<FlowTable.AppUsage> appUsage() {
+        Map<Integer, FlowTable.AppUsage> byUid = new HashMap<>();
+        for (FlowTable table : partitions) {
+            for (FlowTable.AppUsage usage : table.appUsage()) {
+                FlowTable.AppUsage total = byUid.get(usage.uid);
+                if (total == null) {
+                    total = new FlowTable.AppUsage(usage.uid);
+                    byUid.put(usage.uid, total);
+                }
+                total.add(usage);
+            }
+        }
+        List<FlowTable.AppUsage> result = new ArrayList<>(byUid.values());
+        Collections.sort(result, new Comparator<FlowTable.AppUsage>() {
+            @Override
+            public int compare(FlowTable.AppUsage x, FlowTable.AppUsage y) {
+                return Long.compare(y.bytesOut + y.bytesIn, x.bytesOut + x.bytesIn);
+            }
+        });
+        return result;
+    }
+
+    public int maxFlows() {
+        int maxFlows = 0;
+        for (FlowTable table : partitions) {
+            maxFlows += table.maxFlows();
+        }
+        return maxFlows;
+    }
+
+    public long flowsCreated() {
+        long created = 0;
+        for (FlowTable table : partitions) {
+            created += table.flowsCreated();
+        }
+        return created;
+    }
+
+    public long flowsEvicted() {
+        long evicted = 0;
+        for (FlowTable table : partitions) {
+            evicted += table.flowsEvicted();
+        }
+        return evicted;
+    }
+
+    public long flowsExpired() {
+        long expired = 0;
+        for (FlowTable table : partitions) {
+            expired += table.flowsExpired();
+        }
+        return expired;
+    }
+
+    @Override
+    public String toString() {
+        return "FlowTables{partitions=" + partitions.length + ", flows=" + size() + "/" + maxFlows()
+                + ", created=" + flowsCreated() + ", evicted=" + flowsEvicted()
+                + ", expired=" + flowsExpired() + "}";
+    }
+}
@@ -0,0 +1,146 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven hex/ASCII encoder for packet previews.
+ *
+ * Replaces per-byte {@code String.format("%02X ", b)} calls with lookups into
+ * precomputed tables, writing into a reusable {@code char[]}. The hex output
+ * is byte-for-byte identical to the old formatter: "XX " per byte, a newline
+ * after every 16 bytes, trailing whitespace trimmed.
+ *
+ * An encoder instance is not thread-safe; keep one per thread.
+ */
+public final class HexDump {
+    /** Preview starts at the first byte of the IP header. */
+    public static final int FROM_IP_HEADER = 0;
+    /** Preview starts at the transport (TCP/UDP/ICMP) header. */
+    public static final int FROM_TRANSPORT_HEADER = 1;
+    /** Preview starts after all headers the decoder knows about. */
+    public static final int FROM_PAYLOAD = 2;
+
+    public static final int DEFAULT_SNAP_LENGTH = 64;
+
+    private static final int BYTES_PER_LINE = 16;
+
+    private static final char[] HEX_HIGH = new char[256];
+    private static final char[] HEX_LOW = new char[256];
+    private static final char[] PRINTABLE = new char[256];
+
+    static {
+        char[] digits = "0123456789ABCDEF".toCharArray();
+        for (int i = 0; i < 256; i++) {
+            HEX_HIGH[i] = digits[i >>> 4];
+            HEX_LOW[i] = digits[i & 0xF];
+            PRINTABLE[i] = (i >= 0x20 && i < 0x7F) ? (char) i : '.';
+        }
+    }
+
+    private final int snapLength;
+    private final int start;
+    private final char[] chars;
+
+    public HexDump() {
+        this(DEFAULT_SNAP_LENGTH, FROM_IP_HEADER);
+    }
+
+    /**
+     * @param snapLength maximum number of bytes rendered per packet
+     * @param start one of {@link #FROM_IP_HEADER}, {@link #FROM_TRANSPORT_HEADER}
+     *              or {@link #FROM_PAYLOAD}
+     */
+    public HexDump(int snapLength, int start) {
+        if (snapLength < 0) {
+            throw new IllegalArgumentException("snapLength must be >= 0");
+        }
+        this.snapLength = snapLength;
+        this.start = start;
+        // "XX " per byte plus one newline per full line
+        this.chars = new char[snapLength * 3 + snapLength / BYTES_PER_LINE];
+    }
+
+    public int snapLength() {
+        return snapLength;
+    }
+
+    /**
+     * Renders the configured preview window of a decoded packet as hex.
+     */
+    public String preview(PacketView view) {
+        int from = previewOffset(view);
+        int end = view.offset() + view.capturedLength();
+        return hex(view.buffer(), from, end - from);
+    }
+
+    /** Absolute index in the view's buffer where the preview window starts. */
+    public int previewOffset(PacketView view) {
+        switch (start) {
+            case FROM_TRANSPORT_HEADER:
+                return view.hasTransportHeader() ? view.transportOffset() : view.payloadOffset();
+            case FROM_PAYLOAD:
+                return view.payloadOffset();
+            default:
+                return view.offset();
+        }
+    }
+
+    /**
+     * Renders up to snapLength bytes of {@code buffer} starting at absolute
+     * index {@code offset}. The buffer's position is not touched.
+     */
+    public String hex(ByteBuffer buffer, int offset, int length) {
+        int count = Math.min(Math.max(length, 0), snapLength);
+        int n = writeHex(buffer, offset, count, chars);
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Appends the hex rendering of {@code length} bytes to {@code sb}, without
+     * applying the snap length.
+     */
+    public static StringBuilder appendHex(StringBuilder sb, ByteBuffer buffer, int offset, int length) {
+        int start = sb.length();
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get(offset + i) & 0xFF;
+            sb.append(HEX_HIGH[b]).append(HEX_LOW[b]).append(' ');
+            if ((i + 1) % BYTES_PER_LINE == 0) {
+                sb.append('\n');
+            }
+        }
+        int n = sb.length();
+        while (n > start && (sb.charAt(n - 1) == ' ' || sb.charAt(n - 1) == '\n')) {
+            n--;
+        }
+        sb.setLength(n);
+        return sb;
+    }
+
+    /**
+     * Appends one character per byte, with non-printable bytes shown as '.'.
+     */
+    public static StringBuilder appendAscii(StringBuilder sb, ByteBuffer buffer, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            sb.append(PRINTABLE[buffer.get(offset + i) & 0xFF]);
+        }
+        return sb;
+    }
+
+    private static int writeHex(ByteBuffer buffer, int offset, int count, char[] out) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int b = buffer.get(offset + i) & 0xFF;
+            out[n++] = HEX_HIGH[b];
+            out[n++] = HEX_LOW[b];
+            out[n++] = ' ';
+            if ((i + 1) % BYTES_PER_LINE == 0) {
+                out[n++] = '\n';
+            }
+        }
+        // Same as String.trim() on the old output
+        while (n > 0 && (out[n - 1] == ' ' || out[n - 1] == '\n')) {
+            n--;
+        }
+        return n;
+    }
+}
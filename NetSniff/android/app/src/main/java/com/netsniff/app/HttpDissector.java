@@ -0,0 +1,166 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HTTP/1.x requests and responses: the request or status line and the
+ * header fields. Bodies are not decoded.
+ */
+public final class HttpDissector implements Dissector {
+    public static final int ID = 2;
+
+    // Header fields decoded before the rest are left out
+    private static final int MAX_HEADERS = 64;
+    private static final int MAX_LINE = 2048;
+
+    private static final String[] METHODS = {
+            "GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "PATCH", "CONNECT", "TRACE"
+    };
+    private static final String RESPONSE = "HTTP/1.";
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "HTTP";
+    }
+
+    @Override
+    public int[] ports() {
+        return new int[] {80, 8080, 8000};
+    }
+
+    @Override
+    public boolean carriedBy(int transport) {
+        return transport == PacketView.PROTO_TCP;
+    }
+
+    @Override
+    public boolean looksLike(ByteBuffer buffer, int offset, int length, int transport) {
+        if (startsWith(buffer, offset, length, RESPONSE)) {
+            return true;
+        }
+        for (String method : METHODS) {
+            if (length > method.length() && startsWith(buffer, offset, length, method)
+                    && buffer.get(offset + method.length()) == ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void dissect(ByteBuffer buffer, int offset, int length, int transport, Dissection out) {
+        int end = offset + length;
+        int lineEnd = findLineEnd(buffer, offset, end);
+        if (lineEnd < 0) {
+            out.add("Start line", text(buffer, offset, Math.min(end, offset + MAX_LINE)));
+            out.markTruncated();
+            return;
+        }
+        String line = text(buffer, offset, lineEnd);
+        if (line.startsWith(RESPONSE)) {
+            Dissection.Field status = out.add("Status line", line);
+            String[] parts = line.split(" ", 3);
+            status.add("Version", parts[0]);
+            if (parts.length > 1) {
+                status.add("Status code", parts[1]);
+            }
+            if (parts.length > 2) {
+                status.add("Reason phrase", parts[2]);
+            }
+        } else {
+            Dissection.Field request = out.add("Request line", line);
+            String[] parts = line.split(" ", 3);
+            request.add("Method", parts[0]);
+            if (parts.length > 1) {
+                request.add("Target", parts[1]);
+            }
+            if (parts.length > 2) {
+                request.add("Version", parts[2]);
+            }
+        }
+
+        Dissection.Field headers = null;
+        int at = skipLineEnd(buffer, lineEnd, end);
+        int count = 0;
+        while (at < end) {
+            lineEnd = findLineEnd(buffer, at, end);
+            if (lineEnd < 0) {
+                out.markTruncated();
+                return;
+            }
+            if (lineEnd == at) {
+                // Blank line: end of the header section
+                int body = skipLineEnd(buffer, lineEnd, end);
+                if (body < end) {
+                    out.add("Body", (end - body) + " bytes captured");
+                }
+                return;
+            }
+            if (headers == null) {
+                headers = out.group("Headers");
+            }
+            if (count++ == MAX_HEADERS) {
+                headers.add("More", "not shown");
+                return;
+            }
+            String header = text(buffer, at, lineEnd);
+            int colon = header.indexOf(':');
+            if (colon > 0) {
+                headers.add(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+            } else {
+                headers.add(header, "");
+            }
+            at = skipLineEnd(buffer, lineEnd, end);
+        }
+        // Ran out of bytes before the blank line
+        out.markTruncated();
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset, int length, String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Index of the CR or LF ending the line at offset, or -1 if none within MAX_LINE
+    private static int findLineEnd(ByteBuffer buffer, int offset, int end) {
+        int limit = Math.min(end, offset + MAX_LINE);
+        for (int i = offset; i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b == '\r' || b == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipLineEnd(ByteBuffer buffer, int at, int end) {
+        if (at < end && buffer.get(at) == '\r') {
+            at++;
+        }
+        if (at < end && buffer.get(at) == '\n') {
+            at++;
+        }
+        return at;
+    }
+
+    private static String text(ByteBuffer buffer, int from, int to) {
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            int c = buffer.get(i) & 0xFF;
+            sb.append(c >= 0x20 && c < 0x7F ? (char) c : '.');
+        }
+        return sb.toString();
+    }
+}
@@ -113,32 +113,14 @@ public class MainActivity extends BridgeActivity {
     public void onDestroy() {
         Log.d("MainActivity", "MainActivity onDestroy: Ensuring VPN is stopped before app is destroyed");
         
-        // Double-check to ensure the VPN service is stopped when the app is destroyed
+        // The service stops its own session on DISCONNECT and tells the page when it has
         try {
-            android.content.Intent vpnServiceIntent = new android.content.Intent(this, ToyVpnService.class);
-            Log.d("MainActivity", "Attempting to stop ToyVpnService from onDestroy");
-            stopService(vpnServiceIntent);
-            
-            // Try to notify the JS layer through static method if possible
-            try {
-                ToyVpnPlugin.notifyVpnStopped();
-                Log.d("MainActivity", "Notified JS layer about VPN shutdown from onDestroy");
-            } catch (Exception e) {
-                Log.e("MainActivity", "Could not notify JS layer about VPN shutdown", e);
-            }
-            
-            // If we have a running ToyVpnPlugin instance, try to use it as well
             if (ToyVpnPlugin.instance != null) {
-                Log.d("MainActivity", "Found ToyVpnPlugin instance, making direct call to stop VPN");
-                try {
-                    // Call the helper method to stop via the plugin
-                    ToyVpnPlugin.instance.directStopVpn();
-                    Log.d("MainActivity", "Successfully called directStopVpn through instance");
-                } catch (Exception e) {
-                    Log.e("MainActivity", "Error stopping VPN through plugin instance", e);
-                }
+                ToyVpnPlugin.instance.directStopVpn();
             } else {
-                Log.d("MainActivity", "No ToyVpnPlugin instance available for direct stopping");
+                android.content.Intent stopIntent = new android.content.Intent(this, ToyVpnService.class);
+                stopIntent.setAction(ToyVpnService.ACTION_DISCONNECT);
+                startService(stopIntent);
             }
         } catch (Exception e) {
             Log.e("MainActivity", "Error stopping VPN service on app destruction", e);
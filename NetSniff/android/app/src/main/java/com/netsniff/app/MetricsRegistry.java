@@ -0,0 +1,203 @@
+package com.netsniff.app;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters, gauges and latency histograms for one VPN session, read
+ * together for the diagnostics screen.
+ *
+ * Components look their metrics up once, when they are built, and keep the
+ * {@link Counter} or {@link LatencyHistogram}; recording is then a single
+ * atomic add with no map lookup or lock. Only registration and
+ * {@link #snapshot} synchronize, and neither happens per packet.
+ *
+ * Counters only go up. Besides the registry's own, a counter may be read
+ * from a total another object already keeps (a ring's drops, the runtime's
+ * GC time), so nothing on the hot path counts twice. Every counter gets a
+ * per-second rate, measured over at least {@link #RATE_WINDOW_MS} between
+ * snapshots. Gauges are levels, such as queue depths, read as they are.
+ */
+public final class MetricsRegistry {
+    public static final long RATE_WINDOW_MS = 1000;
+
+    /** A value read when a snapshot is taken. */
+    public interface Gauge {
+        long value();
+    }
+
+    /** A total kept by the registry, safe to add to from any thread. */
+    public static final class Counter implements Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        @Override
+        public long value() {
+            return value.get();
+        }
+    }
+
+    /** A histogram's summary, in nanoseconds. */
+    public static final class Latency {
+        public final long count;
+        public final double mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Latency(LatencyHistogram histogram) {
+            count = histogram.count();
+            mean = histogram.mean();
+            p50 = histogram.percentile(50);
+            p90 = histogram.percentile(90);
+            p99 = histogram.percentile(99);
+            max = histogram.max();
+        }
+    }
+
+    /** Every metric at one moment, in registration order. */
+    public static final class Snapshot {
+        public final long takenAtMs;
+        /** How long the rates were measured over; 0 until a full window has passed. */
+        public final long rateWindowMs;
+        public final Map<String, Long> counters;
+        public final Map<String, Double> perSecond;
+        public final Map<String, Long> gauges;
+        public final Map<String, Latency> latency;
+
+        Snapshot(long takenAtMs, long rateWindowMs, Map<String, Long> counters, Map<String, Double> perSecond,
+                 Map<String, Long> gauges, Map<String, Latency> latency) {
+            this.takenAtMs = takenAtMs;
+            this.rateWindowMs = rateWindowMs;
+            this.counters = Collections.unmodifiableMap(counters);
+            this.perSecond = Collections.unmodifiableMap(perSecond);
+            this.gauges = Collections.unmodifiableMap(gauges);
+            this.latency = Collections.unmodifiableMap(latency);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(256);
+            for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                text.append(counter.getKey()).append('=').append(counter.getValue())
+                    .append(String.format(Locale.US, " (%.1f/s), ", perSecond.get(counter.getKey())));
+            }
+            for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+                text.append(gauge.getKey()).append('=').append(gauge.getValue()).append(", ");
+            }
+            for (Map.Entry<String, Latency> stage : latency.entrySet()) {
+                Latency l = stage.getValue();
+                text.append(String.format(Locale.US, "%s: n=%d p50=%dns p99=%dns max=%dns, ",
+                        stage.getKey(), l.count, l.p50, l.p99, l.max));
+            }
+            if (text.length() > 0) {
+                text.setLength(text.length() - 2);
+            }
+            return text.toString();
+        }
+    }
+
+    private final Map<String, Gauge> counters = new LinkedHashMap<>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    // Rate window, guarded by this
+    private final Map<String, Long> windowStartValues = new LinkedHashMap<>();
+    private final Map<String, Double> rates = new LinkedHashMap<>();
+    private long windowStartMs = -1;
+    private long rateWindowMs;
+
+    /** The registry's counter called {@code name}, created on first use. */
+    public synchronized Counter counter(String name) {
+        Gauge existing = counters.get(name);
+        if (existing instanceof Counter) {
+            return (Counter) existing;
+        }
+        if (existing != null) {
+            throw new IllegalArgumentException(name + " is read from elsewhere");
+        }
+        Counter counter = new Counter();
+        counters.put(name, counter);
+        return counter;
+    }
+
+    /**
+     * Registers a counter whose total is kept elsewhere and only read here;
+     * it must never go down. Replaces any source already registered under
+     * {@code name}.
+     */
+    public synchronized void counter(String name, Gauge total) {
+        if (counters.get(name) instanceof Counter) {
+            throw new IllegalArgumentException(name + " is already a counter");
+        }
+        counters.put(name, total);
+    }
+
+    /** Registers a level read at each snapshot, replacing any gauge of that name. */
+    public synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /** The histogram called {@code name}, created on first use. */
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Reads every metric. Rates are recomputed once at least
+     * {@link #RATE_WINDOW_MS} has passed since the last time they were, so
+     * snapshots taken closer together see the same rates.
+     */
+    public synchronized Snapshot snapshot(long nowMs) {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (Map.Entry<String, Gauge> counter : counters.entrySet()) {
+            totals.put(counter.getKey(), counter.getValue().value());
+        }
+
+        if (windowStartMs < 0) {
+            windowStartMs = nowMs;
+            windowStartValues.putAll(totals);
+        } else if (nowMs - windowStartMs >= RATE_WINDOW_MS) {
+            rateWindowMs = nowMs - windowStartMs;
+            for (Map.Entry<String, Long> total : totals.entrySet()) {
+                Long start = windowStartValues.get(total.getKey());
+                rates.put(total.getKey(), start == null ? 0.0
+                        : Math.max(0, total.getValue() - start) * 1000.0 / rateWindowMs);
+            }
+            windowStartMs = nowMs;
+            windowStartValues.clear();
+            windowStartValues.putAll(totals);
+        }
+
+        Map<String, Double> perSecond = new LinkedHashMap<>();
+        for (String name : totals.keySet()) {
+            Double rate = rates.get(name);
+            perSecond.put(name, rate != null ? rate : 0.0);
+        }
+        Map<String, Long> levels = new LinkedHashMap<>();
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            levels.put(gauge.getKey(), gauge.getValue().value());
+        }
+        Map<String, Latency> latency = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            latency.put(histogram.getKey(), new Latency(histogram.getValue()));
+        }
+        return new Snapshot(nowMs, rateWindowMs, totals, perSecond, levels, latency);
+    }
+}
@@ -0,0 +1,208 @@
+package com.netsniff.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects decoded packets from the capture threads and hands them to the UI
+ * in batches, at most one batch per display frame.
+ *
+ * A batch is released at the first frame after it reaches
+ * {@code maxBatchSize} items or its oldest item is {@code maxDelayMs} old,
+ * whichever comes first. Only the first item of a batch schedules a frame, so
+ * producers pay for one UI hop per batch rather than per packet. If the UI
+ * falls behind, at most {@code maxPending} items are held and the oldest are
+ * dropped; the number dropped is reported with the next batch.
+ *
+ * {@link #add} may be called from any thread. {@link #onFrame} is called on
+ * the UI thread by whatever the {@link FrameScheduler} posted.
+ */
+public final class PacketBatcher<E> {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_DELAY_MS = 100;
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    /** Arranges for {@link #onFrame} to run on the next display frame. */
+    public interface FrameScheduler {
+        void scheduleFrame();
+    }
+
+    public interface Delivery<E> {
+        /**
+         * Receives one batch on the UI thread. The list is reused once this
+         * returns, so it must not be kept.
+         * @param dropped items discarded since the previous batch because the UI fell behind
+         * @param queuedAtMs when the oldest item in the batch was added
+         */
+        void deliver(List<E> batch, int dropped, long queuedAtMs);
+    }
+
+    private final FrameScheduler scheduler;
+    private final Delivery<E> delivery;
+
+    private int maxBatchSize;
+    private long maxDelayMs;
+    private int maxPending;
+
+    // Guarded by this. pending holds items in arrival order starting at pendingHead.
+    private final ArrayList<E> pending = new ArrayList<>();
+    private int pendingHead;
+    private long oldestAt;
+    private boolean frameScheduled;
+    private int droppedSinceLastBatch;
+
+    // Only touched on the UI thread
+    private final ArrayList<E> outgoing = new ArrayList<>();
+
+    private long batchesDelivered;
+    private long itemsDelivered;
+    private long itemsDropped;
+
+    public PacketBatcher(FrameScheduler scheduler, Delivery<E> delivery) {
+        this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_PENDING, scheduler, delivery);
+    }
+
+    public PacketBatcher(int maxBatchSize, long maxDelayMs, int maxPending,
+                         FrameScheduler scheduler, Delivery<E> delivery) {
+        this.scheduler = scheduler;
+        this.delivery = delivery;
+        configure(maxBatchSize, maxDelayMs, maxPending);
+    }
+
+    /** Changes the limits; takes effect from the next frame. */
+    public synchronized void configure(int maxBatchSize, long maxDelayMs, int maxPending) {
+        if (maxBatchSize < 1 || maxDelayMs < 0 || maxPending < maxBatchSize) {
+            throw new IllegalArgumentException("Invalid batch limits: size=" + maxBatchSize
+                    + ", delay=" + maxDelayMs + ", pending=" + maxPending);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+        this.maxPending = maxPending;
+    }
+
+    /** Queues one item; schedules a frame if this starts a new batch. */
+    public void add(E item, long nowMs) {
+        boolean schedule = false;
+        synchronized (this) {
+            if (pending.size() - pendingHead >= maxPending) {
+                // Overwrite the oldest rather than growing without bound
+                pending.set(pendingHead++, null);
+                droppedSinceLastBatch++;
+                itemsDropped++;
+                if (pendingHead >= maxPending) {
+                    compact();
+                }
+            }
+            if (pending.size() == pendingHead) {
+                oldestAt = nowMs;
+            }
+            pending.add(item);
+            if (!frameScheduled) {
+                frameScheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            scheduler.scheduleFrame();
+        }
+    }
+
+    /**
+     * Delivers a batch if one is due, otherwise waits for another frame.
+     * Must be called on the UI thread.
+     */
+    public void onFrame(long nowMs) {
+        int dropped;
+        long queuedAt;
+        boolean reschedule;
+        synchronized (this) {
+            int available = pending.size() - pendingHead;
+            if (available == 0) {
+                frameScheduled = false;
+                return;
+            }
+            queuedAt = oldestAt;
+            if (available < maxBatchSize && nowMs - oldestAt < maxDelayMs) {
+                // Not due yet; check again next frame
+                frameScheduled = true;
+                reschedule = true;
+                dropped = -1;
+            } else {
+                int count = Math.min(available, maxBatchSize);
+                for (int i = 0; i < count; i++) {
+                    outgoing.add(pending.get(pendingHead));
+                    pending.set(pendingHead++, null);
+                }
+                compact();
+                // Whatever is left over goes out on the next frame
+                reschedule = pendingHead < pending.size();
+                frameScheduled = reschedule;
+                dropped = droppedSinceLastBatch;
+                droppedSinceLastBatch = 0;
+                batchesDelivered++;
+                itemsDelivered += count;
+            }
+        }
+        if (dropped >= 0) {
+            try {
+                delivery.deliver(outgoing, dropped, queuedAt);
+            } finally {
+                outgoing.clear();
+            }
+        }
+        if (reschedule) {
+            scheduler.scheduleFrame();
+        }
+    }
+
+    /** Discards everything queued, e.g. when capture stops. */
+    public synchronized void clear() {
+        pending.clear();
+        pendingHead = 0;
+        droppedSinceLastBatch = 0;
+    }
+
+    private void compact() {
+        if (pendingHead == pending.size()) {
+            pending.clear();
+        } else {
+            pending.subList(0, pendingHead).clear();
+        }
+        pendingHead = 0;
+    }
+
+    public synchronized int maxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public synchronized long maxDelayMs() {
+        return maxDelayMs;
+    }
+
+    public synchronized int maxPending() {
+        return maxPending;
+    }
+
+    public synchronized int pending() {
+        return pending.size() - pendingHead;
+    }
+
+    public synchronized long batchesDelivered() {
+        return batchesDelivered;
+    }
+
+    public synchronized long itemsDelivered() {
+        return itemsDelivered;
+    }
+
+    public synchronized long itemsDropped() {
+        return itemsDropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PacketBatcher{batches=" + batchesDelivered + ", items=" + itemsDelivered
+                + ", dropped=" + itemsDropped + ", pending=" + (pending.size() - pendingHead)
+                + ", maxBatch=" + maxBatchSize + ", maxDelayMs=" + maxDelayMs + "}";
+    }
+}
@@ -0,0 +1,107 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size pool of packet buffers shared by the TUN and network threads.
+ *
+ * Buffers are handed from stage to stage by ownership transfer: whoever
+ * acquires a buffer either passes it on (e.g. through a queue) or releases
+ * it, and must not touch it afterwards. Buffers are allocated lazily up to
+ * the pool's capacity, so steady-state capture allocates nothing per packet.
+ *
+ * Counters:
+ * <ul>
+ *   <li>hits - acquire() served from the free list</li>
+ *   <li>misses - acquire() had to allocate a new buffer (warm-up)</li>
+ *   <li>exhausted - acquire() returned null because every buffer is in flight</li>
+ * </ul>
+ */
+public final class PacketBufferPool {
+    private final int bufferSize;
+    private final int capacity;
+    private final ByteBuffer[] free;
+    private int freeCount;
+    private int allocated;
+
+    private long hits;
+    private long misses;
+    private long exhausted;
+
+    public PacketBufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("bufferSize and capacity must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.free = new ByteBuffer[capacity];
+    }
+
+    /**
+     * @return a cleared buffer owned by the caller, or null if the pool is exhausted
+     */
+    public synchronized ByteBuffer acquire() {
+        if (freeCount > 0) {
+            hits++;
+            ByteBuffer buffer = free[--freeCount];
+            free[freeCount] = null;
+            buffer.clear();
+            return buffer;
+        }
+        if (allocated < capacity) {
+            misses++;
+            allocated++;
+            return ByteBuffer.allocate(bufferSize);
+        }
+        exhausted++;
+        return null;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()}. Foreign buffers and
+     * releases beyond capacity are ignored.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || freeCount >= allocated) {
+            return;
+        }
+        free[freeCount++] = buffer;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Buffers currently sitting in the free list. */
+    public synchronized int available() {
+        return freeCount;
+    }
+
+    /** Buffers currently owned by some stage. */
+    public synchronized int inFlight() {
+        return allocated - freeCount;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long exhausted() {
+        return exhausted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PacketBufferPool{size=" + bufferSize + ", capacity=" + capacity
+                + ", allocated=" + allocated + ", free=" + freeCount
+                + ", hits=" + hits + ", misses=" + misses + ", exhausted=" + exhausted + "}";
+    }
+}
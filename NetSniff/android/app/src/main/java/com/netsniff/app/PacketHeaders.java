@@ -0,0 +1,83 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the IP (and UDP) headers of packets the forwarders synthesize for the device.
+ * All offsets are absolute; positions and limits are not touched.
+ */
+public final class PacketHeaders {
+    public static final int IPV4_HEADER = 20;
+    public static final int IPV6_HEADER = 40;
+    public static final int UDP_HEADER = 8;
+    public static final int DEFAULT_TTL = 64;
+
+    private PacketHeaders() {}
+
+    public static int ipHeaderLength(boolean ipv6) {
+        return ipv6 ? IPV6_HEADER : IPV4_HEADER;
+    }
+
+    /**
+     * Writes an IPv4 (with checksum and DF set) or IPv6 header at index 0 for a
+     * transport segment of {@code l4Length} bytes.
+     * @return the index of the transport header
+     */
+    public static int writeIp(ByteBuffer packet, boolean ipv6, byte[] source, byte[] destination,
+                              int protocol, int l4Length, int ipId) {
+        if (ipv6) {
+            packet.putInt(0, 0x60000000);
+            packet.putShort(4, (short) l4Length);
+            packet.put(6, (byte) protocol);
+            packet.put(7, (byte) DEFAULT_TTL);
+            putAddress(packet, 8, source);
+            putAddress(packet, 24, destination);
+            return IPV6_HEADER;
+        }
+        packet.put(0, (byte) 0x45);
+        packet.put(1, (byte) 0);
+        packet.putShort(2, (short) (IPV4_HEADER + l4Length));
+        packet.putShort(4, (short) ipId);
+        packet.putShort(6, (short) 0x4000);  // don't fragment
+        packet.put(8, (byte) DEFAULT_TTL);
+        packet.put(9, (byte) protocol);
+        packet.putShort(10, (short) 0);
+        putAddress(packet, 12, source);
+        putAddress(packet, 16, destination);
+        packet.putShort(10, (short) Checksums.ipv4Header(packet, 0, IPV4_HEADER));
+        return IPV4_HEADER;
+    }
+
+    /**
+     * Writes a UDP header at {@code l4Offset} for {@code payloadLength} bytes
+     * that are already in place after it, checksum included. The IP header
+     * must already be written at index 0.
+     */
+    public static void writeUdp(ByteBuffer packet, int l4Offset, int sourcePort, int destinationPort,
+                                int payloadLength) {
+        int udpLength = UDP_HEADER + payloadLength;
+        packet.putShort(l4Offset, (short) sourcePort);
+        packet.putShort(l4Offset + 2, (short) destinationPort);
+        packet.putShort(l4Offset + 4, (short) udpLength);
+        packet.putShort(l4Offset + 6, (short) 0);
+        int checksum = Checksums.transport(packet, 0, l4Offset, udpLength, PacketView.PROTO_UDP);
+        // Zero means "no checksum" in UDP, so send all ones instead
+        packet.putShort(l4Offset + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+    }
+
+    public static void putAddress(ByteBuffer packet, int index, byte[] address) {
+        for (int i = 0; i < address.length; i++) {
+            packet.put(index + i, address[i]);
+        }
+    }
+
+    /** Copies the 4- or 16-byte address at absolute {@code index} out of the view's buffer. */
+    public static byte[] copyAddress(PacketView view, int index) {
+        byte[] address = new byte[view.addressLength()];
+        ByteBuffer buffer = view.buffer();
+        for (int i = 0; i < address.length; i++) {
+            address[i] = buffer.get(index + i);
+        }
+        return address;
+    }
+}
@@ -0,0 +1,177 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Compact binary form of packet events, an alternative to one JSON object
+ * per packet. All multi-byte fields are big-endian.
+ *
+ * A batch is an 8-byte header followed by {@code count} records:
+ * <pre>
+ *  0  u8   version ({@link #VERSION})
+ *  1  u8   reserved
+ *  2  u16  record count
+ *  4  u32  packets dropped since the previous batch
+ * </pre>
+ * Each record is a fixed 28-byte header, the two addresses (4 bytes each for
+ * IPv4, 16 for IPv6) and the raw preview bytes:
+ * <pre>
+ *  0  u8   flags ({@link #FLAG_IPV6}, {@link #FLAG_INCOMING}, {@link #FLAG_PORTS})
+ *  1  u8   IP protocol
+ *  2  u8   TCP flags
+ *  3  u8   application protocol, a {@link Dissectors} id; 0 if none
+ *  4  u16  total length of the packet
+ *  6  u16  source port
+ *  8  u16  destination port
+ * 10  u16  preview length
+ * 12  f64  capture time, epoch milliseconds
+ * 20  f64  sequence number in the {@link CaptureHistory}; 0 if not kept
+ * 28       source address, destination address, preview bytes
+ * </pre>
+ * Live packet events carry no preview; the page reads payload bytes back
+ * from the history by sequence number when it needs them.
+ * The TypeScript decoder in {@code src/plugins/packetRecords.ts} must be kept
+ * in step with this layout.
+ */
+public final class PacketRecords {
+    public static final int VERSION = 2;
+    public static final int BATCH_HEADER = 8;
+    public static final int RECORD_HEADER = 28;
+    // The header's record count is a u16
+    public static final int MAX_BATCH_RECORDS = 0xFFFF;
+
+    public static final int FLAG_IPV6 = 0x01;
+    public static final int FLAG_INCOMING = 0x02;
+    public static final int FLAG_PORTS = 0x04;
+
+    private PacketRecords() {}
+
+    /**
+     * Encodes one decoded packet, with up to {@code snapLength} bytes of
+     * preview starting at absolute index {@code previewOffset}.
+     */
+    public static byte[] encode(PacketView view, boolean incoming, long timestampMs,
+                                int previewOffset, int snapLength) {
+        return encode(view, incoming, timestampMs, previewOffset, snapLength, 0, 0);
+    }
+
+    /**
+     * As {@link #encode}, tagging the record with an application protocol
+     * and the packet's history sequence number.
+     */
+    public static byte[] encode(PacketView view, boolean incoming, long timestampMs,
+                                int previewOffset, int snapLength, int appProtocol, long seq) {
+        byte[] record = new byte[recordLength(view, previewOffset, snapLength)];
+        encodeInto(view, incoming, timestampMs, previewOffset, snapLength, appProtocol, seq, record, 0);
+        return record;
+    }
+
+    /** Size of the record {@link #encode} would produce. */
+    public static int recordLength(PacketView view, int previewOffset, int snapLength) {
+        return RECORD_HEADER + 2 * view.addressLength() + previewLength(view, previewOffset, snapLength);
+    }
+
+    /**
+     * Encodes one record into {@code to} at {@code offset}, which must have
+     * {@link #recordLength} bytes free.
+     * @return the number of bytes written
+     */
+    public static int encodeInto(PacketView view, boolean incoming, long timestampMs,
+                                 int previewOffset, int snapLength, byte[] to, int offset) {
+        return encodeInto(view, incoming, timestampMs, previewOffset, snapLength, 0, 0, to, offset);
+    }
+
+    /**
+     * As {@link #encodeInto}, tagging the record with an application protocol
+     * and the packet's history sequence number.
+     */
+    public static int encodeInto(PacketView view, boolean incoming, long timestampMs,
+                                 int previewOffset, int snapLength, int appProtocol, long seq,
+                                 byte[] to, int offset) {
+        int addressLength = view.addressLength();
+        int previewLength = previewLength(view, previewOffset, snapLength);
+        int length = RECORD_HEADER + 2 * addressLength + previewLength;
+        ByteBuffer out = ByteBuffer.wrap(to, offset, length);
+
+        int flags = (view.isIpv6() ? FLAG_IPV6 : 0)
+                | (incoming ? FLAG_INCOMING : 0)
+                | (view.hasPorts() ? FLAG_PORTS : 0);
+        out.put((byte) flags)
+           .put((byte) view.protocol())
+           .put((byte) view.tcpFlags())
+           .put((byte) appProtocol)
+           .putShort((short) view.totalLength())
+           .putShort((short) (view.hasPorts() ? view.sourcePort() : 0))
+           .putShort((short) (view.hasPorts() ? view.destinationPort() : 0))
+           .putShort((short) previewLength)
+           .putDouble(timestampMs)
+           .putDouble(seq);
+
+        ByteBuffer in = view.buffer();
+        int addresses = offset + RECORD_HEADER;
+        copy(in, view.sourceAddressOffset(), to, addresses, addressLength);
+        copy(in, view.destinationAddressOffset(), to, addresses + addressLength, addressLength);
+        copy(in, previewOffset, to, addresses + 2 * addressLength, previewLength);
+        return length;
+    }
+
+    /** Index in {@code data} of the preview bytes of the record at {@code offset}. */
+    public static int previewStart(byte[] data, int offset) {
+        int addressLength = (data[offset] & FLAG_IPV6) != 0 ? 16 : 4;
+        return offset + RECORD_HEADER + 2 * addressLength;
+    }
+
+    /** Length of the preview of the record at {@code offset}. */
+    public static int previewLength(byte[] data, int offset) {
+        return ((data[offset + 10] & 0xFF) << 8) | (data[offset + 11] & 0xFF);
+    }
+
+    private static int previewLength(PacketView view, int previewOffset, int snapLength) {
+        int end = view.offset() + view.capturedLength();
+        return Math.max(0, Math.min(snapLength, end - previewOffset));
+    }
+
+    /**
+     * Writes a batch header for {@code count} records into {@code to} at {@code offset}.
+     * @throws IllegalArgumentException if {@code count} is over {@link #MAX_BATCH_RECORDS}
+     */
+    public static void writeBatchHeader(byte[] to, int offset, int count, int dropped) {
+        if (count > MAX_BATCH_RECORDS) {
+            throw new IllegalArgumentException("Too many records for one batch: " + count);
+        }
+        ByteBuffer.wrap(to, offset, BATCH_HEADER)
+                .put((byte) VERSION)
+                .put((byte) 0)
+                .putShort((short) count)
+                .putInt(dropped);
+    }
+
+    /** Concatenates encoded records behind a batch header. */
+    public static byte[] frame(List<byte[]> records, int dropped) {
+        int length = BATCH_HEADER;
+        for (int i = 0; i < records.size(); i++) {
+            length += records.get(i).length;
+        }
+        byte[] batch = new byte[length];
+        writeBatchHeader(batch, 0, records.size(), dropped);
+        int offset = BATCH_HEADER;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] record = records.get(i);
+            System.arraycopy(record, 0, batch, offset, record.length);
+            offset += record.length;
+        }
+        return batch;
+    }
+
+    // Absolute reads, so the source buffer's position is left alone
+    private static void copy(ByteBuffer from, int index, byte[] to, int offset, int length) {
+        if (from.hasArray()) {
+            System.arraycopy(from.array(), from.arrayOffset() + index, to, offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                to[offset + i] = from.get(index + i);
+            }
+        }
+    }
+}
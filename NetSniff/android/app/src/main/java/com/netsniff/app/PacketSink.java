@@ -0,0 +1,14 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives each packet as it passes through a forwarding stage.
+ *
+ * The buffer holds one IP packet in [position, limit) and is only valid for
+ * the duration of the call; implementations must not keep a reference to it
+ * or change its position or limit.
+ */
+public interface PacketSink {
+    void onPacket(ByteBuffer packet);
+}
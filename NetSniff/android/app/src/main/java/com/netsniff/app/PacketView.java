@@ -0,0 +1,450 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable, allocation-free view over a raw IPv4 or IPv6 packet.
+ *
+ * Call {@link #wrap(ByteBuffer)} once per packet and read header fields as
+ * primitives straight out of the buffer. The buffer's position and limit are
+ * never touched. String forms of addresses and endpoints are only built when
+ * somebody asks for them and are cached until the next wrap.
+ *
+ * For IPv6 the extension-header chain (hop-by-hop, routing, fragment,
+ * destination options, AH) is walked in at most
+ * {@link #MAX_EXTENSION_HEADERS} steps to find the transport header.
+ *
+ * A view is not thread-safe; keep one per thread.
+ */
+public final class PacketView {
+    public static final int PROTO_ICMP = 1;
+    public static final int PROTO_TCP = 6;
+    public static final int PROTO_UDP = 17;
+    public static final int PROTO_ICMPV6 = 58;
+
+    // IPv6 extension headers
+    private static final int EXT_HOP_BY_HOP = 0;
+    private static final int EXT_ROUTING = 43;
+    private static final int EXT_FRAGMENT = 44;
+    private static final int EXT_AH = 51;
+    private static final int EXT_NO_NEXT_HEADER = 59;
+    private static final int EXT_DESTINATION_OPTIONS = 60;
+
+    /** Upper bound on extension headers walked before giving up on the L4 header. */
+    public static final int MAX_EXTENSION_HEADERS = 8;
+
+    public static final int TCP_FIN = 0x01;
+    public static final int TCP_SYN = 0x02;
+    public static final int TCP_RST = 0x04;
+    public static final int TCP_PSH = 0x08;
+    public static final int TCP_ACK = 0x10;
+    public static final int TCP_URG = 0x20;
+
+    private static final int IPV4_MIN_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+    private static final int TCP_MIN_HEADER = 20;
+    private static final int UDP_HEADER = 8;
+    private static final int ICMP_HEADER = 8;
+
+    private static final String[] PROTOCOL_NAMES = new String[256];
+
+    static {
+        for (int i = 0; i < PROTOCOL_NAMES.length; i++) {
+            PROTOCOL_NAMES[i] = "IP(" + i + ")";
+        }
+        PROTOCOL_NAMES[PROTO_ICMP] = "ICMP";
+        PROTOCOL_NAMES[PROTO_TCP] = "TCP";
+        PROTOCOL_NAMES[PROTO_UDP] = "UDP";
+        PROTOCOL_NAMES[PROTO_ICMPV6] = "ICMPv6";
+        PROTOCOL_NAMES[50] = "ESP";
+        PROTOCOL_NAMES[89] = "OSPF";
+    }
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    private int version;
+    private int ipHeaderLength;
+    private int totalLength;
+    private int protocol;
+    private int addressOffset;
+    private int addressLength;
+    // Absolute index of the transport header, or -1 if it is missing or truncated
+    private int l4Offset;
+    private int l4HeaderLength;
+
+    // Lazily built, reset on every wrap()
+    private String sourceAddressString;
+    private String destinationAddressString;
+    private final StringBuilder scratch = new StringBuilder(48);
+
+    /**
+     * Points this view at the packet held in {@code buffer[0, limit)}.
+     * @return false if the bytes do not start with a usable IP header
+     */
+    public boolean wrap(ByteBuffer buffer) {
+        return wrap(buffer, 0, buffer.limit());
+    }
+
+    /**
+     * Points this view at {@code length} bytes of {@code buffer} starting at
+     * absolute index {@code offset}.
+     * @return false if the bytes do not start with a usable IP header
+     */
+    public boolean wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.version = 0;
+        this.ipHeaderLength = 0;
+        this.totalLength = 0;
+        this.protocol = 0;
+        this.addressOffset = 0;
+        this.addressLength = 0;
+        this.l4Offset = -1;
+        this.l4HeaderLength = 0;
+        this.sourceAddressString = null;
+        this.destinationAddressString = null;
+
+        if (length < 1) {
+            return false;
+        }
+        version = (buffer.get(offset) >> 4) & 0xF;
+        switch (version) {
+            case 4:
+                return decodeIpv4();
+            case 6:
+                return decodeIpv6();
+            default:
+                return false;
+        }
+    }
+
+    private boolean decodeIpv4() {
+        if (length < IPV4_MIN_HEADER) {
+            return false;
+        }
+        ipHeaderLength = (buffer.get(offset) & 0xF) * 4;
+        if (ipHeaderLength < IPV4_MIN_HEADER || ipHeaderLength > length) {
+            return false;
+        }
+        totalLength = readUnsignedShort(offset + 2);
+        if (totalLength == 0) {
+            // Segmentation offload can leave the field empty; trust the read length
+            totalLength = length;
+        }
+        protocol = buffer.get(offset + 9) & 0xFF;
+        addressOffset = offset + 12;
+        addressLength = 4;
+
+        // Only the first fragment carries the transport header
+        int fragmentOffset = readUnsignedShort(offset + 6) & 0x1FFF;
+        if (fragmentOffset == 0) {
+            locateTransportHeader(offset + ipHeaderLength);
+        }
+        return true;
+    }
+
+    private boolean decodeIpv6() {
+        if (length < IPV6_HEADER) {
+            return false;
+        }
+        int payloadLength = readUnsignedShort(offset + 4);
+        // A zero payload length means a jumbogram; trust the read length
+        totalLength = payloadLength == 0 ? length : IPV6_HEADER + payloadLength;
+        addressOffset = offset + 8;
+        addressLength = 16;
+
+        int nextHeader = buffer.get(offset + 6) & 0xFF;
+        int position = offset + IPV6_HEADER;
+        int end = offset + capturedLength();
+        boolean firstFragment = true;
+
+        for (int step = 0; step < MAX_EXTENSION_HEADERS; step++) {
+            int headerLength;
+            switch (nextHeader) {
+                case EXT_HOP_BY_HOP:
+                case EXT_ROUTING:
+                case EXT_DESTINATION_OPTIONS:
+                    if (position + 2 > end) return truncatedIpv6(nextHeader, position);
+                    headerLength = ((buffer.get(position + 1) & 0xFF) + 1) * 8;
+                    break;
+                case EXT_FRAGMENT:
+                    if (position + 8 > end) return truncatedIpv6(nextHeader, position);
+                    headerLength = 8;
+                    firstFragment = (readUnsignedShort(position + 2) >>> 3) == 0;
+                    break;
+                case EXT_AH:
+                    if (position + 2 > end) return truncatedIpv6(nextHeader, position);
+                    headerLength = ((buffer.get(position + 1) & 0xFF) + 2) * 4;
+                    break;
+                default:
+                    // Upper-layer protocol (or 59, no next header)
+                    protocol = nextHeader;
+                    ipHeaderLength = position - offset;
+                    if (firstFragment && nextHeader != EXT_NO_NEXT_HEADER) {
+                        locateTransportHeader(position);
+                    }
+                    return true;
+            }
+            if (position + headerLength > end) {
+                return truncatedIpv6(nextHeader, position);
+            }
+            nextHeader = buffer.get(position) & 0xFF;
+            position += headerLength;
+        }
+        // Chain too long to be worth following; report what we walked
+        return truncatedIpv6(nextHeader, position);
+    }
+
+    private boolean truncatedIpv6(int nextHeader, int position) {
+        protocol = nextHeader;
+        ipHeaderLength = Math.min(position, offset + capturedLength()) - offset;
+        return true;
+    }
+
+    private void locateTransportHeader(int start) {
+        int available = offset + capturedLength() - start;
+        int needed;
+        switch (protocol) {
+            case PROTO_TCP:
+                if (available < TCP_MIN_HEADER) return;
+                needed = ((buffer.get(start + 12) >> 4) & 0xF) * 4;
+                if (needed < TCP_MIN_HEADER) return;
+                break;
+            case PROTO_UDP:
+                needed = UDP_HEADER;
+                break;
+            case PROTO_ICMP:
+            case PROTO_ICMPV6:
+                needed = ICMP_HEADER;
+                break;
+            default:
+                needed = 0;
+                break;
+        }
+        if (available < needed) {
+            return;
+        }
+        l4Offset = start;
+        l4HeaderLength = needed;
+    }
+
+    /** Absolute index of the IP header in {@link #buffer()}. */
+    public int offset() {
+        return offset;
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public boolean isIpv6() {
+        return version == 6;
+    }
+
+    /** Length of the IP header, including any IPv6 extension headers that were walked. */
+    public int ipHeaderLength() {
+        return ipHeaderLength;
+    }
+
+    /** Length of the packet as claimed by the IP header. */
+    public int totalLength() {
+        return totalLength;
+    }
+
+    /** Number of bytes actually present, never more than {@link #totalLength()}. */
+    public int capturedLength() {
+        return Math.min(length, totalLength);
+    }
+
+    public int protocol() {
+        return protocol;
+    }
+
+    /** TTL for IPv4, hop limit for IPv6. */
+    public int ttl() {
+        return buffer.get(offset + (version == 6 ? 7 : 8)) & 0xFF;
+    }
+
+    /** 4 for IPv4 and 16 for IPv6. */
+    public int addressLength() {
+        return addressLength;
+    }
+
+    /** Absolute index of the source address; the destination follows immediately. */
+    public int sourceAddressOffset() {
+        return addressOffset;
+    }
+
+    public int destinationAddressOffset() {
+        return addressOffset + addressLength;
+    }
+
+    /** IPv4 source address in network order packed into an int. Only meaningful for IPv4. */
+    public int sourceAddress() {
+        return buffer.getInt(offset + 12);
+    }
+
+    /** IPv4 destination address in network order packed into an int. Only meaningful for IPv4. */
+    public int destinationAddress() {
+        return buffer.getInt(offset + 16);
+    }
+
+    public boolean hasTransportHeader() {
+        return l4Offset >= 0;
+    }
+
+    public boolean hasPorts() {
+        return l4Offset >= 0 && (protocol == PROTO_TCP || protocol == PROTO_UDP);
+    }
+
+    /** @return the source port, or -1 if the packet carries none */
+    public int sourcePort() {
+        return hasPorts() ? readUnsignedShort(l4Offset) : -1;
+    }
+
+    /** @return the destination port, or -1 if the packet carries none */
+    public int destinationPort() {
+        return hasPorts() ? readUnsignedShort(l4Offset + 2) : -1;
+    }
+
+    /** @return the TCP flag bits, or 0 for anything that is not TCP */
+    public int tcpFlags() {
+        return (protocol == PROTO_TCP && l4Offset >= 0) ? buffer.get(l4Offset + 13) & 0x3F : 0;
+    }
+
+    public boolean isIcmp() {
+        return protocol == PROTO_ICMP || protocol == PROTO_ICMPV6;
+    }
+
+    public int icmpType() {
+        return (isIcmp() && l4Offset >= 0) ? buffer.get(l4Offset) & 0xFF : -1;
+    }
+
+    public int icmpCode() {
+        return (isIcmp() && l4Offset >= 0) ? buffer.get(l4Offset + 1) & 0xFF : -1;
+    }
+
+    /** Absolute index of the transport header, or -1 if there is none. */
+    public int transportOffset() {
+        return l4Offset;
+    }
+
+    /** Absolute index of the first byte after all known headers. */
+    public int payloadOffset() {
+        return l4Offset >= 0 ? l4Offset + l4HeaderLength : offset + ipHeaderLength;
+    }
+
+    /** Number of captured payload bytes after all known headers. */
+    public int payloadLength() {
+        return Math.max(0, offset + capturedLength() - payloadOffset());
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public String protocolName() {
+        return protocolName(protocol);
+    }
+
+    public static String protocolName(int protocol) {
+        return PROTOCOL_NAMES[protocol & 0xFF];
+    }
+
+    public String sourceAddressString() {
+        if (sourceAddressString == null) {
+            scratch.setLength(0);
+            appendAddress(scratch, sourceAddressOffset());
+            sourceAddressString = scratch.toString();
+        }
+        return sourceAddressString;
+    }
+
+    public String destinationAddressString() {
+        if (destinationAddressString == null) {
+            scratch.setLength(0);
+            appendAddress(scratch, destinationAddressOffset());
+            destinationAddressString = scratch.toString();
+        }
+        return destinationAddressString;
+    }
+
+    /** Source address with ":port" appended when the packet has ports ("[addr]:port" for IPv6). */
+    public String sourceEndpoint() {
+        return hasPorts() ? endpoint(sourceAddressString(), sourcePort()) : sourceAddressString();
+    }
+
+    /** Destination address with ":port" appended when the packet has ports ("[addr]:port" for IPv6). */
+    public String destinationEndpoint() {
+        return hasPorts() ? endpoint(destinationAddressString(), destinationPort()) : destinationAddressString();
+    }
+
+    private String endpoint(String address, int port) {
+        scratch.setLength(0);
+        if (version == 6) {
+            scratch.append('[').append(address).append(']');
+        } else {
+            scratch.append(address);
+        }
+        return scratch.append(':').append(port).toString();
+    }
+
+    private void appendAddress(StringBuilder sb, int index) {
+        if (addressLength == 16) {
+            appendIpv6(sb, buffer, index);
+        } else {
+            appendIpv4(sb, buffer.getInt(index));
+        }
+    }
+
+    /** Appends a dotted-quad rendering of {@code address} without going through String.format. */
+    public static StringBuilder appendIpv4(StringBuilder sb, int address) {
+        sb.append((address >>> 24) & 0xFF).append('.')
+          .append((address >>> 16) & 0xFF).append('.')
+          .append((address >>> 8) & 0xFF).append('.')
+          .append(address & 0xFF);
+        return sb;
+    }
+
+    /**
+     * Appends the RFC 5952 text form of the 16-byte address at absolute index
+     * {@code index}: lowercase hex, leading zeros dropped, and the longest run
+     * of two or more zero groups collapsed to "::".
+     */
+    public static StringBuilder appendIpv6(StringBuilder sb, ByteBuffer buffer, int index) {
+        int bestStart = -1;
+        int bestLength = 1;
+        int runStart = -1;
+        for (int group = 0; group < 8; group++) {
+            if (buffer.getShort(index + group * 2) == 0) {
+                if (runStart < 0) runStart = group;
+                int runLength = group - runStart + 1;
+                if (runLength > bestLength) {
+                    bestStart = runStart;
+                    bestLength = runLength;
+                }
+            } else {
+                runStart = -1;
+            }
+        }
+        for (int group = 0; group < 8; group++) {
+            if (group == bestStart) {
+                sb.append("::");
+                group += bestLength - 1;
+                continue;
+            }
+            if (group > 0 && group != bestStart + bestLength) {
+                sb.append(':');
+            }
+            sb.append(Integer.toHexString(buffer.getShort(index + group * 2) & 0xFFFF));
+        }
+        return sb;
+    }
+
+    private int readUnsignedShort(int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+}
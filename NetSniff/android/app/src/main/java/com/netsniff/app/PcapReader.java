@@ -0,0 +1,429 @@
+package com.netsniff.app;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the IP packets out of a classic PCAP or a PCAPNG capture, for
+ * replaying recorded traffic through the capture path off the device.
+ *
+ * Handles either byte order, microsecond and nanosecond PCAP, PCAPNG
+ * if_tsresol, and raw IP, Ethernet (with VLAN tags), Linux cooked (v1 and
+ * v2) and BSD loopback link layers. Frames that are not IPv4 or IPv6, and
+ * blocks other than packets and the headers describing them, are skipped.
+ *
+ * Not thread-safe. The buffer returned by {@link #packet()} is reused and
+ * only valid until the next call to {@link #next()}.
+ */
+public final class PcapReader implements Closeable {
+    /** Direction not recorded: classic PCAP, or a PCAPNG packet without epb_flags. */
+    public static final int DIRECTION_UNKNOWN = 0;
+    public static final int DIRECTION_INBOUND = PcapngWriter.EPB_FLAG_INBOUND;
+    public static final int DIRECTION_OUTBOUND = PcapngWriter.EPB_FLAG_OUTBOUND;
+
+    static final int PCAP_MAGIC_MICROS = 0xA1B2C3D4;
+    static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+    static final int LINKTYPE_NULL = 0;
+    static final int LINKTYPE_ETHERNET = 1;
+    static final int LINKTYPE_LOOP = 108;
+    static final int LINKTYPE_LINUX_SLL = 113;
+    static final int LINKTYPE_IPV4 = 228;
+    static final int LINKTYPE_IPV6 = 229;
+    static final int LINKTYPE_LINUX_SLL2 = 276;
+    // DLT_RAW as some platforms write it instead of LINKTYPE_RAW
+    private static final int DLT_RAW_BSD = 12;
+    private static final int DLT_RAW_OPENBSD = 14;
+
+    private static final int BLOCK_SIMPLE_PACKET = 3;
+    private static final int OPTION_IF_TSRESOL = 9;
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    // Anything longer is taken as a corrupt file rather than allocated
+    private static final int MAX_BLOCK_BYTES = 16 << 20;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final InputStream in;
+    private final boolean pcapng;
+    private ByteOrder order;
+    private byte[] block = new byte[64 * 1024];
+    private ByteBuffer view;
+
+    // Classic PCAP: the file's one link type and timestamp unit
+    private int linkType;
+    private long unitsPerSecond;
+    // PCAPNG: per interface of the current section
+    private final List<int[]> interfaceLinkTypes = new ArrayList<>();
+    private final List<long[]> interfaceUnits = new ArrayList<>();
+
+    private boolean ended;
+    private long timestampNanos;
+    private int direction;
+    private int originalLength;
+    private long packets;
+    private long skipped;
+
+    public PcapReader(InputStream in) throws IOException {
+        this.in = in.markSupported() ? in : new BufferedInputStream(in);
+        byte[] magic = new byte[4];
+        readFully(magic, 0, 4);
+        int big = ByteBuffer.wrap(magic).getInt();
+        int little = ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (big == PcapngWriter.BLOCK_SECTION_HEADER) {
+            pcapng = true;
+            readSectionHeader();
+        } else if (big == PCAP_MAGIC_MICROS || big == PCAP_MAGIC_NANOS) {
+            pcapng = false;
+            readPcapHeader(ByteOrder.BIG_ENDIAN, big == PCAP_MAGIC_NANOS);
+        } else if (little == PCAP_MAGIC_MICROS || little == PCAP_MAGIC_NANOS) {
+            pcapng = false;
+            readPcapHeader(ByteOrder.LITTLE_ENDIAN, little == PCAP_MAGIC_NANOS);
+        } else {
+            throw new IOException(String.format("Not a PCAP or PCAPNG file (magic 0x%08x)", big));
+        }
+    }
+
+    public static PcapReader open(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return new PcapReader(new BufferedInputStream(stream, 256 * 1024));
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads all IP packets of {@code file} into their own arrays, for when
+     * the whole capture is wanted in memory.
+     */
+    public static List<byte[]> readAll(File file) throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        try (PcapReader reader = open(file)) {
+            while (reader.next()) {
+                ByteBuffer packet = reader.packet();
+                byte[] copy = new byte[packet.remaining()];
+                packet.duplicate().get(copy);
+                packets.add(copy);
+            }
+        }
+        return packets;
+    }
+
+    private void readPcapHeader(ByteOrder order, boolean nanos) throws IOException {
+        this.order = order;
+        ByteBuffer header = fill(20);
+        // version (2 + 2), thiszone, sigfigs, snaplen, then the link type
+        linkType = header.getInt(16) & 0xFFFF;
+        unitsPerSecond = nanos ? NANOS_PER_SECOND : 1_000_000L;
+    }
+
+    /** Reads the rest of a section header block whose type has been consumed. */
+    private void readSectionHeader() throws IOException {
+        byte[] head = new byte[8];
+        readFully(head, 0, 8);
+        ByteBuffer b = ByteBuffer.wrap(head);
+        if (b.getInt(4) == PcapngWriter.BYTE_ORDER_MAGIC) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (b.order(ByteOrder.LITTLE_ENDIAN).getInt(4) == PcapngWriter.BYTE_ORDER_MAGIC) {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else {
+            throw new IOException("Bad PCAPNG byte-order magic");
+        }
+        int length = ByteBuffer.wrap(head).order(order).getInt(0);
+        checkBlockLength(length, 28);
+        skip(length - 12);
+        interfaceLinkTypes.clear();
+        interfaceUnits.clear();
+    }
+
+    /**
+     * Moves to the next IP packet.
+     * @return false at the end of the capture
+     */
+    public boolean next() throws IOException {
+        while (!ended) {
+            if (pcapng ? nextBlock() : nextRecord()) {
+                packets++;
+                return true;
+            }
+        }
+        view = null;
+        return false;
+    }
+
+    // Sets ended at the end of the file; returns false for anything but an IP packet
+    private boolean nextRecord() throws IOException {
+        ByteBuffer header = fillOrEnd(16);
+        if (header == null) {
+            ended = true;
+            return false;
+        }
+        long seconds = header.getInt(0) & 0xFFFFFFFFL;
+        long fraction = header.getInt(4) & 0xFFFFFFFFL;
+        int captured = header.getInt(8);
+        originalLength = header.getInt(12);
+        checkBlockLength(captured, 0);
+        ByteBuffer data = fill(captured);
+        timestampNanos = seconds * NANOS_PER_SECOND + fraction * (NANOS_PER_SECOND / unitsPerSecond);
+        direction = DIRECTION_UNKNOWN;
+        return frame(data, 0, captured, linkType);
+    }
+
+    private boolean nextBlock() throws IOException {
+        ByteBuffer head = fillOrEnd(4);
+        if (head == null) {
+            ended = true;
+            return false;
+        }
+        int type = head.getInt(0);
+        if (type == PcapngWriter.BLOCK_SECTION_HEADER) {
+            readSectionHeader();
+            return false;
+        }
+        int length = fill(4).getInt(0);
+        checkBlockLength(length, 12);
+        ByteBuffer body = fill(length - 8);
+        int end = length - 12;
+        if (type == PcapngWriter.BLOCK_INTERFACE_DESCRIPTION) {
+            readInterface(body, end);
+            return false;
+        }
+        if (type == PcapngWriter.BLOCK_ENHANCED_PACKET) {
+            int iface = body.getInt(0);
+            long timestamp = ((body.getInt(4) & 0xFFFFFFFFL) << 32) | (body.getInt(8) & 0xFFFFFFFFL);
+            int captured = body.getInt(12);
+            originalLength = body.getInt(16);
+            if (iface < 0 || iface >= interfaceLinkTypes.size() || captured < 0 || 20 + captured > end) {
+                skipped++;
+                return false;
+            }
+            timestampNanos = toNanos(timestamp, interfaceUnits.get(iface)[0]);
+            direction = packetDirection(body, 20 + ((captured + 3) & ~3), end);
+            return frame(body, 20, captured, interfaceLinkTypes.get(iface)[0]);
+        }
+        if (type == BLOCK_SIMPLE_PACKET) {
+            if (interfaceLinkTypes.isEmpty()) {
+                skipped++;
+                return false;
+            }
+            originalLength = body.getInt(0);
+            int captured = Math.min(originalLength, end - 4);
+            // No timestamp: keep the previous one so replay timing stays monotonic
+            direction = DIRECTION_UNKNOWN;
+            return frame(body, 4, captured, interfaceLinkTypes.get(0)[0]);
+        }
+        return false;
+    }
+
+    private void readInterface(ByteBuffer body, int end) {
+        int type = body.getShort(0) & 0xFFFF;
+        long units = 1_000_000L;
+        int option = 8;
+        while (option + 4 <= end) {
+            int code = body.getShort(option) & 0xFFFF;
+            int length = body.getShort(option + 2) & 0xFFFF;
+            if (code == PcapngWriter.OPTION_END) {
+                break;
+            }
+            if (code == OPTION_IF_TSRESOL && length >= 1) {
+                int resolution = body.get(option + 4) & 0xFF;
+                int exponent = resolution & 0x7F;
+                if ((resolution & 0x80) != 0) {
+                    units = exponent < 63 ? 1L << exponent : Long.MAX_VALUE;
+                } else {
+                    units = 1;
+                    for (int i = 0; i < Math.min(exponent, 18); i++) {
+                        units *= 10;
+                    }
+                }
+            }
+            option += 4 + ((length + 3) & ~3);
+        }
+        interfaceLinkTypes.add(new int[] {type});
+        interfaceUnits.add(new long[] {units});
+    }
+
+    private static int packetDirection(ByteBuffer body, int option, int end) {
+        while (option + 4 <= end) {
+            int code = body.getShort(option) & 0xFFFF;
+            int length = body.getShort(option + 2) & 0xFFFF;
+            if (code == PcapngWriter.OPTION_END) {
+                break;
+            }
+            if (code == PcapngWriter.OPTION_EPB_FLAGS && length == 4 && option + 8 <= end) {
+                return body.getInt(option + 4) & 0x3;
+            }
+            option += 4 + ((length + 3) & ~3);
+        }
+        return DIRECTION_UNKNOWN;
+    }
+
+    private static long toNanos(long timestamp, long unitsPerSecond) {
+        long seconds = timestamp / unitsPerSecond;
+        long fraction = timestamp % unitsPerSecond;
+        if (unitsPerSecond <= NANOS_PER_SECOND) {
+            return seconds * NANOS_PER_SECOND + fraction * (NANOS_PER_SECOND / unitsPerSecond);
+        }
+        return seconds * NANOS_PER_SECOND + (long) (fraction * ((double) NANOS_PER_SECOND / unitsPerSecond));
+    }
+
+    /** Points {@link #view} at the IP packet inside the frame, or returns false if there is none. */
+    private boolean frame(ByteBuffer data, int offset, int length, int type) {
+        int ip = ipOffset(data, offset, length, type);
+        if (ip < 0 || ip >= offset + length) {
+            skipped++;
+            return false;
+        }
+        int version = (data.get(ip) >> 4) & 0xF;
+        if (version != 4 && version != 6) {
+            skipped++;
+            return false;
+        }
+        // Link and IP headers are in network order whatever the file's byte order
+        data.order(ByteOrder.BIG_ENDIAN).limit(offset + length).position(ip);
+        view = data;
+        return true;
+    }
+
+    // Absolute index of the IP header in a frame of the given link type, or -1
+    private static int ipOffset(ByteBuffer data, int offset, int length, int type) {
+        data.order(ByteOrder.BIG_ENDIAN);
+        switch (type) {
+            case PcapngWriter.LINKTYPE_RAW:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+            case DLT_RAW_BSD:
+            case DLT_RAW_OPENBSD:
+                return offset;
+            case LINKTYPE_NULL:
+            case LINKTYPE_LOOP:
+                return length > 4 ? offset + 4 : -1;
+            case LINKTYPE_ETHERNET: {
+                int header = 14;
+                if (length < header) {
+                    return -1;
+                }
+                int etherType = data.getShort(offset + 12) & 0xFFFF;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && length >= header + 4) {
+                    etherType = data.getShort(offset + header + 2) & 0xFFFF;
+                    header += 4;
+                }
+                return isIp(etherType) ? offset + header : -1;
+            }
+            case LINKTYPE_LINUX_SLL:
+                return length >= 16 && isIp(data.getShort(offset + 14) & 0xFFFF) ? offset + 16 : -1;
+            case LINKTYPE_LINUX_SLL2:
+                return length >= 20 && isIp(data.getShort(offset) & 0xFFFF) ? offset + 20 : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean isIp(int etherType) {
+        return etherType == ETHERTYPE_IPV4 || etherType == ETHERTYPE_IPV6;
+    }
+
+    /** The current packet, from its IP header in [position, limit). */
+    public ByteBuffer packet() {
+        return view;
+    }
+
+    /** Capture time of the current packet, in nanoseconds since the epoch. */
+    public long timestampNanos() {
+        return timestampNanos;
+    }
+
+    /** One of the DIRECTION_ constants. */
+    public int direction() {
+        return direction;
+    }
+
+    /** Length of the current packet on the wire, including anything not captured. */
+    public int originalLength() {
+        return originalLength;
+    }
+
+    public boolean isPcapng() {
+        return pcapng;
+    }
+
+    /** IP packets returned so far. */
+    public long packets() {
+        return packets;
+    }
+
+    /** Frames passed over because they were not IP or were malformed. */
+    public long skipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static void checkBlockLength(int length, int minimum) throws IOException {
+        if (length < minimum || length > MAX_BLOCK_BYTES) {
+            throw new IOException("Corrupt capture: block length " + length);
+        }
+    }
+
+    // Reads exactly n bytes into the reusable block buffer
+    private ByteBuffer fill(int n) throws IOException {
+        ByteBuffer b = fillOrEnd(n);
+        if (b == null) {
+            throw new EOFException("Capture ends mid-record");
+        }
+        return b;
+    }
+
+    // As fill, but null at a clean end of file
+    private ByteBuffer fillOrEnd(int n) throws IOException {
+        if (n > block.length) {
+            block = new byte[Integer.highestOneBit(n - 1) << 1];
+        }
+        int first = in.read(block, 0, n);
+        if (first < 0) {
+            return null;
+        }
+        if (first < n) {
+            readFully(block, first, n - first);
+        }
+        return ByteBuffer.wrap(block, 0, n).slice().order(order);
+    }
+
+    private void readFully(byte[] to, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(to, offset, length);
+            if (read < 0) {
+                throw new EOFException("Capture ends mid-record");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            long done = in.skip(n);
+            if (done <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Capture ends mid-block");
+                }
+                done = 1;
+            }
+            n -= done;
+        }
+    }
+}
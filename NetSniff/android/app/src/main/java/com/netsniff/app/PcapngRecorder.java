@@ -0,0 +1,199 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds captured packets to a {@link PcapngWriter} running on its own
+ * thread.
+ *
+ * {@link #offer} copies the packet, up to the snap length, into a pooled
+ * buffer and queues it. It never waits: if the writer is behind, for example
+ * because the disk has stalled, the packet is counted as dropped and capture
+ * carries on.
+ *
+ * Every producer has a ring per direction, so each ring has a single
+ * writer: a capture worker offers under its own index, and the writer
+ * thread takes from the rings in turn. The queued copies share one memory
+ * budget however many producers there are.
+ */
+public final class PcapngRecorder {
+    // Memory the queued copies may use, whatever the snap length
+    static final int QUEUE_BYTES = 8 << 20;
+    static final int MAX_QUEUED_PER_DIRECTION = 1024;
+    // Per queued copy: capture time in microseconds, original length, direction
+    private static final int FRAME_HEADER = 8 + 4 + 1;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final PcapngWriter writer;
+    private final PacketBufferPool pool;
+    // Outgoing then incoming, for each producer in turn
+    private final SpscRing<ByteBuffer>[] rings;
+    private final Thread thread;
+    private volatile boolean running;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param maxPacketSize the largest packet that will be offered; copies
+     *        are never longer than this or the writer's snap length
+     */
+    public PcapngRecorder(PcapngWriter writer, int maxPacketSize) {
+        this(writer, maxPacketSize, 1);
+    }
+
+    /**
+     * @param producers how many threads offer packets, each under its own
+     *        index below this
+     */
+    @SuppressWarnings("unchecked")
+    public PcapngRecorder(PcapngWriter writer, int maxPacketSize, int producers) {
+        if (producers < 1) {
+            throw new IllegalArgumentException("producers out of range: " + producers);
+        }
+        this.writer = writer;
+        int bufferSize = FRAME_HEADER + Math.min(writer.snapLength(), maxPacketSize);
+        int perRing = Math.max(16, Math.min(MAX_QUEUED_PER_DIRECTION, QUEUE_BYTES / bufferSize / (2 * producers)));
+        this.pool = new PacketBufferPool(bufferSize, 2 * producers * perRing);
+        SpscRing.DropHandler<ByteBuffer> release = new SpscRing.DropHandler<ByteBuffer>() {
+            @Override
+            public void onDrop(ByteBuffer buffer) {
+                dropped.incrementAndGet();
+                pool.release(buffer);
+            }
+        };
+        this.rings = new SpscRing[2 * producers];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new SpscRing<>(perRing, SpscRing.OverflowPolicy.DROP_NEWEST, release);
+        }
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "PcapngWriter");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Queues a copy of {@code length} bytes of {@code packet} starting at
+     * absolute index {@code offset}; the buffer's position is not used or
+     * changed. For a recorder with one producer: each direction must only be
+     * offered from one thread.
+     * @return false if it was dropped because the writer is behind or stopped
+     */
+    public boolean offer(ByteBuffer packet, int offset, int length, boolean isIncoming, long timestampMs) {
+        return offer(0, packet, offset, length, isIncoming, timestampMs);
+    }
+
+    /**
+     * As above, into the rings of {@code producer}. Each producer's
+     * directions must each only be offered from one thread.
+     */
+    public boolean offer(int producer, ByteBuffer packet, int offset, int length, boolean isIncoming,
+                         long timestampMs) {
+        offered.incrementAndGet();
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        ByteBuffer frame = pool.acquire();
+        if (frame == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int captured = Math.min(length, frame.capacity() - FRAME_HEADER);
+        frame.putLong(timestampMs * 1000)
+             .putInt(length)
+             .put((byte) (isIncoming ? 1 : 0));
+        if (packet.hasArray()) {
+            frame.put(packet.array(), packet.arrayOffset() + offset, captured);
+        } else {
+            ByteBuffer data = packet.duplicate();
+            data.limit(offset + captured).position(offset);
+            frame.put(data);
+        }
+        frame.flip();
+        // A full ring counts the drop and recycles the frame through the drop handler
+        return rings[2 * producer + (isIncoming ? 1 : 0)].offer(frame);
+    }
+
+    /**
+     * Stops taking packets, writes out what is queued and closes the file.
+     * Waits at most {@link #STOP_TIMEOUT_MS} for the writer thread.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        int next = 0;
+        while (true) {
+            // One frame from the next ring that has any, so no producer waits behind another
+            ByteBuffer frame = null;
+            for (int i = 0; i < rings.length && frame == null; i++) {
+                frame = rings[next].poll();
+                next = next + 1 == rings.length ? 0 : next + 1;
+            }
+            if (frame == null) {
+                if (!running) {
+                    break;
+                }
+                writer.flush();
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            long timestampUs = frame.getLong();
+            int original = frame.getInt();
+            boolean isIncoming = frame.get() != 0;
+            writer.writePacket(frame, original, timestampUs, isIncoming, timestampUs / 1000);
+            pool.release(frame);
+        }
+        writer.close();
+    }
+
+    public PcapngWriter writer() {
+        return writer;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long offered() {
+        return offered.get();
+    }
+
+    /** Packets not queued because the writer was behind or stopped. */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public int queued() {
+        int queued = 0;
+        for (SpscRing<ByteBuffer> ring : rings) {
+            queued += ring.size();
+        }
+        return queued;
+    }
+
+    @Override
+    public String toString() {
+        return "PcapngRecorder{offered=" + offered.get() + ", dropped=" + dropped.get() + ", queued=" + queued()
+                + ", " + writer + "}";
+    }
+}
@@ -0,0 +1,343 @@
+package com.netsniff.app;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes raw IP packets to PCAPNG files, starting a new file when the
+ * current one reaches {@code maxFileBytes} or is {@code maxFileAgeMs} old,
+ * and deleting the oldest once more than {@code maxFiles} exist.
+ *
+ * Each file is one section with a single raw-IP interface (LINKTYPE_RAW)
+ * and one Enhanced Packet Block per packet, carrying a microsecond
+ * timestamp and the packet's direction in epb_flags. Blocks are assembled
+ * in one reusable direct buffer and written with {@link FileChannel} when it
+ * fills up or on {@link #flush}.
+ *
+ * Not thread-safe: all calls come from one writer thread. The counters may
+ * be read from any thread.
+ */
+public final class PcapngWriter {
+    public static final String FILE_PREFIX = "capture-";
+    public static final String FILE_SUFFIX = ".pcapng";
+    public static final int MAX_SNAP_LENGTH = 65535;
+    public static final int BUFFER_BYTES = 256 * 1024;
+    // A single write slower than this counts as a disk stall
+    public static final long SLOW_WRITE_MS = 200;
+    // After a write error, wait this long before opening another file
+    static final long ERROR_BACKOFF_MS = 1000;
+
+    static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    static final int BLOCK_INTERFACE_DESCRIPTION = 1;
+    static final int BLOCK_ENHANCED_PACKET = 6;
+    static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    static final int LINKTYPE_RAW = 101;
+    static final int OPTION_END = 0;
+    static final int OPTION_SHB_USER_APPLICATION = 4;
+    static final int OPTION_IF_NAME = 2;
+    static final int OPTION_EPB_FLAGS = 2;
+    static final int EPB_FLAG_INBOUND = 1;
+    static final int EPB_FLAG_OUTBOUND = 2;
+    // Block type, length, interface, two timestamp words, two lengths, flags option, end option, trailing length
+    private static final int EPB_OVERHEAD = 4 * 7 + 8 + 4 + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String APPLICATION = "NetSniff";
+    private static final String INTERFACE = "tun0";
+
+    private final File directory;
+    private final int snapLength;
+    private final long maxFileBytes;
+    private final long maxFileAgeMs;
+    private final int maxFiles;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    // Files written by this writer, oldest first, including the current one
+    private final ArrayDeque<File> files = new ArrayDeque<>();
+
+    private FileOutputStream stream;
+    private FileChannel channel;
+    private File current;
+    private long currentBytes;
+    private long currentOpenedAtMs;
+    private long packetsInCurrent;
+    // Time of the latest call, for the error backoff
+    private long lastNowMs;
+    private long lastErrorAtMs = Long.MIN_VALUE / 2;
+    private int fileSequence;
+
+    private volatile long packetsWritten;
+    private volatile long packetsDropped;
+    private volatile long bytesWritten;
+    private volatile long filesStarted;
+    private volatile long filesDeleted;
+    private volatile long writeErrors;
+    private volatile long slowWrites;
+    private volatile long maxWriteMs;
+
+    public PcapngWriter(File directory, int snapLength, long maxFileBytes, long maxFileAgeMs, int maxFiles) {
+        if (snapLength < 1 || maxFileBytes < 1 || maxFileAgeMs < 1 || maxFiles < 1) {
+            throw new IllegalArgumentException("Invalid capture file limits: snap=" + snapLength + ", bytes="
+                    + maxFileBytes + ", ageMs=" + maxFileAgeMs + ", files=" + maxFiles);
+        }
+        this.directory = directory;
+        this.snapLength = Math.min(snapLength, MAX_SNAP_LENGTH);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileAgeMs = maxFileAgeMs;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Appends one packet, truncated to the snap length.
+     * @param packet the packet from position to limit; left unchanged
+     * @param originalLength length on the wire, which may exceed what {@code packet} holds
+     * @return false if it was dropped because no file could be written
+     */
+    public boolean writePacket(ByteBuffer packet, int originalLength, long timestampUs,
+                               boolean incoming, long nowMs) {
+        lastNowMs = nowMs;
+        int captured = Math.min(packet.remaining(), snapLength);
+        int blockLength = EPB_OVERHEAD + pad4(captured);
+        // Rotate, unless this would leave a file with no packets in it
+        if (current != null && packetsInCurrent > 0 && (nowMs - currentOpenedAtMs >= maxFileAgeMs
+                || currentBytes + buffer.position() + blockLength > maxFileBytes)) {
+            closeCurrent();
+        }
+        if (current == null && !openNext(nowMs)) {
+            packetsDropped++;
+            return false;
+        }
+        if (buffer.remaining() < blockLength && !flushBuffer()) {
+            packetsDropped++;
+            return false;
+        }
+
+        buffer.putInt(BLOCK_ENHANCED_PACKET)
+              .putInt(blockLength)
+              .putInt(0)
+              .putInt((int) (timestampUs >>> 32))
+              .putInt((int) timestampUs)
+              .putInt(captured)
+              .putInt(originalLength);
+        ByteBuffer data = packet.duplicate();
+        data.limit(data.position() + captured);
+        buffer.put(data);
+        for (int i = captured; i < pad4(captured); i++) {
+            buffer.put((byte) 0);
+        }
+        buffer.putShort((short) OPTION_EPB_FLAGS)
+              .putShort((short) 4)
+              .putInt(incoming ? EPB_FLAG_INBOUND : EPB_FLAG_OUTBOUND)
+              .putInt(OPTION_END)
+              .putInt(blockLength);
+        packetsInCurrent++;
+        packetsWritten++;
+        return true;
+    }
+
+    /** Writes out anything buffered, e.g. when the capture goes quiet. */
+    public void flush() {
+        if (current != null && buffer.position() > 0) {
+            flushBuffer();
+        }
+    }
+
+    /** Flushes and closes the current file; the next packet starts a new one. */
+    public void close() {
+        if (current != null) {
+            closeCurrent();
+        }
+    }
+
+    private boolean openNext(long nowMs) {
+        if (nowMs - lastErrorAtMs < ERROR_BACKOFF_MS) {
+            return false;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            writeErrors++;
+            lastErrorAtMs = nowMs;
+            return false;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+        File file = new File(directory, FILE_PREFIX + format.format(new Date(nowMs))
+                + String.format(Locale.US, "-%03d", fileSequence++ % 1000) + FILE_SUFFIX);
+        try {
+            stream = new FileOutputStream(file);
+        } catch (IOException e) {
+            writeErrors++;
+            lastErrorAtMs = nowMs;
+            return false;
+        }
+        channel = stream.getChannel();
+        current = file;
+        currentBytes = 0;
+        currentOpenedAtMs = nowMs;
+        packetsInCurrent = 0;
+        files.addLast(file);
+        filesStarted++;
+        while (files.size() > maxFiles) {
+            File oldest = files.removeFirst();
+            if (oldest.delete()) {
+                filesDeleted++;
+            }
+        }
+
+        buffer.clear();
+        writeHeaders();
+        return true;
+    }
+
+    private void writeHeaders() {
+        byte[] application = APPLICATION.getBytes(UTF_8);
+        int shbLength = 4 * 7 + optionLength(application.length) + 4;
+        buffer.putInt(BLOCK_SECTION_HEADER)
+              .putInt(shbLength)
+              .putInt(BYTE_ORDER_MAGIC)
+              .putShort((short) 1)
+              .putShort((short) 0)
+              // Section length unknown: we stream
+              .putLong(-1L);
+        putOption(OPTION_SHB_USER_APPLICATION, application);
+        buffer.putInt(OPTION_END).putInt(shbLength);
+
+        byte[] name = INTERFACE.getBytes(UTF_8);
+        int idbLength = 4 * 4 + optionLength(name.length) + 4 + 4;
+        buffer.putInt(BLOCK_INTERFACE_DESCRIPTION)
+              .putInt(idbLength)
+              .putShort((short) LINKTYPE_RAW)
+              .putShort((short) 0)
+              .putInt(snapLength);
+        putOption(OPTION_IF_NAME, name);
+        buffer.putInt(OPTION_END).putInt(idbLength);
+    }
+
+    private static int optionLength(int valueLength) {
+        return 4 + pad4(valueLength);
+    }
+
+    private void putOption(int code, byte[] value) {
+        buffer.putShort((short) code).putShort((short) value.length).put(value);
+        for (int i = value.length; i < pad4(value.length); i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static int pad4(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private boolean flushBuffer() {
+        buffer.flip();
+        long started = System.nanoTime();
+        try {
+            while (buffer.hasRemaining()) {
+                currentBytes += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            writeErrors++;
+            lastErrorAtMs = lastNowMs;
+            buffer.clear();
+            closeQuietly();
+            return false;
+        }
+        long elapsedMs = (System.nanoTime() - started) / 1_000_000;
+        if (elapsedMs >= SLOW_WRITE_MS) {
+            slowWrites++;
+        }
+        if (elapsedMs > maxWriteMs) {
+            maxWriteMs = elapsedMs;
+        }
+        bytesWritten += buffer.limit();
+        buffer.clear();
+        return true;
+    }
+
+    private void closeCurrent() {
+        if (buffer.position() > 0 && !flushBuffer()) {
+            return;
+        }
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            writeErrors++;
+        }
+        stream = null;
+        channel = null;
+        current = null;
+    }
+
+    /** Files written by this writer that still exist, oldest first. */
+    public List<File> files() {
+        List<File> result = new ArrayList<>();
+        for (File file : files) {
+            if (file.exists()) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /** The file being written, or null between files. */
+    public File currentFile() {
+        return current;
+    }
+
+    public int snapLength() {
+        return snapLength;
+    }
+
+    public long packetsWritten() {
+        return packetsWritten;
+    }
+
+    /** Packets lost because no file could be opened or written. */
+    public long packetsDropped() {
+        return packetsDropped;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    public long filesStarted() {
+        return filesStarted;
+    }
+
+    public long filesDeleted() {
+        return filesDeleted;
+    }
+
+    public long writeErrors() {
+        return writeErrors;
+    }
+
+    /** Writes that took at least {@link #SLOW_WRITE_MS}. */
+    public long slowWrites() {
+        return slowWrites;
+    }
+
+    public long maxWriteMs() {
+        return maxWriteMs;
+    }
+
+    @Override
+    public String toString() {
+        return "PcapngWriter{packets=" + packetsWritten + ", bytes=" + bytesWritten + ", files=" + filesStarted
+                + ", dropped=" + packetsDropped + ", errors=" + writeErrors + ", slowWrites=" + slowWrites
+                + ", maxWriteMs=" + maxWriteMs + "}";
+    }
+}
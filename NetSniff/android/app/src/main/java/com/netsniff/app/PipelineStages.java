@@ -0,0 +1,234 @@
+package com.netsniff.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The long-running stages of one VPN session, stopped together against a
+ * single deadline.
+ *
+ * Every stage knows what it blocks on and how to unblock it: the TUN reader
+ * its channel, the writer its ring, the network loop its selector. Stopping
+ * first signals every stage at once, so they wind down in parallel, then
+ * joins each one until the deadline. A stage that ignores its signal is
+ * interrupted halfway through the budget; one still running at the end is
+ * reported and left behind, as a daemon thread that cannot hold the process
+ * up. Nothing else in the process is touched.
+ */
+public final class PipelineStages {
+    /** One part of the pipeline that runs until told to stop. */
+    public interface Stage {
+        String name();
+
+        /** Asks the stage to finish, without waiting for it to. */
+        void signal();
+
+        /**
+         * Waits for the stage to finish, until {@code deadlineNanos} on the
+         * {@link System#nanoTime} clock at the latest.
+         * @return whether it has finished
+         */
+        boolean awaitUntil(long deadlineNanos) throws InterruptedException;
+
+        /** For a stage that has not finished after being signalled. */
+        void interrupt();
+    }
+
+    /**
+     * A stage run by a thread of its own; closing {@code wakeup} must make
+     * the body return. An exception thrown by the body ends the stage and is
+     * kept for the report instead of reaching the thread's uncaught handler.
+     */
+    public static final class ThreadStage implements Stage {
+        private final String name;
+        private final AutoCloseable wakeup;
+        private final Thread thread;
+        private volatile RuntimeException failure;
+
+        public ThreadStage(String name, final Runnable body, AutoCloseable wakeup) {
+            this.name = name;
+            this.wakeup = wakeup;
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        body.run();
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+            }, name);
+            this.thread.setDaemon(true);
+        }
+
+        public void start() {
+            thread.start();
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void signal() {
+            try {
+                wakeup.close();
+            } catch (Exception e) {
+                // The deadline and interrupt still bound how long the stage can take
+            }
+        }
+
+        @Override
+        public boolean awaitUntil(long deadlineNanos) throws InterruptedException {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining > 0) {
+                thread.join(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            }
+            return !thread.isAlive();
+        }
+
+        @Override
+        public void interrupt() {
+            thread.interrupt();
+        }
+
+        /** What ended the body, if it threw. */
+        public RuntimeException failure() {
+            return failure;
+        }
+    }
+
+    /** How long a stop took, overall and for each stage. */
+    public static final class Report {
+        private final String[] names;
+        // From the start of the stop until the stage had finished; -1 if it had not
+        private final long[] stoppedNanos;
+        private final boolean[] interrupted;
+        private final long totalNanos;
+
+        Report(String[] names, long[] stoppedNanos, boolean[] interrupted, long totalNanos) {
+            this.names = names;
+            this.stoppedNanos = stoppedNanos;
+            this.interrupted = interrupted;
+            this.totalNanos = totalNanos;
+        }
+
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        public int stages() {
+            return names.length;
+        }
+
+        public String name(int stage) {
+            return names[stage];
+        }
+
+        /** @return nanoseconds until the stage finished, or -1 if it was left running */
+        public long stoppedNanos(int stage) {
+            return stoppedNanos[stage];
+        }
+
+        /** Whether the stage had to be interrupted because its signal was not enough. */
+        public boolean interrupted(int stage) {
+            return interrupted[stage];
+        }
+
+        /** Whether every stage finished before the deadline. */
+        public boolean complete() {
+            for (long nanos : stoppedNanos) {
+                if (nanos < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(64 + names.length * 32);
+            sb.append(String.format(Locale.US, "stopped in %.2f ms", totalNanos / 1e6));
+            for (int i = 0; i < names.length; i++) {
+                sb.append(i == 0 ? ": " : ", ").append(names[i]);
+                if (stoppedNanos[i] < 0) {
+                    sb.append(" still running");
+                } else {
+                    sb.append(String.format(Locale.US, " %.2f ms", stoppedNanos[i] / 1e6));
+                }
+                if (interrupted[i]) {
+                    sb.append(" (interrupted)");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private boolean stopped;
+
+    /** Starts {@code body} on a thread of its own, as a stage that {@code wakeup} unblocks. */
+    public synchronized ThreadStage start(String name, Runnable body, AutoCloseable wakeup) {
+        ThreadStage stage = new ThreadStage(name, body, wakeup);
+        add(stage);
+        stage.start();
+        return stage;
+    }
+
+    /** Adds a stage that is already running. */
+    public synchronized void add(Stage stage) {
+        if (stopped) {
+            throw new IllegalStateException("Already stopped");
+        }
+        stages.add(stage);
+    }
+
+    /**
+     * Signals every stage, then waits for them in the order they were added,
+     * for at most {@code timeoutMs} altogether. Later calls return at once
+     * with an empty report.
+     */
+    public Report stop(long timeoutMs) {
+        List<Stage> toStop;
+        synchronized (this) {
+            toStop = stopped ? new ArrayList<Stage>() : new ArrayList<>(stages);
+            stopped = true;
+        }
+        long start = System.nanoTime();
+        long deadline = start + timeoutMs * 1_000_000L;
+        long interruptAt = start + timeoutMs * 500_000L;
+        int n = toStop.size();
+        String[] names = new String[n];
+        long[] stoppedNanos = new long[n];
+        boolean[] interrupted = new boolean[n];
+
+        for (Stage stage : toStop) {
+            stage.signal();
+        }
+        boolean wasInterrupted = false;
+        for (int i = 0; i < n; i++) {
+            Stage stage = toStop.get(i);
+            names[i] = stage.name();
+            boolean done = false;
+            try {
+                done = stage.awaitUntil(interruptAt);
+                if (!done) {
+                    stage.interrupt();
+                    interrupted[i] = true;
+                    done = stage.awaitUntil(deadline);
+                }
+            } catch (InterruptedException e) {
+                // Still give every stage its signal's worth of time, but no more waiting
+                wasInterrupted = true;
+                interruptAt = deadline = 0;
+            }
+            stoppedNanos[i] = done ? System.nanoTime() - start : -1;
+        }
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return new Report(names, stoppedNanos, interrupted, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,12 @@
+package com.netsniff.app;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attached to every key on the network selector, so one thread can multiplex
+ * channels belonging to different forwarders.
+ */
+public interface SelectionHandler {
+    void onSelected(SelectionKey key) throws IOException;
+}
@@ -0,0 +1,49 @@
+package com.netsniff.app;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets another thread wake a selector loop when it queues work for it,
+ * without paying for a {@link Selector#wakeup()} syscall on every packet.
+ *
+ * The selector thread announces that it is about to sleep; producers only
+ * call wakeup() if it has. The pending-work check after the announcement
+ * closes the race with a producer that queued just before it.
+ */
+public final class SelectorWakeup {
+    private final Selector selector;
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+
+    public SelectorWakeup(Selector selector) {
+        this.selector = selector;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /** Called by producers after queueing work for the selector thread. */
+    public void signal() {
+        if (sleeping.compareAndSet(true, false)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Selects, blocking for up to {@code timeoutMs} unless {@code pending}
+     * already has work. Called only by the selector thread.
+     */
+    public int select(SpscRing<?> pending, long timeoutMs) throws IOException {
+        sleeping.set(true);
+        try {
+            if (!pending.isEmpty()) {
+                return selector.selectNow();
+            }
+            return selector.select(timeoutMs);
+        } finally {
+            sleeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.netsniff.app;
+
+import java.net.DatagramSocket;
+import java.net.Socket;
+
+/**
+ * Keeps forwarder sockets out of the VPN so they do not loop back into the
+ * TUN. In the service this is {@code VpnService.protect()}; on the JVM it can
+ * simply return true.
+ */
+public interface SocketProtector {
+    boolean protect(DatagramSocket socket);
+
+    boolean protect(Socket socket);
+}
@@ -0,0 +1,311 @@
+package com.netsniff.app;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer.
+ *
+ * Replaces the unbounded ConcurrentLinkedQueues between the TUN and network
+ * threads: the capacity is rounded up to a power of two and fixed up front,
+ * offers never allocate, and the head and tail counters live on their own
+ * cache lines so the two threads do not false-share.
+ *
+ * {@link #offer(Object)} always takes ownership of the element. If the ring is
+ * full, the {@link OverflowPolicy} decides what happens, and any element the
+ * ring discards is passed to the {@link DropHandler} (e.g. to return it to a
+ * {@link PacketBufferPool}).
+ *
+ * The consumer can either poll() or wait in {@link #take(long, TimeUnit)},
+ * which parks until the producer's next offer, so neither side has to spin.
+ *
+ * Exactly one thread may call offer() and exactly one thread may call poll()/peek()/take().
+ */
+public final class SpscRing<E> extends SpscRingTailFields {
+
+    public enum OverflowPolicy {
+        /** Evict the oldest queued element to make room. */
+        DROP_OLDEST,
+        /** Reject the element being offered. */
+        DROP_NEWEST,
+        /** Park the producer until there is room or the ring is closed. */
+        BLOCK
+    }
+
+    /** Receives elements the ring discards so their owner can recycle them. */
+    public interface DropHandler<E> {
+        void onDrop(E element);
+    }
+
+    private static final long BLOCK_PARK_NANOS = 50_000L;
+
+    private static final AtomicLongFieldUpdater<SpscRingHeadFields> HEAD =
+            AtomicLongFieldUpdater.newUpdater(SpscRingHeadFields.class, "head");
+
+    private final Object[] slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final DropHandler<E> dropHandler;
+
+    private volatile boolean closed;
+    private volatile Thread blockedProducer;
+    private volatile Thread waitingConsumer;
+
+    // Producer-side statistics; single writer, so plain increments on volatiles are safe
+    private volatile long offered;
+    private volatile long dropped;
+    private volatile int highWaterMark;
+
+    public SpscRing(int capacity, OverflowPolicy policy, DropHandler<E> dropHandler) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Object[size];
+        this.mask = size - 1;
+        this.policy = policy;
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * Enqueues {@code element}. Ownership passes to the ring either way.
+     * @return true if the element was queued, false if it was dropped
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+        offered++;
+        long t = tail;
+        while (t - headCache >= slots.length) {
+            headCache = head;
+            if (t - headCache < slots.length) {
+                break;
+            }
+            if (closed) {
+                drop(element);
+                return false;
+            }
+            switch (policy) {
+                case DROP_NEWEST:
+                    drop(element);
+                    return false;
+                case DROP_OLDEST:
+                    evictOldest();
+                    break;
+                case BLOCK:
+                    if (Thread.currentThread().isInterrupted()) {
+                        drop(element);
+                        return false;
+                    }
+                    blockedProducer = Thread.currentThread();
+                    if (head == headCache && !closed) {
+                        LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                    }
+                    blockedProducer = null;
+                    break;
+            }
+        }
+        slots[(int) t & mask] = element;
+        // A full volatile store, so the waitingConsumer read below cannot move ahead of it
+        tail = t + 1;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+
+        int occupancy = (int) (t + 1 - headCache);
+        if (occupancy > highWaterMark) {
+            highWaterMark = occupancy;
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest element, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long h = head;
+            if (h >= tailCache) {
+                tailCache = tail;
+                if (h >= tailCache) {
+                    return null;
+                }
+            }
+            int index = (int) h & mask;
+            E element = (E) slots[index];
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                // The producer may evict concurrently, so claim the slot with a CAS.
+                // The slot is not cleared: once head moves the producer may already
+                // be writing a new element into it.
+                if (HEAD.compareAndSet(this, h, h + 1)) {
+                    return element;
+                }
+            } else {
+                slots[index] = null;
+                HEAD.lazySet(this, h + 1);
+                Thread producer = blockedProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return element;
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element without removing it, or null if the ring is
+     *         empty. Not for {@link OverflowPolicy#DROP_OLDEST} rings, whose
+     *         producer may evict that element at any time.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head;
+        if (h >= tailCache) {
+            tailCache = tail;
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+        return (E) slots[(int) h & mask];
+    }
+
+    /**
+     * Waits up to {@code timeout} for an element, parking instead of spinning.
+     * @return the oldest element, or null on timeout, interrupt or {@link #close()}
+     */
+    public E take(long timeout, TimeUnit unit) {
+        E element = poll();
+        if (element != null) {
+            return element;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                // Re-check after publishing waitingConsumer so an offer in between is not missed
+                element = poll();
+                if (element != null || closed || Thread.currentThread().isInterrupted()) {
+                    return element;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void evictOldest() {
+        long h = head;
+        E oldest = (E) slots[(int) h & mask];
+        if (HEAD.compareAndSet(this, h, h + 1)) {
+            headCache = h + 1;
+            drop(oldest);
+        }
+    }
+
+    private void drop(E element) {
+        dropped++;
+        if (dropHandler != null) {
+            dropHandler.onDrop(element);
+        }
+    }
+
+    /**
+     * Wakes a producer blocked in {@link #offer(Object)} and a consumer waiting in
+     * {@link #take(long, TimeUnit)}; further offers are dropped once the ring is
+     * full instead of blocking.
+     */
+    public void close() {
+        closed = true;
+        Thread producer = blockedProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /** Current number of queued elements; exact only when both sides are quiescent. */
+    public int size() {
+        long size = tail - head;
+        return size < 0 ? 0 : (int) Math.min(size, slots.length);
+    }
+
+    public boolean isEmpty() {
+        return tail == head;
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    /** Total number of elements passed to offer(). */
+    public long offered() {
+        return offered;
+    }
+
+    /** Elements discarded because the ring was full or closed. */
+    public long dropped() {
+        return dropped;
+    }
+
+    /** Largest occupancy observed by the producer. */
+    public int highWaterMark() {
+        return highWaterMark;
+    }
+
+    @Override
+    public String toString() {
+        return "SpscRing{capacity=" + slots.length + ", size=" + size() + ", policy=" + policy
+                + ", offered=" + offered + ", dropped=" + dropped + ", highWaterMark=" + highWaterMark + "}";
+    }
+}
+
+// The class hierarchy below pads the consumer-owned and producer-owned counters
+// onto separate cache lines. Superclass fields are laid out first, so each
+// block of seven longs sits between the hot fields.
+
+abstract class SpscRingPad0 {
+    long p00, p01, p02, p03, p04, p05, p06;
+}
+
+abstract class SpscRingHeadFields extends SpscRingPad0 {
+    // Next index to read; written by the consumer (and by the producer under DROP_OLDEST)
+    volatile long head;
+    // Consumer's cached copy of tail
+    long tailCache;
+}
+
+abstract class SpscRingPad1 extends SpscRingHeadFields {
+    long p10, p11, p12, p13, p14, p15, p16;
+}
+
+abstract class SpscRingTailFields extends SpscRingPad1 {
+    // Next index to write; written only by the producer
+    volatile long tail;
+    // Producer's cached copy of head
+    long headCache;
+    long p20, p21, p22, p23, p24, p25;
+}
@@ -0,0 +1,806 @@
+package com.netsniff.app;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Userspace TCP termination between the TUN and the real network.
+ *
+ * Connections from the device are terminated here: a SYN opens a protected,
+ * non-blocking {@link SocketChannel} to the real destination, and the SYN-ACK
+ * is only sent once that connect succeeds (a refused connect becomes a RST).
+ * After that, payload is relayed in both directions:
+ *
+ * - device to upstream: in-order segments are written straight to the socket
+ *   and whatever it does not take is buffered. The free space in that buffer
+ *   is the window we advertise, so a slow server pushes back on the device.
+ *   ACKs are coalesced: one per connection per batch of device packets, sent
+ *   from {@link #flushAcks()}, unless something needs acknowledging right away.
+ * - upstream to device: bytes read from the socket are kept until the device
+ *   acknowledges them and are cut into MSS-sized segments within the window
+ *   the device advertises. Unacknowledged data is resent go-back-N style when
+ *   the retransmission timer fires, so packets dropped by a full ring recover.
+ *
+ * FINs are relayed as half-closes, RSTs tear both sides down, and every
+ * connection sits on a {@link TimerWheel} for retransmission, connect and
+ * idle timeouts.
+ *
+ * Everything runs on the selector thread; nothing here is thread-safe.
+ */
+public final class TcpProxy {
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60_000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 512;
+
+    // Device bytes waiting for the upstream socket; this bounds the window we advertise
+    static final int RECEIVE_BUFFER_SIZE = 16 * 1024;
+    // Upstream bytes not yet acknowledged by the device
+    static final int SEND_BUFFER_SIZE = 32 * 1024;
+
+    private static final int TCP_HEADER = 20;
+    private static final int MSS_OPTION_LENGTH = 4;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_NOP = 1;
+    private static final int OPTION_MSS = 2;
+    // RFC 879 / RFC 2460 defaults when the SYN carries no MSS option
+    private static final int DEFAULT_MSS_V4 = 536;
+    private static final int DEFAULT_MSS_V6 = 1220;
+    private static final int MAX_WINDOW = 0xFFFF;
+
+    // The device is on the other end of a local TUN, so losses are ring drops, not congestion
+    static final long RETRANSMIT_TIMEOUT_MS = 400;
+    private static final int MAX_BACKOFF_SHIFT = 5;
+    private static final int MAX_RETRANSMITS = 8;
+    private static final long CONNECT_TIMEOUT_MS = 10_000;
+    private static final int WHEEL_SLOTS = 256;
+    private static final long WHEEL_TICK_MS = 50;
+
+    private enum State {
+        /** Upstream connect in progress; the device's SYN is not answered yet. */
+        CONNECTING,
+        /** SYN-ACK sent to the device, waiting for its ACK. */
+        SYN_RECEIVED,
+        ESTABLISHED,
+        CLOSED
+    }
+
+    private final Selector selector;
+    private final SocketProtector protector;
+    private final PacketBufferPool pool;
+    private final SpscRing<ByteBuffer> toDevice;
+    private final PacketSink capture;
+    private final long idleTimeoutMs;
+    private final int maxConnections;
+
+    private final Map<FlowKey, Connection> connections = new HashMap<>();
+    private final FlowKey probe = new FlowKey();
+    private final TimerWheel timers;
+    private final TimerWheel.Handler timeout = this::onTimer;
+    private final List<Connection> pendingAcks = new ArrayList<>();
+    private final Random random = new Random();
+    private int nextIpId;
+    // Time of the last call from the network loop
+    private long nowMs;
+
+    private long connectionsOpened;
+    private long connectionsClosed;
+    private long connectionsReset;
+    private long segmentsFromDevice;
+    private long segmentsToDevice;
+    private long bytesToUpstream;
+    private long bytesToDevice;
+    private long retransmits;
+    private long dropped;
+
+    public TcpProxy(Selector selector, SocketProtector protector, PacketBufferPool pool,
+                    SpscRing<ByteBuffer> toDevice, PacketSink capture, long nowMs) {
+        this(selector, protector, pool, toDevice, capture, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_MAX_CONNECTIONS, nowMs);
+    }
+
+    public TcpProxy(Selector selector, SocketProtector protector, PacketBufferPool pool,
+                    SpscRing<ByteBuffer> toDevice, PacketSink capture,
+                    long idleTimeoutMs, int maxConnections, long nowMs) {
+        this.selector = selector;
+        this.protector = protector;
+        this.pool = pool;
+        this.toDevice = toDevice;
+        this.capture = capture;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxConnections = maxConnections;
+        this.timers = new TimerWheel(WHEEL_SLOTS, WHEEL_TICK_MS, nowMs);
+        this.nowMs = nowMs;
+    }
+
+    /**
+     * Handles a TCP segment read from the TUN. {@code view} must already wrap
+     * the packet. The packet's position and limit may be changed; the caller
+     * still owns it and releases it afterwards.
+     */
+    public void handleDevicePacket(PacketView view, long nowMs) {
+        this.nowMs = nowMs;
+        if (view.protocol() != PacketView.PROTO_TCP || !view.hasPorts()) {
+            dropped++;
+            return;
+        }
+        segmentsFromDevice++;
+        ByteBuffer packet = view.buffer();
+        int l4 = view.transportOffset();
+        int flags = view.tcpFlags();
+        int seq = packet.getInt(l4 + 4);
+        int ack = packet.getInt(l4 + 8);
+        int window = packet.getShort(l4 + 14) & 0xFFFF;
+
+        probe.set(view);
+        Connection connection = connections.get(probe);
+        if (connection == null) {
+            if ((flags & (PacketView.TCP_SYN | PacketView.TCP_ACK | PacketView.TCP_RST)) == PacketView.TCP_SYN) {
+                open(view, seq, window, nowMs);
+            } else if ((flags & PacketView.TCP_RST) == 0) {
+                resetUnknown(view, flags, seq, ack);
+            }
+            return;
+        }
+        connection.lastActive = nowMs;
+        connection.onSegment(view, flags, seq, ack, window);
+    }
+
+    /** Sends the ACKs coalesced while handling the last batch of device packets. */
+    public void flushAcks() {
+        for (int i = 0; i < pendingAcks.size(); i++) {
+            Connection connection = pendingAcks.get(i);
+            if (connection.ackPending && connection.state != State.CLOSED) {
+                connection.sendAck();
+            }
+        }
+        pendingAcks.clear();
+    }
+
+    /** Runs retransmission, connect and idle timers that are due. */
+    public void expire(long nowMs) {
+        this.nowMs = nowMs;
+        timers.advance(nowMs, timeout);
+    }
+
+    private long onTimer(TimerWheel.Entry entry, long now) {
+        Connection connection = (Connection) entry;
+        if (connection.retransmitAt != 0 && now >= connection.retransmitAt) {
+            connection.onRetransmitTimeout();
+        }
+        if (connection.state == State.CLOSED) {
+            return now;
+        }
+        if (now - connection.lastActive >= idleTimeoutMs) {
+            connection.abort();
+            return now;
+        }
+        long next = connection.lastActive + idleTimeoutMs;
+        if (connection.retransmitAt != 0) {
+            next = Math.min(next, connection.retransmitAt);
+        }
+        return next;
+    }
+
+    private void open(PacketView view, int seq, int window, long now) {
+        if (connections.size() >= maxConnections) {
+            dropped++;
+            resetUnknown(view, PacketView.TCP_SYN, seq, 0);
+            return;
+        }
+        SocketChannel channel = null;
+        Connection connection = null;
+        try {
+            channel = SocketChannel.open();
+            if (!protector.protect(channel.socket())) {
+                throw new IOException("protect failed");
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            connection = new Connection(probe.copy(), channel, view, seq, window);
+            connection.lastActive = now;
+            connection.selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            connections.put(connection.key, connection);
+            connectionsOpened++;
+
+            InetAddress address = InetAddress.getByAddress(connection.remoteAddress);
+            if (channel.connect(new InetSocketAddress(address, connection.remotePort))) {
+                connection.onConnected();
+            } else {
+                connection.retransmitAt = now + CONNECT_TIMEOUT_MS;
+            }
+            connection.armTimer(connection.retransmitAt != 0 ? connection.retransmitAt : now + idleTimeoutMs);
+        } catch (IOException e) {
+            // e.g. connection refused straight away; the device sees a RST either way
+            if (connection != null) {
+                connection.abort();
+            } else {
+                closeQuietly(channel);
+                resetUnknown(view, PacketView.TCP_SYN, seq, 0);
+            }
+        }
+    }
+
+    /** Answers a segment that matches no connection with a RST (RFC 793, "reset generation"). */
+    private void resetUnknown(PacketView view, int flags, int seq, int ack) {
+        byte[] device = PacketHeaders.copyAddress(view, view.sourceAddressOffset());
+        byte[] remote = PacketHeaders.copyAddress(view, view.destinationAddressOffset());
+        if ((flags & PacketView.TCP_ACK) != 0) {
+            emit(view.isIpv6(), remote, device, view.destinationPort(), view.sourcePort(),
+                    ack, 0, PacketView.TCP_RST, 0, null, 0, 0, 0);
+        } else {
+            int length = view.payloadLength()
+                    + ((flags & PacketView.TCP_SYN) != 0 ? 1 : 0)
+                    + ((flags & PacketView.TCP_FIN) != 0 ? 1 : 0);
+            emit(view.isIpv6(), remote, device, view.destinationPort(), view.sourcePort(),
+                    0, seq + length, PacketView.TCP_RST | PacketView.TCP_ACK, 0, null, 0, 0, 0);
+        }
+        connectionsReset++;
+    }
+
+    /**
+     * Builds one segment for the device in a pooled buffer and queues it for the
+     * TUN writer. {@code mss} > 0 adds an MSS option (SYN-ACK only).
+     * @return false if no buffer was available
+     */
+    private boolean emit(boolean ipv6, byte[] source, byte[] destination, int sourcePort, int destinationPort,
+                         int seq, int ack, int flags, int window,
+                         byte[] data, int dataOffset, int length, int mss) {
+        ByteBuffer packet = pool.acquire();
+        if (packet == null) {
+            dropped++;
+            return false;
+        }
+        int headerLength = TCP_HEADER + (mss > 0 ? MSS_OPTION_LENGTH : 0);
+        int tcpLength = headerLength + length;
+        packet.clear();
+        int l4 = PacketHeaders.writeIp(packet, ipv6, source, destination, PacketView.PROTO_TCP, tcpLength, nextIpId++);
+        packet.putShort(l4, (short) sourcePort);
+        packet.putShort(l4 + 2, (short) destinationPort);
+        packet.putInt(l4 + 4, seq);
+        packet.putInt(l4 + 8, ack);
+        packet.put(l4 + 12, (byte) ((headerLength / 4) << 4));
+        packet.put(l4 + 13, (byte) flags);
+        packet.putShort(l4 + 14, (short) window);
+        packet.putShort(l4 + 16, (short) 0);
+        packet.putShort(l4 + 18, (short) 0);
+        if (mss > 0) {
+            packet.put(l4 + 20, (byte) OPTION_MSS);
+            packet.put(l4 + 21, (byte) MSS_OPTION_LENGTH);
+            packet.putShort(l4 + 22, (short) mss);
+        }
+        if (length > 0) {
+            packet.position(l4 + headerLength);
+            packet.put(data, dataOffset, length);
+        }
+        packet.putShort(l4 + 16, (short) Checksums.transport(packet, 0, l4, tcpLength, PacketView.PROTO_TCP));
+        packet.position(0);
+        packet.limit(l4 + tcpLength);
+
+        segmentsToDevice++;
+        capture.onPacket(packet);
+        // Ownership passes to the TUN writer; a drop here is recovered by retransmission
+        toDevice.offer(packet);
+        return true;
+    }
+
+    /** Largest segment that fits in one pool buffer. */
+    private int localMss(boolean ipv6) {
+        return pool.bufferSize() - PacketHeaders.ipHeaderLength(ipv6) - TCP_HEADER;
+    }
+
+    /** MSS option from a SYN, or the protocol default if it has none. */
+    private static int parseMss(PacketView view) {
+        ByteBuffer packet = view.buffer();
+        int index = view.transportOffset() + TCP_HEADER;
+        int end = view.payloadOffset();
+        while (index < end) {
+            int kind = packet.get(index) & 0xFF;
+            if (kind == OPTION_END) {
+                break;
+            }
+            if (kind == OPTION_NOP) {
+                index++;
+                continue;
+            }
+            if (index + 1 >= end) {
+                break;
+            }
+            int length = packet.get(index + 1) & 0xFF;
+            if (length < 2) {
+                break;
+            }
+            if (kind == OPTION_MSS && length == MSS_OPTION_LENGTH && index + 4 <= end) {
+                return packet.getShort(index + 2) & 0xFFFF;
+            }
+            index += length;
+        }
+        return view.isIpv6() ? DEFAULT_MSS_V6 : DEFAULT_MSS_V4;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Closes every upstream socket without notifying the device; used at shutdown. */
+    public void closeAll() {
+        Connection[] open = connections.values().toArray(new Connection[0]);
+        for (Connection connection : open) {
+            connection.close();
+        }
+        pendingAcks.clear();
+    }
+
+    public int activeConnections() {
+        return connections.size();
+    }
+
+    public long connectionsOpened() {
+        return connectionsOpened;
+    }
+
+    public long connectionsClosed() {
+        return connectionsClosed;
+    }
+
+    /** Connections torn down with a RST in either direction, plus RSTs for unknown segments. */
+    public long connectionsReset() {
+        return connectionsReset;
+    }
+
+    public long segmentsFromDevice() {
+        return segmentsFromDevice;
+    }
+
+    public long segmentsToDevice() {
+        return segmentsToDevice;
+    }
+
+    public long bytesToUpstream() {
+        return bytesToUpstream;
+    }
+
+    public long bytesToDevice() {
+        return bytesToDevice;
+    }
+
+    public long retransmits() {
+        return retransmits;
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "TcpProxy{connections=" + connections.size() + ", opened=" + connectionsOpened
+                + ", closed=" + connectionsClosed + ", reset=" + connectionsReset
+                + ", bytesToUpstream=" + bytesToUpstream + ", bytesToDevice=" + bytesToDevice
+                + ", retransmits=" + retransmits + ", dropped=" + dropped + "}";
+    }
+
+    private final class Connection extends TimerWheel.Entry implements SelectionHandler {
+        final FlowKey key;
+        final SocketChannel channel;
+        SelectionKey selectionKey;
+        State state = State.CONNECTING;
+
+        final boolean ipv6;
+        final byte[] deviceAddress;
+        final byte[] remoteAddress;
+        final int devicePort;
+        final int remotePort;
+        final int mss;
+
+        // Device -> upstream. receiveNext is the next sequence number expected from the device.
+        int receiveNext;
+        final ByteBuffer toUpstream = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        int lastAdvertisedWindow;
+        boolean finReceived;
+        boolean upstreamOutputShut;
+        boolean ackPending;
+
+        // Upstream -> device. fromUpstream holds [sendUnacked, ...): the first
+        // dataInFlight() bytes are sent, the rest is waiting for window.
+        final int initialSequence;
+        int sendUnacked;
+        int sendNext;
+        int sendWindow;
+        final ByteBuffer fromUpstream = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+        boolean upstreamEof;
+        boolean finSent;
+        boolean finAcked;
+
+        long lastActive;
+        // 0 when nothing is waiting for an ACK
+        long retransmitAt;
+        int retransmitCount;
+
+        Connection(FlowKey key, SocketChannel channel, PacketView view, int seq, int window) {
+            this.key = key;
+            this.channel = channel;
+            this.ipv6 = view.isIpv6();
+            this.deviceAddress = PacketHeaders.copyAddress(view, view.sourceAddressOffset());
+            this.remoteAddress = PacketHeaders.copyAddress(view, view.destinationAddressOffset());
+            this.devicePort = view.sourcePort();
+            this.remotePort = view.destinationPort();
+            this.mss = Math.min(parseMss(view), localMss(ipv6));
+            this.receiveNext = seq + 1;
+            this.sendWindow = window;
+            this.initialSequence = random.nextInt();
+            this.sendUnacked = initialSequence;
+            this.sendNext = initialSequence;
+        }
+
+        void onConnected() {
+            state = State.SYN_RECEIVED;
+            retransmitAt = 0;
+            sendSynAck();
+            updateInterest();
+        }
+
+        void onSegment(PacketView view, int flags, int seq, int ack, int window) {
+            if ((flags & PacketView.TCP_RST) != 0) {
+                connectionsReset++;
+                close();
+                return;
+            }
+            switch (state) {
+                case CONNECTING:
+                    // A retransmitted SYN; it is answered once the upstream connect completes
+                    return;
+                case SYN_RECEIVED:
+                    if ((flags & PacketView.TCP_SYN) != 0) {
+                        // Our SYN-ACK was probably lost
+                        sendSynAck();
+                        return;
+                    }
+                    if ((flags & PacketView.TCP_ACK) == 0 || ack != initialSequence + 1) {
+                        return;
+                    }
+                    state = State.ESTABLISHED;
+                    sendUnacked = ack;
+                    retransmitAt = 0;
+                    retransmitCount = 0;
+                    break;
+                case ESTABLISHED:
+                    if ((flags & PacketView.TCP_SYN) != 0) {
+                        sendAck();
+                        return;
+                    }
+                    break;
+                default:
+                    return;
+            }
+
+            if ((flags & PacketView.TCP_ACK) != 0) {
+                onAck(ack, window);
+            }
+            int length = view.payloadLength();
+            boolean fin = (flags & PacketView.TCP_FIN) != 0;
+            if (length > 0 || fin) {
+                receive(view, seq, length, fin);
+            }
+            if (state == State.CLOSED) {
+                return;
+            }
+            pushToDevice();
+            updateInterest();
+            closeIfDone();
+        }
+
+        private void onAck(int ack, int window) {
+            int acked = ack - sendUnacked;
+            if (acked > 0 && acked <= sendNext - sendUnacked) {
+                int dataAcked = acked;
+                if (finSent && !finAcked && ack == sendNext) {
+                    finAcked = true;
+                    dataAcked--;
+                }
+                if (dataAcked > 0) {
+                    fromUpstream.flip();
+                    fromUpstream.position(dataAcked);
+                    fromUpstream.compact();
+                }
+                sendUnacked = ack;
+                retransmitCount = 0;
+                retransmitAt = 0;
+            } else if (window == 0) {
+                // The device is alive but not reading; keep probing without giving up
+                retransmitCount = Math.min(retransmitCount, MAX_BACKOFF_SHIFT);
+            }
+            sendWindow = window;
+        }
+
+        private void receive(PacketView view, int seq, int length, boolean fin) {
+            if (finReceived) {
+                // Retransmission of something we already have
+                sendAck();
+                return;
+            }
+            int skip = receiveNext - seq;
+            if (skip < 0 || skip > length) {
+                // Out of order or entirely old; a duplicate ACK tells the device where we are
+                sendAck();
+                return;
+            }
+            int available = length - skip;
+            int accepted = Math.min(available, toUpstream.remaining());
+            if (accepted > 0) {
+                ByteBuffer packet = view.buffer();
+                int start = view.payloadOffset() + skip;
+                packet.limit(start + accepted);
+                packet.position(start);
+                if (toUpstream.position() == 0) {
+                    try {
+                        channel.write(packet);
+                    } catch (IOException e) {
+                        abort();
+                        return;
+                    }
+                }
+                // Whatever the socket did not take waits for OP_WRITE
+                toUpstream.put(packet);
+                receiveNext += accepted;
+                bytesToUpstream += accepted;
+            }
+            if (fin && accepted == available) {
+                receiveNext++;
+                finReceived = true;
+                if (toUpstream.position() == 0) {
+                    shutdownUpstreamOutput();
+                }
+                sendAck();
+            } else if (accepted < available) {
+                // Window full; tell the device straight away
+                sendAck();
+            } else {
+                scheduleAck();
+            }
+        }
+
+        private void scheduleAck() {
+            if (!ackPending) {
+                ackPending = true;
+                pendingAcks.add(this);
+            }
+        }
+
+        void sendAck() {
+            send(PacketView.TCP_ACK, sendNext, 0, 0);
+        }
+
+        private void sendSynAck() {
+            int window = advertisedWindow();
+            if (emit(ipv6, remoteAddress, deviceAddress, remotePort, devicePort,
+                    initialSequence, receiveNext, PacketView.TCP_SYN | PacketView.TCP_ACK, window,
+                    null, 0, 0, localMss(ipv6))) {
+                lastAdvertisedWindow = window;
+            }
+            sendNext = initialSequence + 1;
+            armRetransmit();
+        }
+
+        /** Sends a segment from this connection, piggybacking the current ACK and window. */
+        private boolean send(int flags, int seq, int dataOffset, int length) {
+            int window = advertisedWindow();
+            if (!emit(ipv6, remoteAddress, deviceAddress, remotePort, devicePort,
+                    seq, receiveNext, flags, window, fromUpstream.array(), dataOffset, length, 0)) {
+                return false;
+            }
+            lastAdvertisedWindow = window;
+            ackPending = false;
+            return true;
+        }
+
+        private int advertisedWindow() {
+            return Math.min(toUpstream.remaining(), MAX_WINDOW);
+        }
+
+        private int dataInFlight() {
+            return sendNext - sendUnacked - (finSent && !finAcked ? 1 : 0);
+        }
+
+        /** Sends as much buffered upstream data as the device's window allows, then FIN once drained. */
+        private void pushToDevice() {
+            if (state != State.ESTABLISHED) {
+                return;
+            }
+            while (!finSent) {
+                int inFlight = dataInFlight();
+                int unsent = fromUpstream.position() - inFlight;
+                int length = Math.min(unsent, Math.min(mss, sendWindow - inFlight));
+                if (length <= 0) {
+                    break;
+                }
+                int flags = PacketView.TCP_ACK | (length == unsent ? PacketView.TCP_PSH : 0);
+                if (!send(flags, sendNext, inFlight, length)) {
+                    break;
+                }
+                sendNext += length;
+                bytesToDevice += length;
+            }
+            if (upstreamEof && !finSent && dataInFlight() == fromUpstream.position()) {
+                if (send(PacketView.TCP_FIN | PacketView.TCP_ACK, sendNext, 0, 0)) {
+                    finSent = true;
+                    sendNext++;
+                }
+            }
+            boolean unsentData = fromUpstream.position() > dataInFlight();
+            if (sendNext != sendUnacked || unsentData) {
+                // Covers both retransmission and probing a zero window
+                armRetransmit();
+            }
+        }
+
+        private void armRetransmit() {
+            if (retransmitAt == 0) {
+                retransmitAt = nowMs + (RETRANSMIT_TIMEOUT_MS << Math.min(retransmitCount, MAX_BACKOFF_SHIFT));
+                armTimer(retransmitAt);
+            }
+        }
+
+        void armTimer(long deadline) {
+            if (!isScheduled() || deadline < this.deadline) {
+                timers.schedule(this, deadline);
+            }
+        }
+
+        void onRetransmitTimeout() {
+            retransmitAt = 0;
+            if (state == State.CONNECTING) {
+                // Upstream never answered
+                abort();
+                return;
+            }
+            if (++retransmitCount > MAX_RETRANSMITS) {
+                abort();
+                return;
+            }
+            retransmits++;
+            if (state == State.SYN_RECEIVED) {
+                sendSynAck();
+                return;
+            }
+            // Go back to the first unacknowledged byte
+            sendNext = sendUnacked;
+            if (finSent && !finAcked) {
+                finSent = false;
+            }
+            if (sendWindow == 0 && fromUpstream.position() > 0) {
+                // Zero-window probe: one byte past the window
+                sendWindow = 1;
+            }
+            pushToDevice();
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) {
+            if (!key.isValid() || state == State.CLOSED) {
+                return;
+            }
+            lastActive = nowMs;
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        onConnected();
+                    }
+                    return;
+                }
+                if (key.isWritable()) {
+                    flushToUpstream();
+                }
+                if (key.isReadable()) {
+                    readFromUpstream();
+                }
+            } catch (IOException e) {
+                abort();
+                return;
+            }
+            if (state != State.CLOSED) {
+                updateInterest();
+                closeIfDone();
+            }
+        }
+
+        private void flushToUpstream() throws IOException {
+            toUpstream.flip();
+            channel.write(toUpstream);
+            toUpstream.compact();
+            if (toUpstream.position() == 0 && finReceived) {
+                shutdownUpstreamOutput();
+            }
+            // Window update once a full segment fits again after we advertised less
+            if (lastAdvertisedWindow < mss && advertisedWindow() >= mss) {
+                sendAck();
+            }
+        }
+
+        private void readFromUpstream() throws IOException {
+            if (!fromUpstream.hasRemaining()) {
+                return;
+            }
+            if (channel.read(fromUpstream) < 0) {
+                upstreamEof = true;
+            }
+            pushToDevice();
+        }
+
+        private void shutdownUpstreamOutput() {
+            if (upstreamOutputShut) {
+                return;
+            }
+            upstreamOutputShut = true;
+            try {
+                // Socket rather than SocketChannel.shutdownOutput(), which needs API 24
+                channel.socket().shutdownOutput();
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        private void updateInterest() {
+            if (state == State.CLOSED || !selectionKey.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (state == State.CONNECTING) {
+                ops = SelectionKey.OP_CONNECT;
+            } else {
+                // Stop reading while the device has not acknowledged enough data
+                if (state == State.ESTABLISHED && !upstreamEof && fromUpstream.hasRemaining()) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (toUpstream.position() > 0) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            if (selectionKey.interestOps() != ops) {
+                selectionKey.interestOps(ops);
+            }
+        }
+
+        private void closeIfDone() {
+            if (finReceived && upstreamOutputShut && finAcked) {
+                connectionsClosed++;
+                close();
+            }
+        }
+
+        /** Resets the device side and drops the upstream socket. */
+        void abort() {
+            if (state == State.CLOSED) {
+                return;
+            }
+            emit(ipv6, remoteAddress, deviceAddress, remotePort, devicePort,
+                    sendNext, receiveNext, PacketView.TCP_RST | PacketView.TCP_ACK, 0, null, 0, 0, 0);
+            connectionsReset++;
+            close();
+        }
+
+        void close() {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+            ackPending = false;
+            connections.remove(key);
+            timers.cancel(this);
+            closeQuietly(channel);
+        }
+    }
+}
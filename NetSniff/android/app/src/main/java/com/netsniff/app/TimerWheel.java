@@ -0,0 +1,113 @@
+package com.netsniff.app;
+
+/**
+ * Hashed timing wheel for idle-flow expiry.
+ *
+ * Entries are linked intrusively into their slot, so scheduling allocates
+ * nothing. Activity on a flow should only bump the flow's own timestamp; when
+ * its slot comes round, the {@link Handler} decides whether the entry really
+ * expired or returns a later deadline to reschedule it. This keeps the per-packet
+ * cost at a single field write.
+ *
+ * Not thread-safe; owned by the selector thread.
+ */
+public final class TimerWheel {
+
+    /** Base class for anything kept on the wheel. */
+    public static class Entry {
+        Entry prev;
+        Entry next;
+        long deadline;
+        int slot = -1;
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    public interface Handler {
+        /**
+         * Called once {@code entry}'s deadline has passed.
+         * @return a new deadline to reschedule the entry, or a value <= now to drop it
+         */
+        long onDeadline(Entry entry, long now);
+    }
+
+    private final Entry[] slots;
+    private final long tickMs;
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(int slotCount, long tickMs, long nowMs) {
+        if (slotCount < 1 || tickMs < 1) {
+            throw new IllegalArgumentException("slotCount and tickMs must be positive");
+        }
+        this.slots = new Entry[slotCount];
+        this.tickMs = tickMs;
+        this.currentTick = nowMs / tickMs;
+    }
+
+    public void schedule(Entry entry, long deadline) {
+        if (entry.isScheduled()) {
+            cancel(entry);
+        }
+        long tick = Math.max(deadline / tickMs, currentTick);
+        int slot = (int) (tick % slots.length);
+        entry.deadline = deadline;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+        size++;
+    }
+
+    public void cancel(Entry entry) {
+        if (!entry.isScheduled()) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = -1;
+        size--;
+    }
+
+    /**
+     * Runs every slot between the previous call and {@code now}, handing due
+     * entries to {@code handler}.
+     */
+    public void advance(long now, Handler handler) {
+        long targetTick = now / tickMs;
+        long ticks = Math.min(targetTick - currentTick + 1, slots.length);
+        for (long i = 0; i < ticks; i++) {
+            int slot = (int) ((currentTick + i) % slots.length);
+            Entry entry = slots[slot];
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.deadline <= now) {
+                    cancel(entry);
+                    long deadline = handler.onDeadline(entry, now);
+                    if (deadline > now) {
+                        schedule(entry, deadline);
+                    }
+                }
+                entry = next;
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+    }
+
+    public int size() {
+        return size;
+    }
+}
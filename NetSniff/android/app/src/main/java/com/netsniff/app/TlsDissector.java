@@ -0,0 +1,284 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * TLS records (and SSL 3.0), with the ClientHello decoded down to its
+ * extensions: server name, ALPN and supported versions are spelled out, the
+ * rest are listed by type and length. Other handshake messages and
+ * encrypted records are only described by their headers.
+ */
+public final class TlsDissector implements Dissector {
+    public static final int ID = 3;
+
+    private static final int RECORD_HEADER = 5;
+    private static final int CONTENT_CHANGE_CIPHER_SPEC = 20;
+    private static final int CONTENT_ALERT = 21;
+    private static final int CONTENT_HANDSHAKE = 22;
+    private static final int CONTENT_APPLICATION_DATA = 23;
+    private static final int HANDSHAKE_CLIENT_HELLO = 1;
+    private static final int HANDSHAKE_SERVER_HELLO = 2;
+
+    private static final int EXT_SERVER_NAME = 0;
+    private static final int EXT_SUPPORTED_GROUPS = 10;
+    private static final int EXT_SIGNATURE_ALGORITHMS = 13;
+    private static final int EXT_ALPN = 16;
+    private static final int EXT_SUPPORTED_VERSIONS = 43;
+    private static final int EXT_KEY_SHARE = 51;
+
+    // Cipher suites listed one by one before the rest are only counted
+    private static final int MAX_LISTED = 64;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "TLS";
+    }
+
+    @Override
+    public int[] ports() {
+        return new int[] {443, 8443, 853};
+    }
+
+    @Override
+    public boolean carriedBy(int transport) {
+        return transport == PacketView.PROTO_TCP;
+    }
+
+    @Override
+    public boolean looksLike(ByteBuffer buffer, int offset, int length, int transport) {
+        if (length < RECORD_HEADER) {
+            return false;
+        }
+        int type = buffer.get(offset) & 0xFF;
+        int major = buffer.get(offset + 1) & 0xFF;
+        int minor = buffer.get(offset + 2) & 0xFF;
+        int recordLength = u16(buffer, offset + 3);
+        return type >= CONTENT_CHANGE_CIPHER_SPEC && type <= CONTENT_APPLICATION_DATA
+                && major == 3 && minor <= 4
+                && recordLength > 0 && recordLength <= (1 << 14) + 2048;
+    }
+
+    @Override
+    public void dissect(ByteBuffer buffer, int offset, int length, int transport, Dissection out) {
+        int end = offset + length;
+        int at = offset;
+        // A segment may carry several records back to back
+        while (at < end) {
+            if (end - at < RECORD_HEADER) {
+                out.markTruncated();
+                return;
+            }
+            int type = buffer.get(at) & 0xFF;
+            int recordLength = u16(buffer, at + 3);
+            Dissection.Field record = out.add("Record", contentName(type));
+            record.add("Content type", contentName(type) + " (" + type + ")");
+            record.add("Version", versionName(u16(buffer, at + 1)));
+            record.add("Length", recordLength);
+            int body = at + RECORD_HEADER;
+            int bodyEnd = Math.min(end, body + recordLength);
+            if (type == CONTENT_HANDSHAKE && bodyEnd - body >= 4) {
+                handshake(buffer, body, bodyEnd, record, out);
+            } else if (type == CONTENT_ALERT && bodyEnd - body >= 2) {
+                record.add("Level", (buffer.get(body) & 0xFF) == 2 ? "fatal" : "warning");
+                record.add("Description", buffer.get(body + 1) & 0xFF);
+            }
+            if (body + recordLength > end) {
+                out.markTruncated();
+                return;
+            }
+            at = body + recordLength;
+        }
+    }
+
+    private static void handshake(ByteBuffer buffer, int at, int end, Dissection.Field record, Dissection out) {
+        int type = buffer.get(at) & 0xFF;
+        int length = (u16(buffer, at + 1) << 8) | (buffer.get(at + 3) & 0xFF);
+        Dissection.Field message = record.add("Handshake", handshakeName(type));
+        message.add("Type", handshakeName(type) + " (" + type + ")");
+        message.add("Length", length);
+        if (type != HANDSHAKE_CLIENT_HELLO) {
+            return;
+        }
+        if (!clientHello(buffer, at + 4, Math.min(end, at + 4 + length), message)) {
+            out.markTruncated();
+        }
+    }
+
+    // Returns false if the hello ran past end
+    private static boolean clientHello(ByteBuffer buffer, int at, int end, Dissection.Field hello) {
+        if (end - at < 2 + 32 + 1) {
+            return false;
+        }
+        hello.add("Version", versionName(u16(buffer, at)));
+        hello.add("Random", hex(buffer, at + 2, 32));
+        at += 2 + 32;
+        int sessionIdLength = buffer.get(at) & 0xFF;
+        if (at + 1 + sessionIdLength + 2 > end) {
+            return false;
+        }
+        hello.add("Session ID", sessionIdLength == 0 ? "(empty)" : hex(buffer, at + 1, sessionIdLength));
+        at += 1 + sessionIdLength;
+
+        int suitesLength = u16(buffer, at);
+        at += 2;
+        if (at + suitesLength + 1 > end) {
+            return false;
+        }
+        Dissection.Field suites = hello.add("Cipher suites", suitesLength / 2);
+        for (int i = 0; i + 1 < suitesLength; i += 2) {
+            if (i / 2 == MAX_LISTED) {
+                suites.add("More", (suitesLength / 2 - MAX_LISTED) + " not shown");
+                break;
+            }
+            suites.add("Cipher suite", String.format("0x%04x", u16(buffer, at + i)));
+        }
+        at += suitesLength;
+
+        int compressionLength = buffer.get(at) & 0xFF;
+        hello.add("Compression methods", compressionLength);
+        at += 1 + compressionLength;
+        if (at == end) {
+            // No extensions at all, as in SSL 3.0
+            return true;
+        }
+        if (at + 2 > end) {
+            return false;
+        }
+        int extensionsEnd = at + 2 + u16(buffer, at);
+        at += 2;
+        Dissection.Field extensions = hello.group("Extensions");
+        while (at + 4 <= Math.min(end, extensionsEnd)) {
+            int type = u16(buffer, at);
+            int length = u16(buffer, at + 2);
+            int data = at + 4;
+            if (data + length > end) {
+                extensions.add(extensionName(type), length + " bytes");
+                return false;
+            }
+            extension(buffer, type, data, length, extensions);
+            at = data + length;
+        }
+        return at >= extensionsEnd;
+    }
+
+    private static void extension(ByteBuffer buffer, int type, int at, int length, Dissection.Field parent) {
+        int end = at + length;
+        switch (type) {
+            case EXT_SERVER_NAME: {
+                // server_name_list: u16 length, then entries of u8 type, u16 length, name
+                Dissection.Field field = parent.group(extensionName(type));
+                for (int i = at + 2; i + 3 <= end; ) {
+                    int nameLength = u16(buffer, i + 1);
+                    if (i + 3 + nameLength > end) {
+                        break;
+                    }
+                    if ((buffer.get(i) & 0xFF) == 0) {
+                        field.add("Server name", ascii(buffer, i + 3, nameLength));
+                    }
+                    i += 3 + nameLength;
+                }
+                return;
+            }
+            case EXT_ALPN: {
+                // protocol_name_list: u16 length, then u8-prefixed names
+                Dissection.Field field = parent.group(extensionName(type));
+                for (int i = at + 2; i < end; ) {
+                    int nameLength = buffer.get(i) & 0xFF;
+                    if (i + 1 + nameLength > end) {
+                        break;
+                    }
+                    field.add("Protocol", ascii(buffer, i + 1, nameLength));
+                    i += 1 + nameLength;
+                }
+                return;
+            }
+            case EXT_SUPPORTED_VERSIONS: {
+                // In a ClientHello: u8 length, then u16 versions
+                Dissection.Field field = parent.group(extensionName(type));
+                int listEnd = length > 0 ? Math.min(end, at + 1 + (buffer.get(at) & 0xFF)) : at;
+                for (int i = at + 1; i + 2 <= listEnd; i += 2) {
+                    field.add("Version", versionName(u16(buffer, i)));
+                }
+                return;
+            }
+            default:
+                parent.add(extensionName(type), length + " bytes");
+        }
+    }
+
+    static String versionName(int version) {
+        switch (version) {
+            case 0x0300: return "SSL 3.0";
+            case 0x0301: return "TLS 1.0";
+            case 0x0302: return "TLS 1.1";
+            case 0x0303: return "TLS 1.2";
+            case 0x0304: return "TLS 1.3";
+            default:
+                // GREASE values (RFC 8701) and anything unknown
+                return String.format("0x%04x", version);
+        }
+    }
+
+    private static String contentName(int type) {
+        switch (type) {
+            case CONTENT_CHANGE_CIPHER_SPEC: return "Change Cipher Spec";
+            case CONTENT_ALERT: return "Alert";
+            case CONTENT_HANDSHAKE: return "Handshake";
+            case CONTENT_APPLICATION_DATA: return "Application Data";
+            default: return "Unknown";
+        }
+    }
+
+    private static String handshakeName(int type) {
+        switch (type) {
+            case HANDSHAKE_CLIENT_HELLO: return "Client Hello";
+            case HANDSHAKE_SERVER_HELLO: return "Server Hello";
+            case 4: return "New Session Ticket";
+            case 8: return "Encrypted Extensions";
+            case 11: return "Certificate";
+            case 12: return "Server Key Exchange";
+            case 14: return "Server Hello Done";
+            case 16: return "Client Key Exchange";
+            case 20: return "Finished";
+            default: return "Handshake type " + type;
+        }
+    }
+
+    private static String extensionName(int type) {
+        switch (type) {
+            case EXT_SERVER_NAME: return "server_name";
+            case EXT_SUPPORTED_GROUPS: return "supported_groups";
+            case EXT_SIGNATURE_ALGORITHMS: return "signature_algorithms";
+            case EXT_ALPN: return "application_layer_protocol_negotiation";
+            case EXT_SUPPORTED_VERSIONS: return "supported_versions";
+            case EXT_KEY_SHARE: return "key_share";
+            default: return "extension " + type;
+        }
+    }
+
+    private static String hex(ByteBuffer buffer, int at, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            sb.append(String.format("%02x", buffer.get(at + i) & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static String ascii(ByteBuffer buffer, int at, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int c = buffer.get(at + i) & 0xFF;
+            sb.append(c >= 0x20 && c < 0x7F ? (char) c : '?');
+        }
+        return sb.toString();
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+}
@@ -5,13 +5,27 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import android.net.VpnService;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
+import android.view.Choreographer;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
@@ -22,6 +36,7 @@ import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import androidx.activity.result.ActivityResult;
+import androidx.core.content.FileProvider;
 
 @CapacitorPlugin(name = "ToyVpn")
 public class ToyVpnPlugin extends Plugin {
@@ -31,10 +46,91 @@ public class ToyVpnPlugin extends Plugin {
     public static ToyVpnPlugin instance;
     private boolean hasVpnPermission = false;
 
+    public static final String ENCODING_JSON = "json";
+    public static final String ENCODING_BINARY = "binary";
+
+    // Read by the capture threads to pick how packets are encoded
+    private static volatile boolean binaryEncoding = false;
+
+    // How often deliveryStatus and statsUpdated are considered for sending
+    private static final long STATUS_INTERVAL_MS = 1000;
+    // How long a stopVpn call waits to hear from the service; it normally answers within milliseconds
+    private static final long STOP_CONFIRM_TIMEOUT_MS = 2000;
+    private static final int SUMMARY_MAX_FLOWS = 50;
+
+    // Flow counters kept by the service, summarised for the page when packets are shed
+    private static volatile FlowTables flowTables;
+    // Lifetime counters for the service's current session
+    private static volatile TrafficStats trafficStats;
+    // Packed copy of every captured packet, paged through by queryPackets
+    private static volatile CaptureHistory captureHistory;
+    private static final int DEFAULT_QUERY_LIMIT = 100;
+    // Decodes application payloads of history packets for dissectPacket
+    private static volatile Dissectors dissectors;
+    // Packets it rejects are dropped by the capture threads before decoding; null keeps everything
+    private static volatile CaptureFilter captureFilter;
+    // Streams packets to PCAPNG files while a recording is running
+    private static volatile PcapngRecorder captureRecorder;
+    // Counters, queue depths and stage latencies for the service's current session
+    private static volatile MetricsRegistry metrics;
+    // Time from a batch's first packet being queued to the page running it
+    private static volatile LatencyHistogram bridgeLatency;
+    // Shortest period the page can ask metricsUpdated events to be sent at
+    private static final long MIN_METRICS_INTERVAL_MS = 250;
+    private static final String CAPTURE_DIRECTORY = "captures";
+    private static final long DEFAULT_CAPTURE_FILE_BYTES = 16L << 20;
+    private static final long DEFAULT_CAPTURE_FILE_SECONDS = 300;
+    private static final int DEFAULT_CAPTURE_FILES = 8;
+
+    // Packets reach the page in frame-aligned batches instead of one UI hop each
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final PacketBatcher<JSObject> packetBatcher = newBatcher(this::deliverPackets);
+    private final PacketBatcher<byte[]> recordBatcher = newBatcher(this::deliverRecords);
+    // Thins out delivery when the page falls behind
+    private final DeliverySampler sampler = new DeliverySampler();
+    private DeliverySampler.Mode publishedMode = DeliverySampler.Mode.FULL;
+    // Package name by UID, filled in as getAppStats needs them; guarded by appNames
+    private final Map<Integer, String> appNames = new HashMap<>();
+    // stopVpn calls waiting for the service to report that it has stopped
+    private final List<PluginCall> pendingStops = new ArrayList<>();
+    private final Runnable stopUnconfirmed = new Runnable() {
+        @Override
+        public void run() {
+            JSObject result = new JSObject();
+            result.put("status", "stopped");
+            result.put("success", false);
+            result.put("message", "The VPN service did not confirm that it stopped");
+            resolveStops(result);
+            resolveShimStops(result);
+        }
+    };
+    // Total packets in the last statsUpdated event, so an idle session sends nothing
+    private long publishedPackets = -1;
+    // Period of metricsUpdated events, 0 while the page has not asked for them; main thread only
+    private long metricsIntervalMs;
+    private final Runnable metricsTick = new Runnable() {
+        @Override
+        public void run() {
+            publishMetrics();
+            if (metricsIntervalMs > 0) {
+                mainHandler.postDelayed(this, metricsIntervalMs);
+            }
+        }
+    };
+    private final Runnable statusTick = new Runnable() {
+        @Override
+        public void run() {
+            publishDeliveryStatus();
+            publishStats();
+            mainHandler.postDelayed(this, STATUS_INTERVAL_MS);
+        }
+    };
+
     @Override
     public void load() {
         Log.d(TAG, "ToyVpnPlugin loading...");
         instance = this;
+        mainHandler.postDelayed(statusTick, STATUS_INTERVAL_MS);
         
         // Expose a JavaScript interface to the WebView
         try {
@@ -50,7 +146,26 @@ public class ToyVpnPlugin extends Plugin {
                            "window.ToyVpn = {" +  
                            "  requestVpnPermission: function() { return JSON.parse(ToyVpnNative.requestVpnPermission()); }," +
                            "  startVpn: function(options) { return JSON.parse(ToyVpnNative.startVpn(JSON.stringify(options || {}))); }," +
-                           "  stopVpn: function() { return JSON.parse(ToyVpnNative.stopVpn()); }," +
+                           "  stopVpn: function() {" +
+                           "    var stopping = JSON.parse(ToyVpnNative.stopVpn());" +
+                           "    if (stopping.status !== 'stopping') { return Promise.resolve(stopping); }" +
+                           "    window.ToyVpnNative._stops = window.ToyVpnNative._stops || [];" +
+                           "    return new Promise(function(resolve) { window.ToyVpnNative._stops.push(resolve); });" +
+                           "  }," +
+                           "  setBatchOptions: function(options) { return JSON.parse(ToyVpnNative.setBatchOptions(JSON.stringify(options || {}))); }," +
+                           "  getStats: function() { return JSON.parse(ToyVpnNative.getStats()); }," +
+                           "  getMetrics: function() { return JSON.parse(ToyVpnNative.getMetrics()); }," +
+                           "  setMetricsOptions: function(options) { return JSON.parse(ToyVpnNative.setMetricsOptions(JSON.stringify(options || {}))); }," +
+                           "  queryPackets: function(options) { return JSON.parse(ToyVpnNative.queryPackets(JSON.stringify(options || {}))); }," +
+                           "  getPacket: function(options) { return JSON.parse(ToyVpnNative.getPacket(JSON.stringify(options || {}))); }," +
+                           "  dissectPacket: function(options) { return JSON.parse(ToyVpnNative.dissectPacket(JSON.stringify(options || {}))); }," +
+                           "  getPacketPayload: function(options) { return JSON.parse(ToyVpnNative.getPacketPayload(JSON.stringify(options || {}))); }," +
+                           "  getAppStats: function() { return JSON.parse(ToyVpnNative.getAppStats()); }," +
+                           "  setCaptureFilter: function(options) { return JSON.parse(ToyVpnNative.setCaptureFilter(JSON.stringify(options || {}))); }," +
+                           "  startCaptureFile: function(options) { return JSON.parse(ToyVpnNative.startCaptureFile(JSON.stringify(options || {}))); }," +
+                           "  stopCaptureFile: function() { return JSON.parse(ToyVpnNative.stopCaptureFile()); }," +
+                           "  getCaptureFiles: function() { return JSON.parse(ToyVpnNative.getCaptureFiles()); }," +
+                           "  shareCaptureFile: function(options) { return JSON.parse(ToyVpnNative.shareCaptureFile(JSON.stringify(options || {}))); }," +
                            "  addListener: function(eventName, callback) { " +
                            "    ToyVpnNative.addListener(eventName);" +
                            "    window.ToyVpnNative._listeners = window.ToyVpnNative._listeners || {};" +
@@ -67,9 +182,13 @@ public class ToyVpnPlugin extends Plugin {
                            "window.ToyVpnNative.isAvailable = true;" +
                            "window.dispatchToyVpnEvent = function(eventName, data) {" +
                            "  if (window.ToyVpnNative && window.ToyVpnNative._listeners && window.ToyVpnNative._listeners[eventName]) {" +
-                           "    console.log('Dispatching ToyVpn event: ' + eventName);" +
                            "    window.ToyVpnNative._listeners[eventName](data || {});" +
                            "  }" +
+                           "};" +
+                           "window.ToyVpnNative._resolveStops = function(result) {" +
+                           "  var stops = window.ToyVpnNative._stops || [];" +
+                           "  window.ToyVpnNative._stops = [];" +
+                           "  stops.forEach(function(resolve) { resolve(result); });" +
                            "};";
                 
                 webView.post(() -> {
@@ -89,43 +208,380 @@ public class ToyVpnPlugin extends Plugin {
         Log.d(TAG, "ToyVpnPlugin loaded successfully");
     }
 
+    /**
+     * Whether the next captured packet should be sent to the page at all.
+     * Called by the capture threads before any per-packet encoding work.
+     */
+    public static boolean admitPacket() {
+        ToyVpnPlugin plugin = instance;
+        return plugin != null && plugin.sampler.admit(SystemClock.uptimeMillis());
+    }
+
+    /** Gives the plugin the service's flow tables, for summaries while packets are shed. */
+    public static void attachFlowTables(FlowTables tables) {
+        flowTables = tables;
+    }
+
+    /** Gives the plugin the counters for the service's current session. */
+    public static void attachTrafficStats(TrafficStats stats) {
+        trafficStats = stats;
+    }
+
+    /** Gives the plugin the service's capture history. */
+    public static void attachHistory(CaptureHistory history) {
+        captureHistory = history;
+    }
+
+    /** Gives the plugin the dissectors the service classifies flows with. */
+    public static void attachDissectors(Dissectors registry) {
+        dissectors = registry;
+    }
+
+    /**
+     * Gives the plugin the service's metrics, adding the plugin's own: what
+     * waits in and is dropped by the batchers, what the sampler sheds, the
+     * recording's drops and the bridge latency.
+     */
+    public static void attachMetrics(MetricsRegistry registry) {
+        registry.gauge("queue.bridge", () -> {
+            ToyVpnPlugin plugin = instance;
+            return plugin != null ? plugin.packetBatcher.pending() + plugin.recordBatcher.pending() : 0;
+        });
+        registry.counter("drops.bridge", () -> {
+            ToyVpnPlugin plugin = instance;
+            return plugin != null ? plugin.packetBatcher.itemsDropped() + plugin.recordBatcher.itemsDropped() : 0;
+        });
+        registry.counter("drops.shed", () -> {
+            ToyVpnPlugin plugin = instance;
+            return plugin != null ? plugin.sampler.shed() : 0;
+        });
+        // Per recording, so it starts again from 0 with each one
+        registry.gauge("recorder.dropped", () -> {
+            PcapngRecorder recorder = captureRecorder;
+            return recorder != null ? recorder.dropped() : 0;
+        });
+        bridgeLatency = registry.histogram("bridge");
+        metrics = registry;
+    }
+
+    /** The current capture filter, or null; read by the capture threads for every packet. */
+    public static CaptureFilter captureFilter() {
+        return captureFilter;
+    }
+
+    /** The running PCAPNG recording, or null; read by the capture threads for every packet. */
+    public static PcapngRecorder captureRecorder() {
+        return captureRecorder;
+    }
+
+    /** Ends the PCAPNG recording, if any, closing its file. Called when the VPN stops. */
+    public static synchronized void stopCaptureRecorder() {
+        PcapngRecorder recorder = captureRecorder;
+        if (recorder != null) {
+            captureRecorder = null;
+            recorder.stop();
+            Log.d(TAG, "Capture file recording stopped: " + recorder);
+        }
+    }
+
+    /**
+     * Queues a decoded packet for the next batch. Safe to call from any
+     * thread; the UI thread only sees one event per flushed batch.
+     */
     public static void notifyPacketCaptured(JSObject packetData) {
-        if (instance != null) {
-            Log.d(TAG, "Notifying packet captured: " + packetData.toString());
-            
-            try {
-                final JSObject finalPacketData = packetData;
-                
-                if (instance.getActivity() != null) {
-                    instance.getActivity().runOnUiThread(() -> {
-                        try {
-                            instance.notifyListeners("packetCaptured", finalPacketData);
-                            
-                            if (instance.getBridge() != null && instance.getBridge().getWebView() != null) {
-                                String js = "if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('packetCaptured', " + 
-                                        finalPacketData.toString() + "); }";
-                                instance.getBridge().getWebView().evaluateJavascript(js, null);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error notifying packet listeners", e);
-                        }
-                    });
-                } else {
-                    android.os.Handler mainHandler = new android.os.Handler(android.os.Looper.getMainLooper());
-                    mainHandler.post(() -> {
-                        try {
-                            instance.notifyListeners("packetCaptured", finalPacketData);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error notifying packet listeners via handler", e);
-                        }
-                    });
+        ToyVpnPlugin plugin = instance;
+        if (plugin != null) {
+            plugin.packetBatcher.add(packetData, SystemClock.uptimeMillis());
+        }
+    }
+
+    /** Binary counterpart of {@link #notifyPacketCaptured}, for a {@link PacketRecords} record. */
+    public static void notifyPacketRecord(byte[] record) {
+        ToyVpnPlugin plugin = instance;
+        if (plugin != null) {
+            plugin.recordBatcher.add(record, SystemClock.uptimeMillis());
+        }
+    }
+
+    /** Whether the page asked for packets as binary records rather than JSON. */
+    public static boolean binaryEncoding() {
+        return binaryEncoding;
+    }
+
+    private <E> PacketBatcher<E> newBatcher(PacketBatcher.Delivery<E> delivery) {
+        BatchFrameScheduler scheduler = new BatchFrameScheduler();
+        PacketBatcher<E> batcher = new PacketBatcher<>(scheduler, delivery);
+        scheduler.batcher = batcher;
+        return batcher;
+    }
+
+    /** Runs one batcher's onFrame on the next Choreographer frame. */
+    private class BatchFrameScheduler implements PacketBatcher.FrameScheduler, Choreographer.FrameCallback, Runnable {
+        PacketBatcher<?> batcher;
+
+        @Override
+        public void scheduleFrame() {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                mainHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            batcher.onFrame(SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Sends one batch to the page as a single packetsCaptured event, through
+     * the dispatchToyVpnEvent hook installed by the injected shim.
+     */
+    private void deliverPackets(List<JSObject> batch, int dropped, long queuedAtMs) {
+        if (getBridge() == null || getBridge().getWebView() == null) {
+            return;
+        }
+        StringBuilder js = new StringBuilder(96 + batch.size() * 256);
+        js.append("if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('packetsCaptured', {\"dropped\":")
+          .append(dropped)
+          .append(",\"packets\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                js.append(',');
+            }
+            js.append(batch.get(i).toString());
+        }
+        js.append("]}); }");
+        dispatchBatch(js.toString(), queuedAtMs, queuedAtMs + packetBatcher.maxDelayMs());
+    }
+
+    /**
+     * Sends one batch of binary records as a single packetRecords event, with
+     * the framed batch base64-encoded in its data field.
+     */
+    private void deliverRecords(List<byte[]> batch, int dropped, long queuedAtMs) {
+        if (getBridge() == null || getBridge().getWebView() == null) {
+            return;
+        }
+        String data = Base64.encodeToString(PacketRecords.frame(batch, dropped), Base64.NO_WRAP);
+        dispatchBatch("if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('packetRecords', {\"data\":\""
+                + data + "\"}); }", queuedAtMs, queuedAtMs + recordBatcher.maxDelayMs());
+    }
+
+    /**
+     * Runs {@code js} in the page and reports to the sampler how long after
+     * {@code dueAtMs} it actually ran; anything before that is intended delay.
+     */
+    private void dispatchBatch(String js, long dueAtMs) {
+        dispatchBatch(js, -1, dueAtMs);
+    }
+
+    /**
+     * As above, and for a batch whose first item was queued at
+     * {@code queuedAtMs}, records how long that item took to reach the page
+     * in the bridge histogram.
+     */
+    private void dispatchBatch(String js, final long queuedAtMs, final long dueAtMs) {
+        final LatencyHistogram latency = queuedAtMs >= 0 ? bridgeLatency : null;
+        try {
+            getBridge().getWebView().evaluateJavascript(js, value -> {
+                long now = SystemClock.uptimeMillis();
+                sampler.onBridgeLag(Math.max(0, now - dueAtMs), now);
+                if (latency != null) {
+                    latency.record(TimeUnit.MILLISECONDS.toNanos(now - queuedAtMs));
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error in notify process", e);
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error delivering packet batch", e);
+        }
+    }
+
+    /**
+     * Tells the page what is being shed, whenever the delivery mode changes
+     * and every tick while it is not FULL. In SUMMARY mode the page also gets
+     * the most recently active flows.
+     */
+    private void publishDeliveryStatus() {
+        DeliverySampler.Mode mode = sampler.mode();
+        if (mode == publishedMode && mode == DeliverySampler.Mode.FULL) {
+            return;
+        }
+        if (getBridge() == null || getBridge().getWebView() == null) {
+            return;
+        }
+        if (mode != publishedMode) {
+            Log.i(TAG, "Packet delivery now " + sampler);
+            publishedMode = mode;
+        }
+        if (mode == DeliverySampler.Mode.SUMMARY) {
+            publishFlowSummary();
+        }
+
+        StringBuilder js = new StringBuilder(256);
+        js.append("if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('deliveryStatus', {\"mode\":\"")
+          .append(mode.name().toLowerCase())
+          .append("\",\"sampleRate\":").append(sampler.sampleRate())
+          .append(",\"lagMs\":").append(sampler.lagMs())
+          .append(",\"delivered\":").append(sampler.delivered())
+          .append(",\"shed\":").append(sampler.shed())
+          .append(",\"dropped\":").append(packetBatcher.itemsDropped() + recordBatcher.itemsDropped())
+          .append("}); }");
+        // Also a lag probe, since little else reaches the page while packets are shed
+        dispatchBatch(js.toString(), SystemClock.uptimeMillis());
+    }
+
+    /** Sends a statsUpdated event if anything was captured since the last one. */
+    private void publishStats() {
+        TrafficStats stats = trafficStats;
+        if (stats == null || getBridge() == null || getBridge().getWebView() == null) {
+            return;
+        }
+        TrafficStats.Snapshot snapshot = stats.snapshot(System.currentTimeMillis());
+        if (snapshot.totalPackets() == publishedPackets) {
+            return;
+        }
+        publishedPackets = snapshot.totalPackets();
+        String js = "if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('statsUpdated', "
+                + statsToJson(snapshot) + "); }";
+        try {
+            getBridge().getWebView().evaluateJavascript(js, null);
+        } catch (Exception e) {
+            Log.e(TAG, "Error publishing stats", e);
+        }
+    }
+
+    /** Sends a metricsUpdated event with the same content getMetrics returns. */
+    private void publishMetrics() {
+        if (metrics == null || getBridge() == null || getBridge().getWebView() == null) {
+            return;
+        }
+        String js = "if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('metricsUpdated', "
+                + metricsToJson() + "); }";
+        try {
+            getBridge().getWebView().evaluateJavascript(js, null);
+        } catch (Exception e) {
+            Log.e(TAG, "Error publishing metrics", e);
+        }
+    }
+
+    /**
+     * {@code counters} maps each counter to its {@code total} and
+     * {@code perSecond}, {@code gauges} each gauge to its level, and
+     * {@code latency} each stage to {@code count}, {@code meanUs},
+     * {@code p50Us}, {@code p90Us}, {@code p99Us} and {@code maxUs}. All three
+     * are empty before the VPN first starts.
+     */
+    private static JSObject metricsToJson() {
+        MetricsRegistry registry = metrics;
+        JSObject counters = new JSObject();
+        JSObject gauges = new JSObject();
+        JSObject latency = new JSObject();
+        JSObject json = new JSObject();
+        if (registry != null) {
+            MetricsRegistry.Snapshot snapshot = registry.snapshot(SystemClock.uptimeMillis());
+            for (Map.Entry<String, Long> counter : snapshot.counters.entrySet()) {
+                JSObject value = new JSObject();
+                value.put("total", counter.getValue());
+                value.put("perSecond", snapshot.perSecond.get(counter.getKey()));
+                counters.put(counter.getKey(), value);
             }
+            for (Map.Entry<String, Long> gauge : snapshot.gauges.entrySet()) {
+                gauges.put(gauge.getKey(), gauge.getValue());
+            }
+            for (Map.Entry<String, MetricsRegistry.Latency> stage : snapshot.latency.entrySet()) {
+                MetricsRegistry.Latency l = stage.getValue();
+                JSObject value = new JSObject();
+                value.put("count", l.count);
+                value.put("meanUs", l.mean / 1000.0);
+                value.put("p50Us", l.p50 / 1000.0);
+                value.put("p90Us", l.p90 / 1000.0);
+                value.put("p99Us", l.p99 / 1000.0);
+                value.put("maxUs", l.max / 1000.0);
+                latency.put(stage.getKey(), value);
+            }
+            json.put("rateWindowMs", snapshot.rateWindowMs);
         } else {
-            Log.e(TAG, "Cannot notify packet captured: plugin instance is null");
+            json.put("rateWindowMs", 0);
+        }
+        json.put("counters", counters);
+        json.put("gauges", gauges);
+        json.put("latency", latency);
+        json.put("timestamp", System.currentTimeMillis());
+        return json;
+    }
+
+    /** Current session's counters; all zero before the first capture. */
+    private static TrafficStats.Snapshot currentStats() {
+        TrafficStats stats = trafficStats;
+        long now = System.currentTimeMillis();
+        return stats != null ? stats.snapshot(now) : new TrafficStats(0).snapshot(now);
+    }
+
+    private static JSObject statsToJson(TrafficStats.Snapshot snapshot) {
+        JSObject protocols = new JSObject();
+        for (int protocol = 0; protocol < snapshot.protocolPackets.length; protocol++) {
+            if (snapshot.protocolPackets[protocol] > 0) {
+                protocols.put(PacketView.protocolName(protocol), snapshot.protocolPackets[protocol]);
+            }
         }
+        JSObject json = new JSObject();
+        json.put("totalPackets", snapshot.totalPackets());
+        json.put("incomingPackets", snapshot.incomingPackets);
+        json.put("outgoingPackets", snapshot.outgoingPackets);
+        json.put("totalBytes", snapshot.totalBytes());
+        json.put("incomingBytes", snapshot.incomingBytes);
+        json.put("outgoingBytes", snapshot.outgoingBytes);
+        json.put("protocolDistribution", protocols);
+        json.put("startedAt", snapshot.startedAtMs);
+        json.put("timestamp", snapshot.takenAtMs);
+        return json;
+    }
+
+    private void publishFlowSummary() {
+        FlowTables tables = flowTables;
+        if (tables == null) {
+            return;
+        }
+        final Dissectors registry = dissectors;
+        final StringBuilder js = new StringBuilder(128 + SUMMARY_MAX_FLOWS * 224);
+        js.append("if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('flowSummary', {\"activeFlows\":")
+          .append(tables.size())
+          .append(",\"flows\":[");
+        tables.forEach(SUMMARY_MAX_FLOWS, new FlowTable.Visitor() {
+            int count;
+
+            @Override
+            public boolean visit(FlowTable t, int entry) {
+                if (count++ > 0) {
+                    js.append(',');
+                }
+                js.append("{\"protocol\":\"").append(PacketView.protocolName(t.protocol(entry)))
+                  .append("\",\"source\":\"");
+                t.appendEndpoint(js, entry, FlowTable.FORWARD).append("\",\"destination\":\"");
+                t.appendEndpoint(js, entry, FlowTable.REVERSE)
+                  .append("\",\"packetsOut\":").append(t.packets(entry, FlowTable.FORWARD))
+                  .append(",\"packetsIn\":").append(t.packets(entry, FlowTable.REVERSE))
+                  .append(",\"bytesOut\":").append(t.bytes(entry, FlowTable.FORWARD))
+                  .append(",\"bytesIn\":").append(t.bytes(entry, FlowTable.REVERSE))
+                  .append(",\"firstSeen\":").append(t.firstSeen(entry))
+                  .append(",\"lastSeen\":").append(t.lastSeen(entry))
+                  .append(",\"uid\":").append(t.owner(entry));
+                String application = registry != null ? registry.name(t.appProtocol(entry)) : null;
+                if (application != null) {
+                    js.append(",\"application\":\"").append(application).append('"');
+                }
+                js.append('}');
+                return count < SUMMARY_MAX_FLOWS;
+            }
+        });
+        js.append("]}); }");
+        dispatchBatch(js.toString(), SystemClock.uptimeMillis());
     }
 
     @PluginMethod
@@ -208,145 +664,611 @@ public class ToyVpnPlugin extends Plugin {
         return false;
     }
 
+    /**
+     * Asks the service to stop and resolves once it has, with how long that
+     * took: {@code stopMs} overall and {@code stages}, each pipeline stage's
+     * time in milliseconds (-1 for one left running at the deadline). The
+     * service stops its threads against a deadline of its own, so there is
+     * nothing to retry or wait out here.
+     */
     @PluginMethod
     public void stopVpn(PluginCall call) {
+        Log.d(TAG, "Stopping VPN service");
+        notifyStopping();
+        synchronized (pendingStops) {
+            pendingStops.add(call);
+        }
         try {
-            Log.d(TAG, "Stopping VPN service safely");
-            
-            // First notify frontend that VPN is stopping to update UI state
-            notifyListeners("vpnStopping", new JSObject());
-            
-            // Save the plugin call to resolve later
-            final PluginCall savedCall = call;
-            
-            // Create a thread to handle VPN stopping to avoid blocking UI
-            Thread stopThread = new Thread(() -> {
-                boolean stoppedSuccessfully = false;
-                int attempts = 0;
-                final int MAX_ATTEMPTS = 2;  // Reduced number of attempts
-                
-                while (!stoppedSuccessfully && attempts < MAX_ATTEMPTS) {
-                    attempts++;
-                    Log.d(TAG, "Attempt " + attempts + " to stop VPN service");
-                    
-                    // First, try to send the disconnect action
-                    try {
-                        // Application context approach
-                        Context appContext = getContext().getApplicationContext();
-                        Intent intent = new Intent(appContext, ToyVpnService.class);
-                        intent.setAction(ToyVpnService.ACTION_DISCONNECT);
-                        appContext.startService(intent);
-                        Log.d(TAG, "Sent disconnect action via application context");
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error sending disconnect action", e);
-                    }
-                    
-                    // Wait a moment for the service to process the disconnect action
-                    try { Thread.sleep(300); } catch (InterruptedException e) { /* ignore */ }
-                    
-                    // Now try to stop the service normally
-                    try {
-                        // Application context stop
-                        Context appContext = getContext().getApplicationContext();
-                        Intent intent = new Intent(appContext, ToyVpnService.class);
-                        boolean stopped = appContext.stopService(intent);
-                        Log.d(TAG, "App context stopService result: " + stopped);
-                        if (stopped) stoppedSuccessfully = true;
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error stopping service directly", e);
-                    }
-                    
-                    // Wait between attempts
-                    try { Thread.sleep(500); } catch (InterruptedException e) { /* ignore */ }
-                }
-                
-                // If still not stopped successfully, try a more direct approach
-                if (!stoppedSuccessfully) {
-                    try {
-                        Log.d(TAG, "Using alternative method to stop VPN service");
-                        
-                        // Check if the service is still running
-                        ActivityManager am = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
-                        List<ActivityManager.RunningServiceInfo> services = am.getRunningServices(Integer.MAX_VALUE);
-                        
-                        for (ActivityManager.RunningServiceInfo service : services) {
-                            if (ToyVpnService.class.getName().equals(service.service.getClassName())) {
-                                Log.d(TAG, "Found running VPN service - stopping it");
-                                
-                                // Try with activity context
-                                if (getActivity() != null) {
-                                    Intent intent = new Intent(getActivity(), ToyVpnService.class);
-                                    boolean stopped = getActivity().stopService(intent);
-                                    Log.d(TAG, "Activity stopService result: " + stopped);
-                                    if (stopped) stoppedSuccessfully = true;
-                                }
-                                
-                                break;
-                            }
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error in alternative stop method", e);
-                    }
-                }
-                
-                // Create final copy of the variable for use in the lambda
-                final boolean finalStoppedSuccessfully = stoppedSuccessfully;
-                
-                // Force a small delay to ensure all operations have had time to execute
-                try { Thread.sleep(300); } catch (InterruptedException e) { /* ignore */ }
-                
-                // Reset the vpnServiceIntent to ensure it's not reused
-                vpnServiceIntent = null;
-                
-                // Use bridge.executeOnMainThread to safely call UI methods
-                getBridge().executeOnMainThread(() -> {
-                    try {
-                        Log.d(TAG, "Executing final cleanup on main thread");
-                        
-                        // Explicitly notify the UI that VPN has stopped
-                        notifyListeners("vpnStopped", new JSObject());
-                        Log.d(TAG, "Notified listeners that VPN is stopped");
-                        
-                        // Resolve the plugin call on the main thread
-                        JSObject ret = new JSObject();
-                        ret.put("status", "stopped");
-                        ret.put("success", finalStoppedSuccessfully);
-                        call.resolve(ret);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error in final VPN termination steps", e);
-                        // Still try to resolve the call even if there was an error
-                        try {
-                            JSObject ret = new JSObject();
-                            ret.put("status", "stopped");
-                            ret.put("success", false);
-                            ret.put("error", e.getMessage());
-                            call.resolve(ret);
-                        } catch (Exception ex) {
-                            Log.e(TAG, "Failed to resolve call after error", ex);
-                        }
-                    }
-                });
-            });
-            
-            // Set as daemon to avoid blocking app shutdown
-            stopThread.setDaemon(true);
-            stopThread.start();
-            
+            sendDisconnect();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error stopping VPN service", e);
+            synchronized (pendingStops) {
+                pendingStops.remove(call);
+            }
+            call.reject("Failed to stop VPN: " + e.getMessage());
+            return;
+        }
+        mainHandler.removeCallbacks(stopUnconfirmed);
+        mainHandler.postDelayed(stopUnconfirmed, STOP_CONFIRM_TIMEOUT_MS);
+    }
+
+    /** Asks the service to tear its session down; it reports back through {@link #notifyVpnStopped}. */
+    private void sendDisconnect() {
+        Context appContext = getContext().getApplicationContext();
+        Intent intent = new Intent(appContext, ToyVpnService.class);
+        intent.setAction(ToyVpnService.ACTION_DISCONNECT);
+        appContext.startService(intent);
+        vpnServiceIntent = null;
+    }
+
+    /** Sends vpnStopping to listeners added through the plugin and through the shim. */
+    private void notifyStopping() {
+        JSObject data = new JSObject();
+        notifyListeners("vpnStopping", data);
+        dispatchEvent("vpnStopping", data);
+    }
+
+    /**
+     * Runs the shim's dispatchToyVpnEvent hook on the main thread, for
+     * lifecycle events that may be raised from any thread.
+     */
+    private void dispatchEvent(String eventName, JSObject data) {
+        final String js = "if (window.dispatchToyVpnEvent) { window.dispatchToyVpnEvent('" + eventName + "', "
+                + data + "); }";
+        mainHandler.post(() -> evaluateInPage(js));
+    }
+
+    /** Settles the promises of stopVpn calls made through the shim with {@code result}. */
+    private void resolveShimStops(JSObject result) {
+        final String js = "if (window.ToyVpnNative && window.ToyVpnNative._resolveStops) { "
+                + "window.ToyVpnNative._resolveStops(" + result + "); }";
+        mainHandler.post(() -> evaluateInPage(js));
+    }
+
+    private void evaluateInPage(String js) {
+        if (getBridge() == null || getBridge().getWebView() == null) {
+            return;
+        }
+        try {
+            getBridge().getWebView().evaluateJavascript(js, null);
         } catch (Exception e) {
-            Log.e(TAG, "Error in stopVpn", e);
-            // Still mark as stopped even on error
-            JSObject ret = new JSObject();
-            ret.put("status", "stopped");
-            ret.put("message", "Stopped with error: " + e.getMessage());
-            call.resolve(ret);
+            Log.e(TAG, "Error dispatching event to the page", e);
+        }
+    }
+
+    /** Resolves every waiting stopVpn call with {@code result}. */
+    private void resolveStops(JSObject result) {
+        List<PluginCall> calls;
+        synchronized (pendingStops) {
+            calls = new ArrayList<>(pendingStops);
+            pendingStops.clear();
+        }
+        for (PluginCall call : calls) {
+            call.resolve(result);
+        }
+    }
+
+    /**
+     * Sets how packets are batched and encoded for the page. Anything left
+     * out keeps its current value.
+     */
+    @PluginMethod
+    public void setBatchOptions(PluginCall call) {
+        try {
+            configureBatching(
+                    call.getInt("maxBatchSize", packetBatcher.maxBatchSize()),
+                    call.getLong("maxDelayMs", packetBatcher.maxDelayMs()),
+                    call.getInt("maxPending", packetBatcher.maxPending()),
+                    call.getString("encoding"));
+            JSObject result = new JSObject();
+            result.put("status", "success");
+            call.resolve(result);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    private void configureBatching(int maxBatchSize, long maxDelayMs, int maxPending, String encoding) {
+        if (encoding != null && !ENCODING_JSON.equals(encoding) && !ENCODING_BINARY.equals(encoding)) {
+            throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+        // Either encoding may be switched on later, so binary's limit applies to both
+        if (maxBatchSize > PacketRecords.MAX_BATCH_RECORDS) {
+            throw new IllegalArgumentException("maxBatchSize above " + PacketRecords.MAX_BATCH_RECORDS + ": "
+                    + maxBatchSize);
+        }
+        packetBatcher.configure(maxBatchSize, maxDelayMs, maxPending);
+        recordBatcher.configure(maxBatchSize, maxDelayMs, maxPending);
+        if (encoding != null) {
+            binaryEncoding = ENCODING_BINARY.equals(encoding);
+        }
+        Log.d(TAG, "Batch options updated: " + packetBatcher + ", binary=" + binaryEncoding);
+    }
+
+    /** Lifetime counters for the current capture session. */
+    @PluginMethod
+    public void getStats(PluginCall call) {
+        call.resolve(statsToJson(currentStats()));
+    }
+
+    /** The hot-path metrics of the current session; see {@link #metricsToJson}. */
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        call.resolve(metricsToJson());
+    }
+
+    /**
+     * Starts or stops periodic metricsUpdated events: {@code intervalMs} is
+     * their period, at least {@link #MIN_METRICS_INTERVAL_MS}, and 0 (the
+     * default) turns them off.
+     */
+    @PluginMethod
+    public void setMetricsOptions(PluginCall call) {
+        try {
+            configureMetricsEvents(call.getLong("intervalMs", 0L));
+            JSObject result = new JSObject();
+            result.put("status", "success");
+            call.resolve(result);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
         }
     }
 
+    private void configureMetricsEvents(long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("intervalMs must not be negative: " + intervalMs);
+        }
+        final long interval = intervalMs == 0 ? 0 : Math.max(MIN_METRICS_INTERVAL_MS, intervalMs);
+        mainHandler.post(() -> {
+            mainHandler.removeCallbacks(metricsTick);
+            metricsIntervalMs = interval;
+            if (interval > 0) {
+                mainHandler.postDelayed(metricsTick, interval);
+            }
+        });
+        Log.d(TAG, "Metrics events every " + interval + " ms");
+    }
+
+    /** Traffic per app since the VPN started; see {@link #appStatsToJson}. */
+    @PluginMethod
+    public void getAppStats(PluginCall call) {
+        call.resolve(appStatsToJson());
+    }
+
+    /**
+     * {@code apps} holds one entry per owning app, most bytes first, with
+     * {@code uid}, {@code packageName}, {@code flows}, and packets and bytes
+     * out and in. Flows whose owner is unknown, including every flow before
+     * Android 10 ({@code attributionSupported} false), share uid -1.
+     */
+    private JSObject appStatsToJson() {
+        FlowTables tables = flowTables;
+        JSONArray apps = new JSONArray();
+        if (tables != null) {
+            for (FlowTable.AppUsage usage : tables.appUsage()) {
+                JSObject app = new JSObject();
+                app.put("uid", usage.uid);
+                app.put("packageName", appName(usage.uid));
+                app.put("flows", usage.flows);
+                app.put("packetsOut", usage.packetsOut);
+                app.put("packetsIn", usage.packetsIn);
+                app.put("bytesOut", usage.bytesOut);
+                app.put("bytesIn", usage.bytesIn);
+                apps.put(app);
+            }
+        }
+        JSObject result = new JSObject();
+        result.put("status", "success");
+        result.put("attributionSupported", Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+        result.put("apps", apps);
+        return result;
+    }
+
+    /** The first package for {@code uid}, or its shared UID name; looked up once per UID. */
+    private String appName(int uid) {
+        if (uid < 0) {
+            return null;
+        }
+        synchronized (appNames) {
+            if (appNames.containsKey(uid)) {
+                return appNames.get(uid);
+            }
+            String name = null;
+            try {
+                String[] packages = getContext().getPackageManager().getPackagesForUid(uid);
+                name = packages != null && packages.length > 0
+                        ? packages[0] : getContext().getPackageManager().getNameForUid(uid);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not resolve package for uid " + uid, e);
+            }
+            appNames.put(uid, name);
+            return name;
+        }
+    }
+
+    /**
+     * Pages through the capture history; see {@link #queryHistory} for the
+     * options and result.
+     */
+    @PluginMethod
+    public void queryPackets(PluginCall call) {
+        try {
+            call.resolve(queryHistory(call.getData()));
+        } catch (IllegalArgumentException | JSONException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    /** One packet from the capture history by sequence number. */
+    @PluginMethod
+    public void getPacket(PluginCall call) {
+        try {
+            call.resolve(packetFromHistory(call.getData()));
+        } catch (JSONException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    /** Payload bytes of one packet from the capture history; see {@link #payloadFromHistory}. */
+    @PluginMethod
+    public void getPacketPayload(PluginCall call) {
+        try {
+            call.resolve(payloadFromHistory(call.getData()));
+        } catch (IllegalArgumentException | JSONException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    /** Decoded application-protocol fields of one packet from the capture history. */
+    @PluginMethod
+    public void dissectPacket(PluginCall call) {
+        try {
+            call.resolve(dissectFromHistory(call.getData()));
+        } catch (JSONException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a history query. Options are {@code fromSeq}, {@code limit},
+     * {@code backward} and an optional {@code filter} of {@code protocol}
+     * (name or number), {@code direction} and {@code port}. The result holds
+     * the matching records base64-encoded in the packetRecords layout, their
+     * sequence numbers in the same order, where to continue ({@code nextSeq},
+     * 0 when done) and the range currently held.
+     */
+    private static JSObject queryHistory(JSONObject options) throws JSONException {
+        boolean backward = options.optBoolean("backward", false);
+        long fromSeq = options.optLong("fromSeq", backward ? Long.MAX_VALUE : 0);
+        int limit = options.optInt("limit", DEFAULT_QUERY_LIMIT);
+        CaptureHistory.Filter filter = historyFilter(options.optJSONObject("filter"));
+
+        CaptureHistory history = captureHistory;
+        JSObject result = new JSObject();
+        if (history == null) {
+            byte[] empty = new byte[PacketRecords.BATCH_HEADER];
+            PacketRecords.writeBatchHeader(empty, 0, 0, 0);
+            result.put("data", Base64.encodeToString(empty, Base64.NO_WRAP));
+            result.put("seqs", new JSONArray());
+            result.put("nextSeq", 0);
+            result.put("oldestSeq", 1);
+            result.put("newestSeq", 0);
+            return result;
+        }
+        CaptureHistory.Page page = history.query(fromSeq, limit, backward, filter);
+        JSONArray seqs = new JSONArray();
+        for (long seq : page.seqs) {
+            seqs.put(seq);
+        }
+        result.put("data", Base64.encodeToString(page.data, Base64.NO_WRAP));
+        result.put("seqs", seqs);
+        result.put("nextSeq", page.nextSeq);
+        result.put("oldestSeq", page.oldestSeq);
+        result.put("newestSeq", page.newestSeq);
+        return result;
+    }
+
+    private static CaptureHistory.Filter historyFilter(JSONObject filter) {
+        if (filter == null) {
+            return null;
+        }
+        int protocol = -1;
+        Object name = filter.opt("protocol");
+        if (name instanceof Number) {
+            protocol = ((Number) name).intValue();
+        } else if (name instanceof String) {
+            for (int p = 0; p < 256 && protocol < 0; p++) {
+                if (PacketView.protocolName(p).equalsIgnoreCase((String) name)) {
+                    protocol = p;
+                }
+            }
+            if (protocol < 0) {
+                throw new IllegalArgumentException("Unknown protocol: " + name);
+            }
+        }
+        String direction = filter.optString("direction", null);
+        int incoming = direction == null ? -1 : "incoming".equals(direction) ? 1 : 0;
+        return new CaptureHistory.FieldFilter(protocol, incoming, filter.optInt("port", -1));
+    }
+
+    /** {@code {status: 'success', seq, data}} or {@code {status: 'not_found', seq}}. */
+    private static JSObject packetFromHistory(JSONObject options) throws JSONException {
+        long seq = options.optLong("seq", 0);
+        CaptureHistory history = captureHistory;
+        byte[] data = history != null ? history.get(seq) : null;
+        JSObject result = new JSObject();
+        result.put("seq", seq);
+        if (data == null) {
+            result.put("status", "not_found");
+        } else {
+            result.put("status", "success");
+            result.put("data", Base64.encodeToString(data, Base64.NO_WRAP));
+        }
+        return result;
+    }
+
+    /**
+     * Reads bytes kept for a packet, counted from the start of its transport
+     * header (or of the IP payload when there is none). Options are
+     * {@code seq}, {@code offset} (default 0), {@code length} (default all
+     * that is kept) and {@code render}, {@code 'hex'} or {@code 'ascii'} to add
+     * a text rendering. Gives {@code {status: 'success', seq, offset, length,
+     * available, data}} with the bytes base64-encoded and {@code available}
+     * the number kept in all, or {@code {status: 'not_found', seq}}.
+     */
+    private static JSObject payloadFromHistory(JSONObject options) throws JSONException {
+        long seq = options.optLong("seq", 0);
+        String render = options.optString("render", "");
+        if (!render.isEmpty() && !"hex".equals(render) && !"ascii".equals(render)) {
+            throw new IllegalArgumentException("Unknown render: " + render);
+        }
+        CaptureHistory history = captureHistory;
+        byte[] data = history != null ? history.get(seq) : null;
+        JSObject result = new JSObject();
+        result.put("seq", seq);
+        if (data == null) {
+            result.put("status", "not_found");
+            return result;
+        }
+        int record = PacketRecords.BATCH_HEADER;
+        int available = PacketRecords.previewLength(data, record);
+        int offset = Math.min(Math.max(options.optInt("offset", 0), 0), available);
+        int length = Math.min(Math.max(options.optInt("length", available), 0), available - offset);
+        int start = PacketRecords.previewStart(data, record) + offset;
+        result.put("status", "success");
+        result.put("offset", offset);
+        result.put("length", length);
+        result.put("available", available);
+        result.put("data", Base64.encodeToString(data, start, length, Base64.NO_WRAP));
+        if ("hex".equals(render)) {
+            result.put("hex", HexDump.appendHex(new StringBuilder(length * 3), ByteBuffer.wrap(data), start, length)
+                    .toString());
+        } else if ("ascii".equals(render)) {
+            result.put("ascii", HexDump.appendAscii(new StringBuilder(length), ByteBuffer.wrap(data), start, length)
+                    .toString());
+        }
+        return result;
+    }
+
+    /**
+     * {@code {status: 'success', seq, protocol, truncated, fields}}, where each
+     * field is {@code {name, value, children}}; {@code {status: 'not_found', seq}}
+     * if the packet is no longer held; or {@code {status: 'not_dissected', seq}}
+     * if it carries no payload in a protocol we decode. Decoding happens here,
+     * on request, never on the capture path.
+     */
+    private static JSObject dissectFromHistory(JSONObject options) throws JSONException {
+        long seq = options.optLong("seq", 0);
+        CaptureHistory history = captureHistory;
+        Dissectors registry = dissectors;
+        byte[] data = history != null ? history.get(seq) : null;
+        JSObject result = new JSObject();
+        result.put("seq", seq);
+        if (data == null) {
+            result.put("status", "not_found");
+            return result;
+        }
+        Dissection dissection = registry != null ? registry.dissectRecord(data, PacketRecords.BATCH_HEADER) : null;
+        if (dissection == null) {
+            result.put("status", "not_dissected");
+            return result;
+        }
+        result.put("status", "success");
+        result.put("protocol", dissection.protocol);
+        result.put("truncated", dissection.isTruncated());
+        result.put("fields", fieldsToJson(dissection.root.children()));
+        return result;
+    }
+
+    private static JSONArray fieldsToJson(List<Dissection.Field> fields) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Dissection.Field field : fields) {
+            JSObject json = new JSObject();
+            json.put("name", field.name);
+            if (field.value != null) {
+                json.put("value", field.value);
+            }
+            if (!field.children().isEmpty()) {
+                json.put("children", fieldsToJson(field.children()));
+            }
+            array.put(json);
+        }
+        return array;
+    }
+
+    /**
+     * Replaces the capture filter; see {@link #applyCaptureFilter}. Takes
+     * effect from the next packet, including while capture is running.
+     */
+    @PluginMethod
+    public void setCaptureFilter(PluginCall call) {
+        try {
+            call.resolve(applyCaptureFilter(call.getString("filter")));
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    /**
+     * Compiles {@code expression} (see {@link CaptureFilter}) and swaps it
+     * in; null or blank removes the filter. A bad expression leaves the
+     * current filter in place. The result holds the filter in canonical form
+     * and how many packets the one it replaced had rejected.
+     */
+    private static JSObject applyCaptureFilter(String expression) {
+        CaptureFilter filter = expression == null || expression.trim().isEmpty()
+                ? null : CaptureFilter.compile(expression);
+        CaptureFilter previous = captureFilter;
+        captureFilter = filter;
+        Log.d(TAG, "Capture filter set to " + (filter != null ? filter : "none"));
+        JSObject result = new JSObject();
+        result.put("status", "success");
+        result.put("filter", filter != null ? filter.toString() : "");
+        result.put("previousRejected", previous != null ? previous.rejected() : 0);
+        return result;
+    }
+
+    /**
+     * Starts writing captured packets to PCAPNG files; see
+     * {@link #startRecording} for the options.
+     */
+    @PluginMethod
+    public void startCaptureFile(PluginCall call) {
+        try {
+            call.resolve(startRecording(call.getData()));
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void stopCaptureFile(PluginCall call) {
+        stopCaptureRecorder();
+        call.resolve(captureFilesToJson());
+    }
+
+    /** Capture files on disk, and the recording's counters if one is running. */
+    @PluginMethod
+    public void getCaptureFiles(PluginCall call) {
+        call.resolve(captureFilesToJson());
+    }
+
+    /** Offers one capture file, by {@code name}, to other apps through the FileProvider. */
+    @PluginMethod
+    public void shareCaptureFile(PluginCall call) {
+        try {
+            openShareSheet(call.getString("name"));
+            JSObject result = new JSObject();
+            result.put("status", "success");
+            call.resolve(result);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    private File captureDirectory() {
+        return new File(getContext().getCacheDir(), CAPTURE_DIRECTORY);
+    }
+
+    /**
+     * Replaces any running recording with a new one. Options are
+     * {@code snapLength}, {@code maxFileBytes}, {@code maxFileSeconds} and
+     * {@code maxFiles}; files beyond {@code maxFiles} are deleted oldest first.
+     */
+    private JSObject startRecording(JSONObject options) {
+        PcapngWriter writer = new PcapngWriter(captureDirectory(),
+                options.optInt("snapLength", PcapngWriter.MAX_SNAP_LENGTH),
+                options.optLong("maxFileBytes", DEFAULT_CAPTURE_FILE_BYTES),
+                TimeUnit.SECONDS.toMillis(options.optLong("maxFileSeconds", DEFAULT_CAPTURE_FILE_SECONDS)),
+                options.optInt("maxFiles", DEFAULT_CAPTURE_FILES));
+        // Same lock as stopCaptureRecorder, so a VPN stop can't interleave
+        synchronized (ToyVpnPlugin.class) {
+            stopCaptureRecorder();
+            // One producer per capture worker, however many the service runs
+            PcapngRecorder recorder = new PcapngRecorder(writer, ToyVpnService.MAX_PACKET_SIZE,
+                    CapturePipeline.MAX_WORKERS);
+            recorder.start();
+            captureRecorder = recorder;
+        }
+        Log.d(TAG, "Capture file recording started in " + captureDirectory());
+        return captureFilesToJson();
+    }
+
+    /**
+     * {@code files} holds every capture file in the directory, newest first,
+     * with {@code name}, {@code size}, {@code modified} and {@code recording}
+     * (true for the one being written). While recording, {@code recorder}
+     * holds its counters; {@code dropped} and {@code slowWrites} show
+     * packets lost to a slow disk rather than a stalled capture.
+     */
+    private JSObject captureFilesToJson() {
+        PcapngRecorder recorder = captureRecorder;
+        File current = recorder != null ? recorder.writer().currentFile() : null;
+        File[] files = captureDirectory().listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+
+        JSONArray list = new JSONArray();
+        for (File file : files) {
+            if (!file.getName().endsWith(PcapngWriter.FILE_SUFFIX)) {
+                continue;
+            }
+            JSObject entry = new JSObject();
+            entry.put("name", file.getName());
+            entry.put("size", file.length());
+            entry.put("modified", file.lastModified());
+            entry.put("recording", file.equals(current));
+            list.put(entry);
+        }
+        JSObject result = new JSObject();
+        result.put("status", "success");
+        result.put("recording", recorder != null);
+        result.put("files", list);
+        if (recorder != null) {
+            PcapngWriter writer = recorder.writer();
+            JSObject counters = new JSObject();
+            counters.put("snapLength", writer.snapLength());
+            counters.put("offered", recorder.offered());
+            counters.put("dropped", recorder.dropped() + writer.packetsDropped());
+            counters.put("queued", recorder.queued());
+            counters.put("packetsWritten", writer.packetsWritten());
+            counters.put("bytesWritten", writer.bytesWritten());
+            counters.put("filesStarted", writer.filesStarted());
+            counters.put("writeErrors", writer.writeErrors());
+            counters.put("slowWrites", writer.slowWrites());
+            counters.put("maxWriteMs", writer.maxWriteMs());
+            result.put("recorder", counters);
+        }
+        return result;
+    }
+
+    /**
+     * Opens the share sheet for a capture file. The file being recorded can
+     * be shared too; it holds whatever has been written out so far.
+     */
+    private void openShareSheet(String name) {
+        File directory = captureDirectory();
+        File file = name != null ? new File(directory, name) : null;
+        if (file == null || !directory.equals(file.getParentFile())
+                || !name.endsWith(PcapngWriter.FILE_SUFFIX) || !file.isFile()) {
+            throw new IllegalArgumentException("No such capture file: " + name);
+        }
+        Context context = getContext();
+        Uri uri = FileProvider.getUriForFile(context, context.getPackageName() + ".fileprovider", file);
+        Intent send = new Intent(Intent.ACTION_SEND);
+        send.setType("application/vnd.tcpdump.pcap");
+        send.putExtra(Intent.EXTRA_STREAM, uri);
+        send.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        getActivity().startActivity(Intent.createChooser(send, name));
+    }
+
     @PluginMethod
     public void removeAllListeners(PluginCall call) {
         try {
             Log.d(TAG, "removeAllListeners method called");
-            notifyListeners("packetCaptured", null);
+            notifyListeners("packetsCaptured", null);
             call.resolve();
         } catch (Exception e) {
             Log.e(TAG, "Error in removeAllListeners", e);
@@ -370,104 +1292,56 @@ public class ToyVpnPlugin extends Plugin {
     }
     
     /**
-     * Direct method to stop the VPN service without requiring a PluginCall
-     * Used when the app is being destroyed and we need to ensure cleanup
+     * Asks the service to stop without a plugin call to resolve, such as when
+     * the activity is destroyed. The page gets vpnStopping now and vpnStopped
+     * once the service is done.
      */
     public void directStopVpn() {
         Log.d(TAG, "directStopVpn called (without plugin call)");
-        
-        // First notify frontend that VPN is stopping
         try {
-            notifyListeners("vpnStopping", new JSObject());
+            notifyStopping();
+            sendDisconnect();
         } catch (Exception e) {
-            Log.e(TAG, "Error sending vpnStopping event", e);
+            Log.e(TAG, "Error asking the VPN service to stop", e);
         }
-        
-        // Create a thread to handle VPN stopping to avoid blocking UI
-        Thread stopThread = new Thread(() -> {
-            boolean stoppedSuccessfully = false;
-            
-            // First approach: send disconnect action in a safe manner
-            
-            try {
-                // Application context approach
-                Context appContext = getContext().getApplicationContext();
-                Intent intent = new Intent(appContext, ToyVpnService.class);
-                intent.setAction(ToyVpnService.ACTION_DISCONNECT);
-                appContext.startService(intent);
-                Log.d(TAG, "Sent disconnect action via application context");
-                
-                // Wait for the service to process the disconnect action
-                try { Thread.sleep(300); } catch (InterruptedException e) { /* ignore */ }
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending disconnect action", e);
-            }
-            
-            // Gently stop the service
-            try {
-                // Application context stop
-                Context appContext = getContext().getApplicationContext();
-                Intent intent = new Intent(appContext, ToyVpnService.class);
-                boolean stopped = appContext.stopService(intent);
-                Log.d(TAG, "App context stopService result: " + stopped);
-                if (stopped) stoppedSuccessfully = true;
-                
-                // Wait a moment to ensure the service is stopping
-                try { Thread.sleep(200); } catch (InterruptedException e) { /* ignore */ }
-            } catch (Exception e) {
-                Log.e(TAG, "Error stopping service directly", e);
-            }
-            
-            // Try with activity context if needed
-            if (!stoppedSuccessfully && getActivity() != null) {
-                try {
-                    Intent intent = new Intent(getActivity(), ToyVpnService.class);
-                    boolean stopped = getActivity().stopService(intent);
-                    Log.d(TAG, "Activity stopService result: " + stopped);
-                    if (stopped) stoppedSuccessfully = true;
-                } catch (Exception e) {
-                    Log.e(TAG, "Error stopping service via activity", e);
-                }
-            }
-            
-            // Reset the vpnServiceIntent reference
-            vpnServiceIntent = null;
-            
-            // Notify that VPN is stopped
-            getBridge().executeOnMainThread(() -> {
-                try {
-                    notifyListeners("vpnStopped", new JSObject());
-                    Log.d(TAG, "Sent vpnStopped event to JS layer from direct method");
-                } catch (Exception e) {
-                    Log.e(TAG, "Error sending vpnStopped event from direct method", e);
-                }
-            });
-        });
-        
-        // Set as daemon to avoid blocking app shutdown
-        stopThread.setDaemon(true);
-        stopThread.start();
     }
     
     /**
-     * Static method to notify VPN stopped event from other classes like ToyVpnService
-     * This is used because notifyListeners is protected and can't be called directly from outside Plugin classes
+     * Called by the service once its session is torn down, or straight away
+     * if none was running. Sends vpnStopped with the stop's timings, through
+     * the plugin and the shim alike, and resolves every waiting stopVpn call
+     * with the same data.
+     *
+     * @param report how long each pipeline stage took to stop, or null if
+     *        nothing was running
      */
-    public static void notifyVpnStopped() {
-        Log.d(TAG, "Static notifyVpnStopped called");
-        if (instance != null) {
-            try {
-                // Create an empty JSObject for the event data
-                JSObject data = new JSObject();
-                // Use the instance to call the protected notifyListeners method
-                instance.notifyListeners("vpnStopped", data);
-                Log.d(TAG, "VPN stopped event sent via static method");
-            } catch (Exception e) {
-                Log.e(TAG, "Error in static notifyVpnStopped method", e);
-            }
-        } else {
+    public static void notifyVpnStopped(long stopNanos, PipelineStages.Report report) {
+        ToyVpnPlugin plugin = instance;
+        if (plugin == null) {
             Log.e(TAG, "Cannot notify VPN stopped - no plugin instance available");
+            return;
+        }
+        JSObject stages = new JSObject();
+        if (report != null) {
+            for (int i = 0; i < report.stages(); i++) {
+                long nanos = report.stoppedNanos(i);
+                stages.put(report.name(i), nanos < 0 ? -1 : nanos / 1e6);
+            }
         }
+        JSObject data = new JSObject();
+        data.put("status", "stopped");
+        data.put("success", report == null || report.complete());
+        data.put("stopMs", stopNanos / 1e6);
+        data.put("stages", stages);
+        try {
+            plugin.notifyListeners("vpnStopped", data);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending vpnStopped event", e);
+        }
+        plugin.dispatchEvent("vpnStopped", data);
+        plugin.mainHandler.removeCallbacks(plugin.stopUnconfirmed);
+        plugin.resolveStops(data);
+        plugin.resolveShimStops(data);
     }
     
     public class ToyVpnJSInterface {
@@ -556,71 +1430,169 @@ public class ToyVpnPlugin extends Plugin {
             }
         }
         
+        /**
+         * Starts the stop and returns straight away; the shim's stopVpn
+         * promise settles when the service reports back, with the same
+         * timings vpnStopped carries.
+         */
         @JavascriptInterface
         public String stopVpn() {
             Log.d(TAG, "JS Interface: stopVpn called");
+            directStopVpn();
+            mainHandler.removeCallbacks(stopUnconfirmed);
+            mainHandler.postDelayed(stopUnconfirmed, STOP_CONFIRM_TIMEOUT_MS);
+            return "{\"status\":\"stopping\",\"message\":\"VPN stopping process initiated\"}";
+        }
+        
+        @JavascriptInterface
+        public String setBatchOptions(String optionsJson) {
+            Log.d(TAG, "JS Interface: setBatchOptions called with options: " + optionsJson);
             try {
-                // First immediately notify frontend that VPN is stopping
-                if (instance != null) {
-                    instance.notifyListeners("vpnStopping", new JSObject());
-                }
-                
-                // Use the main directStopVpn method to leverage all the aggressive termination techniques
-                if (instance != null) {
-                    instance.directStopVpn();
-                } else {
-                    // Fallback if instance is not available
-                    Log.d(TAG, "JS Interface: Instance not available, using fallback stopVpn mechanism");
-                    
-                    // Try to stop by class as fallback in all contexts
-                    if (android.os.Looper.myLooper() == android.os.Looper.getMainLooper()) {
-                        // We're on the main thread
-                        if (vpnServiceIntent != null) {
-                            getActivity().stopService(vpnServiceIntent);
-                            vpnServiceIntent = null;
-                        }
-                        
-                        // Try to stop by class as well
-                        Intent stopIntent = new Intent(getActivity(), ToyVpnService.class);
-                        stopIntent.setAction(ToyVpnService.ACTION_DISCONNECT);
-                        getActivity().startService(stopIntent);
-                        getActivity().stopService(stopIntent);
-                    } else {
-                        // We're on a background thread
-                        getActivity().runOnUiThread(() -> {
-                            if (vpnServiceIntent != null) {
-                                getActivity().stopService(vpnServiceIntent);
-                                vpnServiceIntent = null;
-                            }
-                            
-                            // Try to stop by class as well
-                            Intent stopIntent = new Intent(getActivity(), ToyVpnService.class);
-                            stopIntent.setAction(ToyVpnService.ACTION_DISCONNECT);
-                            getActivity().startService(stopIntent);
-                            getActivity().stopService(stopIntent);
-                        });
-                    }
-                    
-                    // Notify that VPN is stopped even in fallback case
-                    if (instance != null) {
-                        instance.notifyListeners("vpnStopped", new JSObject());
-                    }
-                }
-                
+                JSONObject options = new JSONObject(optionsJson);
+                configureBatching(
+                        options.optInt("maxBatchSize", packetBatcher.maxBatchSize()),
+                        options.optLong("maxDelayMs", packetBatcher.maxDelayMs()),
+                        options.optInt("maxPending", packetBatcher.maxPending()),
+                        options.optString("encoding", null));
                 JSONObject result = new JSONObject();
+                result.put("status", "success");
+                return result.toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in setBatchOptions", e);
                 try {
-                    result.put("status", "stopping");
-                    result.put("message", "VPN stopping process initiated");
-                    return result.toString();
+                    JSONObject error = new JSONObject();
+                    error.put("status", "error");
+                    error.put("message", e.getMessage());
+                    return error.toString();
                 } catch (JSONException je) {
-                    return "{\"status\":\"stopping\",\"message\":\"VPN stopping process initiated\"}";
+                    return "{\"status\":\"error\",\"message\":\"Unknown error\"}";
                 }
+            }
+        }
+
+        @JavascriptInterface
+        public String getStats() {
+            return statsToJson(currentStats()).toString();
+        }
+
+        @JavascriptInterface
+        public String getMetrics() {
+            return metricsToJson().toString();
+        }
+
+        @JavascriptInterface
+        public String setMetricsOptions(String optionsJson) {
+            try {
+                configureMetricsEvents(new JSONObject(optionsJson).optLong("intervalMs", 0));
+                JSONObject result = new JSONObject();
+                result.put("status", "success");
+                return result.toString();
             } catch (Exception e) {
-                Log.e(TAG, "Error stopping VPN in JS interface", e);
-                return "{\"status\":\"error\",\"message\":\"" + e.getMessage() + "\"}";
+                Log.e(TAG, "JS Interface: Error in setMetricsOptions", e);
+                return errorJson(e);
             }
         }
-        
+
+        @JavascriptInterface
+        public String queryPackets(String optionsJson) {
+            try {
+                return queryHistory(new JSONObject(optionsJson)).toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in queryPackets", e);
+                return errorJson(e);
+            }
+        }
+
+        @JavascriptInterface
+        public String getPacket(String optionsJson) {
+            try {
+                return packetFromHistory(new JSONObject(optionsJson)).toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in getPacket", e);
+                return errorJson(e);
+            }
+        }
+
+        @JavascriptInterface
+        public String getPacketPayload(String optionsJson) {
+            try {
+                return payloadFromHistory(new JSONObject(optionsJson)).toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in getPacketPayload", e);
+                return errorJson(e);
+            }
+        }
+
+        @JavascriptInterface
+        public String dissectPacket(String optionsJson) {
+            try {
+                return dissectFromHistory(new JSONObject(optionsJson)).toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in dissectPacket", e);
+                return errorJson(e);
+            }
+        }
+
+        @JavascriptInterface
+        public String getAppStats() {
+            return appStatsToJson().toString();
+        }
+
+        @JavascriptInterface
+        public String setCaptureFilter(String optionsJson) {
+            try {
+                return applyCaptureFilter(new JSONObject(optionsJson).optString("filter", null)).toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in setCaptureFilter", e);
+                return errorJson(e);
+            }
+        }
+
+        @JavascriptInterface
+        public String startCaptureFile(String optionsJson) {
+            try {
+                return startRecording(new JSONObject(optionsJson)).toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in startCaptureFile", e);
+                return errorJson(e);
+            }
+        }
+
+        @JavascriptInterface
+        public String stopCaptureFile() {
+            stopCaptureRecorder();
+            return captureFilesToJson().toString();
+        }
+
+        @JavascriptInterface
+        public String getCaptureFiles() {
+            return captureFilesToJson().toString();
+        }
+
+        @JavascriptInterface
+        public String shareCaptureFile(String optionsJson) {
+            try {
+                openShareSheet(new JSONObject(optionsJson).optString("name", null));
+                JSONObject result = new JSONObject();
+                result.put("status", "success");
+                return result.toString();
+            } catch (Exception e) {
+                Log.e(TAG, "JS Interface: Error in shareCaptureFile", e);
+                return errorJson(e);
+            }
+        }
+
+        private String errorJson(Exception e) {
+            try {
+                JSONObject error = new JSONObject();
+                error.put("status", "error");
+                error.put("message", e.getMessage());
+                return error.toString();
+            } catch (JSONException je) {
+                return "{\"status\":\"error\",\"message\":\"Unknown error\"}";
+            }
+        }
+
         @JavascriptInterface
         public void addListener(String eventName) {
             Log.d(TAG, "JS Interface: addListener called for event: " + eventName);
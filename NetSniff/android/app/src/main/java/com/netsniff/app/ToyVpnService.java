@@ -8,7 +8,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.VpnService;
 import android.os.Build;
+import android.os.Debug;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.net.Network;
 import android.net.NetworkCapabilities;
@@ -21,45 +23,80 @@ import com.getcapacitor.JSObject;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Queue;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.lang.reflect.Method;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ToyVpnService extends VpnService {
     private static final String TAG = "ToyVpnService";
     private static final int BUFFER_SIZE = 32767;
-    private static final int MAX_PACKET_SIZE = 1500;
+    static final int MAX_PACKET_SIZE = 1500;
+    // Slots in each direction's ring between the TUN and network threads
+    private static final int RING_CAPACITY = 128;
+    private static final SpscRing.OverflowPolicy OUTBOUND_OVERFLOW = SpscRing.OverflowPolicy.DROP_NEWEST;
+    private static final SpscRing.OverflowPolicy INBOUND_OVERFLOW = SpscRing.OverflowPolicy.DROP_NEWEST;
+    // Enough for both rings to be full while each thread holds a buffer of its own
+    private static final int BUFFER_POOL_SIZE = 2 * RING_CAPACITY + 16;
+    // Longest the network thread sleeps in select() before re-checking the running flag
+    private static final long NETWORK_IDLE_SELECT_MS = 250;
+    // Budget for every pipeline thread to finish once told to stop; each normally takes well under a millisecond
+    private static final long STOP_TIMEOUT_MS = 100;
+    // Bytes kept per packet in the history, starting at the transport header; enough to dissect
+    // a typical DNS message or ClientHello, and what getPacketPayload can hand back
+    static final int HISTORY_SNAP_LENGTH = 512;
+    // Capture stages are timed for one packet in this many, so the clock reads stay off the rest
+    private static final int STAGE_TIMING_INTERVAL = 16;
     private static final String VPN_ADDRESS = "10.0.0.2";
     private static final String VPN_ROUTE = "0.0.0.0";
+    private static final String VPN_ADDRESS_V6 = "fd00:1:fd00:1:fd00:1:fd00:1";
+    private static final String VPN_ROUTE_V6 = "::";
+    // Handed to the system as the only DNS server; queries to it are answered by DnsForwarder
+    private static final String VPN_DNS_ADDRESS = "10.0.0.53";
+    private static final int VPN_DNS_ADDRESS_INT = 0x0A000035;
+    private static final String[] UPSTREAM_DNS = {"8.8.8.8", "8.8.4.4"};
     
     // Action constants
     public static final String ACTION_CONNECT = "com.netsniff.app.START";
     public static final String ACTION_DISCONNECT = "com.netsniff.app.STOP";
     private static final int VPN_PREFIX_LENGTH = 32;
+    private static final int VPN_PREFIX_LENGTH_V6 = 128;
     private static final int ROUTE_PREFIX_LENGTH = 0;
     
     private static final int NOTIFICATION_ID = 1234;
     private static final String CHANNEL_ID = "NetSniffVpnChannel";
     
     private ParcelFileDescriptor vpnInterface = null;
-    private ExecutorService executorService;
+    // The session's threads, each with what unblocks it; null while no session is running
+    private PipelineStages stages;
     private AtomicBoolean running = new AtomicBoolean(false);
-    private Queue<ByteBuffer> deviceToNetworkQueue;
-    private Queue<ByteBuffer> networkToDeviceQueue;
+    private SpscRing<ByteBuffer> deviceToNetworkQueue;
+    private SpscRing<ByteBuffer> networkToDeviceQueue;
+    private PacketBufferPool bufferPool;
+    // Per-connection counters, updated for every packet whether or not JS is listening; one
+    // partition per capture worker
+    private final FlowTables flowTables = new FlowTables(CapturePipeline.defaultWorkers());
+    private final Dissectors dissectors = Dissectors.withDefaults();
+    // Lifetime totals for the current session, read by the page through the plugin
+    private TrafficStats trafficStats;
+    // Looks up which app owns each new flow; null before Android 10, which can't say
+    private AppAttribution appAttribution;
+    // Every packet of the current session, for paging through on the page; outlives the session
+    private CaptureHistory captureHistory;
+    // Decodes, counts and reports captured packets off the forwarding threads
+    private CapturePipeline capturePipeline;
+    // Counters, queue depths and stage latencies for the diagnostics screen; one per session
+    private MetricsRegistry metrics;
     private Network underlyingNetwork;
-    private boolean isFirstPacket = true;
+    // Set by whichever capture worker logs the session's first packet
+    private final AtomicBoolean firstPacketLogged = new AtomicBoolean();
 
     @Override
     public void onCreate() {
@@ -108,7 +145,8 @@ public class ToyVpnService extends VpnService {
             Log.d(TAG, "Received DISCONNECT action, stopping VPN service");
             stopVpn();
             stopForeground(true);
-            stopSelf();
+            // Only if no start has been queued since, so a quick restart is not undone
+            stopSelf(startId);
             return START_NOT_STICKY;
         }
         
@@ -118,29 +156,99 @@ public class ToyVpnService extends VpnService {
             return START_STICKY;
         }
         
+        long startNanos = System.nanoTime();
         // Start as a foreground service with notification
         startForeground(NOTIFICATION_ID, createNotification());
 
-        deviceToNetworkQueue = new ConcurrentLinkedQueue<>();
-        networkToDeviceQueue = new ConcurrentLinkedQueue<>();
-        executorService = Executors.newFixedThreadPool(3);
-        establishVpn();
-        
+        bufferPool = new PacketBufferPool(MAX_PACKET_SIZE, BUFFER_POOL_SIZE);
+        deviceToNetworkQueue = new SpscRing<>(RING_CAPACITY, OUTBOUND_OVERFLOW, bufferPool::release);
+        networkToDeviceQueue = new SpscRing<>(RING_CAPACITY, INBOUND_OVERFLOW, bufferPool::release);
+        metrics = new MetricsRegistry();
+        registerSessionMetrics(metrics, bufferPool, deviceToNetworkQueue, networkToDeviceQueue);
+        stages = new PipelineStages();
+        trafficStats = new TrafficStats(System.currentTimeMillis());
+        flowTables.resetAppUsage();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            appAttribution = new AppAttribution(flowTables, this::connectionOwnerUid);
+            appAttribution.start();
+            stages.add(appAttribution);
+        }
+        flowTables.setClassifier(dissectors);
+        ToyVpnPlugin.attachFlowTables(flowTables);
+        ToyVpnPlugin.attachDissectors(dissectors);
+        ToyVpnPlugin.attachTrafficStats(trafficStats);
+        captureHistory = new CaptureHistory(CaptureHistory.DEFAULT_MAX_RECORDS, CaptureHistory.DEFAULT_ARENA_BYTES,
+                flowTables.partitions());
+        ToyVpnPlugin.attachHistory(captureHistory);
+        ToyVpnPlugin.attachMetrics(metrics);
+        if (establishVpn()) {
+            final long startMicros = (System.nanoTime() - startNanos) / 1000;
+            metrics.gauge("lifecycle.startUs", () -> startMicros);
+            Log.i(TAG, String.format(Locale.US, "VPN started in %.2f ms", startMicros / 1000.0));
+        }
+
         return START_STICKY;
     }
 
-    private void establishVpn() {
+    /**
+     * Queue depths, buffer-pool use, drops and GC for the session. Reads the
+     * objects passed in rather than the fields, which cleanup clears.
+     */
+    private static void registerSessionMetrics(MetricsRegistry metrics, final PacketBufferPool pool,
+                                               final SpscRing<ByteBuffer> outbound,
+                                               final SpscRing<ByteBuffer> inbound) {
+        metrics.gauge("queue.outbound", outbound::size);
+        metrics.gauge("queue.inbound", inbound::size);
+        metrics.counter("drops.outboundRing", outbound::dropped);
+        metrics.counter("drops.inboundRing", inbound::dropped);
+        metrics.gauge("pool.inFlight", pool::inFlight);
+        metrics.gauge("pool.available", pool::available);
+        metrics.counter("pool.hits", pool::hits);
+        metrics.counter("pool.misses", pool::misses);
+        metrics.counter("pool.exhausted", pool::exhausted);
+        // ART's totals for the whole process; the rate of blocking GC time is
+        // roughly how many milliseconds per second the app spends paused
+        metrics.counter("gc.count", () -> runtimeStat("art.gc.gc-count"));
+        metrics.counter("gc.timeMs", () -> runtimeStat("art.gc.gc-time"));
+        metrics.counter("gc.blockingCount", () -> runtimeStat("art.gc.blocking-gc-count"));
+        metrics.counter("gc.blockingTimeMs", () -> runtimeStat("art.gc.blocking-gc-time"));
+    }
+
+    /** One of ART's runtime statistics, or 0 if this runtime does not report it. */
+    private static long runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Which app owns a TCP or UDP socket; Android only answers this for the active VPN app. */
+    private int connectionOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return FlowTable.UID_UNKNOWN;
+        }
+        ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+        return cm.getConnectionOwnerUid(protocol, local, remote);
+    }
+
+    /** @return whether the session is up; if not, it has been torn down again */
+    private boolean establishVpn() {
         try {
             Builder builder = new Builder()
                 .addAddress(VPN_ADDRESS, VPN_PREFIX_LENGTH)
                 .addRoute(VPN_ROUTE, ROUTE_PREFIX_LENGTH)
+                .addAddress(VPN_ADDRESS_V6, VPN_PREFIX_LENGTH_V6)
+                .addRoute(VPN_ROUTE_V6, ROUTE_PREFIX_LENGTH)
                 .setSession("NetSniff")
                 .setMtu(MAX_PACKET_SIZE)
+                // TunReader parks in read() instead of polling a non-blocking descriptor
+                .setBlocking(true)
                 .allowFamily(android.system.OsConstants.AF_INET)
                 .allowFamily(android.system.OsConstants.AF_INET6);
 
-            builder.addDnsServer("8.8.8.8");
-            builder.addDnsServer("8.8.4.4");
+            builder.addDnsServer(VPN_DNS_ADDRESS);
 
             // Exclude our app from the VPN to avoid loops
             builder.addDisallowedApplication(getPackageName());
@@ -148,9 +256,10 @@ public class ToyVpnService extends VpnService {
             vpnInterface = builder.establish();
             if (vpnInterface == null) {
                 Log.e(TAG, "Failed to establish VPN connection");
+                cleanup();
                 stopForeground(true);
                 stopSelf();
-                return;
+                return false;
             }
 
             ConnectivityManager cm = getSystemService(ConnectivityManager.class);
@@ -158,185 +267,210 @@ public class ToyVpnService extends VpnService {
             setUnderlyingNetworks(new Network[]{underlyingNetwork});
 
             running.set(true);
-            
-            executorService.submit(new VPNRunnable());
-            executorService.submit(new NetworkRunnable());
+
+            FileChannel tunIn = new FileInputStream(vpnInterface.getFileDescriptor()).getChannel();
+            FileChannel tunOut = new FileOutputStream(vpnInterface.getFileDescriptor()).getChannel();
+            SelectorWakeup networkWakeup = new SelectorWakeup(Selector.open());
+
+            final CaptureEvents events = new CaptureEvents();
+            final LatencyHistogram[] stageLatency = CaptureProcessor.stageHistograms(metrics);
+            // Each worker records into its own partition of the flow tables and the history
+            final CapturePipeline pipeline = new CapturePipeline(flowTables.partitions(), MAX_PACKET_SIZE,
+                    index -> new CaptureProcessor(index, flowTables.partition(index), trafficStats,
+                            captureHistory.partition(index), HISTORY_SNAP_LENGTH, PLUGIN_TAPS, events, stageLatency,
+                            STAGE_TIMING_INTERVAL));
+            // Later failures only show in capture.failed
+            pipeline.setFailureListener((index, failure) ->
+                    Log.e(TAG, "Capture worker " + index + " failed on a packet", failure));
+            metrics.gauge("queue.capture", pipeline::queued);
+            metrics.counter("drops.capture", pipeline::dropped);
+            metrics.counter("capture.failed", pipeline::failed);
+            capturePipeline = pipeline;
+            capturePipeline.start();
+            stages.add(capturePipeline);
+
+            // Reader, writer and network loop each block on their own event, so no direction waits
+            // on another. Closing the TUN channel ends a blocked read(), closing the inbound ring
+            // wakes the writer, and waking the selector lets the network loop see running is false
+            final Selector selector = networkWakeup.selector();
+            stages.start("TunReader", new TunReader(tunIn, bufferPool, deviceToNetworkQueue,
+                    networkWakeup::signal, capturePipeline.sink(false), running, metrics), tunIn);
+            stages.start("TunWriter", new TunWriter(tunOut, bufferPool, networkToDeviceQueue, running, metrics),
+                    networkToDeviceQueue::close);
+            stages.start("NetworkLoop", new NetworkRunnable(networkWakeup, capturePipeline.sink(true), metrics),
+                    selector::wakeup);
             
             Log.d(TAG, "VPN connection established successfully");
-            
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Error establishing VPN", e);
             cleanup();
             stopForeground(true);
             stopSelf();
+            return false;
         }
     }
 
-    private class VPNRunnable implements Runnable {
+    /** The filter and recording the page has set on the plugin. */
+    private static final CaptureProcessor.Taps PLUGIN_TAPS = new CaptureProcessor.Taps() {
         @Override
-        public void run() {
-            FileInputStream in = new FileInputStream(vpnInterface.getFileDescriptor());
-            FileOutputStream out = new FileOutputStream(vpnInterface.getFileDescriptor());
-            ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        public CaptureFilter filter() {
+            return ToyVpnPlugin.captureFilter();
+        }
 
-            while (running.get()) {
-                try {
-                    packet.clear();
-                    int length = in.read(packet.array());
-                    if (length > 0) {
-                        packet.limit(length);
-                        ByteBuffer copy = ByteBuffer.allocate(length);
-                        copy.put(packet.array(), 0, length);
-                        copy.flip();
-                        
-                        // Process outgoing packets
-                        processPacket(copy, "outgoing");
-                        
-                        deviceToNetworkQueue.offer(copy);
-                    }
-                    
-                    // Check for incoming packets
-                    ByteBuffer received = networkToDeviceQueue.poll();
-                    if (received != null) {
-                        out.write(received.array(), 0, received.limit());
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "VPN thread error", e);
-                    if (!running.get()) break;
-                }
+        @Override
+        public PcapngRecorder recorder() {
+            return ToyVpnPlugin.captureRecorder();
+        }
+    };
+
+    /** Hands captured packets to the page, as binary records or JSON as it asked. */
+    private class CaptureEvents implements CaptureProcessor.EventSink {
+        @Override
+        public boolean admit() {
+            return ToyVpnPlugin.admitPacket();
+        }
+
+        @Override
+        public void onPacket(PacketView view, boolean incoming, long now, int previewOffset,
+                             int app, long seq) {
+            if (ToyVpnPlugin.binaryEncoding()) {
+                ToyVpnPlugin.notifyPacketRecord(PacketRecords.encode(view, incoming,
+                        now, previewOffset, 0, app, seq));
+                return;
             }
+
+            JSObject packetInfo = new JSObject();
+            packetInfo.put("source", view.sourceEndpoint());
+            packetInfo.put("destination", view.destinationEndpoint());
+            String appName = dissectors.name(app);
+            packetInfo.put("protocol", appName != null ? appName : view.protocolName());
+            packetInfo.put("direction", incoming ? "incoming" : "outgoing");
+            packetInfo.put("size", view.totalLength());
+            packetInfo.put("seq", seq);
+
+            if (!firstPacketLogged.get() && firstPacketLogged.compareAndSet(false, true)) {
+                Log.d(TAG, "First packet captured: " + packetInfo.toString());
+            }
+
+            ToyVpnPlugin.notifyPacketCaptured(packetInfo);
         }
     }
 
-    private class NetworkRunnable implements Runnable {
+    private class NetworkRunnable implements Runnable, SocketProtector {
+        private final SelectorWakeup wakeup;
+        private final PacketSink capture;
+        private final PacketView view = new PacketView();
+        private final MetricsRegistry metrics;
+        // Handling of one packet from the device, up to its hand-off to a socket
+        private final LatencyHistogram forwardLatency;
+
+        NetworkRunnable(SelectorWakeup wakeup, PacketSink capture, MetricsRegistry metrics) {
+            this.wakeup = wakeup;
+            this.capture = capture;
+            this.metrics = metrics;
+            this.forwardLatency = metrics.histogram("forward");
+        }
+
         @Override
         public void run() {
+            Selector selector = wakeup.selector();
+            long start = System.currentTimeMillis();
+            UdpForwarder udp = new UdpForwarder(selector, this, bufferPool, networkToDeviceQueue, capture, start);
+            TcpProxy tcp = new TcpProxy(selector, this, bufferPool, networkToDeviceQueue, capture, start);
+            DnsForwarder dns = null;
             try {
-                DatagramChannel tunnel = DatagramChannel.open();
-                tunnel.configureBlocking(false);
-                protect(tunnel.socket());
-                
-                Selector selector = Selector.open();
-                tunnel.register(selector, SelectionKey.OP_READ);
-                ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
-
+                dns = new DnsForwarder(selector, this, bufferPool, networkToDeviceQueue, capture,
+                        new DnsCache(DnsCache.DEFAULT_CAPACITY), VPN_DNS_ADDRESS_INT, upstreamDnsServers(), start);
+                metrics.counter("drops.udp", udp::dropped);
+                metrics.counter("drops.tcp", tcp::dropped);
+                metrics.counter("drops.dns", dns::dropped);
                 while (running.get()) {
-                    // Send outgoing packets
-                    ByteBuffer toSend = deviceToNetworkQueue.poll();
-                    if (toSend != null) {
-                        int protocol = toSend.get(9) & 0xFF;
-                        ByteBuffer payload = ByteBuffer.allocate(toSend.limit());
-                        payload.put(toSend.array(), 0, toSend.limit());
-                        payload.flip();
-
-                        if (selector.select(100) > 0) {
-                            Set<SelectionKey> keys = selector.selectedKeys();
-                            for (SelectionKey key : keys) {
-                                if (key.isReadable()) {
-                                    tunnel.receive(packet);
-                                    packet.flip();
-                                    int length = packet.limit();
-                                    
-                                    // Process incoming packets
-                                    ByteBuffer copy = ByteBuffer.allocate(length);
-                                    copy.put(packet.array(), 0, length);
-                                    copy.flip();
-                                    processPacket(copy, "incoming");
-                                    
-                                    networkToDeviceQueue.offer(copy);
-                                }
+                    long now = System.currentTimeMillis();
+                    ByteBuffer toSend;
+                    while ((toSend = deviceToNetworkQueue.poll()) != null) {
+                        long forwardStart = System.nanoTime();
+                        try {
+                            if (!view.wrap(toSend)) {
+                                continue;
                             }
-                            keys.clear();
+                            if (dns.intercepts(view)) {
+                                dns.handleQuery(view, now);
+                            } else if (view.protocol() == PacketView.PROTO_UDP) {
+                                udp.sendToNetwork(view, toSend, now);
+                            } else if (view.protocol() == PacketView.PROTO_TCP) {
+                                tcp.handleDevicePacket(view, now);
+                            }
+                        } finally {
+                            bufferPool.release(toSend);
+                            forwardLatency.record(System.nanoTime() - forwardStart);
+                        }
+                    }
+                    // One ACK per connection for the whole batch
+                    tcp.flushAcks();
+                    udp.expireIdle(now);
+                    tcp.expire(now);
+                    dns.expire(now);
+                    flowTables.expire(now);
+
+                    // Sleeps until a socket is ready or the TUN reader queues a packet
+                    if (wakeup.select(deviceToNetworkQueue, NETWORK_IDLE_SELECT_MS) > 0) {
+                        Set<SelectionKey> keys = selector.selectedKeys();
+                        for (SelectionKey key : keys) {
+                            ((SelectionHandler) key.attachment()).onSelected(key);
                         }
+                        keys.clear();
                     }
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Network thread error", e);
+            } finally {
+                Log.d(TAG, "UDP forwarder stats: " + udp);
+                Log.d(TAG, "TCP proxy stats: " + tcp);
+                udp.closeAll();
+                tcp.closeAll();
+                if (dns != null) {
+                    Log.d(TAG, "DNS forwarder stats: " + dns);
+                    dns.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing network selector", e);
+                }
             }
         }
-    }
 
-    private void processPacket(ByteBuffer packet, String direction) {
-        try {
-            packet.position(0);
-            byte versionAndIHL = packet.get();
-            int version = (versionAndIHL >> 4) & 0xF;
-            int ihl = versionAndIHL & 0xF;
-            
-            if (version != 4) {
-                return;
-            }
-
-            packet.position(2);
-            int totalLength = ((packet.get() & 0xFF) << 8) | (packet.get() & 0xFF);
-
-            packet.position(9);
-            int protocol = packet.get() & 0xFF;
-
-            packet.position(12);
-            byte[] sourceAddr = new byte[4];
-            byte[] destAddr = new byte[4];
-            packet.get(sourceAddr);
-            packet.get(destAddr);
-
-            int headerLength = ihl * 4;
-            String sourcePort = "";
-            String destPort = "";
-            if (protocol == 6 || protocol == 17) {
-                packet.position(headerLength);
-                sourcePort = String.valueOf(((packet.get() & 0xFF) << 8) | (packet.get() & 0xFF));
-                destPort = String.valueOf(((packet.get() & 0xFF) << 8) | (packet.get() & 0xFF));
+        private InetSocketAddress[] upstreamDnsServers() throws IOException {
+            InetSocketAddress[] servers = new InetSocketAddress[UPSTREAM_DNS.length];
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = new InetSocketAddress(InetAddress.getByName(UPSTREAM_DNS[i]), DnsMessage.PORT);
             }
-
-            JSObject packetInfo = new JSObject();
-            packetInfo.put("source", ipToString(sourceAddr) + (sourcePort.isEmpty() ? "" : ":" + sourcePort));
-            packetInfo.put("destination", ipToString(destAddr) + (destPort.isEmpty() ? "" : ":" + destPort));
-            packetInfo.put("protocol", getProtocolName(protocol));
-            packetInfo.put("direction", direction);
-            packetInfo.put("size", totalLength);
-
-            StringBuilder payload = new StringBuilder();
-            int payloadStart = headerLength;
-            int payloadLength = Math.min(totalLength - payloadStart, 64);
-            packet.position(payloadStart);
-            for (int i = 0; i < payloadLength && packet.hasRemaining(); i++) {
-                payload.append(String.format("%02X ", packet.get()));
-                if ((i + 1) % 16 == 0) payload.append("\n");
-            }
-            packetInfo.put("payload", payload.toString().trim());
-
-            if (isFirstPacket) {
-                Log.d(TAG, "First packet captured: " + packetInfo.toString());
-                isFirstPacket = false;
-            }
-
-            ToyVpnPlugin.notifyPacketCaptured(packetInfo);
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing packet", e);
+            return servers;
         }
-    }
 
-    private String ipToString(byte[] addr) {
-        return String.format("%d.%d.%d.%d", addr[0] & 0xFF, addr[1] & 0xFF, addr[2] & 0xFF, addr[3] & 0xFF);
-    }
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return ToyVpnService.this.protect(socket);
+        }
 
-    private String getProtocolName(int protocol) {
-        switch (protocol) {
-            case 1: return "ICMP";
-            case 6: return "TCP";
-            case 17: return "UDP";
-            case 50: return "ESP";
-            case 89: return "OSPF";
-            default: return "IP(" + protocol + ")";
+        @Override
+        public boolean protect(Socket socket) {
+            return ToyVpnService.this.protect(socket);
         }
     }
 
     /**
-     * Stops the VPN connection
+     * Stops the VPN connection. The plugin hears about it through
+     * {@link ToyVpnPlugin#notifyVpnStopped} either way, since a stopVpn call
+     * from the page is waiting on that.
      */
     public void stopVpn() {
         Log.d(TAG, "Stopping VPN connection");
+        if (stages == null) {
+            ToyVpnPlugin.notifyVpnStopped(0, null);
+            return;
+        }
         cleanup();
     }
 
@@ -348,18 +482,32 @@ public class ToyVpnService extends VpnService {
         super.onDestroy();
     }
 
+    /**
+     * Tears the session down in a fixed order: every pipeline thread is told
+     * to stop and joined against one deadline, then the TUN descriptor they
+     * used is closed, then the session's state is logged and released. Does
+     * nothing if no session is running.
+     */
     private void cleanup() {
-        Log.d(TAG, "Performing safe VPN cleanup");
-        
-        // Mark as not running to ensure no new packets are processed
+        PipelineStages session = stages;
+        if (session == null) {
+            return;
+        }
+        stages = null;
+        long stopStart = System.nanoTime();
         running.set(false);
-        
-        // Close the VPN interface properly
+
+        PipelineStages.Report report = session.stop(STOP_TIMEOUT_MS);
+        if (report.complete()) {
+            Log.d(TAG, "Pipeline " + report);
+        } else {
+            Log.w(TAG, "Pipeline " + report);
+        }
+
+        // No thread reads or writes the TUN any more, so its descriptor can go
         if (vpnInterface != null) {
             try {
-                Log.d(TAG, "Closing VPN interface");
                 vpnInterface.close();
-                Log.d(TAG, "VPN interface closed successfully");
             } catch (IOException e) {
                 Log.e(TAG, "Error closing VPN interface", e);
             } finally {
@@ -367,192 +515,52 @@ public class ToyVpnService extends VpnService {
             }
         }
         
-        // Safely shut down the executor service
-        if (executorService != null && !executorService.isTerminated()) {
-            try {
-                Log.d(TAG, "Shutting down executor service");
-                // First try gentle shutdown
-                executorService.shutdown();
-                
-                // Wait for tasks to complete with reasonable timeout
-                if (!executorService.awaitTermination(500, TimeUnit.MILLISECONDS)) {
-                    Log.w(TAG, "Executor not responding to gentle shutdown, using shutdownNow");
-                    List<Runnable> pendingTasks = executorService.shutdownNow();
-                    Log.d(TAG, "Cancelled " + pendingTasks.size() + " pending executor tasks");
-                    
-                    // Wait again with longer timeout
-                    if (!executorService.awaitTermination(500, TimeUnit.MILLISECONDS)) {
-                        Log.e(TAG, "Executor service did not terminate");
-                    }
-                }
-            } catch (InterruptedException ie) {
-                Log.e(TAG, "Interrupted while waiting for executor shutdown", ie);
-                executorService.shutdownNow();
-                Thread.currentThread().interrupt();
-            } catch (Exception e) {
-                Log.e(TAG, "Error during executor service shutdown", e);
-            } finally {
-                executorService = null;
-            }
-        }
-        
-        // Clear queues
+        // Release queues; anything still queued is garbage along with the pool
         if (deviceToNetworkQueue != null) {
-            try {
-                deviceToNetworkQueue.clear();
-            } catch (Exception e) {
-                Log.e(TAG, "Error clearing deviceToNetworkQueue", e);
-            }
+            deviceToNetworkQueue.close();
+            Log.d(TAG, "deviceToNetworkQueue at shutdown: " + deviceToNetworkQueue);
             deviceToNetworkQueue = null;
         }
         
         if (networkToDeviceQueue != null) {
-            try {
-                networkToDeviceQueue.clear();
-            } catch (Exception e) {
-                Log.e(TAG, "Error clearing networkToDeviceQueue", e);
-            }
+            networkToDeviceQueue.close();
+            Log.d(TAG, "networkToDeviceQueue at shutdown: " + networkToDeviceQueue);
             networkToDeviceQueue = null;
         }
         
-        // Notify JavaScript layer that VPN is stopped
-        try {
-            if (ToyVpnPlugin.instance != null) {
-                ToyVpnPlugin.notifyVpnStopped();
-                Log.d(TAG, "Notified JS layer that VPN is stopped");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error notifying JS layer about VPN stop", e);
+        if (bufferPool != null) {
+            Log.d(TAG, "Buffer pool at shutdown: " + bufferPool);
         }
-        
-        // Release network
-        underlyingNetwork = null;
-        
-        // Reset state
-        isFirstPacket = true;
-        
-        // Force garbage collection to clean up resources
-        try {
-            System.gc();
-            Log.d(TAG, "EXTREME VPN TERMINATION: Requested garbage collection");
-        } catch (Exception e) {
-            Log.e(TAG, "Error requesting garbage collection", e);
+
+        // Stopped along with the other stages; what was still waiting was dropped
+        if (capturePipeline != null) {
+            Log.d(TAG, "Capture pipeline at shutdown: " + capturePipeline);
+            capturePipeline = null;
         }
-        
-        Log.d(TAG, "EXTREME VPN TERMINATION: VPN cleanup completed");
-        
-        // Forcefully stop the service immediately after cleanup
-        stopSelf();
-        
-        // LAST RESORT: Detect if we're still active after cleanup and force kill
-        try {
-            // Staggered checks to ensure termination
-            // First check quickly
-            new android.os.Handler().postDelayed(() -> {
-                if (isProcessStillActive()) {
-                    Log.w(TAG, "EXTREME VPN TERMINATION: VPN still running after 200ms, trying additional cleanup");
-                    // Try one more aggressive interruption of ALL threads
-                    Thread.getAllStackTraces().keySet().forEach(thread -> {
-                        if (thread != Thread.currentThread()) {
-                            try {
-                                thread.interrupt();
-                            } catch (Exception ignored) {}
-                        }
-                    });
-                    
-                    // Second check with a more drastic action
-                    new android.os.Handler().postDelayed(() -> {
-                        if (isProcessStillActive()) {
-                            Log.e(TAG, "EXTREME VPN TERMINATION: VPN STILL RUNNING AFTER MULTIPLE CLEANUPS - FORCE KILLING PROCESS!");
-                            try {
-                                // Signal the plugin about imminent termination
-                                if (ToyVpnPlugin.instance != null) {
-                                    ToyVpnPlugin.notifyVpnStopped();
-                                }
-                            } catch (Exception ignored) {}
-                            
-                            // Absolutely final resort - kill the entire process
-                            android.os.Process.killProcess(android.os.Process.myPid());
-                        }
-                    }, 300);
-                }
-            }, 200);
-        } catch (Exception e) {
-            Log.e(TAG, "Error setting up process kill safety mechanism", e);
+
+        Log.d(TAG, "Flow tables at shutdown: " + flowTables);
+        if (trafficStats != null) {
+            Log.d(TAG, "Traffic at shutdown: " + trafficStats.snapshot(System.currentTimeMillis()));
         }
-    }
-    
-    private boolean isProcessStillActive() {
-        // Check if we're still receiving packets or if threads are still active
-        // This is a safety mechanism to detect if cleanup failed
-        try {
-            // First check if executor is still active
-            if (executorService != null && !executorService.isTerminated()) {
-                Log.d(TAG, "EXTREME VPN TERMINATION: Executor service still active");
-                return true;
-            }
-            
-            // Check if VPN interface is still active
-            if (vpnInterface != null) {
-                Log.d(TAG, "EXTREME VPN TERMINATION: VPN interface still active");
-                return true;
-            }
-            
-            // More thorough thread checking - look for ANY thread related to network or VPN
-            Set<Thread> threadSet = Thread.getAllStackTraces().keySet();
-            for (Thread thread : threadSet) {
-                // Only check other threads, not the current one
-                if (thread != Thread.currentThread()) {
-                    // More extensive name check including internal IDs
-                    String threadName = thread.getName().toLowerCase();
-                    if (threadName.contains("vpn") || 
-                        threadName.contains("toy") || 
-                        threadName.contains("network") || 
-                        threadName.contains("packet") || 
-                        threadName.contains("pool") || 
-                        threadName.contains("executor") || 
-                        threadName.contains("interface") || 
-                        threadName.contains("tunnel")) {
-                        
-                        Log.d(TAG, "EXTREME VPN TERMINATION: Found active related thread: " + thread.getName());
-                        return true;
-                    }
-                    
-                    // Check thread status for potentially blocked states
-                    if (thread.getState() == Thread.State.BLOCKED || 
-                        thread.getState() == Thread.State.WAITING || 
-                        thread.getState() == Thread.State.TIMED_WAITING) {
-                        
-                        // Get stack trace to check what this thread is doing
-                        StackTraceElement[] stack = thread.getStackTrace();
-                        for (StackTraceElement element : stack) {
-                            // Check if the thread is blocked in our VPN code
-                            String className = element.getClassName();
-                            if (className.contains("netsniff") || 
-                                className.contains("ToyVpn") || 
-                                className.contains("vpn")) {
-                                
-                                Log.d(TAG, "EXTREME VPN TERMINATION: Found thread blocked in VPN code: " + 
-                                      thread.getName() + " at " + element);
-                                return true;
-                            }
-                        }
-                    }
-                }
-            }
-            
-            // Check if running flag is still true (shouldn't be at this point)
-            if (running.get()) {
-                Log.d(TAG, "EXTREME VPN TERMINATION: Running flag is still true");
-                return true;
-            }
-            
-            Log.d(TAG, "EXTREME VPN TERMINATION: No active VPN processes found - all clean");
-            return false;
-        } catch (Exception e) {
-            Log.e(TAG, "Error checking if process is still active", e);
-            // Default to false in case of error, to prevent infinite loops
-            return false;
+        if (captureHistory != null) {
+            Log.d(TAG, "History at shutdown: " + captureHistory);
+        }
+        ToyVpnPlugin.stopCaptureRecorder();
+        if (appAttribution != null) {
+            Log.d(TAG, "App attribution at shutdown: " + appAttribution);
+            appAttribution = null;
+        }
+        flowTables.clear();
+        underlyingNetwork = null;
+        firstPacketLogged.set(false);
+
+        final long stopMicros = (System.nanoTime() - stopStart) / 1000;
+        Log.i(TAG, String.format(Locale.US, "VPN stopped in %.2f ms", stopMicros / 1000.0));
+        if (metrics != null) {
+            // The plugin keeps this session's registry until the next start, so the page can still read it
+            metrics.gauge("lifecycle.stopUs", () -> stopMicros);
+            Log.d(TAG, "Metrics at shutdown: " + metrics.snapshot(SystemClock.uptimeMillis()));
         }
+        ToyVpnPlugin.notifyVpnStopped(stopMicros * 1000, report);
     }
 }
@@ -0,0 +1,93 @@
+package com.netsniff.app;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lifetime packet and byte counters for one capture session, by direction
+ * and by IP protocol.
+ *
+ * Every capture worker records packets of both directions, so any number of
+ * threads add to the same atomics. The two directions are kept on separate
+ * cache lines, which halves how often workers touch the same one, but the
+ * counters are still shared; nothing here takes a lock. {@link #snapshot}
+ * reads every counter once; it never blocks the writers and costs the same
+ * however many packets have been seen.
+ */
+public final class TrafficStats {
+    public static final int INCOMING = 0;
+    public static final int OUTGOING = 1;
+
+    // Longs per direction in counters; keeps the two stripes on separate cache lines
+    private static final int STRIPE = 16;
+    private static final int PACKETS = 0;
+    private static final int BYTES = 1;
+
+    private final AtomicLongArray counters = new AtomicLongArray(2 * STRIPE);
+    // Packets per IP protocol number, [direction * 256 + protocol]
+    private final AtomicLongArray protocols = new AtomicLongArray(2 * 256);
+    private final long startedAtMs;
+
+    public TrafficStats(long startedAtMs) {
+        this.startedAtMs = startedAtMs;
+    }
+
+    /** Counts one decoded packet. */
+    public void record(PacketView view, int direction) {
+        int stripe = direction * STRIPE;
+        counters.incrementAndGet(stripe + PACKETS);
+        counters.addAndGet(stripe + BYTES, view.totalLength());
+        protocols.incrementAndGet(direction * 256 + (view.protocol() & 0xff));
+    }
+
+    /**
+     * Copies the counters. Each counter is read atomically, but a packet
+     * recorded during the copy may appear in some totals and not others.
+     */
+    public Snapshot snapshot(long nowMs) {
+        Snapshot s = new Snapshot(startedAtMs, nowMs);
+        s.incomingPackets = counters.get(INCOMING * STRIPE + PACKETS);
+        s.incomingBytes = counters.get(INCOMING * STRIPE + BYTES);
+        s.outgoingPackets = counters.get(OUTGOING * STRIPE + PACKETS);
+        s.outgoingBytes = counters.get(OUTGOING * STRIPE + BYTES);
+        for (int protocol = 0; protocol < 256; protocol++) {
+            s.protocolPackets[protocol] = protocols.get(INCOMING * 256 + protocol)
+                    + protocols.get(OUTGOING * 256 + protocol);
+        }
+        return s;
+    }
+
+    public long startedAtMs() {
+        return startedAtMs;
+    }
+
+    /** Point-in-time copy of the counters. */
+    public static final class Snapshot {
+        public final long startedAtMs;
+        public final long takenAtMs;
+        public long incomingPackets;
+        public long incomingBytes;
+        public long outgoingPackets;
+        public long outgoingBytes;
+        // Indexed by IP protocol number
+        public final long[] protocolPackets = new long[256];
+
+        Snapshot(long startedAtMs, long takenAtMs) {
+            this.startedAtMs = startedAtMs;
+            this.takenAtMs = takenAtMs;
+        }
+
+        public long totalPackets() {
+            return incomingPackets + outgoingPackets;
+        }
+
+        public long totalBytes() {
+            return incomingBytes + outgoingBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "TrafficStats{packets=" + totalPackets() + " (in=" + incomingPackets + ", out=" + outgoingPackets
+                    + "), bytes=" + totalBytes() + " (in=" + incomingBytes + ", out=" + outgoingBytes + ")}";
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.netsniff.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads packets the device sends into the TUN interface and hands them to
+ * the network side.
+ *
+ * The reader blocks in read() and does nothing else, so it never delays the
+ * opposite direction: packets for the device are written by {@link TunWriter}
+ * on its own thread. After queueing a packet the reader runs
+ * {@code onQueued} to wake the network thread.
+ *
+ * Outgoing packets and bytes are counted in the registry as
+ * {@code tun.out.packets} and {@code tun.out.bytes}, and the time from read()
+ * returning to the packet being handed off goes into the {@code read}
+ * histogram; time spent blocked waiting for a packet is not included.
+ */
+public final class TunReader implements Runnable {
+    private final ReadableByteChannel tun;
+    private final PacketBufferPool pool;
+    private final SpscRing<ByteBuffer> outbound;
+    private final Runnable onQueued;
+    private final PacketSink capture;
+    private final AtomicBoolean running;
+    private final MetricsRegistry.Counter packetsOut;
+    private final MetricsRegistry.Counter bytesOut;
+    private final LatencyHistogram readLatency;
+
+    private volatile long packetsRead;
+    private volatile long readErrors;
+
+    public TunReader(ReadableByteChannel tun, PacketBufferPool pool, SpscRing<ByteBuffer> outbound,
+                     Runnable onQueued, PacketSink capture, AtomicBoolean running) {
+        this(tun, pool, outbound, onQueued, capture, running, new MetricsRegistry());
+    }
+
+    public TunReader(ReadableByteChannel tun, PacketBufferPool pool, SpscRing<ByteBuffer> outbound,
+                     Runnable onQueued, PacketSink capture, AtomicBoolean running, MetricsRegistry metrics) {
+        this.tun = tun;
+        this.pool = pool;
+        this.outbound = outbound;
+        this.onQueued = onQueued;
+        this.capture = capture;
+        this.running = running;
+        this.packetsOut = metrics.counter("tun.out.packets");
+        this.bytesOut = metrics.counter("tun.out.bytes");
+        this.readLatency = metrics.histogram("read");
+    }
+
+    @Override
+    public void run() {
+        // Only used to drain the TUN while every pooled buffer is in flight
+        ByteBuffer overflow = ByteBuffer.allocate(pool.bufferSize());
+
+        while (running.get()) {
+            ByteBuffer packet = pool.acquire();
+            try {
+                ByteBuffer target = packet != null ? packet : overflow;
+                target.clear();
+                int length = tun.read(target);
+                if (length < 0) {
+                    break;
+                }
+                if (length == 0) {
+                    continue;
+                }
+                long readAt = System.nanoTime();
+                target.flip();
+                packetsRead++;
+                packetsOut.increment();
+                bytesOut.add(length);
+
+                capture.onPacket(target);
+
+                if (packet != null) {
+                    // Ownership passes to the network thread (or back to the pool if the ring drops it)
+                    outbound.offer(packet);
+                    packet = null;
+                    onQueued.run();
+                }
+                readLatency.record(System.nanoTime() - readAt);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                readErrors++;
+            } finally {
+                pool.release(packet);
+            }
+        }
+    }
+
+    public long packetsRead() {
+        return packetsRead;
+    }
+
+    public long readErrors() {
+        return readErrors;
+    }
+}
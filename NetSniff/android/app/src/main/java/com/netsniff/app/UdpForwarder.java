@@ -0,0 +1,319 @@
+package com.netsniff.app;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Userspace UDP NAT between the TUN and the real network.
+ *
+ * Every 5-tuple seen from the device gets its own protected, connected,
+ * non-blocking {@link DatagramChannel}, all registered on the network thread's
+ * selector. Datagrams from the device are written out as-is. Replies are read
+ * straight into a pooled buffer behind a synthesized IPv4/IPv6 + UDP header
+ * (with checksums) and queued for the TUN writer. Idle flows expire on a
+ * {@link TimerWheel}. A reply that will not fit in a pooled buffer, or that
+ * arrives while none is free, is read and dropped.
+ *
+ * Everything runs on the selector thread; nothing here is thread-safe.
+ */
+public final class UdpForwarder {
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+    // DNS and similar request/response flows are rarely reused
+    public static final long DNS_IDLE_TIMEOUT_MS = 10_000;
+    public static final int DEFAULT_MAX_FLOWS = 1024;
+
+    private static final int UDP_HEADER = PacketHeaders.UDP_HEADER;
+    // Datagrams read per readiness event before yielding to other channels
+    private static final int MAX_READS_PER_EVENT = 16;
+    private static final int WHEEL_SLOTS = 64;
+    private static final long WHEEL_TICK_MS = 1000;
+
+    private final Selector selector;
+    private final SocketProtector protector;
+    private final PacketBufferPool pool;
+    private final SpscRing<ByteBuffer> toDevice;
+    private final PacketSink capture;
+    private final long idleTimeoutMs;
+    private final int maxFlows;
+
+    private final Map<FlowKey, Flow> flows = new HashMap<>();
+    private final FlowKey probe = new FlowKey();
+    private final TimerWheel idleTimers;
+    private final TimerWheel.Handler expiry = this::onIdleDeadline;
+    // Reads scatter into a pooled buffer and then this one byte, which only a
+    // datagram too long for the buffer reaches
+    private final ByteBuffer spill = ByteBuffer.allocate(1);
+    private final ByteBuffer[] scatter = {null, spill};
+    private int nextIpId;
+    // Time of the last sendToNetwork()/expireIdle() call; replies count as activity at this time
+    private long nowMs;
+
+    private long flowsCreated;
+    private long flowsExpired;
+    private long datagramsOut;
+    private long datagramsIn;
+    private long bytesOut;
+    private long bytesIn;
+    private long dropped;
+
+    public UdpForwarder(Selector selector, SocketProtector protector, PacketBufferPool pool,
+                        SpscRing<ByteBuffer> toDevice, PacketSink capture, long nowMs) {
+        this(selector, protector, pool, toDevice, capture, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_MAX_FLOWS, nowMs);
+    }
+
+    public UdpForwarder(Selector selector, SocketProtector protector, PacketBufferPool pool,
+                        SpscRing<ByteBuffer> toDevice, PacketSink capture,
+                        long idleTimeoutMs, int maxFlows, long nowMs) {
+        this.selector = selector;
+        this.protector = protector;
+        this.pool = pool;
+        this.toDevice = toDevice;
+        this.capture = capture;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxFlows = maxFlows;
+        this.idleTimers = new TimerWheel(WHEEL_SLOTS, WHEEL_TICK_MS, nowMs);
+        this.nowMs = nowMs;
+    }
+
+    /**
+     * Sends the UDP payload of a packet read from the TUN. {@code view} must
+     * already wrap {@code packet}. The packet's position and limit are changed;
+     * the caller still owns it and releases it afterwards.
+     * @return false if the datagram was dropped
+     */
+    public boolean sendToNetwork(PacketView view, ByteBuffer packet, long nowMs) {
+        this.nowMs = nowMs;
+        if (view.protocol() != PacketView.PROTO_UDP || !view.hasPorts()) {
+            dropped++;
+            return false;
+        }
+        probe.set(view);
+        Flow flow = flows.get(probe);
+        if (flow == null) {
+            flow = openFlow(view, nowMs);
+            if (flow == null) {
+                dropped++;
+                return false;
+            }
+        }
+        flow.lastActive = nowMs;
+
+        packet.limit(view.payloadOffset() + view.payloadLength());
+        packet.position(view.payloadOffset());
+        try {
+            int length = packet.remaining();
+            if (flow.channel.write(packet) == 0 && length > 0) {
+                // Socket send buffer is full; UDP may drop
+                dropped++;
+                return false;
+            }
+            datagramsOut++;
+            bytesOut += length;
+            return true;
+        } catch (IOException e) {
+            closeFlow(flow);
+            dropped++;
+            return false;
+        }
+    }
+
+    /** Expires flows that have been idle for longer than their timeout. */
+    public void expireIdle(long nowMs) {
+        this.nowMs = nowMs;
+        idleTimers.advance(nowMs, expiry);
+    }
+
+    private long onIdleDeadline(TimerWheel.Entry entry, long now) {
+        Flow flow = (Flow) entry;
+        long deadline = flow.lastActive + flow.timeoutMs;
+        if (deadline > now) {
+            return deadline;
+        }
+        flowsExpired++;
+        closeFlow(flow);
+        return now;
+    }
+
+    private Flow openFlow(PacketView view, long nowMs) {
+        if (flows.size() >= maxFlows) {
+            return null;
+        }
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            if (!protector.protect(channel.socket())) {
+                channel.close();
+                return null;
+            }
+            channel.configureBlocking(false);
+            byte[] address = PacketHeaders.copyAddress(view, view.destinationAddressOffset());
+            channel.connect(new InetSocketAddress(InetAddress.getByAddress(address), view.destinationPort()));
+
+            Flow flow = new Flow(probe.copy(), channel, view);
+            flow.timeoutMs = view.destinationPort() == 53 ? Math.min(DNS_IDLE_TIMEOUT_MS, idleTimeoutMs) : idleTimeoutMs;
+            flow.lastActive = nowMs;
+            channel.register(selector, SelectionKey.OP_READ, flow);
+            flows.put(flow.key, flow);
+            idleTimers.schedule(flow, nowMs + flow.timeoutMs);
+            flowsCreated++;
+            return flow;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    private void closeFlow(Flow flow) {
+        idleTimers.cancel(flow);
+        flows.remove(flow.key);
+        try {
+            flow.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Closes every flow; used at shutdown. */
+    public void closeAll() {
+        Flow[] open = flows.values().toArray(new Flow[0]);
+        for (Flow flow : open) {
+            closeFlow(flow);
+        }
+    }
+
+    private void receive(Flow flow) {
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            ByteBuffer packet = pool.acquire();
+            try {
+                spill.clear();
+                if (packet == null) {
+                    // Take the datagram off the socket anyway; left there, it keeps the
+                    // level-triggered key ready and the selector spinning
+                    if (flow.channel.receive(spill) == null) {
+                        return;
+                    }
+                    dropped++;
+                    continue;
+                }
+                int headerLength = PacketHeaders.ipHeaderLength(flow.ipv6) + UDP_HEADER;
+                packet.clear();
+                packet.position(headerLength);
+                scatter[0] = packet;
+                long read = flow.channel.read(scatter);
+                scatter[0] = null;
+                if (read <= 0) {
+                    return;
+                }
+                if (spill.position() > 0) {
+                    // Longer than the buffer has room for; the rest was cut off by the read
+                    dropped++;
+                    continue;
+                }
+                int length = (int) read;
+                writeReplyHeaders(flow, packet, length);
+                packet.position(0);
+                packet.limit(headerLength + length);
+
+                datagramsIn++;
+                bytesIn += length;
+                capture.onPacket(packet);
+
+                // Ownership passes to the TUN writer (or back to the pool if the ring drops it)
+                toDevice.offer(packet);
+                packet = null;
+            } catch (IOException e) {
+                // e.g. ICMP port unreachable surfaced on the connected socket
+                closeFlow(flow);
+                return;
+            } finally {
+                pool.release(packet);
+            }
+        }
+    }
+
+    private void writeReplyHeaders(Flow flow, ByteBuffer packet, int payloadLength) {
+        // Reply goes from the remote end back to the device
+        int l4Offset = PacketHeaders.writeIp(packet, flow.ipv6, flow.remoteAddress, flow.localAddress,
+                PacketView.PROTO_UDP, UDP_HEADER + payloadLength, nextIpId++);
+        PacketHeaders.writeUdp(packet, l4Offset, flow.remotePort, flow.localPort, payloadLength);
+    }
+
+    public int activeFlows() {
+        return flows.size();
+    }
+
+    public long flowsCreated() {
+        return flowsCreated;
+    }
+
+    public long flowsExpired() {
+        return flowsExpired;
+    }
+
+    public long datagramsOut() {
+        return datagramsOut;
+    }
+
+    public long datagramsIn() {
+        return datagramsIn;
+    }
+
+    public long bytesOut() {
+        return bytesOut;
+    }
+
+    public long bytesIn() {
+        return bytesIn;
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "UdpForwarder{flows=" + flows.size() + ", created=" + flowsCreated + ", expired=" + flowsExpired
+                + ", out=" + datagramsOut + ", in=" + datagramsIn + ", dropped=" + dropped + "}";
+    }
+
+    private final class Flow extends TimerWheel.Entry implements SelectionHandler {
+        final FlowKey key;
+        final DatagramChannel channel;
+        final boolean ipv6;
+        final byte[] localAddress;
+        final byte[] remoteAddress;
+        final int localPort;
+        final int remotePort;
+        long timeoutMs;
+        long lastActive;
+
+        Flow(FlowKey key, DatagramChannel channel, PacketView view) {
+            this.key = key;
+            this.channel = channel;
+            this.ipv6 = view.isIpv6();
+            this.localAddress = PacketHeaders.copyAddress(view, view.sourceAddressOffset());
+            this.remoteAddress = PacketHeaders.copyAddress(view, view.destinationAddressOffset());
+            this.localPort = view.sourcePort();
+            this.remotePort = view.destinationPort();
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) {
+            if (key.isValid() && key.isReadable()) {
+                lastActive = nowMs;
+                receive(this);
+            }
+        }
+    }
+}
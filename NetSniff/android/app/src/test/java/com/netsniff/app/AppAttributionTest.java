@@ -0,0 +1,96 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AppAttributionTest {
+    private final PacketView view = new PacketView();
+
+    private int record(FlowTable table, byte[] packet) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        return table.record(view, 0);
+    }
+
+    private static void awaitOwner(FlowTable table, int entry) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (table.owner(entry) == FlowTable.UID_PENDING) {
+            assertTrue("Owner never resolved", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void resolvesOwnersOffTheCaptureThread() throws InterruptedException {
+        FlowTables tables = new FlowTables(1, 16, 60_000);
+        FlowTable table = tables.partition(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        AppAttribution attribution = new AppAttribution(tables, new AppAttribution.OwnerLookup() {
+            @Override
+            public int ownerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return local.getPort() == 40000 && remote.getPort() == 53 ? 10077 : FlowTable.UID_UNKNOWN;
+            }
+        });
+        attribution.start();
+
+        // Recording returns while the lookup is still stuck
+        int entry = record(table, TestPackets.udp4(new byte[4]));
+        assertEquals(FlowTable.UID_PENDING, table.owner(entry));
+        release.countDown();
+        awaitOwner(table, entry);
+        assertEquals(10077, table.owner(entry));
+        assertEquals(1, attribution.resolved());
+        attribution.stop();
+    }
+
+    @Test
+    public void triesTheOtherEndWhenTheInitiatorIsRemote() throws InterruptedException {
+        FlowTables tables = new FlowTables(1, 16, 60_000);
+        FlowTable table = tables.partition(0);
+        AppAttribution attribution = new AppAttribution(tables, new AppAttribution.OwnerLookup() {
+            @Override
+            public int ownerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+                assertEquals(PacketView.PROTO_TCP, protocol);
+                return local.getAddress().getHostAddress().equals("10.0.0.2") ? 10042 : FlowTable.UID_UNKNOWN;
+            }
+        });
+        attribution.start();
+        int entry = record(table, TestPackets.tcp4(TestPackets.SERVER, 443, TestPackets.CLIENT, 40000, 0, new byte[0]));
+        awaitOwner(table, entry);
+        assertEquals(10042, table.owner(entry));
+        attribution.stop();
+    }
+
+    @Test
+    public void skipsFlowsTheSystemCannotAttribute() {
+        FlowTables tables = new FlowTables(1, 16, 60_000);
+        FlowTable table = tables.partition(0);
+        AppAttribution attribution = new AppAttribution(tables, new AppAttribution.OwnerLookup() {
+            @Override
+            public int ownerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+                throw new AssertionError("Only TCP and UDP are looked up");
+            }
+        }, 1);
+        // Not started: the queue is never drained
+        tables.setListener(attribution);
+        byte[] icmp = TestPackets.udp4(new byte[4]);
+        icmp[9] = (byte) PacketView.PROTO_ICMP;
+        assertEquals(FlowTable.UID_UNKNOWN, table.owner(record(table, icmp)));
+
+        record(table, TestPackets.udp4(TestPackets.CLIENT, 1, TestPackets.SERVER, 53, new byte[4]));
+        int overflow = record(table, TestPackets.udp4(TestPackets.CLIENT, 2, TestPackets.SERVER, 53, new byte[4]));
+        assertEquals(FlowTable.UID_UNKNOWN, table.owner(overflow));
+        assertEquals(1, attribution.overflowed());
+        assertEquals(1, attribution.queued());
+    }
+}
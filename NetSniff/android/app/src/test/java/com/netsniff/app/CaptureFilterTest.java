@@ -0,0 +1,127 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class CaptureFilterTest {
+    private static final byte[] DNS_OUT = TestPackets.udp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 53, new byte[30]);
+    private static final byte[] HTTPS_IN = TestPackets.tcp4(TestPackets.SERVER, 443, TestPackets.CLIENT, 51000,
+            PacketView.TCP_ACK, new byte[100]);
+
+    private static boolean matches(String expression, byte[] packet, boolean incoming) {
+        return CaptureFilter.compile(expression).matches(ByteBuffer.wrap(packet), 0, packet.length, incoming);
+    }
+
+    @Test
+    public void matchesPrimitives() {
+        assertTrue(matches("udp", DNS_OUT, false));
+        assertFalse(matches("tcp", DNS_OUT, false));
+        assertTrue(matches("proto 17", DNS_OUT, false));
+        assertTrue(matches("proto udp", DNS_OUT, false));
+        assertTrue(matches("ip", DNS_OUT, false));
+        assertFalse(matches("ip6", DNS_OUT, false));
+
+        assertTrue(matches("host 8.8.8.8", DNS_OUT, false));
+        assertTrue(matches("dst host 8.8.8.8", DNS_OUT, false));
+        assertFalse(matches("src host 8.8.8.8", DNS_OUT, false));
+        assertTrue(matches("net 10.0.0.0/8", DNS_OUT, false));
+        assertTrue(matches("src net 10.0.0.0/30", DNS_OUT, false));
+        assertFalse(matches("src net 10.0.0.4/30", DNS_OUT, false));
+
+        assertTrue(matches("port 53", DNS_OUT, false));
+        assertTrue(matches("src port 40000", DNS_OUT, false));
+        assertFalse(matches("dst port 40000", DNS_OUT, false));
+        assertFalse(matches("src port 50000-52000", HTTPS_IN, true));
+        assertTrue(matches("dst port 50000-52000", HTTPS_IN, true));
+
+        assertTrue(matches("inbound", HTTPS_IN, true));
+        assertFalse(matches("outbound", HTTPS_IN, true));
+        assertTrue(matches("direction out", DNS_OUT, false));
+
+        int total = HTTPS_IN.length;
+        assertTrue(matches("len = " + total, HTTPS_IN, true));
+        assertTrue(matches("len > 100", HTTPS_IN, true));
+        assertFalse(matches("len<100", HTTPS_IN, true));
+        assertTrue(matches("len != 0", HTTPS_IN, true));
+    }
+
+    @Test
+    public void combinesWithPrecedence() {
+        assertTrue(matches("tcp and port 443", HTTPS_IN, true));
+        assertFalse(matches("tcp && port 53", HTTPS_IN, true));
+        assertTrue(matches("udp or port 443", HTTPS_IN, true));
+        assertTrue(matches("not udp", HTTPS_IN, true));
+        assertTrue(matches("!(udp || icmp)", HTTPS_IN, true));
+        // and binds tighter: udp or (tcp and port 80)
+        assertFalse(matches("udp or tcp and port 80", HTTPS_IN, true));
+        assertFalse(matches("(udp or tcp) and port 80", HTTPS_IN, true));
+        assertTrue(matches("(udp or tcp) and not port 80", HTTPS_IN, true));
+        assertEquals("(proto 17 or (proto 6 and port 80))",
+                CaptureFilter.compile("UDP or tcp and port 80").toString());
+        assertEquals("not (src host 10.0.0.2 or dst net 10.0.0.0/8)",
+                CaptureFilter.compile("not (src host 10.0.0.2 || dst net 10.0.0.0/8)").toString());
+    }
+
+    @Test
+    public void readsIpv6ThroughExtensionHeaders() {
+        byte[] packet = TestPackets.udp6(new int[][] {{0, 8}, {44, 8}, {60, 16}}, new byte[10]);
+        assertTrue(matches("ip6 and udp and dst port 53", packet, false));
+        assertTrue(matches("src host 2001:db8::1", packet, false));
+        assertTrue(matches("dst net fe80::/10", packet, false));
+        assertFalse(matches("host 2001:db8::2", packet, false));
+        assertFalse(matches("host 10.0.0.2", packet, false));
+        assertTrue(matches("len = " + packet.length, packet, false));
+        assertEquals("host 2001:db8:0:0:0:0:0:1", CaptureFilter.compile("host 2001:DB8::1").toString());
+        assertEquals("host 0:0:0:0:0:ffff:a00:2", CaptureFilter.compile("host ::ffff:10.0.0.2").toString());
+    }
+
+    @Test
+    public void portsOnlyMatchFirstFragment() {
+        byte[] fragment = DNS_OUT.clone();
+        // Fragment offset 8 (in 8-byte units), so the UDP header is elsewhere
+        fragment[6] = 0;
+        fragment[7] = 1;
+        assertFalse(matches("port 53", fragment, false));
+        assertTrue(matches("udp", fragment, false));
+    }
+
+    @Test
+    public void readsAtAnOffsetWithoutMovingTheBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(DNS_OUT.length + 7);
+        buffer.position(7);
+        buffer.put(DNS_OUT);
+        buffer.position(3);
+        CaptureFilter filter = CaptureFilter.compile("udp and port 53");
+        assertTrue(filter.matches(buffer, 7, DNS_OUT.length, false));
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void rejectsNonIpAndCountsRejections() {
+        CaptureFilter filter = CaptureFilter.compile("not tcp");
+        byte[] garbage = new byte[] {0x12, 0x34};
+        assertFalse(filter.matches(ByteBuffer.wrap(garbage), 0, garbage.length, false));
+        assertFalse(filter.matches(ByteBuffer.wrap(HTTPS_IN), 0, HTTPS_IN.length, true));
+        assertTrue(filter.matches(ByteBuffer.wrap(DNS_OUT), 0, DNS_OUT.length, false));
+        // Not IP, so rejected even though it is not TCP
+        assertEquals(2, filter.rejected());
+    }
+
+    @Test
+    public void reportsWhereParsingFailed() {
+        String[] bad = {"", "port", "port 70000", "host example.com", "net 10.0.0.0", "net 10.0.0.0/33",
+                "tcp and", "(tcp", "tcp)", "src tcp", "len ~ 5", "direction up", "port 9-1", "host 1:2:3",
+                "host ::1::2", "frobnicate", "tcp & udp"};
+        for (String expression : bad) {
+            try {
+                CaptureFilter.compile(expression);
+                fail("Accepted: " + expression);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("position") || expression.isEmpty());
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CaptureHistoryTest {
+    private static final int SNAP = 64;
+    // Smallest arena the history accepts
+    private static final int SMALL_ARENA = PacketRecords.RECORD_HEADER + 32 + 0xffff;
+
+    private final PacketView view = new PacketView();
+    private final HexDump preview = new HexDump(SNAP, HexDump.FROM_TRANSPORT_HEADER);
+
+    private static byte[] packet(int port) {
+        return TestPackets.udp4(TestPackets.CLIENT, port, TestPackets.SERVER, 53, new byte[100]);
+    }
+
+    private long append(CaptureHistory history, byte[] packet, boolean incoming) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        return history.append(view, incoming, 1000, preview.previewOffset(view), SNAP);
+    }
+
+    private byte[] encode(byte[] packet, boolean incoming, long seq) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        byte[] record = PacketRecords.encode(view, incoming, 1000, preview.previewOffset(view), SNAP, 0, seq);
+        return PacketRecords.frame(Arrays.asList(record), 0);
+    }
+
+    private static int count(byte[] batch) {
+        return ByteBuffer.wrap(batch).getShort(2) & 0xffff;
+    }
+
+    @Test
+    public void sequenceNumbersStartAtOneAndIncrease() {
+        CaptureHistory history = new CaptureHistory(16, SMALL_ARENA);
+        assertEquals(0, history.newestSeq());
+        assertEquals(1, append(history, packet(1), false));
+        assertEquals(2, append(history, packet(2), true));
+        assertEquals(1, history.oldestSeq());
+        assertEquals(2, history.newestSeq());
+        assertArrayEquals(encode(packet(2), true, 2), history.get(2));
+        assertNull(history.get(0));
+        assertNull(history.get(3));
+    }
+
+    @Test
+    public void pagesForwardAndBackward() {
+        CaptureHistory history = new CaptureHistory(64, SMALL_ARENA);
+        for (int port = 1; port <= 10; port++) {
+            append(history, packet(port), false);
+        }
+
+        CaptureHistory.Page page = history.query(0, 4, false, null);
+        assertArrayEquals(new long[] {1, 2, 3, 4}, page.seqs);
+        assertEquals(5, page.nextSeq);
+        assertEquals(4, count(page.data));
+        page = history.query(page.nextSeq, 100, false, null);
+        assertArrayEquals(new long[] {5, 6, 7, 8, 9, 10}, page.seqs);
+        assertEquals(0, page.nextSeq);
+
+        page = history.query(Long.MAX_VALUE, 3, true, null);
+        assertArrayEquals(new long[] {10, 9, 8}, page.seqs);
+        assertEquals(7, page.nextSeq);
+        assertEquals(1, page.oldestSeq);
+        assertEquals(10, page.newestSeq);
+
+        // The batch holds the records back to back in the order of seqs
+        byte[] record = encode(packet(10), false, 10);
+        assertArrayEquals(Arrays.copyOfRange(record, PacketRecords.BATCH_HEADER, record.length),
+                Arrays.copyOfRange(page.data, PacketRecords.BATCH_HEADER, record.length));
+    }
+
+    @Test
+    public void filterSelectsOnRecordFields() {
+        CaptureHistory history = new CaptureHistory(64, SMALL_ARENA);
+        append(history, packet(1000), false);
+        append(history, TestPackets.tcp4(TestPackets.SERVER, 443, TestPackets.CLIENT, 2000,
+                PacketView.TCP_ACK, new byte[10]), true);
+        append(history, packet(3000), true);
+
+        assertArrayEquals(new long[] {2},
+                history.query(0, 10, false, new CaptureHistory.FieldFilter(PacketView.PROTO_TCP, -1, -1)).seqs);
+        assertArrayEquals(new long[] {2, 3},
+                history.query(0, 10, false, new CaptureHistory.FieldFilter(-1, 1, -1)).seqs);
+        assertArrayEquals(new long[] {1},
+                history.query(0, 10, false, new CaptureHistory.FieldFilter(-1, 0, -1)).seqs);
+        // Either port matches
+        assertArrayEquals(new long[] {1, 3},
+                history.query(0, 10, false, new CaptureHistory.FieldFilter(PacketView.PROTO_UDP, -1, 53)).seqs);
+        assertArrayEquals(new long[] {2},
+                history.query(0, 10, false, new CaptureHistory.FieldFilter(-1, -1, 2000)).seqs);
+    }
+
+    @Test
+    public void fullIndexForgetsOldest() {
+        CaptureHistory history = new CaptureHistory(8, SMALL_ARENA);
+        for (int port = 1; port <= 20; port++) {
+            append(history, packet(port), false);
+        }
+        assertEquals(8, history.size());
+        assertEquals(13, history.oldestSeq());
+        assertEquals(12, history.evicted());
+        assertNull(history.get(12));
+        assertArrayEquals(encode(packet(13), false, 13), history.get(13));
+        assertArrayEquals(new long[] {13, 14}, history.query(1, 2, false, null).seqs);
+    }
+
+    @Test
+    public void arenaWrapsAndKeepsOnlyIntactRecords() {
+        CaptureHistory history = new CaptureHistory(100_000, SMALL_ARENA);
+        int recordLength = encode(packet(1), false, 1).length - PacketRecords.BATCH_HEADER;
+        int total = 5 * SMALL_ARENA / recordLength;
+        for (int i = 1; i <= total; i++) {
+            append(history, packet(i), false);
+        }
+        assertEquals(total, history.newestSeq());
+        assertTrue(history.size() <= SMALL_ARENA / recordLength);
+        assertTrue(history.size() >= SMALL_ARENA / recordLength - 1);
+        for (long seq = history.oldestSeq(); seq <= history.newestSeq(); seq++) {
+            assertArrayEquals(encode(packet((int) seq), false, seq), history.get(seq));
+        }
+    }
+
+    @Test
+    public void scanIsBounded() {
+        CaptureHistory history = new CaptureHistory(CaptureHistory.MAX_SCAN + 10, 8 << 20);
+        for (int i = 0; i < CaptureHistory.MAX_SCAN + 10; i++) {
+            append(history, packet(1), false);
+        }
+        // Nothing matches, so the query stops after MAX_SCAN records and says where to resume
+        CaptureHistory.Page page = history.query(0, 10, false, new CaptureHistory.FieldFilter(PacketView.PROTO_TCP, -1, -1));
+        assertEquals(0, page.seqs.length);
+        assertEquals(CaptureHistory.MAX_SCAN + 1, page.nextSeq);
+    }
+
+    @Test
+    public void clearForgetsEverythingButKeepsNumbering() {
+        CaptureHistory history = new CaptureHistory(16, SMALL_ARENA);
+        append(history, packet(1), false);
+        append(history, packet(2), false);
+        history.clear();
+        assertEquals(0, history.size());
+        assertEquals(0, history.query(0, 10, false, null).seqs.length);
+        assertEquals(3, append(history, packet(3), false));
+    }
+
+    @Test
+    public void partitionsShareOneNumberingAndQueriesMergeThem() {
+        CaptureHistory history = new CaptureHistory(64, 3 * SMALL_ARENA, 3);
+        for (int port = 1; port <= 9; port++) {
+            assertTrue(view.wrap(ByteBuffer.wrap(packet(port))));
+            history.partition(port % 3).append(view, false, 1000, preview.previewOffset(view), SNAP, 0);
+        }
+        assertEquals(9, history.size());
+        assertEquals(1, history.oldestSeq());
+        assertEquals(9, history.newestSeq());
+        for (long seq = 1; seq <= 9; seq++) {
+            assertArrayEquals(encode(packet((int) seq), false, seq), history.get(seq));
+        }
+
+        CaptureHistory.Page page = history.query(0, 4, false, null);
+        assertArrayEquals(new long[] {1, 2, 3, 4}, page.seqs);
+        assertEquals(5, page.nextSeq);
+        page = history.query(page.nextSeq, 100, false, null);
+        assertArrayEquals(new long[] {5, 6, 7, 8, 9}, page.seqs);
+        assertEquals(0, page.nextSeq);
+        assertArrayEquals(new long[] {9, 8, 7}, history.query(Long.MAX_VALUE, 3, true, null).seqs);
+
+        history.clear();
+        assertEquals(0, history.size());
+        assertEquals(10, history.partition(2).append(view, false, 1000, preview.previewOffset(view), SNAP, 0));
+    }
+}
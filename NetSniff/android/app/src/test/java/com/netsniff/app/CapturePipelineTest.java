@@ -0,0 +1,257 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CapturePipelineTest {
+    private static final int WORKERS = 3;
+    private static final int FLOWS = 16;
+
+    /** What one worker saw: flow port, direction and sequence number of each packet. */
+    private static final class Recording implements CapturePipeline.Worker {
+        final List<int[]> seen = new ArrayList<>();
+        private final PacketView view = new PacketView();
+
+        @Override
+        public synchronized void process(ByteBuffer packet, boolean incoming, long timestampMs) {
+            assertTrue(view.wrap(packet, packet.position(), packet.remaining()));
+            int port = incoming ? view.destinationPort() : view.sourcePort();
+            int seq = packet.getInt(view.payloadOffset());
+            seen.add(new int[] {port, incoming ? 1 : 0, seq});
+        }
+
+        synchronized List<int[]> seen() {
+            return new ArrayList<>(seen);
+        }
+    }
+
+    private final Recording[] workers = new Recording[WORKERS];
+
+    private CapturePipeline pipeline(int count) {
+        return new CapturePipeline(count, 1500, index -> workers[index] = new Recording());
+    }
+
+    private static byte[] packet(int flow, boolean incoming, int seq) {
+        byte[] payload = ByteBuffer.allocate(8).putInt(seq).array();
+        return incoming
+                ? TestPackets.udp4(TestPackets.SERVER, 53, TestPackets.CLIENT, 40000 + flow, payload)
+                : TestPackets.udp4(TestPackets.CLIENT, 40000 + flow, TestPackets.SERVER, 53, payload);
+    }
+
+    private static void awaitDrained(CapturePipeline pipeline, long packets) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            long processed = 0;
+            for (int i = 0; i < pipeline.workers(); i++) {
+                processed += pipeline.processed(i) + pipeline.dropped(i);
+            }
+            if (processed == packets) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail("pipeline did not drain: " + pipeline);
+    }
+
+    @Test
+    public void bothDirectionsOfAFlowShareAShard() {
+        CapturePipeline pipeline = pipeline(WORKERS);
+        for (int flow = 0; flow < FLOWS; flow++) {
+            ByteBuffer out = ByteBuffer.wrap(packet(flow, false, 0));
+            ByteBuffer in = ByteBuffer.wrap(packet(flow, true, 0));
+            assertEquals(CapturePipeline.flowHash(out, 0, out.limit()), CapturePipeline.flowHash(in, 0, in.limit()));
+        }
+    }
+
+    @Test
+    public void flowsSpreadAcrossWorkers() {
+        CapturePipeline pipeline = pipeline(WORKERS);
+        boolean[] used = new boolean[WORKERS];
+        for (int flow = 0; flow < FLOWS; flow++) {
+            ByteBuffer out = ByteBuffer.wrap(packet(flow, false, 0));
+            used[pipeline.shardOf(out, 0, out.limit())] = true;
+        }
+        for (boolean u : used) {
+            assertTrue(u);
+        }
+    }
+
+    @Test
+    public void fragmentsHashWithTheirFlowsAddresses() {
+        byte[] first = packet(1, false, 0);
+        byte[] other = packet(2, false, 0);
+        // More-fragments on one, a fragment offset on the other: ports are not trusted
+        first[6] = 0x20;
+        other[7] = 0x10;
+        assertEquals(CapturePipeline.flowHash(ByteBuffer.wrap(first), 0, first.length),
+                CapturePipeline.flowHash(ByteBuffer.wrap(other), 0, other.length));
+    }
+
+    @Test
+    public void eachFlowIsProcessedInOrderOnOneWorker() throws Exception {
+        final CapturePipeline pipeline = pipeline(WORKERS);
+        pipeline.start();
+        final int perDirection = 3000;
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < 2; t++) {
+            final PacketSink sink = pipeline.sink(t == 1);
+            final boolean incoming = t == 1;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perDirection; i++) {
+                    sink.onPacket(ByteBuffer.wrap(packet(i % FLOWS, incoming, i)));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        awaitDrained(pipeline, 2 * perDirection);
+        pipeline.stop();
+
+        int[] owner = new int[FLOWS];
+        Arrays.fill(owner, -1);
+        int[][] last = new int[FLOWS][2];
+        for (int[] row : last) {
+            Arrays.fill(row, -1);
+        }
+        long processed = 0;
+        for (int w = 0; w < WORKERS; w++) {
+            for (int[] p : workers[w].seen()) {
+                int flow = p[0] - 40000;
+                assertTrue(owner[flow] == -1 || owner[flow] == w);
+                owner[flow] = w;
+                assertTrue("out of order in flow " + flow, p[2] > last[flow][p[1]]);
+                last[flow][p[1]] = p[2];
+            }
+            assertEquals(workers[w].seen().size(), pipeline.processed(w));
+            processed += pipeline.processed(w);
+        }
+        assertTrue(processed > 0);
+    }
+
+    @Test
+    public void countsBytesPerWorker() throws Exception {
+        CapturePipeline pipeline = pipeline(1);
+        pipeline.start();
+        byte[] packet = packet(0, false, 1);
+        PacketSink sink = pipeline.sink(false);
+        for (int i = 0; i < 10; i++) {
+            sink.onPacket(ByteBuffer.wrap(packet));
+        }
+        awaitDrained(pipeline, 10);
+        pipeline.stop();
+        assertEquals(10, pipeline.processed(0));
+        assertEquals(0, pipeline.dropped(0));
+        assertEquals(10L * packet.length, pipeline.bytes(0));
+        assertTrue(pipeline.toString().contains("processed=10"));
+    }
+
+    @Test
+    public void honoursThePacketsPosition() throws Exception {
+        CapturePipeline pipeline = pipeline(1);
+        pipeline.start();
+        byte[] packet = packet(3, true, 7);
+        ByteBuffer framed = ByteBuffer.allocate(packet.length + 10);
+        framed.position(10);
+        framed.put(packet).flip().position(10);
+        pipeline.sink(true).onPacket(framed);
+        awaitDrained(pipeline, 1);
+        pipeline.stop();
+        assertEquals(10, framed.position());
+        int[] seen = workers[0].seen().get(0);
+        assertArrayEquals(new int[] {40003, 1, 7}, seen);
+    }
+
+    @Test
+    public void dropsWhenBehindOrStopped() {
+        // Not started, so nothing drains the rings
+        CapturePipeline pipeline = pipeline(1);
+        PacketSink sink = pipeline.sink(false);
+        sink.onPacket(ByteBuffer.wrap(packet(0, false, 0)));
+        assertEquals(1, pipeline.dropped(0));
+
+        pipeline.start();
+        pipeline.stop();
+        sink.onPacket(ByteBuffer.wrap(packet(0, false, 0)));
+        assertEquals(2, pipeline.dropped(0));
+        assertEquals(2, pipeline.dropped());
+        assertEquals(0, pipeline.queued(0));
+        assertEquals(0, pipeline.queued());
+
+        assertFalse(pipeline.offer(ByteBuffer.wrap(new byte[1600]), false));
+    }
+
+    @Test
+    public void fullRingDropsNewest() throws Exception {
+        final Object gate = new Object();
+        final boolean[] open = new boolean[1];
+        CapturePipeline pipeline = new CapturePipeline(1, 1500, index -> (packet, incoming, ts) -> {
+            synchronized (gate) {
+                while (!open[0]) {
+                    try {
+                        gate.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        pipeline.start();
+        PacketSink sink = pipeline.sink(false);
+        int offered = CapturePipeline.QUEUED_PER_DIRECTION + 50;
+        for (int i = 0; i < offered; i++) {
+            sink.onPacket(ByteBuffer.wrap(packet(0, false, i)));
+        }
+        assertTrue(pipeline.dropped(0) >= 49);
+        synchronized (gate) {
+            open[0] = true;
+            gate.notifyAll();
+        }
+        awaitDrained(pipeline, offered);
+        pipeline.stop();
+    }
+
+    @Test
+    public void countsFailuresAndReportsTheFirstOnce() throws Exception {
+        final List<RuntimeException> reported = new ArrayList<>();
+        CapturePipeline pipeline = new CapturePipeline(1, 1500, index -> (packet, incoming, ts) -> {
+            if (packet.getInt(packet.limit() - 8) % 2 == 0) {
+                throw new IllegalStateException("packet " + packet.getInt(packet.limit() - 8));
+            }
+        });
+        pipeline.setFailureListener((index, failure) -> {
+            synchronized (reported) {
+                reported.add(failure);
+            }
+        });
+        pipeline.start();
+        PacketSink sink = pipeline.sink(false);
+        for (int i = 0; i < 10; i++) {
+            sink.onPacket(ByteBuffer.wrap(packet(0, false, i)));
+        }
+        awaitDrained(pipeline, 10);
+        pipeline.stop();
+
+        // The worker carries on past each failure
+        assertEquals(10, pipeline.processed(0));
+        assertEquals(5, pipeline.failed(0));
+        assertEquals(5, pipeline.failed());
+        assertTrue(pipeline.toString().contains("failed=5"));
+        synchronized (reported) {
+            assertEquals(1, reported.size());
+            assertEquals("packet 0", reported.get(0).getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyWorkers() {
+        pipeline(CapturePipeline.MAX_WORKERS + 1);
+    }
+}
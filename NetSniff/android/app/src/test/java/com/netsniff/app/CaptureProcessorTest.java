@@ -0,0 +1,144 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CaptureProcessorTest {
+    private final FlowTable flowTable = new FlowTable(64, 60_000);
+    private final TrafficStats stats = new TrafficStats(0);
+    private final CaptureHistory history = new CaptureHistory(64, 128 * 1024);
+    private CaptureFilter filter;
+    private boolean admit = true;
+    private final List<long[]> events = new ArrayList<>();
+
+    private final CaptureProcessor.Taps taps = new CaptureProcessor.Taps() {
+        @Override
+        public CaptureFilter filter() {
+            return filter;
+        }
+
+        @Override
+        public PcapngRecorder recorder() {
+            return null;
+        }
+    };
+
+    private final CaptureProcessor.EventSink sink = new CaptureProcessor.EventSink() {
+        @Override
+        public boolean admit() {
+            return admit;
+        }
+
+        @Override
+        public void onPacket(PacketView view, boolean incoming, long timestampMs, int previewOffset,
+                             int appProtocol, long seq) {
+            events.add(new long[] {view.destinationPort(), incoming ? 1 : 0, timestampMs, appProtocol, seq});
+        }
+    };
+
+    private CaptureProcessor processor(LatencyHistogram[] stages) {
+        flowTable.setClassifier(Dissectors.withDefaults());
+        return new CaptureProcessor(0, flowTable, stats, history.partition(0), 512, taps, sink, stages);
+    }
+
+    private static ByteBuffer dns() {
+        return ByteBuffer.wrap(TestPackets.udp4(TestPackets.dnsQuery(9, "example.com", 1)));
+    }
+
+    @Test
+    public void countsStoresAndReportsEachPacket() {
+        CaptureProcessor processor = processor(null);
+        processor.process(dns(), false, 1000);
+        processor.process(dns(), false, 1001);
+
+        assertEquals(1, flowTable.size());
+        assertEquals(2, stats.snapshot(2000).totalPackets());
+        assertEquals(2, history.size());
+        assertEquals(2, events.size());
+        long[] event = events.get(1);
+        assertEquals(53, event[0]);
+        assertEquals(0, event[1]);
+        assertEquals(1001, event[2]);
+        assertEquals(DnsDissector.ID, event[3]);
+        assertEquals(history.newestSeq(), event[4]);
+    }
+
+    @Test
+    public void filteredPacketsAreNotCounted() {
+        filter = CaptureFilter.compile("tcp");
+        processor(null).process(dns(), false, 1000);
+        assertEquals(0, flowTable.size());
+        assertEquals(0, history.size());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void shedPacketsAreStillStored() {
+        admit = false;
+        processor(null).process(dns(), true, 1000);
+        assertEquals(1, history.size());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void readsThePacketFromItsPosition() {
+        byte[] packet = TestPackets.udp4(TestPackets.dnsQuery(9, "example.com", 1));
+        ByteBuffer framed = ByteBuffer.allocate(packet.length + 17);
+        framed.position(17);
+        framed.put(packet).flip().position(17);
+        processor(null).process(framed, false, 1000);
+        assertEquals(1, events.size());
+        assertEquals(53, events.get(0)[0]);
+        assertEquals(17, framed.position());
+    }
+
+    @Test
+    public void undecodablePacketsStopAfterTheFilter() {
+        LatencyHistogram[] stages = CaptureProcessor.newStageHistograms();
+        processor(stages).process(ByteBuffer.wrap(new byte[] {0x45, 0, 0}), false, 1000);
+        assertEquals(1, stages[CaptureProcessor.STAGE_FILTER].count());
+        assertEquals(0, stages[CaptureProcessor.STAGE_DECODE].count());
+        assertEquals(0, history.size());
+    }
+
+    @Test
+    public void timesEveryStage() {
+        LatencyHistogram[] stages = CaptureProcessor.newStageHistograms();
+        CaptureProcessor processor = processor(stages);
+        for (int i = 0; i < 5; i++) {
+            processor.process(dns(), false, 1000 + i);
+        }
+        for (int stage = 0; stage < CaptureProcessor.STAGES; stage++) {
+            assertEquals(CaptureProcessor.stageName(stage), 5, stages[stage].count());
+        }
+    }
+
+    @Test
+    public void timesOnePacketPerInterval() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        flowTable.setClassifier(Dissectors.withDefaults());
+        CaptureProcessor processor = new CaptureProcessor(0, flowTable, stats, history.partition(0), 512, taps, sink,
+                CaptureProcessor.stageHistograms(metrics), 4);
+        for (int i = 0; i < 9; i++) {
+            processor.process(dns(), false, 1000 + i);
+        }
+        assertEquals(9, history.size());
+        assertEquals(3, metrics.histogram("capture.decode").count());
+        assertEquals(3, metrics.snapshot(2000).latency.get("capture.event").count);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timingIntervalIsAPowerOfTwo() {
+        new CaptureProcessor(0, flowTable, stats, history.partition(0), 512, taps, sink, null, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsOneHistogramPerStage() {
+        processor(new LatencyHistogram[2]);
+    }
+}
@@ -0,0 +1,111 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DeliverySamplerTest {
+    private final DeliverySampler sampler = new DeliverySampler();
+    private long now = 10_000;
+
+    /** Admits {@code count} packets and returns how many were let through. */
+    private int admit(int count) {
+        int admitted = 0;
+        for (int i = 0; i < count; i++) {
+            if (sampler.admit(now)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    /** Waits out the dwell time, then reports the same lag until the smoothed value settles. */
+    private void lag(long lagMs) {
+        now += DeliverySampler.MIN_DWELL_MS;
+        for (int i = 0; i < 20; i++) {
+            sampler.onBridgeLag(lagMs, now);
+        }
+    }
+
+    @Test
+    public void deliversEverythingWhileThePageKeepsUp() {
+        assertEquals(100, admit(100));
+        lag(10);
+        assertEquals(DeliverySampler.Mode.FULL, sampler.mode());
+        assertEquals(0, sampler.shed());
+    }
+
+    @Test
+    public void sustainedLagEscalatesThroughSamplingToSummary() {
+        lag(1000);
+        assertEquals(DeliverySampler.Mode.SAMPLED, sampler.mode());
+        assertEquals(2, sampler.sampleRate());
+        assertEquals(50, admit(100));
+
+        for (int rate = 4; rate <= DeliverySampler.MAX_SAMPLE_RATE; rate *= 2) {
+            lag(1000);
+            assertEquals(rate, sampler.sampleRate());
+        }
+        lag(1000);
+        assertEquals(DeliverySampler.Mode.SUMMARY, sampler.mode());
+        assertEquals(0, admit(100));
+        assertEquals(50 + 100, sampler.shed());
+    }
+
+    @Test
+    public void recoversStepByStepOnceLagClears() {
+        for (int i = 0; i < 10; i++) {
+            lag(1000);
+        }
+        assertEquals(DeliverySampler.Mode.SUMMARY, sampler.mode());
+        lag(0);
+        assertEquals(DeliverySampler.Mode.SAMPLED, sampler.mode());
+        assertEquals(DeliverySampler.MAX_SAMPLE_RATE, sampler.sampleRate());
+        for (int i = 0; i < 10 && sampler.mode() != DeliverySampler.Mode.FULL; i++) {
+            lag(0);
+        }
+        assertEquals(DeliverySampler.Mode.FULL, sampler.mode());
+        assertEquals(1, sampler.sampleRate());
+    }
+
+    @Test
+    public void modeHoldsForTheDwellTime() {
+        lag(1000);
+        assertEquals(2, sampler.sampleRate());
+        // Still just as slow, but too soon after the last change
+        sampler.onBridgeLag(1000, now + DeliverySampler.MIN_DWELL_MS - 1);
+        assertEquals(2, sampler.sampleRate());
+    }
+
+    @Test
+    public void singleSlowFrameDoesNotTripSampling() {
+        lag(10);
+        now += DeliverySampler.MIN_DWELL_MS;
+        sampler.onBridgeLag(600, now);
+        assertEquals(DeliverySampler.Mode.FULL, sampler.mode());
+    }
+
+    @Test
+    public void unacknowledgedDeliveryMeansTheUiStalled() {
+        assertTrue(sampler.admit(now));
+        now += DeliverySampler.STALL_MS;
+        assertTrue(sampler.admit(now));
+        now += 1;
+        assertFalse(sampler.admit(now));
+        assertEquals(DeliverySampler.Mode.SUMMARY, sampler.mode());
+
+        // An acknowledged summary brings delivery back
+        now += DeliverySampler.MIN_DWELL_MS;
+        sampler.onBridgeLag(0, now);
+        assertEquals(DeliverySampler.Mode.SAMPLED, sampler.mode());
+    }
+
+    @Test
+    public void quietLinkIsNotAStall() {
+        assertTrue(sampler.admit(now));
+        sampler.onBridgeLag(5, now + 120);
+        now += 10 * DeliverySampler.STALL_MS;
+        assertTrue(sampler.admit(now));
+        assertEquals(DeliverySampler.Mode.FULL, sampler.mode());
+    }
+}
@@ -0,0 +1,175 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class DissectorsTest {
+    // As much of each payload as the service keeps in its history
+    private static final int SNAP_LENGTH = 512;
+
+    private final Dissectors dissectors = Dissectors.withDefaults();
+    private final PacketView view = new PacketView();
+    private final HexDump preview = new HexDump(SNAP_LENGTH, HexDump.FROM_TRANSPORT_HEADER);
+
+    private int classify(byte[] packet) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        return dissectors.classify(view);
+    }
+
+    private Dissection dissect(byte[] packet) {
+        CaptureHistory history = new CaptureHistory(16, 128 * 1024);
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        long seq = history.append(view, false, 0, preview.previewOffset(view),
+                SNAP_LENGTH, dissectors.classify(view));
+        return dissectors.dissectRecord(history.get(seq), PacketRecords.BATCH_HEADER);
+    }
+
+    private static byte[] http(int port, String text) {
+        return TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, port,
+                PacketView.TCP_ACK | PacketView.TCP_PSH, text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] tls(int port, byte[] payload) {
+        return TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, port,
+                PacketView.TCP_ACK | PacketView.TCP_PSH, payload);
+    }
+
+    /** TLS 1.2 record holding a ClientHello with SNI and ALPN extensions. */
+    static byte[] clientHello(String serverName, String alpn) {
+        byte[] sni = serverName.getBytes(StandardCharsets.US_ASCII);
+        byte[] protocol = alpn.getBytes(StandardCharsets.US_ASCII);
+        int sniExtension = 4 + 2 + 3 + sni.length;
+        int alpnExtension = 4 + 2 + 1 + protocol.length;
+        int hello = 2 + 32 + 1 + 2 + 4 + 1 + 1 + 2 + sniExtension + alpnExtension;
+        ByteBuffer b = ByteBuffer.allocate(5 + 4 + hello);
+        b.put((byte) 22).putShort((short) 0x0301).putShort((short) (4 + hello));
+        b.put((byte) 1).put((byte) 0).putShort((short) hello);
+        b.putShort((short) 0x0303).put(new byte[32]).put((byte) 0);
+        b.putShort((short) 4).putShort((short) 0x1301).putShort((short) 0xC02F);
+        b.put((byte) 1).put((byte) 0);
+        b.putShort((short) (sniExtension + alpnExtension));
+        b.putShort((short) 0).putShort((short) (2 + 3 + sni.length))
+         .putShort((short) (3 + sni.length)).put((byte) 0).putShort((short) sni.length).put(sni);
+        b.putShort((short) 16).putShort((short) (2 + 1 + protocol.length))
+         .putShort((short) (1 + protocol.length)).put((byte) protocol.length).put(protocol);
+        return b.array();
+    }
+
+    @Test
+    public void classifiesByWellKnownPort() {
+        assertEquals(DnsDissector.ID, classify(TestPackets.udp4(TestPackets.dnsQuery(7, "example.com", 1))));
+        assertEquals(HttpDissector.ID, classify(http(80, "GET / HTTP/1.1\r\n\r\n")));
+        assertEquals(TlsDissector.ID, classify(tls(443, clientHello("example.com", "h2"))));
+    }
+
+    @Test
+    public void classifiesByHeuristicOnOtherPorts() {
+        assertEquals(HttpDissector.ID, classify(http(3128, "POST /upload HTTP/1.1\r\n")));
+        assertEquals(TlsDissector.ID, classify(tls(9000, clientHello("example.com", "h2"))));
+    }
+
+    @Test
+    public void portClaimIsCheckedAgainstThePayload() {
+        // Not HTTP despite the port, and nothing else recognises it
+        assertEquals(Dissectors.NONE, classify(http(80, "\u0001\u0002binary")));
+        assertEquals(Dissectors.NONE, classify(TestPackets.udp4(new byte[] {1, 2, 3})));
+    }
+
+    @Test
+    public void emptyPayloadLeavesTheFlowUndecided() {
+        assertEquals(FlowTable.APP_UNCLASSIFIED, classify(TestPackets.tcp4(TestPackets.CLIENT, 40000,
+                TestPackets.SERVER, 443, PacketView.TCP_SYN, new byte[0])));
+    }
+
+    @Test
+    public void flowKeepsItsClassification() {
+        FlowTable table = new FlowTable(16, 60_000);
+        final int[] calls = new int[1];
+        table.setClassifier(new FlowTable.Classifier() {
+            @Override
+            public int classify(PacketView packet) {
+                calls[0]++;
+                return dissectors.classify(packet);
+            }
+        });
+        assertTrue(view.wrap(ByteBuffer.wrap(TestPackets.tcp4(TestPackets.CLIENT, 40000,
+                TestPackets.SERVER, 443, PacketView.TCP_SYN, new byte[0]))));
+        int entry = table.record(view, 0);
+        assertEquals(FlowTable.APP_UNCLASSIFIED, table.appProtocol(entry));
+
+        assertTrue(view.wrap(ByteBuffer.wrap(tls(443, clientHello("example.com", "h2")))));
+        assertEquals(entry, table.record(view, 1));
+        assertEquals(TlsDissector.ID, table.appProtocol(entry));
+
+        assertTrue(view.wrap(ByteBuffer.wrap(http(443, "GET / HTTP/1.1\r\n\r\n"))));
+        table.record(view, 2);
+        assertEquals(TlsDissector.ID, table.appProtocol(entry));
+        assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void dissectsDnsQuery() {
+        Dissection dns = dissect(TestPackets.udp4(TestPackets.dnsQuery(0x1234, "example.com", 28)));
+        assertEquals("DNS", dns.protocol);
+        assertFalse(dns.isTruncated());
+        assertEquals("0x1234", dns.field("Transaction ID").value);
+        assertEquals("1", dns.field("Questions").value);
+        Dissection.Field query = dns.field("Queries").children().get(0);
+        assertEquals("example.com", query.child("Name").value);
+        assertEquals("AAAA", query.child("Type").value);
+    }
+
+    @Test
+    public void dissectsHttpRequest() {
+        Dissection http = dissect(http(8080, "GET /index.html HTTP/1.1\r\nHost: example.com\r\n"
+                + "User-Agent: test\r\n\r\nbody"));
+        assertEquals("HTTP", http.protocol);
+        Dissection.Field request = http.field("Request line");
+        assertEquals("GET", request.child("Method").value);
+        assertEquals("/index.html", request.child("Target").value);
+        assertEquals("example.com", http.field("Headers").child("Host").value);
+        assertEquals("4 bytes captured", http.field("Body").value);
+        assertFalse(http.isTruncated());
+    }
+
+    @Test
+    public void dissectsClientHello() {
+        Dissection tls = dissect(tls(443, clientHello("www.example.org", "h2")));
+        assertEquals("TLS", tls.protocol);
+        assertFalse(tls.toString(), tls.isTruncated());
+        Dissection.Field hello = tls.field("Record").child("Handshake");
+        assertEquals("Client Hello", hello.value);
+        assertEquals("TLS 1.2", hello.child("Version").value);
+        assertEquals("2", hello.child("Cipher suites").value);
+        Dissection.Field extensions = hello.child("Extensions");
+        assertEquals("www.example.org", extensions.child("server_name").child("Server name").value);
+        assertEquals("h2", extensions.child("application_layer_protocol_negotiation").child("Protocol").value);
+    }
+
+    @Test
+    public void cutShortPayloadGivesPartialDissection() {
+        byte[] hello = clientHello("example.com", "h2");
+        byte[] start = new byte[50];
+        System.arraycopy(hello, 0, start, 0, start.length);
+        Dissection tls = dissect(tls(443, start));
+        assertEquals("TLS", tls.protocol);
+        assertTrue(tls.isTruncated());
+        assertEquals("Client Hello", tls.field("Record").child("Handshake").value);
+    }
+
+    @Test
+    public void packetsWithoutKnownPayloadAreNotDissected() {
+        assertNull(dissect(TestPackets.udp4(new byte[] {1, 2, 3})));
+        assertNull(dissect(TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 443,
+                PacketView.TCP_SYN, new byte[0])));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idsMustBeUnique() {
+        dissectors.register(new DnsDissector());
+    }
+}
@@ -0,0 +1,333 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the forwarder against a stub resolver on the loopback interface.
+ */
+public class DnsForwarderTest {
+    private static final int VPN_DNS = 0x0A000035;     // 10.0.0.53
+    private static final int ANSWER = 0x5DB8D822;      // 93.184.216.34
+    private static final int ANSWER_TTL = 300;
+    private static final int TYPE_A = 1;
+
+    private final PacketBufferPool pool = new PacketBufferPool(1500, 32);
+    private final SpscRing<ByteBuffer> toDevice = new SpscRing<>(32, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+    private final PacketView view = new PacketView();
+    private final SocketProtector protector = new SocketProtector() {
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return true;
+        }
+
+        @Override
+        public boolean protect(Socket socket) {
+            return true;
+        }
+    };
+
+    private Selector selector;
+    private DatagramSocket resolver;
+    private Thread resolverThread;
+    private final AtomicInteger resolverQueries = new AtomicInteger();
+    private volatile boolean resolverSilent;
+    // Released by the test to let the resolver answer, so queries can pile up first
+    private volatile CountDownLatch resolverGate = new CountDownLatch(0);
+    private DnsForwarder forwarder;
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        selector = Selector.open();
+        resolver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        resolverThread = new Thread(this::serve, "stub-resolver");
+        resolverThread.start();
+        now = 1_000_000;
+        forwarder = new DnsForwarder(selector, protector, pool, toDevice, packet -> { },
+                new DnsCache(DnsCache.DEFAULT_CAPACITY), VPN_DNS,
+                new InetSocketAddress[] {(InetSocketAddress) resolver.getLocalSocketAddress()}, now);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        forwarder.close();
+        resolver.close();
+        resolverThread.join(1000);
+        selector.close();
+    }
+
+    /** Answers every A query with one record, and names starting with "missing" with NXDOMAIN. */
+    private void serve() {
+        byte[] in = new byte[1500];
+        while (!resolver.isClosed()) {
+            try {
+                DatagramPacket request = new DatagramPacket(in, in.length);
+                resolver.receive(request);
+                resolverQueries.incrementAndGet();
+                if (resolverSilent) {
+                    continue;
+                }
+                resolverGate.await(5, TimeUnit.SECONDS);
+                // First character of the first label
+                boolean missing = (char) in[13] == 'm';
+                ByteBuffer out = ByteBuffer.allocate(request.getLength() + 16);
+                out.put(in, 0, request.getLength());
+                out.putShort(2, (short) (0x8180 | (missing ? 3 : 0)));
+                if (!missing) {
+                    out.putShort(6, (short) 1);
+                    out.putShort((short) 0xC00C).putShort((short) TYPE_A).putShort((short) 1)
+                       .putInt(ANSWER_TTL).putShort((short) 4).putInt(ANSWER);
+                }
+                resolver.send(new DatagramPacket(out.array(), out.position(), request.getSocketAddress()));
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+
+    private void query(int sourcePort, int id, String name) {
+        ByteBuffer packet = ByteBuffer.wrap(TestPackets.udp4(TestPackets.CLIENT, sourcePort, VPN_DNS, 53,
+                TestPackets.dnsQuery(id, name, TYPE_A)));
+        assertTrue(view.wrap(packet));
+        assertTrue(forwarder.intercepts(view));
+        forwarder.handleQuery(view, now);
+    }
+
+    /** Pumps the selector until a reply for the device is queued. */
+    private ByteBuffer awaitReply() throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            ByteBuffer reply = toDevice.poll();
+            if (reply != null) {
+                return reply;
+            }
+            if (selector.select(50) > 0) {
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((SelectionHandler) key.attachment()).onSelected(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        fail("no DNS reply");
+        return null;
+    }
+
+    /** Checks the reply's headers and returns the index of its DNS payload. */
+    private int checkReply(ByteBuffer reply, int devicePort, int id) {
+        assertTrue(view.wrap(reply));
+        assertEquals(VPN_DNS, view.sourceAddress());
+        assertEquals(TestPackets.CLIENT, view.destinationAddress());
+        assertEquals(53, view.sourcePort());
+        assertEquals(devicePort, view.destinationPort());
+        assertEquals(0, Checksums.finish(Checksums.sum(reply, 0, view.ipHeaderLength(), 0)));
+        assertEquals(0, Checksums.transport(reply, 0, view.transportOffset(), 8 + view.payloadLength(),
+                PacketView.PROTO_UDP));
+        int dns = view.payloadOffset();
+        assertEquals(id, DnsMessage.id(reply, dns));
+        return dns;
+    }
+
+    private static int answerTtl(ByteBuffer reply, int dns) {
+        int[] offsets = new int[4];
+        assertEquals(1, DnsMessage.ttlOffsets(reply, dns, reply.limit() - dns, offsets));
+        return reply.getInt(offsets[0]);
+    }
+
+    @Test
+    public void repeatQueryIsAnsweredFromCacheWithAgedTtl() throws Exception {
+        query(40000, 0x1111, "www.example.com");
+        ByteBuffer first = awaitReply();
+        int dns = checkReply(first, 40000, 0x1111);
+        assertEquals(ANSWER_TTL, answerTtl(first, dns));
+        pool.release(first);
+
+        now += 10_000;
+        query(40001, 0x2222, "WWW.Example.COM");
+        ByteBuffer second = toDevice.poll();
+        assertNotNull("cache hit should be answered synchronously", second);
+        dns = checkReply(second, 40001, 0x2222);
+        assertEquals(ANSWER_TTL - 10, answerTtl(second, dns));
+        // The client's own capitalisation is echoed back
+        assertEquals('W', (char) second.get(dns + 13));
+        pool.release(second);
+
+        assertEquals(1, resolverQueries.get());
+        assertEquals(1, forwarder.hits());
+        assertEquals(1, forwarder.misses());
+        assertEquals(0.5, forwarder.hitRatio(), 1e-9);
+        assertTrue(forwarder.averageUpstreamLatencyMs() > 0);
+    }
+
+    @Test
+    public void identicalInFlightQueriesAreCoalesced() throws Exception {
+        resolverGate = new CountDownLatch(1);
+        query(40000, 1, "www.example.com");
+        query(40001, 2, "www.example.com");
+        query(40002, 3, "www.example.com");
+        assertEquals(2, forwarder.coalesced());
+        assertEquals(1, forwarder.pending());
+        resolverGate.countDown();
+
+        boolean[] seen = new boolean[4];
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer reply = awaitReply();
+            assertTrue(view.wrap(reply));
+            int id = DnsMessage.id(reply, view.payloadOffset());
+            checkReply(reply, 40000 + id - 1, id);
+            seen[id] = true;
+            pool.release(reply);
+        }
+        assertTrue(seen[1] && seen[2] && seen[3]);
+        assertEquals(1, resolverQueries.get());
+        assertEquals(0, forwarder.pending());
+    }
+
+    @Test
+    public void expiredAnswerIsFetchedAgain() throws Exception {
+        query(40000, 1, "www.example.com");
+        pool.release(awaitReply());
+
+        now += (ANSWER_TTL + 1) * 1000L;
+        query(40000, 2, "www.example.com");
+        ByteBuffer reply = awaitReply();
+        checkReply(reply, 40000, 2);
+        pool.release(reply);
+        assertEquals(2, resolverQueries.get());
+        assertEquals(0, forwarder.hits());
+    }
+
+    @Test
+    public void negativeAnswerIsCachedBriefly() throws Exception {
+        query(40000, 1, "missing.example.com");
+        ByteBuffer reply = awaitReply();
+        int dns = checkReply(reply, 40000, 1);
+        assertEquals(DnsMessage.RCODE_NXDOMAIN, DnsMessage.flags(reply, dns) & DnsMessage.RCODE_MASK);
+        pool.release(reply);
+
+        now += (DnsCache.NEGATIVE_TTL_SECONDS - 1) * 1000L;
+        query(40000, 2, "missing.example.com");
+        pool.release(awaitReply());
+        assertEquals(1, forwarder.hits());
+
+        now += 2000;
+        query(40000, 3, "missing.example.com");
+        pool.release(awaitReply());
+        assertEquals(2, resolverQueries.get());
+    }
+
+    @Test
+    public void unansweredQueryIsRetriedThenFailed() throws Exception {
+        resolverSilent = true;
+        query(40000, 7, "www.example.com");
+
+        now += DnsForwarder.QUERY_TIMEOUT_MS;
+        forwarder.expire(now);
+        assertNull(toDevice.poll());
+        now += DnsForwarder.QUERY_TIMEOUT_MS;
+        forwarder.expire(now);
+
+        ByteBuffer reply = toDevice.poll();
+        assertNotNull(reply);
+        int dns = checkReply(reply, 40000, 7);
+        assertEquals(DnsMessage.RCODE_SERVFAIL, DnsMessage.flags(reply, dns) & DnsMessage.RCODE_MASK);
+        pool.release(reply);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (resolverQueries.get() < DnsForwarder.MAX_ATTEMPTS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(DnsForwarder.MAX_ATTEMPTS, resolverQueries.get());
+        assertEquals(1, forwarder.failures());
+        assertEquals(0, forwarder.pending());
+    }
+
+    private void send(int sourcePort, byte[] dns) {
+        ByteBuffer packet = ByteBuffer.wrap(TestPackets.udp4(TestPackets.CLIENT, sourcePort, VPN_DNS, 53, dns));
+        assertTrue(view.wrap(packet));
+        forwarder.handleQuery(view, now);
+    }
+
+    @Test
+    public void queriesTheCacheCannotKeyAreForwardedEveryTime() throws Exception {
+        // A non-zero opcode (2, server status)
+        byte[] status = TestPackets.dnsQuery(0x3333, "www.example.com", TYPE_A);
+        ByteBuffer.wrap(status).putShort(2, (short) 0x1100);
+        // A question name that is only a compression pointer
+        byte[] compressed = ByteBuffer.allocate(12 + 2 + 4)
+                .putShort((short) 0x4444).putShort((short) 0x0100).putShort((short) 1)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0xC00C).putShort((short) TYPE_A).putShort((short) 1).array();
+
+        for (int round = 0; round < 2; round++) {
+            send(40000, status);
+            ByteBuffer reply = awaitReply();
+            int dns = checkReply(reply, 40000, 0x3333);
+            assertEquals(0, DnsMessage.flags(reply, dns) & DnsMessage.RCODE_MASK);
+            pool.release(reply);
+
+            send(40001, compressed);
+            reply = awaitReply();
+            dns = checkReply(reply, 40001, 0x4444);
+            assertEquals(0xC00C, reply.getShort(dns + 12) & 0xFFFF);
+            pool.release(reply);
+        }
+
+        assertEquals(4, resolverQueries.get());
+        assertEquals(4, forwarder.uncached());
+        assertEquals(0, forwarder.dropped());
+        assertEquals(0, forwarder.hits() + forwarder.misses());
+        assertEquals(0, forwarder.pending());
+    }
+
+    @Test
+    public void uncachedQueryIsFailedLikeAnyOther() throws Exception {
+        resolverSilent = true;
+        byte[] status = TestPackets.dnsQuery(9, "www.example.com", TYPE_A);
+        ByteBuffer.wrap(status).putShort(2, (short) 0x1100);
+        send(40000, status);
+        send(40001, status);
+        // Each is forwarded on its own rather than coalesced
+        assertEquals(2, forwarder.pending());
+        assertEquals(0, forwarder.coalesced());
+
+        for (int i = 0; i < DnsForwarder.MAX_ATTEMPTS; i++) {
+            now += DnsForwarder.QUERY_TIMEOUT_MS;
+            forwarder.expire(now);
+        }
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer reply = toDevice.poll();
+            assertNotNull(reply);
+            assertTrue(view.wrap(reply));
+            int dns = view.payloadOffset();
+            assertEquals(DnsMessage.RCODE_SERVFAIL, DnsMessage.flags(reply, dns) & DnsMessage.RCODE_MASK);
+            assertEquals(9, DnsMessage.id(reply, dns));
+            pool.release(reply);
+        }
+        assertEquals(2, forwarder.failures());
+        assertEquals(0, forwarder.pending());
+    }
+
+    @Test
+    public void otherUdpIsNotIntercepted() {
+        ByteBuffer packet = ByteBuffer.wrap(TestPackets.udp4(TestPackets.dnsQuery(1, "www.example.com", TYPE_A)));
+        assertTrue(view.wrap(packet));
+        // Addressed to 8.8.8.8 rather than the VPN's DNS address
+        assertFalse(forwarder.intercepts(view));
+    }
+}
@@ -0,0 +1,209 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FlowTableTest {
+    private final PacketView view = new PacketView();
+
+    private int record(FlowTable table, byte[] packet, long now) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        return table.record(view, now);
+    }
+
+    private static byte[] out(int port, int flags) {
+        return TestPackets.tcp4(TestPackets.CLIENT, port, TestPackets.SERVER, 443, flags, new byte[10]);
+    }
+
+    private static byte[] in(int port, int flags) {
+        return TestPackets.tcp4(TestPackets.SERVER, 443, TestPackets.CLIENT, port, flags, new byte[100]);
+    }
+
+    @Test
+    public void bothDirectionsShareOneFlow() {
+        FlowTable table = new FlowTable(16, 60_000);
+        int entry = record(table, out(40000, PacketView.TCP_SYN), 1000);
+        assertEquals(entry, record(table, in(40000, PacketView.TCP_SYN | PacketView.TCP_ACK), 1010));
+        assertEquals(entry, record(table, out(40000, PacketView.TCP_ACK), 1020));
+        assertEquals(1, table.size());
+
+        assertEquals(2, table.packets(entry, FlowTable.FORWARD));
+        assertEquals(1, table.packets(entry, FlowTable.REVERSE));
+        assertEquals(2 * 50, table.bytes(entry, FlowTable.FORWARD));
+        assertEquals(140, table.bytes(entry, FlowTable.REVERSE));
+        assertEquals(PacketView.TCP_SYN | PacketView.TCP_ACK, table.tcpFlags(entry, FlowTable.FORWARD));
+        assertEquals(1000, table.firstSeen(entry));
+        assertEquals(1020, table.lastSeen(entry));
+        assertEquals(PacketView.PROTO_TCP, table.protocol(entry));
+        assertEquals(40000, table.port(entry, FlowTable.FORWARD));
+        assertEquals(443, table.port(entry, FlowTable.REVERSE));
+        assertEquals("10.0.0.2:40000",
+                table.appendEndpoint(new StringBuilder(), entry, FlowTable.FORWARD).toString());
+        assertEquals("8.8.8.8:443",
+                table.appendEndpoint(new StringBuilder(), entry, FlowTable.REVERSE).toString());
+    }
+
+    @Test
+    public void initiatorIsWhoeverSpokeFirst() {
+        FlowTable table = new FlowTable(16, 60_000);
+        int entry = record(table, in(40000, PacketView.TCP_SYN), 0);
+        assertEquals(443, table.port(entry, FlowTable.FORWARD));
+        assertEquals(1, table.packets(entry, FlowTable.FORWARD));
+    }
+
+    @Test
+    public void distinctTuplesAreDistinctFlows() {
+        FlowTable table = new FlowTable(1024, 60_000);
+        for (int port = 1; port <= 1000; port++) {
+            record(table, out(port, PacketView.TCP_ACK), port);
+        }
+        assertEquals(1000, table.size());
+        // UDP with the same ports is a different flow
+        record(table, TestPackets.udp4(TestPackets.CLIENT, 1, TestPackets.SERVER, 443, new byte[4]), 0);
+        assertEquals(1001, table.size());
+        for (int port = 1; port <= 1000; port++) {
+            int entry = record(table, in(port, PacketView.TCP_ACK), 2000);
+            assertEquals(1, table.packets(entry, FlowTable.REVERSE));
+        }
+        assertEquals(1001, table.size());
+    }
+
+    @Test
+    public void fullTableEvictsLeastRecentlyActive() {
+        FlowTable table = new FlowTable(3, 60_000);
+        record(table, out(1, 0), 0);
+        record(table, out(2, 0), 1);
+        record(table, out(3, 0), 2);
+        // Touch flow 1 so flow 2 is now the coldest
+        record(table, in(1, 0), 3);
+        record(table, out(4, 0), 4);
+
+        assertEquals(3, table.size());
+        assertEquals(1, table.flowsEvicted());
+        final boolean[] seen = new boolean[5];
+        table.forEach(new FlowTable.Visitor() {
+            @Override
+            public boolean visit(FlowTable t, int entry) {
+                seen[t.port(entry, FlowTable.FORWARD)] = true;
+                return true;
+            }
+        });
+        assertTrue(seen[1] && seen[3] && seen[4]);
+        assertFalse(seen[2]);
+        // Flow 1 kept its counters across the eviction
+        assertEquals(1, table.packets(record(table, out(1, 0), 5), FlowTable.REVERSE));
+    }
+
+    @Test
+    public void idleFlowsExpire() {
+        FlowTable table = new FlowTable(16, 1000);
+        record(table, out(1, 0), 0);
+        record(table, out(2, 0), 500);
+        record(table, out(3, 0), 900);
+
+        assertEquals(0, table.expire(1000));
+        assertEquals(2, table.expire(1600));
+        assertEquals(1, table.size());
+        assertEquals(2, table.flowsExpired());
+
+        // Expired slots are reused and lookups still find the survivor
+        int survivor = record(table, out(3, 0), 1700);
+        assertEquals(2, table.packets(survivor, FlowTable.FORWARD));
+        for (int port = 10; port < 26; port++) {
+            record(table, out(port, 0), 1800);
+        }
+        assertEquals(16, table.size());
+        assertEquals(1, table.flowsEvicted());
+    }
+
+    @Test
+    public void ipv6FlowsAreKeyedOnFullAddresses() {
+        FlowTable table = new FlowTable(16, 60_000);
+        byte[] packet = TestPackets.udp6(new int[0][], new byte[8]);
+        int entry = record(table, packet, 0);
+        assertTrue(table.isIpv6(entry));
+        assertEquals(entry, record(table, packet, 1));
+        assertEquals(2, table.packets(entry, FlowTable.FORWARD));
+        assertTrue(record(table, out(1, 0), 2) != entry);
+    }
+
+    @Test
+    public void newFlowsAreAnnouncedOnceAndOwnersOutliveTheirFlows() {
+        FlowTable table = new FlowTable(2, 60_000);
+        final List<long[]> created = new ArrayList<>();
+        table.setListener(new FlowTable.Listener() {
+            @Override
+            public void onFlowCreated(FlowTable t, int entry, long flowId) {
+                created.add(new long[] {entry, flowId});
+            }
+        });
+        int first = record(table, out(1, 0), 0);
+        record(table, in(1, 0), 1);
+        assertEquals(1, created.size());
+        assertEquals(FlowTable.UID_PENDING, table.owner(first));
+        assertTrue(table.setOwner(first, created.get(0)[1], 10123));
+        assertEquals(10123, table.owner(first));
+
+        byte[] address = new byte[16];
+        assertEquals(4, table.copyAddress(first, FlowTable.FORWARD, address));
+        assertEquals(10, address[0]);
+        assertEquals(2, address[3]);
+
+        record(table, out(2, 0), 2);
+        // Evicts the first flow; a late answer for it must not land on the reused entry
+        int third = record(table, out(3, 0), 3);
+        assertEquals(3, created.size());
+        assertFalse(table.setOwner(first, created.get(0)[1], 10999));
+        assertEquals(FlowTable.UID_PENDING, table.owner(third));
+
+        List<FlowTable.AppUsage> usage = table.appUsage();
+        assertEquals(2, usage.size());
+        FlowTable.AppUsage app = usage.get(0).uid == 10123 ? usage.get(0) : usage.get(1);
+        assertEquals(10123, app.uid);
+        assertEquals(1, app.flows);
+        assertEquals(1, app.packetsOut);
+        assertEquals(1, app.packetsIn);
+        assertEquals(140, app.bytesIn);
+        FlowTable.AppUsage unknown = usage.get(0) == app ? usage.get(1) : usage.get(0);
+        assertEquals(FlowTable.UID_UNKNOWN, unknown.uid);
+        assertEquals(2, unknown.flows);
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(2, table.appUsage().size());
+        table.resetAppUsage();
+        assertTrue(table.appUsage().isEmpty());
+    }
+
+    @Test
+    public void memoryBudgetBoundsCapacity() {
+        assertEquals(1, FlowTable.maxFlowsFor(0));
+        int flows = FlowTable.maxFlowsFor(1 << 20);
+        assertTrue(flows * (long) FlowTable.BYTES_PER_FLOW <= 1 << 20);
+        assertTrue((flows + 1) * (long) FlowTable.BYTES_PER_FLOW > 1 << 20);
+    }
+
+    @Test
+    public void recordingReturnsTheProtocolItClassified() {
+        FlowTable table = new FlowTable(16, 60_000);
+        assertEquals(FlowTable.APP_UNCLASSIFIED, table.recordAppProtocol(view(out(40000, 0)), 0));
+        table.setClassifier(new FlowTable.Classifier() {
+            @Override
+            public int classify(PacketView view) {
+                return 7;
+            }
+        });
+        assertEquals(7, table.recordAppProtocol(view(out(40001, 0)), 1));
+        assertEquals(7, table.recordAppProtocol(view(in(40001, 0)), 2));
+    }
+
+    private PacketView view(byte[] packet) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        return view;
+    }
+}
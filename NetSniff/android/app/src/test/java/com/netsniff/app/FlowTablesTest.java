@@ -0,0 +1,95 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FlowTablesTest {
+    private final PacketView view = new PacketView();
+
+    private int record(FlowTable table, int port, long now) {
+        assertTrue(view.wrap(ByteBuffer.wrap(
+                TestPackets.tcp4(TestPackets.CLIENT, port, TestPackets.SERVER, 443, 0, new byte[10]))));
+        return table.record(view, now);
+    }
+
+    @Test
+    public void partitionsSplitTheLimitAndSumTheirCounters() {
+        FlowTables tables = new FlowTables(4, 10, 1000);
+        assertEquals(4, tables.partitions());
+        assertEquals(12, tables.maxFlows());
+        record(tables.partition(0), 1, 0);
+        record(tables.partition(0), 2, 0);
+        record(tables.partition(3), 3, 500);
+        assertEquals(3, tables.size());
+        assertEquals(3, tables.flowsCreated());
+
+        assertEquals(2, tables.expire(1200));
+        assertEquals(1, tables.size());
+        assertEquals(2, tables.flowsExpired());
+        tables.clear();
+        assertEquals(0, tables.size());
+    }
+
+    @Test
+    public void visitsAShareOfEachPartition() {
+        FlowTables tables = new FlowTables(2, 16, 60_000);
+        for (int port = 1; port <= 5; port++) {
+            record(tables.partition(0), port, port);
+        }
+        record(tables.partition(1), 100, 0);
+
+        final List<FlowTable> seen = new ArrayList<>();
+        tables.forEach(4, new FlowTable.Visitor() {
+            @Override
+            public boolean visit(FlowTable table, int entry) {
+                seen.add(table);
+                return true;
+            }
+        });
+        assertEquals(3, seen.size());
+        assertSame(tables.partition(0), seen.get(0));
+        assertSame(tables.partition(0), seen.get(1));
+        assertSame(tables.partition(1), seen.get(2));
+
+        seen.clear();
+        tables.forEach(4, new FlowTable.Visitor() {
+            @Override
+            public boolean visit(FlowTable table, int entry) {
+                seen.add(table);
+                return false;
+            }
+        });
+        assertEquals(1, seen.size());
+    }
+
+    @Test
+    public void appUsageIsMergedAcrossPartitions() {
+        FlowTables tables = new FlowTables(2, 16, 60_000);
+        FlowTable first = tables.partition(0);
+        FlowTable second = tables.partition(1);
+        int a = record(first, 1, 0);
+        int b = record(second, 2, 0);
+        int c = record(second, 3, 0);
+        first.setOwner(a, 1, 10001);
+        second.setOwner(b, 1, 10001);
+        second.setOwner(c, 2, 10002);
+
+        List<FlowTable.AppUsage> usage = tables.appUsage();
+        assertEquals(2, usage.size());
+        assertEquals(10001, usage.get(0).uid);
+        assertEquals(2, usage.get(0).flows);
+        assertEquals(2, usage.get(0).packetsOut);
+        assertEquals(10002, usage.get(1).uid);
+        assertEquals(1, usage.get(1).packetsOut);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAtLeastOnePartition() {
+        new FlowTables(0);
+    }
+}
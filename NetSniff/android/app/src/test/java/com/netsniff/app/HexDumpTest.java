@@ -0,0 +1,63 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HexDumpTest {
+
+    /** The formatter processPacket used before HexDump. */
+    static String legacyHex(ByteBuffer packet, int start, int snapLength) {
+        StringBuilder payload = new StringBuilder();
+        int length = Math.min(packet.limit() - start, snapLength);
+        for (int i = 0; i < length; i++) {
+            payload.append(String.format("%02X ", packet.get(start + i)));
+            if ((i + 1) % 16 == 0) payload.append("\n");
+        }
+        return payload.toString().trim();
+    }
+
+    @Test
+    public void hexMatchesLegacyFormatter() {
+        Random random = new Random(42);
+        HexDump encoder = new HexDump(64, HexDump.FROM_IP_HEADER);
+        for (int size = 0; size <= 100; size++) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            assertEquals(legacyHex(buffer, 0, 64), encoder.hex(buffer, 0, size));
+        }
+    }
+
+    @Test
+    public void previewHonoursStartAndSnapLength() {
+        ByteBuffer packet = ByteBuffer.wrap(TestPackets.udp4(new byte[] {1, 2, 3, 4, 5}));
+        PacketView view = new PacketView();
+        assertTrue(view.wrap(packet));
+
+        assertEquals("45 00 00 21", new HexDump(4, HexDump.FROM_IP_HEADER).preview(view));
+        assertEquals(legacyHex(packet, 20, 64), new HexDump(64, HexDump.FROM_TRANSPORT_HEADER).preview(view));
+        assertEquals("01 02 03 04 05", new HexDump(64, HexDump.FROM_PAYLOAD).preview(view));
+        assertEquals("01 02", new HexDump(2, HexDump.FROM_PAYLOAD).preview(view));
+    }
+
+    @Test
+    public void appendHexWrapsEverySixteenBytes() {
+        byte[] bytes = new byte[17];
+        bytes[16] = (byte) 0xAB;
+        StringBuilder sb = new StringBuilder("x ");
+        HexDump.appendHex(sb, ByteBuffer.wrap(bytes), 0, bytes.length);
+        assertEquals("x 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 \nAB", sb.toString());
+    }
+
+    @Test
+    public void appendAsciiMasksNonPrintableBytes() {
+        byte[] bytes = {'G', 'E', 'T', ' ', 0x00, 0x7F, (byte) 0xFF, '/'};
+        StringBuilder sb = new StringBuilder();
+        HexDump.appendAscii(sb, ByteBuffer.wrap(bytes), 0, bytes.length);
+        assertEquals("GET .../", sb.toString());
+    }
+}
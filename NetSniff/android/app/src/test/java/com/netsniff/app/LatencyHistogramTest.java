@@ -0,0 +1,87 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long upper = LatencyHistogram.upperBound(i);
+            assertTrue(upper > previous);
+            assertEquals(i, LatencyHistogram.bucket(upper));
+            assertEquals(i, LatencyHistogram.bucket(previous + 1));
+            previous = upper;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 100L);
+        }
+        assertEquals(10_000, histogram.count());
+        assertEquals(1_000_000, histogram.max());
+        assertEquals(500_050, histogram.mean(), 0.5);
+        assertEquals(500_000, histogram.percentile(50), 500_000 * 0.07);
+        assertEquals(990_000, histogram.percentile(99), 990_000 * 0.07);
+        assertEquals(1_000_000, histogram.percentile(100));
+        assertEquals(100, histogram.percentile(0), 100 * 0.07);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(-5);
+        assertEquals(0, histogram.percentile(1));
+        assertEquals(3, histogram.percentile(50));
+        assertEquals(7, histogram.percentile(100));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.mean(), 0);
+    }
+
+    @Test
+    public void addAndReset() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(1_000);
+        b.record(2_000_000);
+        a.add(b);
+        assertEquals(2, a.count());
+        assertEquals(2_000_000, a.max());
+        a.reset();
+        assertEquals(0, a.count());
+        assertEquals(0, a.max());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    histogram.record(base * 1000 + i % 1000);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(200_000, histogram.count());
+        assertEquals(3999, histogram.max());
+    }
+}
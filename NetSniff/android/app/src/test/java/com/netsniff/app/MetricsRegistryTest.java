@@ -0,0 +1,109 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+    @Test
+    public void countersAreSharedByName() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        MetricsRegistry.Counter packets = metrics.counter("tun.out.packets");
+        packets.increment();
+        metrics.counter("tun.out.packets").add(4);
+        assertSame(packets, metrics.counter("tun.out.packets"));
+        assertEquals(5, (long) metrics.snapshot(0).counters.get("tun.out.packets"));
+    }
+
+    @Test
+    public void ratesAreMeasuredOverAFullWindow() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        MetricsRegistry.Counter bytes = metrics.counter("bytes");
+        bytes.add(100);
+        MetricsRegistry.Snapshot first = metrics.snapshot(10_000);
+        assertEquals(0.0, first.perSecond.get("bytes"), 0);
+        assertEquals(0, first.rateWindowMs);
+
+        bytes.add(1000);
+        // Too soon for a new rate
+        assertEquals(0.0, metrics.snapshot(10_400).perSecond.get("bytes"), 0);
+
+        bytes.add(1000);
+        MetricsRegistry.Snapshot second = metrics.snapshot(12_000);
+        assertEquals(2000, second.rateWindowMs);
+        assertEquals(1000.0, second.perSecond.get("bytes"), 0.001);
+        assertEquals(2100, (long) second.counters.get("bytes"));
+
+        // Kept until the next window closes
+        assertEquals(1000.0, metrics.snapshot(12_500).perSecond.get("bytes"), 0.001);
+        assertEquals(0.0, metrics.snapshot(13_000).perSecond.get("bytes"), 0);
+    }
+
+    @Test
+    public void readsTotalsAndGaugesKeptElsewhere() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        final AtomicLong dropped = new AtomicLong(7);
+        final AtomicLong depth = new AtomicLong(3);
+        metrics.counter("drops.ring", dropped::get);
+        metrics.gauge("queue.outbound", depth::get);
+
+        metrics.snapshot(0);
+        dropped.addAndGet(50);
+        depth.set(12);
+        MetricsRegistry.Snapshot snapshot = metrics.snapshot(1000);
+        assertEquals(57, (long) snapshot.counters.get("drops.ring"));
+        assertEquals(50.0, snapshot.perSecond.get("drops.ring"), 0.001);
+        assertEquals(12, (long) snapshot.gauges.get("queue.outbound"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aCounterCannotAlsoBeReadFromElsewhere() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("drops");
+        metrics.counter("drops", () -> 0);
+    }
+
+    @Test
+    public void summarisesHistogramsInRegistrationOrder() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        LatencyHistogram read = metrics.histogram("read");
+        metrics.histogram("forward").record(5000);
+        assertSame(read, metrics.histogram("read"));
+        for (int i = 1; i <= 100; i++) {
+            read.record(i * 1000L);
+        }
+
+        MetricsRegistry.Snapshot snapshot = metrics.snapshot(0);
+        assertEquals(Arrays.asList("read", "forward"), new ArrayList<>(snapshot.latency.keySet()));
+        MetricsRegistry.Latency latency = snapshot.latency.get("read");
+        assertEquals(100, latency.count);
+        assertEquals(50_500, latency.mean, 0.001);
+        assertEquals(50_000, latency.p50, 50_000 / 16);
+        assertEquals(99_000, latency.p99, 99_000 / 16);
+        assertEquals(100_000, latency.max);
+        assertTrue(snapshot.toString().contains("forward: n=1"));
+    }
+
+    @Test
+    public void countsFromManyThreads() throws InterruptedException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        final MetricsRegistry.Counter counter = metrics.counter("packets");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    counter.increment();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40_000, counter.value());
+    }
+}
@@ -0,0 +1,121 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PacketBatcherTest {
+    private int framesRequested;
+    private final List<List<Integer>> batches = new ArrayList<>();
+    private final List<Integer> dropped = new ArrayList<>();
+
+    private PacketBatcher<Integer> batcher(int maxBatchSize, long maxDelayMs, int maxPending) {
+        return new PacketBatcher<>(maxBatchSize, maxDelayMs, maxPending,
+                () -> framesRequested++,
+                (batch, droppedCount, queuedAtMs) -> {
+                    batches.add(new ArrayList<>(batch));
+                    dropped.add(droppedCount);
+                });
+    }
+
+    @Test
+    public void onlyTheFirstItemOfABatchRequestsAFrame() {
+        PacketBatcher<Integer> batcher = batcher(10, 100, 100);
+        for (int i = 0; i < 5; i++) {
+            batcher.add(i, 0);
+        }
+        assertEquals(1, framesRequested);
+    }
+
+    @Test
+    public void waitsForSizeOrDelayWhicheverComesFirst() {
+        PacketBatcher<Integer> batcher = batcher(4, 100, 100);
+        batcher.add(1, 0);
+        batcher.add(2, 10);
+
+        // Neither limit reached: wait for another frame
+        batcher.onFrame(16);
+        assertTrue(batches.isEmpty());
+        assertEquals(2, framesRequested);
+
+        // Delay reached
+        batcher.onFrame(100);
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+
+        // Size reached before the delay
+        for (int i = 0; i < 4; i++) {
+            batcher.add(i, 200);
+        }
+        batcher.onFrame(216);
+        assertEquals(2, batches.size());
+        assertEquals(4, batches.get(1).size());
+        assertEquals(0, batcher.pending());
+    }
+
+    @Test
+    public void backlogIsSpreadOverFramesInOrder() {
+        PacketBatcher<Integer> batcher = batcher(4, 100, 100);
+        for (int i = 0; i < 10; i++) {
+            batcher.add(i, 0);
+        }
+        batcher.onFrame(16);
+        batcher.onFrame(33);
+        assertEquals(2, batches.size());
+        // A short remainder waits out the delay counted from its oldest item
+        batcher.onFrame(50);
+        assertEquals(2, batches.size());
+        batcher.onFrame(100);
+        assertEquals(3, batches.size());
+        assertEquals(2, batches.get(2).size());
+
+        int expected = 0;
+        for (List<Integer> batch : batches) {
+            for (int item : batch) {
+                assertEquals(expected++, item);
+            }
+        }
+        // One frame per frame callback until the backlog is gone, then none
+        assertEquals(4, framesRequested);
+        batcher.onFrame(116);
+        assertEquals(3, batches.size());
+        assertEquals(4, framesRequested);
+    }
+
+    @Test
+    public void oldestItemsAreDroppedWhenTheUiFallsBehind() {
+        PacketBatcher<Integer> batcher = batcher(4, 0, 8);
+        for (int i = 0; i < 20; i++) {
+            batcher.add(i, 0);
+        }
+        assertEquals(8, batcher.pending());
+        assertEquals(12, batcher.itemsDropped());
+
+        batcher.onFrame(16);
+        assertEquals(12, batches.get(0).get(0).intValue());
+        assertEquals(12, dropped.get(0).intValue());
+        batcher.onFrame(33);
+        assertEquals(16, batches.get(1).get(0).intValue());
+        assertEquals(0, dropped.get(1).intValue());
+    }
+
+    @Test
+    public void frameAfterClearIsANoOp() {
+        PacketBatcher<Integer> batcher = batcher(4, 100, 100);
+        batcher.add(1, 0);
+        batcher.clear();
+        batcher.onFrame(200);
+        assertTrue(batches.isEmpty());
+        // The next item schedules a fresh frame
+        batcher.add(2, 300);
+        assertEquals(2, framesRequested);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pendingLimitMustHoldABatch() {
+        batcher(16, 100, 8);
+    }
+}
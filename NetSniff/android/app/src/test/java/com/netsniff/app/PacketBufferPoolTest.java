@@ -0,0 +1,45 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PacketBufferPoolTest {
+
+    @Test
+    public void reusesReleasedBuffers() {
+        PacketBufferPool pool = new PacketBufferPool(1500, 2);
+        ByteBuffer first = pool.acquire();
+        first.put((byte) 1).flip();
+        pool.release(first);
+
+        ByteBuffer again = pool.acquire();
+        assertSame(first, again);
+        assertEquals(0, again.position());
+        assertEquals(1500, again.limit());
+        assertEquals(1, pool.misses());
+        assertEquals(1, pool.hits());
+    }
+
+    @Test
+    public void returnsNullWhenExhausted() {
+        PacketBufferPool pool = new PacketBufferPool(64, 2);
+        assertNotNull(pool.acquire());
+        assertNotNull(pool.acquire());
+        assertNull(pool.acquire());
+        assertEquals(1, pool.exhausted());
+        assertEquals(2, pool.inFlight());
+    }
+
+    @Test
+    public void ignoresForeignAndExtraReleases() {
+        PacketBufferPool pool = new PacketBufferPool(64, 2);
+        ByteBuffer buffer = pool.acquire();
+        pool.release(ByteBuffer.allocate(128));
+        pool.release(buffer);
+        pool.release(buffer);
+        assertEquals(1, pool.available());
+    }
+}
@@ -0,0 +1,126 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PacketRecordsTest {
+    /**
+     * The batch built by {@link #goldenBatch}. src/plugins/packetRecords.test.ts
+     * decodes the same string, so a layout change has to update both sides.
+     */
+    static final String GOLDEN = "AgAAAgAAAAcEBhIAACucQAG7AAhCeLz+VoewAEBEgAAAAAAACgAAAggICAicQAG7AAAAAQcRAAAAMRTpADUACEJ4vP5WnIAAQEUAAAAAAAAgAQ24AAAAAAAAAAAAAAAB/oAAAAAAAAACESL//jNEVRTpADUACQAA";
+
+    private final PacketView view = new PacketView();
+    private final HexDump preview = new HexDump(8, HexDump.FROM_TRANSPORT_HEADER);
+
+    private byte[] encode(byte[] packet, boolean incoming, long timestampMs) {
+        return encode(packet, incoming, timestampMs, 0);
+    }
+
+    private byte[] encode(byte[] packet, boolean incoming, long timestampMs, long seq) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        return PacketRecords.encode(view, incoming, timestampMs, preview.previewOffset(view), preview.snapLength(),
+                0, seq);
+    }
+
+    private byte[] goldenBatch() {
+        List<byte[]> records = new ArrayList<>();
+        records.add(encode(TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 443,
+                PacketView.TCP_SYN | PacketView.TCP_ACK, new byte[] {1, 2, 3}), false, 1_700_000_000_123L, 41));
+        records.add(encode(TestPackets.udp6(new int[0][], new byte[] {(byte) 0xAB}), true, 1_700_000_000_456L, 42));
+        return PacketRecords.frame(records, 7);
+    }
+
+    @Test
+    public void ipv4RecordLayout() {
+        byte[] record = encode(TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 443,
+                PacketView.TCP_SYN, new byte[100]), true, 1234);
+        ByteBuffer r = ByteBuffer.wrap(record);
+        assertEquals(PacketRecords.RECORD_HEADER + 8 + 8, record.length);
+        assertEquals(PacketRecords.FLAG_INCOMING | PacketRecords.FLAG_PORTS, r.get(0));
+        assertEquals(PacketView.PROTO_TCP, r.get(1));
+        assertEquals(PacketView.TCP_SYN, r.get(2));
+        assertEquals(140, r.getShort(4));
+        assertEquals(40000, r.getShort(6) & 0xFFFF);
+        assertEquals(443, r.getShort(8));
+        assertEquals(8, r.getShort(10));
+        assertEquals(1234.0, r.getDouble(12), 0);
+        assertEquals(0.0, r.getDouble(20), 0);
+        assertEquals(TestPackets.CLIENT, r.getInt(28));
+        assertEquals(TestPackets.SERVER, r.getInt(32));
+        // Preview starts at the TCP header: the source port
+        assertEquals(36, PacketRecords.previewStart(record, 0));
+        assertEquals(8, PacketRecords.previewLength(record, 0));
+        assertEquals(40000, r.getShort(36) & 0xFFFF);
+    }
+
+    @Test
+    public void ipv6RecordCarriesFullAddresses() {
+        byte[] record = encode(TestPackets.udp6(new int[0][], new byte[2]), false, 0);
+        ByteBuffer r = ByteBuffer.wrap(record);
+        assertEquals(PacketRecords.FLAG_IPV6 | PacketRecords.FLAG_PORTS, r.get(0));
+        assertEquals(PacketRecords.RECORD_HEADER + 32 + 8, record.length);
+        assertEquals(0x20010db800000000L, r.getLong(28));
+        assertEquals(0xfe80000000000000L, r.getLong(44));
+        assertEquals(60, PacketRecords.previewStart(record, 0));
+    }
+
+    @Test
+    public void previewIsClippedToCapturedBytes() {
+        byte[] record = encode(TestPackets.udp4(new byte[0]), false, 0);
+        // Only the 8-byte UDP header is there to preview
+        assertEquals(8, ByteBuffer.wrap(record).getShort(10));
+    }
+
+    @Test
+    public void summaryRecordCarriesHistorySeqWithoutPreview() {
+        assertTrue(view.wrap(ByteBuffer.wrap(TestPackets.udp4(new byte[40]))));
+        byte[] record = PacketRecords.encode(view, false, 0, preview.previewOffset(view), 0, 0, 1L << 40);
+        assertEquals(PacketRecords.RECORD_HEADER + 8, record.length);
+        assertEquals(0, PacketRecords.previewLength(record, 0));
+        assertEquals((double) (1L << 40), ByteBuffer.wrap(record).getDouble(20), 0);
+    }
+
+    @Test
+    public void frameCountsRecordsAndDrops() {
+        byte[] batch = goldenBatch();
+        ByteBuffer b = ByteBuffer.wrap(batch);
+        assertEquals(PacketRecords.VERSION, b.get(0));
+        assertEquals(2, b.getShort(2));
+        assertEquals(7, b.getInt(4));
+        assertEquals(GOLDEN, Base64.getEncoder().encodeToString(batch));
+    }
+
+    @Test
+    public void batchHeaderHoldsAtMostAU16OfRecords() {
+        byte[] header = new byte[PacketRecords.BATCH_HEADER];
+        PacketRecords.writeBatchHeader(header, 0, PacketRecords.MAX_BATCH_RECORDS, 0);
+        assertEquals(0xFFFF, ByteBuffer.wrap(header).getShort(2) & 0xFFFF);
+        try {
+            PacketRecords.writeBatchHeader(header, 0, PacketRecords.MAX_BATCH_RECORDS + 1, 0);
+            fail("A count that wraps must not be written");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void recordIsFarSmallerThanJson() {
+        byte[] packet = TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 443,
+                PacketView.TCP_ACK, new byte[100]);
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        HexDump hex = new HexDump(64, HexDump.FROM_TRANSPORT_HEADER);
+        String json = "{\"source\":\"" + view.sourceEndpoint() + "\",\"destination\":\"" + view.destinationEndpoint()
+                + "\",\"protocol\":\"TCP\",\"direction\":\"outgoing\",\"size\":" + view.totalLength()
+                + ",\"payload\":\"" + hex.preview(view).replace("\n", "\\n") + "\"}";
+        byte[] record = PacketRecords.encode(view, false, 0, hex.previewOffset(view), hex.snapLength());
+        int base64Length = (record.length + 2) / 3 * 4;
+        assertTrue(json.length() + " vs " + base64Length, base64Length * 2 < json.length());
+    }
+}
@@ -0,0 +1,100 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PacketViewTest {
+
+    private final PacketView view = new PacketView();
+
+    @Test
+    public void decodesIpv4Tcp() {
+        byte[] packet = TestPackets.tcp4(TestPackets.CLIENT, 50000, TestPackets.SERVER, 443,
+                PacketView.TCP_SYN | PacketView.TCP_ACK, new byte[3]);
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        assertEquals(4, view.version());
+        assertEquals(PacketView.PROTO_TCP, view.protocol());
+        assertEquals("10.0.0.2:50000", view.sourceEndpoint());
+        assertEquals("8.8.8.8:443", view.destinationEndpoint());
+        assertEquals(PacketView.TCP_SYN | PacketView.TCP_ACK, view.tcpFlags());
+        assertEquals(40, view.payloadOffset());
+        assertEquals(3, view.payloadLength());
+    }
+
+    @Test
+    public void rejectsTruncatedAndUnknownVersions() {
+        assertFalse(view.wrap(ByteBuffer.wrap(new byte[] {0x45, 0, 0})));
+        assertFalse(view.wrap(ByteBuffer.wrap(new byte[40])));
+    }
+
+    @Test
+    public void truncatedTransportHeaderHasNoPorts() {
+        byte[] packet = TestPackets.udp4(new byte[0]);
+        assertTrue(view.wrap(ByteBuffer.wrap(packet), 0, 24));
+        assertFalse(view.hasPorts());
+        assertEquals(-1, view.sourcePort());
+    }
+
+    @Test
+    public void decodesIpv6WithoutExtensions() {
+        byte[] packet = TestPackets.udp6(new int[0][], new byte[] {1, 2});
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        assertTrue(view.isIpv6());
+        assertEquals(PacketView.PROTO_UDP, view.protocol());
+        assertEquals(40, view.ipHeaderLength());
+        assertEquals(packet.length, view.totalLength());
+        assertEquals("2001:db8::1", view.sourceAddressString());
+        assertEquals("fe80::211:22ff:fe33:4455", view.destinationAddressString());
+        assertEquals("[2001:db8::1]:5353", view.sourceEndpoint());
+        assertEquals(53, view.destinationPort());
+        assertEquals(2, view.payloadLength());
+    }
+
+    @Test
+    public void walksIpv6ExtensionChain() {
+        int[][] chain = {{0, 8}, {43, 24}, {44, 8}, {60, 16}, {51, 12}};
+        byte[] packet = TestPackets.udp6(chain, new byte[4]);
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        assertEquals(PacketView.PROTO_UDP, view.protocol());
+        assertEquals(40 + 8 + 24 + 8 + 16 + 12, view.ipHeaderLength());
+        assertEquals(5353, view.sourcePort());
+        assertEquals(4, view.payloadLength());
+    }
+
+    @Test
+    public void stopsAfterMaxExtensionHeaders() {
+        int[][] chain = new int[PacketView.MAX_EXTENSION_HEADERS + 1][];
+        for (int i = 0; i < chain.length; i++) chain[i] = new int[] {60, 8};
+        byte[] packet = TestPackets.udp6(chain, new byte[0]);
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        assertFalse(view.hasTransportHeader());
+        assertEquals(60, view.protocol());
+    }
+
+    @Test
+    public void laterIpv6FragmentsHaveNoTransportHeader() {
+        byte[] packet = TestPackets.udp6(new int[][] {{44, 8}}, new byte[0]);
+        packet[40 + 3] = 0x08;  // fragment offset 1
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        assertEquals(PacketView.PROTO_UDP, view.protocol());
+        assertFalse(view.hasPorts());
+    }
+
+    @Test
+    public void formatsIpv6PerRfc5952() {
+        assertEquals("::", ipv6(0, 0, 0, 0, 0, 0, 0, 0));
+        assertEquals("::1", ipv6(0, 0, 0, 0, 0, 0, 0, 1));
+        assertEquals("2001:db8:0:1:1:1:1:1", ipv6(0x2001, 0xdb8, 0, 1, 1, 1, 1, 1));
+        assertEquals("2001:0:0:1::1", ipv6(0x2001, 0, 0, 1, 0, 0, 0, 1));
+        assertEquals("fe80::", ipv6(0xfe80, 0, 0, 0, 0, 0, 0, 0));
+    }
+
+    private static String ipv6(int... groups) {
+        ByteBuffer b = ByteBuffer.allocate(16);
+        for (int g : groups) b.putShort((short) g);
+        return PacketView.appendIpv6(new StringBuilder(), b, 0).toString();
+    }
+}
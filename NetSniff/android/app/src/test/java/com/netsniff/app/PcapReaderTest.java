@@ -0,0 +1,155 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PcapReaderTest {
+    private static final byte[] UDP = TestPackets.udp4(TestPackets.dnsQuery(1, "example.com", 1));
+    private static final byte[] TCP = TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 443,
+            PacketView.TCP_SYN, new byte[0]);
+
+    private static byte[] remaining(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /** Classic PCAP with the given link type, one record per frame, a second apart. */
+    private static byte[] pcap(ByteOrder order, boolean nanos, int linkType, byte[]... frames) {
+        int size = 24;
+        for (byte[] frame : frames) {
+            size += 16 + frame.length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(size).order(order);
+        b.putInt(nanos ? PcapReader.PCAP_MAGIC_NANOS : PcapReader.PCAP_MAGIC_MICROS)
+         .putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(65535).putInt(linkType);
+        for (int i = 0; i < frames.length; i++) {
+            b.putInt(1000 + i).putInt(250).putInt(frames[i].length).putInt(frames[i].length).put(frames[i]);
+        }
+        return b.array();
+    }
+
+    private static byte[] ethernet(int etherType, boolean vlan, byte[] packet) {
+        ByteBuffer b = ByteBuffer.allocate(14 + (vlan ? 4 : 0) + packet.length);
+        b.put(new byte[12]);
+        if (vlan) {
+            b.putShort((short) 0x8100).putShort((short) 7);
+        }
+        b.putShort((short) etherType).put(packet);
+        return b.array();
+    }
+
+    @Test
+    public void readsBackWhatTheRecorderWrites() throws IOException {
+        File dir = Files.createTempDirectory("pcapng").toFile();
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 64 << 20, 60_000, 4);
+        writer.writePacket(ByteBuffer.wrap(UDP), UDP.length, 1_500_000_123L, false, 0);
+        writer.writePacket(ByteBuffer.wrap(TCP), TCP.length, 1_500_000_456L, true, 0);
+        writer.close();
+        File file = writer.files().get(0);
+
+        try (PcapReader reader = PcapReader.open(file)) {
+            assertTrue(reader.isPcapng());
+            assertTrue(reader.next());
+            assertArrayEquals(UDP, remaining(reader.packet()));
+            assertEquals(1_500_000_123_000L, reader.timestampNanos());
+            assertEquals(PcapReader.DIRECTION_OUTBOUND, reader.direction());
+            assertTrue(reader.next());
+            assertArrayEquals(TCP, remaining(reader.packet()));
+            assertEquals(PcapReader.DIRECTION_INBOUND, reader.direction());
+            assertEquals(TCP.length, reader.originalLength());
+            assertFalse(reader.next());
+            assertEquals(2, reader.packets());
+        }
+        assertEquals(2, PcapReader.readAll(file).size());
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void stripsEthernetAndSkipsOtherFrames() throws IOException {
+        byte[] arp = ethernet(0x0806, false, new byte[28]);
+        byte[] data = pcap(ByteOrder.LITTLE_ENDIAN, false, PcapReader.LINKTYPE_ETHERNET,
+                ethernet(0x0800, false, UDP), arp, ethernet(0x0800, true, TCP));
+        PcapReader reader = new PcapReader(new ByteArrayInputStream(data));
+        assertFalse(reader.isPcapng());
+        assertTrue(reader.next());
+        assertArrayEquals(UDP, remaining(reader.packet()));
+        assertEquals(1000_000_250_000L, reader.timestampNanos());
+        assertEquals(PcapReader.DIRECTION_UNKNOWN, reader.direction());
+        assertTrue(reader.next());
+        assertArrayEquals(TCP, remaining(reader.packet()));
+        assertFalse(reader.next());
+        assertEquals(1, reader.skipped());
+    }
+
+    @Test
+    public void readsBigEndianNanosecondRawCaptures() throws IOException {
+        byte[] data = pcap(ByteOrder.BIG_ENDIAN, true, PcapngWriter.LINKTYPE_RAW, UDP);
+        PcapReader reader = new PcapReader(new ByteArrayInputStream(data));
+        assertTrue(reader.next());
+        assertArrayEquals(UDP, remaining(reader.packet()));
+        assertEquals(1000_000_000_250L, reader.timestampNanos());
+    }
+
+    @Test
+    public void skipsFirstFrameWhenItIsNotIp() throws IOException {
+        ByteBuffer sll = ByteBuffer.allocate(16 + TCP.length);
+        sll.putShort(14, (short) 0x86DD);
+        byte[] ipv6 = TestPackets.udp6(new int[0][], new byte[4]);
+        ByteBuffer sll6 = ByteBuffer.allocate(16 + ipv6.length);
+        sll6.putShort(14, (short) 0x86DD);
+        sll6.position(16);
+        sll6.put(ipv6);
+        // A zeroed "IPv6" frame whose version nibble is wrong comes first
+        byte[] data = pcap(ByteOrder.LITTLE_ENDIAN, false, PcapReader.LINKTYPE_LINUX_SLL,
+                sll.array(), sll6.array());
+        PcapReader reader = new PcapReader(new ByteArrayInputStream(data));
+        assertTrue(reader.next());
+        assertArrayEquals(ipv6, remaining(reader.packet()));
+        assertFalse(reader.next());
+        assertEquals(1, reader.skipped());
+    }
+
+    @Test
+    public void emptyCaptureHasNoPackets() throws IOException {
+        PcapReader reader = new PcapReader(new ByteArrayInputStream(
+                pcap(ByteOrder.LITTLE_ENDIAN, false, PcapngWriter.LINKTYPE_RAW)));
+        assertFalse(reader.next());
+        assertNull(reader.packet());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new PcapReader(new ByteArrayInputStream("not a capture".getBytes("US-ASCII")));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedRecordIsAnError() throws IOException {
+        byte[] data = pcap(ByteOrder.LITTLE_ENDIAN, false, PcapngWriter.LINKTYPE_RAW, UDP);
+        byte[] cut = new byte[data.length - 5];
+        System.arraycopy(data, 0, cut, 0, cut.length);
+        PcapReader reader = new PcapReader(new ByteArrayInputStream(cut));
+        reader.next();
+    }
+
+    @Test
+    public void readAllKeepsEveryPacket() throws IOException {
+        File file = File.createTempFile("capture", ".pcap");
+        Files.write(file.toPath(), pcap(ByteOrder.LITTLE_ENDIAN, false, PcapngWriter.LINKTYPE_RAW, UDP, TCP));
+        List<byte[]> packets = PcapReader.readAll(file);
+        assertEquals(2, packets.size());
+        assertArrayEquals(UDP, packets.get(0));
+        assertArrayEquals(TCP, packets.get(1));
+        file.delete();
+    }
+}
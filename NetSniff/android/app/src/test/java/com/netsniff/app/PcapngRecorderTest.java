@@ -0,0 +1,143 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PcapngRecorderTest {
+    @Test
+    public void recordsBothDirectionsFromTheirOwnThreads() throws Exception {
+        File dir = Files.createTempDirectory("pcapng").toFile();
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 64 << 20, 60_000, 4);
+        final PcapngRecorder recorder = new PcapngRecorder(writer, 1500);
+        recorder.start();
+
+        final byte[] udp = TestPackets.udp4(TestPackets.CLIENT, 1000, TestPackets.SERVER, 53, new byte[50]);
+        final int perThread = 2000;
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < 2; t++) {
+            final boolean incoming = t == 1;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    while (recorder.queued() > 256) {
+                        Thread.yield();
+                    }
+                    recorder.offer(ByteBuffer.wrap(udp), 0, udp.length, incoming, 1000 + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        recorder.stop();
+
+        assertEquals(2 * perThread, recorder.offered());
+        List<PcapngWriterTest.Epb> packets = PcapngWriterTest.read(writer.files().get(0), 65535);
+        assertEquals(2 * perThread - recorder.dropped(), packets.size());
+        int inbound = 0;
+        for (PcapngWriterTest.Epb epb : packets) {
+            assertArrayEquals(udp, epb.data);
+            if (epb.flags == PcapngWriter.EPB_FLAG_INBOUND) {
+                inbound++;
+            }
+        }
+        assertTrue(inbound > 0 && inbound < packets.size());
+        cleanUp(dir);
+    }
+
+    @Test
+    public void recordsEveryPacketFromSeveralWorkersAtOnce() throws Exception {
+        File dir = Files.createTempDirectory("pcapng").toFile();
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 64 << 20, 60_000, 4);
+        final int workers = CapturePipeline.MAX_WORKERS;
+        final PcapngRecorder recorder = new PcapngRecorder(writer, 1500, workers);
+        recorder.start();
+
+        final int perWorker = 2000;
+        Thread[] threads = new Thread[workers];
+        for (int t = 0; t < workers; t++) {
+            final int worker = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perWorker; i++) {
+                    while (recorder.queued() > 256) {
+                        Thread.yield();
+                    }
+                    byte[] payload = ByteBuffer.allocate(8).putInt(worker).putInt(i).array();
+                    byte[] udp = TestPackets.udp4(TestPackets.CLIENT, 1000, TestPackets.SERVER, 53, payload);
+                    recorder.offer(worker, ByteBuffer.wrap(udp), 0, udp.length, i % 2 == 1, 1000 + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        recorder.stop();
+
+        assertEquals(workers * perWorker, recorder.offered());
+        assertEquals(0, recorder.dropped());
+        assertEquals(0, recorder.queued());
+        // Each worker's packets arrive exactly once, in the order it offered each direction
+        boolean[][] seen = new boolean[workers][perWorker];
+        int[][] last = new int[workers][2];
+        for (int[] directions : last) {
+            Arrays.fill(directions, -1);
+        }
+        List<PcapngWriterTest.Epb> packets = PcapngWriterTest.read(writer.files().get(0), 65535);
+        assertEquals(workers * perWorker, packets.size());
+        for (PcapngWriterTest.Epb epb : packets) {
+            ByteBuffer payload = ByteBuffer.wrap(epb.data, epb.data.length - 8, 8);
+            int worker = payload.getInt();
+            int i = payload.getInt();
+            assertFalse(seen[worker][i]);
+            seen[worker][i] = true;
+            assertTrue(i > last[worker][i % 2]);
+            last[worker][i % 2] = i;
+        }
+        cleanUp(dir);
+    }
+
+    @Test
+    public void offerAfterStopDropsWithoutBlocking() throws IOException {
+        File dir = Files.createTempDirectory("pcapng").toFile();
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 64 << 20, 60_000, 4);
+        PcapngRecorder recorder = new PcapngRecorder(writer, 1500);
+        // Not started, so nothing will drain the queue
+        ByteBuffer packet = ByteBuffer.wrap(new byte[100]);
+        assertFalse(recorder.offer(packet, 0, 100, false, 0));
+        assertEquals(1, recorder.dropped());
+        cleanUp(dir);
+    }
+
+    @Test
+    public void copiesAreBoundedByMaxPacketSize() throws Exception {
+        File dir = Files.createTempDirectory("pcapng").toFile();
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 64 << 20, 60_000, 4);
+        PcapngRecorder recorder = new PcapngRecorder(writer, 64);
+        recorder.start();
+        recorder.offer(ByteBuffer.allocateDirect(200), 0, 200, false, 0);
+        recorder.stop();
+        PcapngWriterTest.Epb epb = PcapngWriterTest.read(writer.files().get(0), 65535).get(0);
+        assertEquals(64, epb.captured);
+        assertEquals(200, epb.original);
+        cleanUp(dir);
+    }
+
+    private static void cleanUp(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
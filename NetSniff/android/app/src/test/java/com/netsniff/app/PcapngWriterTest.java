@@ -0,0 +1,173 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PcapngWriterTest {
+    private File dir;
+
+    /** Enhanced Packet Block fields read back from a file. */
+    static final class Epb {
+        long timestampUs;
+        int captured;
+        int original;
+        int flags;
+        byte[] data;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("pcapng").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /** Checks the header blocks and returns the packets in {@code file}. */
+    static List<Epb> read(File file, int snapLength) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        List<Epb> packets = new ArrayList<>();
+        boolean sawInterface = false;
+        assertEquals(PcapngWriter.BLOCK_SECTION_HEADER, in.getInt(0));
+        assertEquals(PcapngWriter.BYTE_ORDER_MAGIC, in.getInt(8));
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int type = in.getInt();
+            int length = in.getInt();
+            assertEquals(0, length % 4);
+            assertEquals(length, in.getInt(start + length - 4));
+            if (type == PcapngWriter.BLOCK_INTERFACE_DESCRIPTION) {
+                assertEquals(PcapngWriter.LINKTYPE_RAW, in.getShort(start + 8));
+                assertEquals(snapLength, in.getInt(start + 12));
+                sawInterface = true;
+            } else if (type == PcapngWriter.BLOCK_ENHANCED_PACKET) {
+                assertTrue(sawInterface);
+                Epb epb = new Epb();
+                assertEquals(0, in.getInt(start + 8));
+                epb.timestampUs = ((long) in.getInt(start + 12) << 32) | (in.getInt(start + 16) & 0xffffffffL);
+                epb.captured = in.getInt(start + 20);
+                epb.original = in.getInt(start + 24);
+                epb.data = new byte[epb.captured];
+                in.position(start + 28);
+                in.get(epb.data);
+                int options = start + 28 + ((epb.captured + 3) & ~3);
+                assertEquals(PcapngWriter.OPTION_EPB_FLAGS, in.getShort(options));
+                epb.flags = in.getInt(options + 4);
+                packets.add(epb);
+            }
+            in.position(start + length);
+        }
+        return packets;
+    }
+
+    private static ByteBuffer packet(int size, int fill) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (fill + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Test
+    public void writesReadablePackets() throws IOException {
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 1 << 20, 60_000, 4);
+        byte[] udp = TestPackets.udp4(TestPackets.CLIENT, 1000, TestPackets.SERVER, 53, new byte[5]);
+        ByteBuffer in = ByteBuffer.wrap(udp);
+        assertTrue(writer.writePacket(in, udp.length, 1_700_000_000_123_456L, false, 1000));
+        assertEquals(0, in.position());
+        assertTrue(writer.writePacket(packet(7, 1), 7, 1_700_000_000_200_000L, true, 1000));
+        writer.close();
+
+        List<File> files = writer.files();
+        assertEquals(1, files.size());
+        assertTrue(files.get(0).getName().endsWith(PcapngWriter.FILE_SUFFIX));
+        List<Epb> packets = read(files.get(0), 65535);
+        assertEquals(2, packets.size());
+        assertEquals(1_700_000_000_123_456L, packets.get(0).timestampUs);
+        assertArrayEquals(udp, packets.get(0).data);
+        assertEquals(PcapngWriter.EPB_FLAG_OUTBOUND, packets.get(0).flags);
+        assertEquals(7, packets.get(1).captured);
+        assertEquals(PcapngWriter.EPB_FLAG_INBOUND, packets.get(1).flags);
+        assertEquals(2, writer.packetsWritten());
+        assertEquals(files.get(0).length(), writer.bytesWritten());
+    }
+
+    @Test
+    public void truncatesToSnapLength() throws IOException {
+        PcapngWriter writer = new PcapngWriter(dir, 10, 1 << 20, 60_000, 4);
+        writer.writePacket(packet(100, 0), 1400, 0, false, 0);
+        writer.close();
+        Epb epb = read(writer.files().get(0), 10).get(0);
+        assertEquals(10, epb.captured);
+        assertEquals(1400, epb.original);
+        assertArrayEquals(packet(10, 0).array(), epb.data);
+    }
+
+    @Test
+    public void rotatesBySizeAndKeepsNewestFiles() throws IOException {
+        // Headers plus a few 100-byte packets per file
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 600, 60_000, 3);
+        for (int i = 0; i < 40; i++) {
+            writer.writePacket(packet(100, i), 100, i, false, 0);
+        }
+        writer.close();
+        assertTrue(writer.filesStarted() > 3);
+        assertEquals(writer.filesStarted() - 3, writer.filesDeleted());
+        List<File> files = writer.files();
+        assertEquals(3, files.size());
+        assertEquals(3, dir.listFiles().length);
+
+        int total = 0;
+        for (File file : files) {
+            assertTrue(file.length() <= 600);
+            total += read(file, 65535).size();
+        }
+        // The newest files hold the last packets written
+        List<Epb> last = read(files.get(2), 65535);
+        assertEquals(39, last.get(last.size() - 1).timestampUs);
+        assertTrue(total < 40);
+    }
+
+    @Test
+    public void rotatesByAge() throws IOException {
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 1 << 20, 1000, 10);
+        writer.writePacket(packet(20, 0), 20, 0, false, 0);
+        writer.writePacket(packet(20, 0), 20, 0, false, 999);
+        writer.writePacket(packet(20, 0), 20, 0, false, 1000);
+        writer.close();
+        assertEquals(2, writer.files().size());
+        assertEquals(2, read(writer.files().get(0), 65535).size());
+        assertEquals(1, read(writer.files().get(1), 65535).size());
+    }
+
+    @Test
+    public void unwritableDirectoryDropsInsteadOfThrowing() throws IOException {
+        File blocker = new File(dir, "not-a-dir");
+        assertTrue(blocker.createNewFile());
+        PcapngWriter writer = new PcapngWriter(new File(blocker, "captures"), 65535, 1 << 20, 60_000, 4);
+        assertFalse(writer.writePacket(packet(20, 0), 20, 0, false, 0));
+        assertFalse(writer.writePacket(packet(20, 0), 20, 0, false, 10));
+        assertEquals(2, writer.packetsDropped());
+        // Only one attempt inside the backoff window
+        assertEquals(1, writer.writeErrors());
+    }
+}
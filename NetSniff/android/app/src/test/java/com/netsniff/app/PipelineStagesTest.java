@@ -0,0 +1,144 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class PipelineStagesTest {
+    private static final int CYCLES = 20;
+    // Only catches a stage its signal does not reach; stop timings belong in the packet-jvm benchmarks
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+        @Override public boolean isOpen() { return true; }
+        @Override public void close() {}
+    };
+
+    /** The service's session in miniature: every thread blocked where it waits when idle. */
+    private static PipelineStages session(AtomicBoolean running, Pipe device) throws IOException {
+        PacketBufferPool pool = new PacketBufferPool(1500, 64);
+        SpscRing<ByteBuffer> outbound = new SpscRing<>(16, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+        final SpscRing<ByteBuffer> inbound = new SpscRing<>(16, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+        CapturePipeline capture = new CapturePipeline(2, 1500, index -> (packet, incoming, timestampMs) -> { });
+        final SelectorWakeup wakeup = new SelectorWakeup(Selector.open());
+        final AtomicBoolean networkRunning = running;
+
+        PipelineStages stages = new PipelineStages();
+        capture.start();
+        stages.add(capture);
+        stages.start("TunReader", new TunReader(device.source(), pool, outbound, wakeup::signal,
+                capture.sink(false), running), device.source());
+        stages.start("TunWriter", new TunWriter(DISCARD, pool, inbound, running), inbound::close);
+        final Selector selector = wakeup.selector();
+        stages.start("NetworkLoop", () -> {
+            try {
+                while (networkRunning.get()) {
+                    wakeup.select(outbound, 10_000);
+                }
+                selector.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, selector::wakeup);
+        return stages;
+    }
+
+    @Test
+    public void stopsAndRestartsIdleSessionsThroughTheirSignals() throws Exception {
+        for (int i = 0; i < CYCLES; i++) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            Pipe device = Pipe.open();
+            PipelineStages stages = session(running, device);
+            // Let every thread reach the call it blocks in
+            Thread.sleep(5);
+
+            running.set(false);
+            PipelineStages.Report report = stages.stop(STOP_TIMEOUT_MS);
+            device.sink().close();
+            assertTrue(report.toString(), report.complete());
+            assertEquals(4, report.stages());
+            // Every stage ended on its own signal rather than being interrupted at the deadline
+            for (int stage = 0; stage < report.stages(); stage++) {
+                assertFalse(report.toString(), report.interrupted(stage));
+            }
+        }
+    }
+
+    @Test
+    public void interruptsAStageItsSignalDoesNotReach() {
+        PipelineStages stages = new PipelineStages();
+        stages.start("Sleeper", () -> {
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                // Interrupted as a last resort
+            }
+        }, () -> { });
+
+        PipelineStages.Report report = stages.stop(40);
+        assertTrue(report.complete());
+        assertTrue(report.interrupted(0));
+        assertTrue(report.stoppedNanos(0) >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(report.toString().contains("Sleeper"));
+    }
+
+    @Test
+    public void reportsAStageLeftRunning() throws Exception {
+        final AtomicBoolean release = new AtomicBoolean();
+        PipelineStages stages = new PipelineStages();
+        PipelineStages.ThreadStage stubborn = stages.start("Stubborn", () -> {
+            while (!release.get()) {
+                Thread.yield();
+            }
+        }, () -> { });
+
+        PipelineStages.Report report = stages.stop(20);
+        assertFalse(report.complete());
+        assertEquals(-1, report.stoppedNanos(0));
+        assertTrue(report.toString(), report.toString().contains("Stubborn still running"));
+        assertTrue(report.totalNanos() < TimeUnit.MILLISECONDS.toNanos(500));
+
+        release.set(true);
+        assertTrue(stubborn.awaitUntil(System.nanoTime() + TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test
+    public void keepsWhatAStageThrew() throws Exception {
+        PipelineStages stages = new PipelineStages();
+        PipelineStages.ThreadStage failing = stages.start("Failing", () -> {
+            throw new IllegalStateException("broken");
+        }, () -> { });
+        assertTrue(failing.awaitUntil(System.nanoTime() + TimeUnit.SECONDS.toNanos(1)));
+        assertEquals("broken", failing.failure().getMessage());
+        assertTrue(stages.stop(10).complete());
+    }
+
+    @Test
+    public void stopsOnlyOnce() {
+        final int[] signals = new int[1];
+        PipelineStages stages = new PipelineStages();
+        stages.start("Quick", () -> { }, () -> signals[0]++);
+        assertEquals(1, stages.stop(10).stages());
+        assertEquals(0, stages.stop(10).stages());
+        assertEquals(1, signals[0]);
+        try {
+            stages.start("Late", () -> { }, () -> { });
+            fail("Stages cannot be added once stopped");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+    }
+}
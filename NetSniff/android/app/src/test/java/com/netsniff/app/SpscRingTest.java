@@ -0,0 +1,112 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SpscRingTest {
+
+    private final List<Integer> dropped = new ArrayList<>();
+
+    private SpscRing<Integer> ring(int capacity, SpscRing.OverflowPolicy policy) {
+        return new SpscRing<>(capacity, policy, dropped::add);
+    }
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(8, ring(5, SpscRing.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(1, ring(1, SpscRing.OverflowPolicy.DROP_NEWEST).capacity());
+    }
+
+    @Test
+    public void preservesFifoOrder() {
+        SpscRing<Integer> ring = ring(4, SpscRing.OverflowPolicy.DROP_NEWEST);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) assertTrue(ring.offer(round * 10 + i));
+            assertEquals(4, ring.size());
+            for (int i = 0; i < 4; i++) assertEquals(Integer.valueOf(round * 10 + i), ring.poll());
+            assertNull(ring.poll());
+        }
+    }
+
+    @Test
+    public void dropNewestRejectsOfferWhenFull() {
+        SpscRing<Integer> ring = ring(2, SpscRing.OverflowPolicy.DROP_NEWEST);
+        ring.offer(1);
+        ring.offer(2);
+        assertFalse(ring.offer(3));
+        assertEquals(1, ring.dropped());
+        assertEquals(3, (int) dropped.get(0));
+        assertEquals(Integer.valueOf(1), ring.poll());
+        assertEquals(2, ring.highWaterMark());
+    }
+
+    @Test
+    public void dropOldestEvictsHeadWhenFull() {
+        SpscRing<Integer> ring = ring(2, SpscRing.OverflowPolicy.DROP_OLDEST);
+        ring.offer(1);
+        ring.offer(2);
+        assertTrue(ring.offer(3));
+        assertEquals(1, (int) dropped.get(0));
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertEquals(Integer.valueOf(3), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void blockedProducerResumesWhenConsumerPolls() throws Exception {
+        SpscRing<Integer> ring = ring(1, SpscRing.OverflowPolicy.BLOCK);
+        ring.offer(1);
+        Thread producer = new Thread(() -> ring.offer(2));
+        producer.start();
+        Thread.sleep(20);
+        assertTrue(producer.isAlive());
+        assertEquals(Integer.valueOf(1), ring.poll());
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertEquals(Integer.valueOf(2), ring.poll());
+    }
+
+    @Test
+    public void closeReleasesBlockedProducer() throws Exception {
+        SpscRing<Integer> ring = ring(1, SpscRing.OverflowPolicy.BLOCK);
+        ring.offer(1);
+        Thread producer = new Thread(() -> ring.offer(2));
+        producer.start();
+        Thread.sleep(20);
+        ring.close();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertEquals(2, (int) dropped.get(0));
+    }
+
+    @Test
+    public void concurrentTransferKeepsOrderUnderEveryPolicy() throws Exception {
+        for (SpscRing.OverflowPolicy policy : SpscRing.OverflowPolicy.values()) {
+            final int count = 200_000;
+            final long[] droppedCount = new long[1];
+            SpscRing<Integer> ring = new SpscRing<>(64, policy, e -> droppedCount[0]++);
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < count; i++) ring.offer(i);
+            });
+            producer.start();
+            int received = 0;
+            int last = -1;
+            while (producer.isAlive() || !ring.isEmpty()) {
+                Integer value = ring.poll();
+                if (value == null) continue;
+                assertTrue(policy + " out of order", value > last);
+                last = value;
+                received++;
+            }
+            producer.join();
+            assertEquals(policy.toString(), count, received + ring.dropped());
+            if (policy == SpscRing.OverflowPolicy.BLOCK) {
+                assertEquals(count, received);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the proxy with a minimal fake TCP stack standing in for the device
+ * on the other side of the TUN, against a local HTTP server.
+ */
+public class TcpProxyTest {
+    private static final int LOOPBACK = 0x7F000001;
+    private static final int BIG_BODY = 100 * 1024;
+    private static final long TIMEOUT_MS = 20_000;
+
+    private final PacketBufferPool pool = new PacketBufferPool(1500, 1024);
+    private final SpscRing<ByteBuffer> toDevice = new SpscRing<>(1024, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+    private final PacketView view = new PacketView();
+    private final Map<Integer, DeviceSocket> sockets = new HashMap<>();
+    private final SocketProtector protector = new SocketProtector() {
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return true;
+        }
+
+        @Override
+        public boolean protect(Socket socket) {
+            return true;
+        }
+    };
+
+    private Selector selector;
+    private HttpServer server;
+    private TcpProxy proxy;
+    private volatile long uploaded;
+
+    @Before
+    public void setUp() throws Exception {
+        selector = Selector.open();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 512);
+        server.createContext("/big", exchange -> {
+            byte[] body = body(BIG_BODY);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/small", exchange -> {
+            byte[] body = body(1024);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/upload", exchange -> {
+            long total = 0;
+            byte[] chunk = new byte[4096];
+            try (InputStream in = exchange.getRequestBody()) {
+                for (int n; (n = in.read(chunk)) > 0; ) {
+                    total += n;
+                }
+            }
+            uploaded = total;
+            byte[] reply = Long.toString(total).getBytes(StandardCharsets.US_ASCII);
+            exchange.sendResponseHeaders(200, reply.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply);
+            }
+        });
+        server.start();
+        proxy = new TcpProxy(selector, protector, pool, toDevice, packet -> { }, System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        proxy.closeAll();
+        server.stop(0);
+        selector.close();
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    private int serverPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Test
+    public void httpGetIsRelayedAndClosedCleanly() throws Exception {
+        DeviceSocket socket = new DeviceSocket(50000, serverPort());
+        socket.window = 4096;
+        socket.connect();
+        socket.write("GET /big HTTP/1.0\r\n\r\n");
+        pumpUntil(() -> socket.finReceived);
+        socket.close();
+        pumpUntil(() -> proxy.activeConnections() == 0);
+        // Deliver the ACK of our FIN, which is still queued for the TUN
+        pump();
+
+        assertFalse(socket.reset);
+        String response = socket.received.toString("US-ASCII");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.endsWith(new String(body(BIG_BODY), StandardCharsets.US_ASCII)));
+        assertTrue("window of " + socket.window + " was exceeded", socket.maxInFlight <= socket.window);
+        assertEquals(1, proxy.connectionsClosed());
+        assertEquals(0, proxy.connectionsReset());
+        assertEquals(0, pool.inFlight());
+    }
+
+    @Test
+    public void lostSegmentsAreRetransmitted() throws Exception {
+        DeviceSocket socket = new DeviceSocket(50001, serverPort());
+        socket.dropDataSegments.add(2);
+        socket.dropDataSegments.add(3);
+        socket.connect();
+        socket.write("GET /small HTTP/1.0\r\n\r\n");
+        pumpUntil(() -> socket.finReceived);
+
+        String response = socket.received.toString("US-ASCII");
+        assertTrue(response.endsWith(new String(body(1024), StandardCharsets.US_ASCII)));
+        assertTrue(proxy.retransmits() > 0);
+    }
+
+    @Test
+    public void uploadRespectsAdvertisedWindow() throws Exception {
+        int length = 200 * 1024;
+        DeviceSocket socket = new DeviceSocket(50002, serverPort());
+        socket.connect();
+        socket.write("POST /upload HTTP/1.0\r\nContent-Length: " + length + "\r\n\r\n");
+        socket.queue(body(length));
+        pumpUntil(() -> socket.finReceived);
+
+        assertEquals(length, uploaded);
+        assertTrue(socket.maxPeerWindow <= TcpProxy.RECEIVE_BUFFER_SIZE);
+        assertTrue("sent beyond the proxy's window", socket.windowViolations == 0);
+    }
+
+    @Test
+    public void refusedConnectIsReset() throws Exception {
+        int closedPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            closedPort = probe.getLocalPort();
+        }
+        DeviceSocket socket = new DeviceSocket(50003, closedPort);
+        socket.send(PacketView.TCP_SYN, new byte[0]);
+        pumpUntil(() -> socket.reset);
+
+        assertFalse(socket.established);
+        assertEquals(0, proxy.activeConnections());
+    }
+
+    @Test
+    public void segmentForUnknownConnectionIsReset() throws Exception {
+        DeviceSocket socket = new DeviceSocket(50004, serverPort());
+        socket.receiveNext = 777;
+        socket.send(PacketView.TCP_ACK, "stray".getBytes(StandardCharsets.US_ASCII));
+        pumpUntil(() -> socket.reset);
+
+        assertEquals(777, socket.resetSeq);
+        assertEquals(0, proxy.activeConnections());
+    }
+
+    @Test
+    public void manyConcurrentConnectionsShareOneSelector() throws Exception {
+        int count = 200;
+        List<DeviceSocket> all = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            DeviceSocket socket = new DeviceSocket(51000 + i, serverPort());
+            socket.send(PacketView.TCP_SYN, new byte[0]);
+            all.add(socket);
+        }
+        proxy.flushAcks();
+        pumpUntil(() -> {
+            for (DeviceSocket socket : all) {
+                if (!socket.established) return false;
+            }
+            return true;
+        });
+        assertEquals(count, proxy.activeConnections());
+
+        for (DeviceSocket socket : all) {
+            socket.write("GET /small HTTP/1.0\r\n\r\n");
+        }
+        pumpUntil(() -> {
+            for (DeviceSocket socket : all) {
+                if (!socket.finReceived) return false;
+            }
+            return true;
+        });
+        for (DeviceSocket socket : all) {
+            assertTrue(socket.received.toString("US-ASCII").endsWith(new String(body(1024), StandardCharsets.US_ASCII)));
+            socket.close();
+        }
+        pumpUntil(() -> proxy.activeConnections() == 0);
+        assertEquals(count, proxy.connectionsClosed());
+    }
+
+    private interface Condition {
+        boolean met() throws Exception;
+    }
+
+    private void pumpUntil(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.met()) {
+            assertTrue("timed out; " + proxy, System.currentTimeMillis() < deadline);
+            pump();
+        }
+    }
+
+    /** One turn of the network loop, with the fake device answering everything the proxy sent. */
+    private void pump() throws Exception {
+        if (selector.select(5) > 0) {
+            for (SelectionKey key : selector.selectedKeys()) {
+                ((SelectionHandler) key.attachment()).onSelected(key);
+            }
+            selector.selectedKeys().clear();
+        }
+        ByteBuffer packet;
+        while ((packet = toDevice.poll()) != null) {
+            try {
+                deliver(packet);
+            } finally {
+                pool.release(packet);
+            }
+        }
+        for (DeviceSocket socket : sockets.values()) {
+            socket.sendQueued();
+        }
+        proxy.flushAcks();
+        proxy.expire(System.currentTimeMillis());
+    }
+
+    private void deliver(ByteBuffer packet) {
+        assertTrue(view.wrap(packet));
+        int l4 = view.transportOffset();
+        int tcpLength = view.totalLength() - view.ipHeaderLength();
+        assertEquals("bad IPv4 checksum", 0, Checksums.finish(Checksums.sum(packet, 0, view.ipHeaderLength(), 0)));
+        assertEquals("bad TCP checksum", 0, Checksums.transport(packet, 0, l4, tcpLength, PacketView.PROTO_TCP));
+        assertEquals(TestPackets.CLIENT, view.destinationAddress());
+
+        DeviceSocket socket = sockets.get(view.destinationPort());
+        assertNotNull(socket);
+        socket.onSegment(packet, l4, view.tcpFlags(), view.payloadOffset(), view.payloadLength());
+    }
+
+    /** Just enough of a TCP endpoint to exercise the proxy: in-order receive, cumulative ACKs. */
+    private final class DeviceSocket {
+        final int port;
+        final int remotePort;
+        int seq = 1000;
+        int receiveNext;
+        int window = 65535;
+        boolean established;
+        boolean finReceived;
+        boolean reset;
+        int resetSeq;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        // Indexes (1-based) of data segments to drop the first time they arrive
+        final Set<Integer> dropDataSegments = new HashSet<>();
+        int dataSegments;
+        int maxInFlight;
+        int lastAckedByDevice;
+
+        // Upload state
+        byte[] outgoing;
+        int outgoingOffset;
+        int peerAck;
+        int peerWindow;
+        int maxPeerWindow;
+        int windowViolations;
+
+        DeviceSocket(int port, int remotePort) {
+            this.port = port;
+            this.remotePort = remotePort;
+            sockets.put(port, this);
+        }
+
+        void connect() throws Exception {
+            send(PacketView.TCP_SYN, new byte[0]);
+            pumpUntil(() -> established);
+        }
+
+        void write(String text) {
+            send(PacketView.TCP_PSH | PacketView.TCP_ACK, text.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void queue(byte[] data) {
+            outgoing = data;
+            outgoingOffset = 0;
+        }
+
+        void close() {
+            send(PacketView.TCP_FIN | PacketView.TCP_ACK, new byte[0]);
+        }
+
+        void send(int flags, byte[] payload) {
+            ByteBuffer packet = ByteBuffer.wrap(TestPackets.tcp4(TestPackets.CLIENT, port, LOOPBACK, remotePort,
+                    flags, seq, receiveNext, window, payload));
+            assertTrue(view.wrap(packet));
+            proxy.handleDevicePacket(view, System.currentTimeMillis());
+            seq += payload.length;
+            if ((flags & (PacketView.TCP_SYN | PacketView.TCP_FIN)) != 0) {
+                seq++;
+            }
+        }
+
+        /** Sends queued upload data, staying inside the window the proxy advertised. */
+        void sendQueued() {
+            while (outgoing != null && outgoingOffset < outgoing.length) {
+                int room = peerWindow - (seq - peerAck);
+                int length = Math.min(Math.min(1400, room), outgoing.length - outgoingOffset);
+                if (length <= 0) {
+                    return;
+                }
+                byte[] chunk = new byte[length];
+                System.arraycopy(outgoing, outgoingOffset, chunk, 0, length);
+                outgoingOffset += length;
+                send(PacketView.TCP_ACK, chunk);
+            }
+        }
+
+        void onSegment(ByteBuffer packet, int l4, int flags, int payloadOffset, int payloadLength) {
+            int segmentSeq = packet.getInt(l4 + 4);
+            if ((flags & PacketView.TCP_RST) != 0) {
+                reset = true;
+                resetSeq = segmentSeq;
+                return;
+            }
+            if ((flags & PacketView.TCP_ACK) != 0) {
+                peerAck = packet.getInt(l4 + 8);
+                peerWindow = packet.getShort(l4 + 14) & 0xFFFF;
+                maxPeerWindow = Math.max(maxPeerWindow, peerWindow);
+                if (seq - peerAck > peerWindow + 1400) {
+                    windowViolations++;
+                }
+            }
+            if ((flags & PacketView.TCP_SYN) != 0) {
+                receiveNext = segmentSeq + 1;
+                lastAckedByDevice = receiveNext;
+                established = true;
+                send(PacketView.TCP_ACK, new byte[0]);
+                return;
+            }
+            if (payloadLength > 0) {
+                if (dropDataSegments.remove(++dataSegments)) {
+                    return;
+                }
+                // Data beyond what we have acknowledged must fit in the window we advertised
+                maxInFlight = Math.max(maxInFlight, segmentSeq + payloadLength - lastAckedByDevice);
+                if (segmentSeq == receiveNext) {
+                    for (int i = 0; i < payloadLength; i++) {
+                        received.write(packet.get(payloadOffset + i));
+                    }
+                    receiveNext += payloadLength;
+                }
+            }
+            boolean fin = (flags & PacketView.TCP_FIN) != 0;
+            if (fin && segmentSeq + payloadLength == receiveNext) {
+                receiveNext++;
+                finReceived = true;
+            }
+            if (payloadLength > 0 || fin) {
+                lastAckedByDevice = receiveNext;
+                send(PacketView.TCP_ACK, new byte[0]);
+            }
+        }
+    }
+}
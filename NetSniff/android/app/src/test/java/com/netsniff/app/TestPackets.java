@@ -0,0 +1,97 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builders for small, well-formed packets used across the unit tests.
+ */
+final class TestPackets {
+    static final int CLIENT = 0x0A000002;      // 10.0.0.2
+    static final int SERVER = 0x08080808;      // 8.8.8.8
+
+    private TestPackets() {}
+
+    static byte[] udp4(byte[] payload) {
+        return udp4(CLIENT, 40000, SERVER, 53, payload);
+    }
+
+    static byte[] udp4(int src, int srcPort, int dst, int dstPort, byte[] payload) {
+        ByteBuffer b = ipv4(src, dst, PacketView.PROTO_UDP, 8 + payload.length);
+        b.putShort((short) srcPort).putShort((short) dstPort)
+         .putShort((short) (8 + payload.length)).putShort((short) 0)
+         .put(payload);
+        return b.array();
+    }
+
+    static byte[] tcp4(int src, int srcPort, int dst, int dstPort, int flags, byte[] payload) {
+        return tcp4(src, srcPort, dst, dstPort, flags, 1, 0, 65535, payload);
+    }
+
+    static byte[] tcp4(int src, int srcPort, int dst, int dstPort, int flags,
+                       int seq, int ack, int window, byte[] payload) {
+        ByteBuffer b = ipv4(src, dst, PacketView.PROTO_TCP, 20 + payload.length);
+        b.putShort((short) srcPort).putShort((short) dstPort)
+         .putInt(seq).putInt(ack)
+         .put((byte) 0x50).put((byte) flags)
+         .putShort((short) window).putShort((short) 0).putShort((short) 0)
+         .put(payload);
+        return b.array();
+    }
+
+    /**
+     * IPv6 packet whose header chain is {@code extensions} (each entry is
+     * {next-header value, length in bytes}) followed by a UDP datagram.
+     */
+    static byte[] udp6(int[][] extensions, byte[] payload) {
+        int extLength = 0;
+        for (int[] ext : extensions) extLength += ext[1];
+        int l4Length = 8 + payload.length;
+        ByteBuffer b = ByteBuffer.allocate(40 + extLength + l4Length);
+        int first = extensions.length > 0 ? extensions[0][0] : PacketView.PROTO_UDP;
+        b.putInt(0x60000000).putShort((short) (extLength + l4Length))
+         .put((byte) first).put((byte) 64);
+        b.putLong(0x20010db800000000L).putLong(0x0000000000000001L);   // 2001:db8::1
+        b.putLong(0xfe80000000000000L).putLong(0x021122fffe334455L);   // fe80::211:22ff:fe33:4455
+        for (int i = 0; i < extensions.length; i++) {
+            int next = i + 1 < extensions.length ? extensions[i + 1][0] : PacketView.PROTO_UDP;
+            int len = extensions[i][1];
+            int start = b.position();
+            b.put((byte) next);
+            if (extensions[i][0] == 51) {
+                b.put((byte) (len / 4 - 2));
+            } else if (extensions[i][0] != 44) {
+                b.put((byte) (len / 8 - 1));
+            }
+            b.position(start + len);
+        }
+        b.putShort((short) 5353).putShort((short) 53)
+         .putShort((short) l4Length).putShort((short) 0)
+         .put(payload);
+        return b.array();
+    }
+
+    /** DNS query for {@code name} (dotted form) with RD set. */
+    static byte[] dnsQuery(int id, String name, int type) {
+        ByteBuffer b = ByteBuffer.allocate(12 + name.length() + 2 + 4);
+        b.putShort((short) id).putShort((short) 0x0100)
+         .putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        for (String label : name.split("\\.")) {
+            b.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) {
+                b.put((byte) label.charAt(i));
+            }
+        }
+        b.put((byte) 0).putShort((short) type).putShort((short) 1);
+        return b.array();
+    }
+
+    private static ByteBuffer ipv4(int src, int dst, int protocol, int l4Length) {
+        int total = 20 + l4Length;
+        ByteBuffer b = ByteBuffer.allocate(total);
+        b.put((byte) 0x45).put((byte) 0).putShort((short) total)
+         .putShort((short) 0).putShort((short) 0x4000)
+         .put((byte) 64).put((byte) protocol).putShort((short) 0)
+         .putInt(src).putInt(dst);
+        return b;
+    }
+}
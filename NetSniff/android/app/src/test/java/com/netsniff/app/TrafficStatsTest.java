@@ -0,0 +1,78 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TrafficStatsTest {
+    private final PacketView view = new PacketView();
+
+    private void record(TrafficStats stats, byte[] packet, int direction) {
+        assertTrue(view.wrap(ByteBuffer.wrap(packet)));
+        stats.record(view, direction);
+    }
+
+    @Test
+    public void countsByDirectionAndProtocol() {
+        TrafficStats stats = new TrafficStats(1000);
+        byte[] tcp = TestPackets.tcp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 443, PacketView.TCP_ACK, new byte[10]);
+        byte[] udp = TestPackets.udp4(TestPackets.SERVER, 53, TestPackets.CLIENT, 40001, new byte[20]);
+        record(stats, tcp, TrafficStats.OUTGOING);
+        record(stats, tcp, TrafficStats.OUTGOING);
+        record(stats, udp, TrafficStats.INCOMING);
+
+        TrafficStats.Snapshot s = stats.snapshot(2000);
+        assertEquals(1000, s.startedAtMs);
+        assertEquals(2000, s.takenAtMs);
+        assertEquals(3, s.totalPackets());
+        assertEquals(2, s.outgoingPackets);
+        assertEquals(1, s.incomingPackets);
+        assertEquals(2 * tcp.length, s.outgoingBytes);
+        assertEquals(udp.length, s.incomingBytes);
+        assertEquals(2 * tcp.length + udp.length, s.totalBytes());
+        assertEquals(2, s.protocolPackets[PacketView.PROTO_TCP]);
+        assertEquals(1, s.protocolPackets[PacketView.PROTO_UDP]);
+        assertEquals(0, s.protocolPackets[PacketView.PROTO_ICMP]);
+    }
+
+    @Test
+    public void snapshotIsACopy() {
+        TrafficStats stats = new TrafficStats(0);
+        byte[] udp = TestPackets.udp4(TestPackets.CLIENT, 1, TestPackets.SERVER, 2, new byte[4]);
+        record(stats, udp, TrafficStats.OUTGOING);
+        TrafficStats.Snapshot before = stats.snapshot(1);
+        record(stats, udp, TrafficStats.OUTGOING);
+        assertEquals(1, before.totalPackets());
+        assertEquals(1, before.protocolPackets[PacketView.PROTO_UDP]);
+        assertEquals(2, stats.snapshot(2).totalPackets());
+    }
+
+    @Test
+    public void concurrentWritersLoseNothing() throws Exception {
+        final TrafficStats stats = new TrafficStats(0);
+        final byte[] udp = TestPackets.udp4(TestPackets.CLIENT, 1, TestPackets.SERVER, 2, new byte[4]);
+        final int perThread = 100_000;
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final int direction = t;
+            threads[t] = new Thread(() -> {
+                PacketView own = new PacketView();
+                own.wrap(ByteBuffer.wrap(udp));
+                for (int i = 0; i < perThread; i++) {
+                    stats.record(own, direction);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        TrafficStats.Snapshot s = stats.snapshot(0);
+        assertEquals(perThread, s.incomingPackets);
+        assertEquals(perThread, s.outgoingPackets);
+        assertEquals(2L * perThread * udp.length, s.totalBytes());
+        assertEquals(2L * perThread, s.protocolPackets[PacketView.PROTO_UDP]);
+    }
+}
@@ -0,0 +1,105 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Inbound-only flow: the device never sends anything, so the TUN reader stays
+ * blocked in read() the whole time. Packets from the network must still reach
+ * the TUN through the writer without waiting for device traffic.
+ */
+public class TunIoLatencyTest {
+    private static final int PACKETS = 200;
+    // Only catches a stage that never wakes; timings belong in the packet-jvm benchmarks
+    private static final long HANG_MS = 1000;
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final PacketBufferPool pool = new PacketBufferPool(1500, 64);
+    private final SpscRing<ByteBuffer> outbound = new SpscRing<>(16, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+    private final SpscRing<ByteBuffer> inbound = new SpscRing<>(16, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+    private Thread readerThread;
+    private Thread writerThread;
+
+    @After
+    public void tearDown() throws Exception {
+        running.set(false);
+        inbound.close();
+        if (writerThread != null) writerThread.join(1000);
+        if (readerThread != null) readerThread.interrupt();
+    }
+
+    @Test
+    public void inboundOnlyFlowIsWrittenWithoutWaitingForDeviceTraffic() throws Exception {
+        Pipe idleDevice = Pipe.open();   // nothing is ever written to the sink
+        TunReader reader = new TunReader(idleDevice.source(), pool, outbound, () -> {},
+                packet -> {}, running);
+        readerThread = new Thread(reader, "tun-reader");
+        readerThread.start();
+
+        BlockingQueue<Long> written = new ArrayBlockingQueue<>(PACKETS);
+        WritableByteChannel tun = new WritableByteChannel() {
+            @Override public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                written.add(System.nanoTime());
+                return n;
+            }
+            @Override public boolean isOpen() { return true; }
+            @Override public void close() {}
+        };
+        MetricsRegistry metrics = new MetricsRegistry();
+        TunWriter writer = new TunWriter(tun, pool, inbound, running, metrics);
+        writerThread = new Thread(writer, "tun-writer");
+        writerThread.start();
+
+        byte[] datagram = TestPackets.udp4(TestPackets.SERVER, 53, TestPackets.CLIENT, 40000, new byte[32]);
+        for (int i = 0; i < PACKETS; i++) {
+            // Give the writer time to go back to sleep so every packet needs a wake-up
+            Thread.sleep(1);
+            ByteBuffer packet = pool.acquire();
+            packet.put(datagram).flip();
+            assertTrue(inbound.offer(packet));
+            assertNotNull("packet " + i + " never reached the TUN", written.poll(HANG_MS, TimeUnit.MILLISECONDS));
+        }
+
+        assertEquals(PACKETS, writer.packetsWritten());
+        assertEquals(PACKETS, metrics.counter("tun.in.packets").value());
+        assertEquals((long) PACKETS * datagram.length, metrics.counter("tun.in.bytes").value());
+        assertEquals(0, reader.packetsRead());
+        assertTrue("reader should still be parked in read()", readerThread.isAlive());
+        // Every written packet went back to the pool; only the reader's pending buffer is out
+        assertEquals(1, pool.inFlight());
+    }
+
+    @Test
+    public void networkLoopWakesWhenReaderQueuesPacket() throws Exception {
+        SelectorWakeup wakeup = new SelectorWakeup(Selector.open());
+        Thread network = new Thread(() -> {
+            try {
+                wakeup.select(outbound, 10_000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        network.start();
+        Thread.sleep(50);
+        assertTrue("select() should block while nothing is queued", network.isAlive());
+
+        outbound.offer(pool.acquire());
+        wakeup.signal();
+        network.join(HANG_MS);
+        assertFalse("select() should return once a packet is queued", network.isAlive());
+        wakeup.selector().close();
+    }
+}
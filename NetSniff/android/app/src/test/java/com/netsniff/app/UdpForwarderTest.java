@@ -0,0 +1,270 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the forwarder against a UDP echo server on the loopback interface.
+ */
+public class UdpForwarderTest {
+    private static final int LOOPBACK = 0x7F000001;
+    private static final int CLIENT_PORT = 40000;
+    private static final long IDLE_TIMEOUT_MS = 5_000;
+
+    private final PacketBufferPool pool = new PacketBufferPool(1500, 32);
+    private final SpscRing<ByteBuffer> toDevice = new SpscRing<>(16, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+    private final PacketView view = new PacketView();
+    private final SocketProtector protector = new SocketProtector() {
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return true;
+        }
+
+        @Override
+        public boolean protect(Socket socket) {
+            return true;
+        }
+    };
+
+    private Selector selector;
+    private DatagramChannel echo;
+    private Thread echoThread;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private int captured;
+
+    @Before
+    public void setUp() throws Exception {
+        selector = Selector.open();
+        echo = DatagramChannel.open();
+        echo.bind(new InetSocketAddress("127.0.0.1", 0));
+        echoThread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(1500);
+            while (running.get()) {
+                try {
+                    buffer.clear();
+                    SocketAddress from = echo.receive(buffer);
+                    buffer.flip();
+                    echo.send(buffer, from);
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        }, "udp-echo");
+        echoThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        running.set(false);
+        echo.close();
+        echoThread.join(1000);
+        selector.close();
+    }
+
+    private UdpForwarder newForwarder(int maxFlows, long now) {
+        return new UdpForwarder(selector, protector, pool, toDevice, packet -> captured++,
+                IDLE_TIMEOUT_MS, maxFlows, now);
+    }
+
+    private int echoPort() throws Exception {
+        return ((InetSocketAddress) echo.getLocalAddress()).getPort();
+    }
+
+    private boolean send(UdpForwarder forwarder, int srcPort, String text, long now) throws Exception {
+        return send(forwarder, srcPort, text.getBytes(StandardCharsets.US_ASCII), now);
+    }
+
+    private boolean send(UdpForwarder forwarder, int srcPort, byte[] payload, long now) throws Exception {
+        ByteBuffer packet = ByteBuffer.wrap(TestPackets.udp4(TestPackets.CLIENT, srcPort, LOOPBACK, echoPort(), payload));
+        assertTrue(view.wrap(packet));
+        return forwarder.sendToNetwork(view, packet, now);
+    }
+
+    /** Handles readiness events until the forwarder has dropped {@code drops} datagrams. */
+    private void awaitDrops(UdpForwarder forwarder, long drops) throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (forwarder.dropped() < drops && System.currentTimeMillis() < deadline) {
+            if (selector.select(100) > 0) {
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((SelectionHandler) key.attachment()).onSelected(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        assertEquals(drops, forwarder.dropped());
+    }
+
+    private ByteBuffer awaitReply() throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            ByteBuffer reply = toDevice.poll();
+            if (reply != null) {
+                return reply;
+            }
+            if (selector.select(100) > 0) {
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((SelectionHandler) key.attachment()).onSelected(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        fail("no reply from echo server");
+        return null;
+    }
+
+    @Test
+    public void replyCarriesSynthesizedHeadersAndValidChecksums() throws Exception {
+        long now = System.currentTimeMillis();
+        UdpForwarder forwarder = newForwarder(UdpForwarder.DEFAULT_MAX_FLOWS, now);
+        assertTrue(send(forwarder, CLIENT_PORT, "hello echo", now));
+
+        ByteBuffer reply = awaitReply();
+        assertTrue(view.wrap(reply));
+        assertEquals(4, view.version());
+        assertEquals(PacketView.PROTO_UDP, view.protocol());
+        assertEquals(LOOPBACK, view.sourceAddress());
+        assertEquals(TestPackets.CLIENT, view.destinationAddress());
+        assertEquals(echoPort(), view.sourcePort());
+        assertEquals(CLIENT_PORT, view.destinationPort());
+        assertEquals(20 + 8 + 10, view.totalLength());
+        assertEquals(reply.limit(), view.totalLength());
+
+        byte[] payload = new byte[view.payloadLength()];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = reply.get(view.payloadOffset() + i);
+        }
+        assertEquals("hello echo", new String(payload, StandardCharsets.US_ASCII));
+
+        // A header that includes its own correct checksum sums to zero
+        assertEquals(0, Checksums.finish(Checksums.sum(reply, 0, view.ipHeaderLength(), 0)));
+        assertTrue(reply.getShort(view.transportOffset() + 6) != 0);
+        assertEquals(0, Checksums.transport(reply, 0, view.transportOffset(), 8 + payload.length, PacketView.PROTO_UDP));
+
+        assertEquals(1, captured);
+        assertEquals(1, forwarder.datagramsOut());
+        assertEquals(1, forwarder.datagramsIn());
+        pool.release(reply);
+    }
+
+    @Test
+    public void sameTupleReusesFlowAndNewPortOpensAnother() throws Exception {
+        long now = System.currentTimeMillis();
+        UdpForwarder forwarder = newForwarder(UdpForwarder.DEFAULT_MAX_FLOWS, now);
+        send(forwarder, CLIENT_PORT, "a", now);
+        send(forwarder, CLIENT_PORT, "b", now);
+        assertEquals(1, forwarder.activeFlows());
+
+        send(forwarder, CLIENT_PORT + 1, "c", now);
+        assertEquals(2, forwarder.activeFlows());
+        assertEquals(2, forwarder.flowsCreated());
+
+        pool.release(awaitReply());
+        pool.release(awaitReply());
+        pool.release(awaitReply());
+        forwarder.closeAll();
+        assertEquals(0, forwarder.activeFlows());
+    }
+
+    @Test
+    public void flowLimitDropsNewTuples() throws Exception {
+        long now = System.currentTimeMillis();
+        UdpForwarder forwarder = newForwarder(1, now);
+        assertTrue(send(forwarder, CLIENT_PORT, "a", now));
+        assertFalse(send(forwarder, CLIENT_PORT + 1, "b", now));
+        assertEquals(1, forwarder.activeFlows());
+        assertEquals(1, forwarder.dropped());
+        forwarder.closeAll();
+    }
+
+    @Test
+    public void idleFlowsExpireOnTheWheel() throws Exception {
+        long now = System.currentTimeMillis();
+        UdpForwarder forwarder = newForwarder(UdpForwarder.DEFAULT_MAX_FLOWS, now);
+        send(forwarder, CLIENT_PORT, "a", now);
+        pool.release(awaitReply());
+
+        forwarder.expireIdle(now + IDLE_TIMEOUT_MS / 2);
+        assertEquals(1, forwarder.activeFlows());
+
+        // Activity pushes the deadline out instead of rescheduling on every packet
+        send(forwarder, CLIENT_PORT, "b", now + IDLE_TIMEOUT_MS / 2);
+        pool.release(awaitReply());
+        forwarder.expireIdle(now + IDLE_TIMEOUT_MS + 1000);
+        assertEquals(1, forwarder.activeFlows());
+
+        forwarder.expireIdle(now + 3 * IDLE_TIMEOUT_MS);
+        assertEquals(0, forwarder.activeFlows());
+        assertEquals(1, forwarder.flowsExpired());
+        assertEquals(0, selector.keys().stream().filter(SelectionKey::isValid).count());
+    }
+
+    @Test
+    public void nonUdpPacketsAreRejected() throws Exception {
+        UdpForwarder forwarder = newForwarder(UdpForwarder.DEFAULT_MAX_FLOWS, 0);
+        ByteBuffer packet = ByteBuffer.wrap(TestPackets.tcp4(TestPackets.CLIENT, CLIENT_PORT, LOOPBACK, 80,
+                PacketView.TCP_SYN, new byte[0]));
+        assertTrue(view.wrap(packet));
+        assertFalse(forwarder.sendToNetwork(view, packet, 0));
+        assertEquals(0, forwarder.activeFlows());
+        assertEquals(0, forwarder.datagramsOut());
+    }
+
+    @Test
+    public void repliesWithNoFreeBufferAreReadAndDroppedOnce() throws Exception {
+        long now = System.currentTimeMillis();
+        UdpForwarder forwarder = newForwarder(UdpForwarder.DEFAULT_MAX_FLOWS, now);
+        ByteBuffer[] held = new ByteBuffer[32];
+        for (int i = 0; i < held.length; i++) {
+            held[i] = pool.acquire();
+        }
+        assertNull(pool.acquire());
+
+        send(forwarder, CLIENT_PORT, "a", now);
+        send(forwarder, CLIENT_PORT, "b", now);
+        send(forwarder, CLIENT_PORT, "c", now);
+        awaitDrops(forwarder, 3);
+        // Nothing is left in the socket to keep the key ready
+        assertEquals(0, selector.selectNow());
+        assertEquals(3, forwarder.dropped());
+        assertEquals(0, forwarder.datagramsIn());
+
+        for (ByteBuffer buffer : held) {
+            pool.release(buffer);
+        }
+        forwarder.closeAll();
+    }
+
+    @Test
+    public void repliesTooLongForABufferAreDropped() throws Exception {
+        long now = System.currentTimeMillis();
+        UdpForwarder forwarder = newForwarder(UdpForwarder.DEFAULT_MAX_FLOWS, now);
+        // One byte more than fits behind the 28 bytes of headers
+        send(forwarder, CLIENT_PORT, new byte[1500 - 28 + 1], now);
+        awaitDrops(forwarder, 1);
+        assertNull(toDevice.poll());
+        assertEquals(0, forwarder.datagramsIn());
+
+        // An exact fit is still forwarded
+        send(forwarder, CLIENT_PORT, new byte[1500 - 28], now);
+        ByteBuffer reply = awaitReply();
+        assertTrue(view.wrap(reply));
+        assertEquals(1500, view.totalLength());
+        assertEquals(1, forwarder.dropped());
+        pool.release(reply);
+        forwarder.closeAll();
+    }
+}
@@ -0,0 +1,40 @@
+package com.netsniff.app;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decoding one packet: the header walk every captured packet gets, and the
+ * address and port strings the JSON events are built from.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecodeBenchmark {
+    private final PacketView view = new PacketView();
+
+    @Benchmark
+    public int wrap(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        return view.protocol() + view.totalLength() + view.tcpFlags()
+                + (view.hasPorts() ? view.sourcePort() ^ view.destinationPort() : 0);
+    }
+
+    @Benchmark
+    public int endpoints(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        return view.sourceEndpoint().length() + view.destinationEndpoint().length();
+    }
+}
@@ -0,0 +1,65 @@
+package com.netsniff.app;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Serializing a captured packet: the binary summary record sent to the page,
+ * the same record with a payload preview written into a reused array, and
+ * the history append that stores it for later paging.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventEncodeBenchmark {
+    private static final int SNAP_LENGTH = 512;
+
+    private final PacketView view = new PacketView();
+    private final HexDump preview = new HexDump(SNAP_LENGTH, HexDump.FROM_TRANSPORT_HEADER);
+    private final byte[] scratch = new byte[PacketRecords.RECORD_HEADER + 32 + SNAP_LENGTH];
+    private CaptureHistory history;
+    private long seq;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        history = new CaptureHistory();
+    }
+
+    @Benchmark
+    public byte[] summaryRecord(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return null;
+        }
+        return PacketRecords.encode(view, corpus.incoming[i], 1_700_000_000_000L,
+                preview.previewOffset(view), 0, Dissectors.NONE, ++seq);
+    }
+
+    @Benchmark
+    public int recordWithPreviewInto(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        return PacketRecords.encodeInto(view, corpus.incoming[i], 1_700_000_000_000L,
+                preview.previewOffset(view), SNAP_LENGTH, Dissectors.NONE, ++seq, scratch, 0);
+    }
+
+    @Benchmark
+    public long historyAppend(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        return history.append(view, corpus.incoming[i], 1_700_000_000_000L,
+                preview.previewOffset(view), SNAP_LENGTH, Dissectors.NONE);
+    }
+}
@@ -0,0 +1,92 @@
+package com.netsniff.app;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Per-packet bookkeeping: the flow table lookup and update with the
+ * application classifier attached, as the service runs it, and the
+ * session's traffic totals.
+ *
+ * The {@code WORKERS}-thread pair compares capture workers recording into
+ * one shared table against each recording into its own partition, as
+ * {@link FlowTables} has them; the gap is what the shared lock costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FlowTableBenchmark {
+    private static final int WORKERS = 4;
+
+    /** One table every thread records into. */
+    @State(Scope.Benchmark)
+    public static class SharedTable {
+        FlowTable table;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            table = new FlowTable();
+            table.setClassifier(Dissectors.withDefaults());
+        }
+    }
+
+    private final PacketView view = new PacketView();
+    private FlowTable table;
+    private TrafficStats stats;
+    private long now;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        table = new FlowTable();
+        table.setClassifier(Dissectors.withDefaults());
+        stats = new TrafficStats(0);
+    }
+
+    @Benchmark
+    public int record(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        return table.record(view, ++now);
+    }
+
+    @Benchmark
+    public int recordWithStats(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        stats.record(view, corpus.incoming[i] ? TrafficStats.INCOMING : TrafficStats.OUTGOING);
+        return table.record(view, ++now);
+    }
+
+    @Benchmark
+    @Threads(WORKERS)
+    public int recordShared(SharedTable shared, PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        return shared.table.recordAppProtocol(view, ++now);
+    }
+
+    @Benchmark
+    @Threads(WORKERS)
+    public int recordPartitioned(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        return table.recordAppProtocol(view, ++now);
+    }
+}
@@ -0,0 +1,62 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hex rendering of a packet's preview window, as a new String and into a
+ * reused builder, against the String.format loop HexDump replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HexFormatBenchmark {
+    private final PacketView view = new PacketView();
+    private final HexDump encoder = new HexDump(HexDump.DEFAULT_SNAP_LENGTH, HexDump.FROM_TRANSPORT_HEADER);
+    private final StringBuilder scratch = new StringBuilder(4 * HexDump.DEFAULT_SNAP_LENGTH);
+
+    @Benchmark
+    public String preview(PacketCorpus corpus) {
+        int i = corpus.next();
+        return view.wrap(corpus.packets[i]) ? encoder.preview(view) : null;
+    }
+
+    @Benchmark
+    public int appendHex(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return -1;
+        }
+        int from = encoder.previewOffset(view);
+        int length = Math.min(HexDump.DEFAULT_SNAP_LENGTH, view.offset() + view.capturedLength() - from);
+        scratch.setLength(0);
+        return HexDump.appendHex(scratch, view.buffer(), from, Math.max(0, length)).length();
+    }
+
+    @Benchmark
+    public String stringFormat(PacketCorpus corpus) {
+        int i = corpus.next();
+        if (!view.wrap(corpus.packets[i])) {
+            return null;
+        }
+        return legacyHex(view.buffer(), encoder.previewOffset(view), HexDump.DEFAULT_SNAP_LENGTH);
+    }
+
+    /** The formatter processPacket used before HexDump, as in HexDumpTest. */
+    private static String legacyHex(ByteBuffer packet, int start, int snapLength) {
+        StringBuilder payload = new StringBuilder();
+        int length = Math.min(packet.limit() - start, snapLength);
+        for (int i = 0; i < length; i++) {
+            payload.append(String.format("%02X ", packet.get(start + i)));
+            if ((i + 1) % 16 == 0) payload.append("\n");
+        }
+        return payload.toString().trim();
+    }
+}
@@ -0,0 +1,153 @@
+package com.netsniff.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The packets every benchmark cycles through, one per operation.
+ *
+ * By default a synthetic mix shaped like phone traffic: mostly TCP to port
+ * 443, split between bare ACKs and full-size segments, with DNS over UDP,
+ * some HTTP and a share of IPv6, spread over a few hundred flows. With
+ * {@code -Dnetsniff.corpus=<file>} (what {@code -Pcorpus} sets) the IP
+ * packets of that PCAP or PCAPNG capture are used instead.
+ */
+@State(Scope.Thread)
+public class PacketCorpus {
+    static final String CORPUS_PROPERTY = "netsniff.corpus";
+    private static final int SYNTHETIC_PACKETS = 4096;
+    private static final int SYNTHETIC_FLOWS = 300;
+
+    ByteBuffer[] packets;
+    boolean[] incoming;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void load() {
+        String path = System.getProperty(CORPUS_PROPERTY);
+        List<byte[]> bytes = new ArrayList<>();
+        List<Boolean> directions = new ArrayList<>();
+        if (path != null) {
+            replayed(new File(path), bytes, directions);
+        } else {
+            synthetic(bytes, directions);
+        }
+        packets = new ByteBuffer[bytes.size()];
+        incoming = new boolean[bytes.size()];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = ByteBuffer.wrap(bytes.get(i));
+            incoming[i] = directions.get(i);
+        }
+    }
+
+    /** Index of the packet for this operation. */
+    int next() {
+        int i = next;
+        next = i + 1 == packets.length ? 0 : i + 1;
+        return i;
+    }
+
+    private static void replayed(File file, List<byte[]> bytes, List<Boolean> directions) {
+        try (PcapReader reader = PcapReader.open(file)) {
+            while (reader.next()) {
+                ByteBuffer packet = reader.packet();
+                byte[] copy = new byte[packet.remaining()];
+                packet.duplicate().get(copy);
+                bytes.add(copy);
+                directions.add(reader.direction() == PcapReader.DIRECTION_INBOUND);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + file, e);
+        }
+        if (bytes.isEmpty()) {
+            throw new IllegalStateException("No IP packets in " + file);
+        }
+    }
+
+    private static void synthetic(List<byte[]> bytes, List<Boolean> directions) {
+        Random random = new Random(42);
+        byte[] device = {10, 0, 0, 2};
+        byte[] device6 = new byte[16];
+        device6[0] = (byte) 0xFD;
+        device6[15] = 2;
+        byte[] http = "GET /index.html HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < SYNTHETIC_PACKETS; i++) {
+            int flow = random.nextInt(SYNTHETIC_FLOWS);
+            boolean inbound = random.nextInt(100) < 60;
+            boolean ipv6 = flow % 5 == 0;
+            byte[] remote = ipv6 ? new byte[16] : new byte[] {(byte) 142, (byte) 250, (byte) (flow >> 8), (byte) flow};
+            if (ipv6) {
+                remote[0] = 0x26;
+                remote[1] = 0x07;
+                remote[14] = (byte) (flow >> 8);
+                remote[15] = (byte) flow;
+            }
+            byte[] local = ipv6 ? device6 : device;
+            int localPort = 40000 + flow;
+            int kind = random.nextInt(100);
+            byte[] packet;
+            if (kind < 10) {
+                byte[] query = new byte[30 + random.nextInt(40)];
+                random.nextBytes(query);
+                packet = udp(ipv6, inbound ? remote : local, inbound ? local : remote,
+                        inbound ? DnsMessage.PORT : localPort, inbound ? localPort : DnsMessage.PORT, query);
+            } else {
+                int remotePort = kind < 20 ? 80 : 443;
+                byte[] payload;
+                if (kind < 20 && !inbound) {
+                    payload = http;
+                } else if (kind < 55) {
+                    payload = new byte[0];
+                } else {
+                    payload = new byte[inbound ? 1400 - (ipv6 ? 20 : 0) : 100 + random.nextInt(500)];
+                    random.nextBytes(payload);
+                }
+                packet = tcp(ipv6, inbound ? remote : local, inbound ? local : remote,
+                        inbound ? remotePort : localPort, inbound ? localPort : remotePort,
+                        PacketView.TCP_ACK | (payload.length > 0 ? PacketView.TCP_PSH : 0), payload);
+            }
+            bytes.add(packet);
+            directions.add(inbound);
+        }
+    }
+
+    private static byte[] udp(boolean ipv6, byte[] source, byte[] destination, int sourcePort,
+                              int destinationPort, byte[] payload) {
+        int l4Length = PacketHeaders.UDP_HEADER + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(PacketHeaders.ipHeaderLength(ipv6) + l4Length);
+        int l4 = PacketHeaders.writeIp(packet, ipv6, source, destination, PacketView.PROTO_UDP, l4Length, 0);
+        packet.position(l4 + PacketHeaders.UDP_HEADER);
+        packet.put(payload);
+        PacketHeaders.writeUdp(packet, l4, sourcePort, destinationPort, payload.length);
+        return packet.array();
+    }
+
+    private static byte[] tcp(boolean ipv6, byte[] source, byte[] destination, int sourcePort,
+                              int destinationPort, int flags, byte[] payload) {
+        int l4Length = 20 + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(PacketHeaders.ipHeaderLength(ipv6) + l4Length);
+        int l4 = PacketHeaders.writeIp(packet, ipv6, source, destination, PacketView.PROTO_TCP, l4Length, 0);
+        packet.putShort(l4, (short) sourcePort);
+        packet.putShort(l4 + 2, (short) destinationPort);
+        packet.putInt(l4 + 4, 1000);
+        packet.putInt(l4 + 8, 2000);
+        packet.put(l4 + 12, (byte) (5 << 4));
+        packet.put(l4 + 13, (byte) flags);
+        packet.putShort(l4 + 14, (short) 65535);
+        packet.position(l4 + 20);
+        packet.put(payload);
+        return packet.array();
+    }
+}
@@ -0,0 +1,97 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Handing packets between threads: a pooled buffer through the SPSC ring
+ * that links the TUN and network threads, with one producer and one
+ * consumer running together; and the forwarding thread's side of the
+ * capture pipeline, which hashes the flow and copies the packet for a
+ * worker.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueueHandoffBenchmark {
+    // As ToyVpnService sizes them: the tunnel MTU and the rings between its threads
+    private static final int MAX_PACKET_SIZE = 1500;
+    private static final int RING_CAPACITY = 128;
+
+    @State(Scope.Group)
+    public static class Ring {
+        PacketBufferPool pool;
+        SpscRing<ByteBuffer> ring;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            pool = new PacketBufferPool(MAX_PACKET_SIZE, 2 * RING_CAPACITY + 16);
+            ring = new SpscRing<>(RING_CAPACITY, SpscRing.OverflowPolicy.DROP_NEWEST, pool::release);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Pipeline {
+        CapturePipeline pipeline;
+        PacketSink sink;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            pipeline = new CapturePipeline(CapturePipeline.defaultWorkers(), MAX_PACKET_SIZE,
+                    index -> (packet, incoming, timestampMs) -> { });
+            pipeline.start();
+            sink = pipeline.sink(false);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            pipeline.stop();
+        }
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public boolean offer(Ring state, PacketCorpus corpus) {
+        ByteBuffer buffer = state.pool.acquire();
+        if (buffer == null) {
+            return false;
+        }
+        ByteBuffer packet = corpus.packets[corpus.next()];
+        if (packet.remaining() > buffer.capacity()) {
+            state.pool.release(buffer);
+            return false;
+        }
+        buffer.put(packet.duplicate()).flip();
+        return state.ring.offer(buffer);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public int poll(Ring state) {
+        ByteBuffer buffer = state.ring.poll();
+        if (buffer == null) {
+            return 0;
+        }
+        int length = buffer.remaining();
+        state.pool.release(buffer);
+        return length;
+    }
+
+    @Benchmark
+    public void pipelineOffer(Pipeline state, PacketCorpus corpus) {
+        state.sink.onPacket(corpus.packets[corpus.next()]);
+    }
+}
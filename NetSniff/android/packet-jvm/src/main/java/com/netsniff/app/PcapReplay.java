@@ -0,0 +1,421 @@
+package com.netsniff.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a PCAP or PCAPNG capture through the capture path ToyVpnService
+ * runs, without a device: the same CaptureProcessor (filter, decode, flow
+ * table and classification, totals, history) on the same CapturePipeline
+ * workers, with events encoded as binary records, batched and framed the
+ * way the plugin sends them to the page.
+ *
+ * Packets can be fed at their original pace, at a multiple of it, or as
+ * fast as the pipeline takes them; at full speed the feeder waits for room
+ * instead of dropping. The report gives packets and bytes per second,
+ * latency percentiles per stage and per packet, and heap allocation and GC
+ * activity over the run, so the same run serves as a throughput benchmark
+ * and, compared against an earlier report, as a regression check.
+ *
+ * <pre>
+ *   ./gradlew :packet-jvm:replay -Pcapture=traffic.pcapng
+ *   ./gradlew :packet-jvm:replay -Pcapture=traffic.pcap -Pargs="--speed original --workers 0"
+ * </pre>
+ */
+public final class PcapReplay {
+    /** Speed for feeding packets as fast as the pipeline takes them. */
+    public static final double MAX_SPEED = 0;
+
+    // As the service configures them
+    private static final int MAX_PACKET_SIZE = 1500;
+    private static final int HISTORY_SNAP_LENGTH = 512;
+    // How often the feeder plays the UI thread's part, delivering batches and expiring flows
+    private static final long FRAME_NANOS = 16_000_000L;
+    // Below this, waiting for a packet's time spins rather than parks
+    private static final long SPIN_NANOS = 1_000_000L;
+
+    public static final class Options {
+        /** MAX_SPEED, 1 for the capture's own timing, or a multiple of it. */
+        public double speed = MAX_SPEED;
+        /** Capture workers; 0 runs every stage on the feeding thread. */
+        public int workers = CapturePipeline.defaultWorkers();
+        /** Times through the file. */
+        public int loops = 1;
+        /** Capture filter expression, or null. */
+        public String filter;
+    }
+
+    public static final class Report {
+        public long packets;
+        public long bytes;
+        public long skipped;
+        public long dropped;
+        // Packets a capture worker threw on; inline replay fails instead
+        public long failed;
+        public long events;
+        // Events the batcher discarded because frames came too slowly for the rate, as on the device
+        public long eventsDropped;
+        public long batches;
+        public long batchBytes;
+        public int flows;
+        public long elapsedNanos;
+        public long allocatedBytes = -1;
+        public long gcCount;
+        public long gcMillis;
+        public final LatencyHistogram perPacket = new LatencyHistogram();
+        public final LatencyHistogram[] stages = CaptureProcessor.newStageHistograms();
+
+        public double packetsPerSecond() {
+            return elapsedNanos == 0 ? 0 : packets * 1e9 / elapsedNanos;
+        }
+
+        public double bytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "packets=%d bytes=%d skipped=%d dropped=%d failed=%d flows=%d%n",
+                    packets, bytes, skipped, dropped, failed, flows));
+            sb.append(String.format(Locale.US, "elapsed=%.1fms  %.0f packets/s  %.2f MB/s%n",
+                    elapsedNanos / 1e6, packetsPerSecond(), bytesPerSecond() / 1e6));
+            sb.append(String.format(Locale.US, "events=%d eventsDropped=%d batches=%d batchBytes=%d%n",
+                    events, eventsDropped, batches, batchBytes));
+            if (allocatedBytes >= 0) {
+                sb.append(String.format(Locale.US, "allocated=%d bytes (%.0f per packet)  ",
+                        allocatedBytes, packets == 0 ? 0.0 : allocatedBytes / (double) packets));
+            }
+            sb.append(String.format(Locale.US, "gc=%d collections, %d ms%n", gcCount, gcMillis));
+            sb.append(String.format(Locale.US, "%-8s %s%n", "packet", perPacket));
+            for (int i = 0; i < CaptureProcessor.STAGES; i++) {
+                sb.append(String.format(Locale.US, "%-8s %s%n", CaptureProcessor.stageName(i), stages[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private PcapReplay() {}
+
+    public static Report run(File capture, Options options) throws IOException {
+        final Report report = new Report();
+        // Partitioned per worker as in the service; inline replay uses the first partition
+        int partitions = Math.max(1, options.workers);
+        final FlowTables flowTables = new FlowTables(partitions);
+        flowTables.setClassifier(Dissectors.withDefaults());
+        final TrafficStats stats = new TrafficStats(System.currentTimeMillis());
+        final CaptureHistory history = new CaptureHistory(CaptureHistory.DEFAULT_MAX_RECORDS,
+                CaptureHistory.DEFAULT_ARENA_BYTES, partitions);
+        final CaptureFilter filter = options.filter != null ? CaptureFilter.compile(options.filter) : null;
+        final CaptureProcessor.Taps taps = new CaptureProcessor.Taps() {
+            @Override
+            public CaptureFilter filter() {
+                return filter;
+            }
+
+            @Override
+            public PcapngRecorder recorder() {
+                return null;
+            }
+        };
+
+        final AtomicLong batchBytes = new AtomicLong();
+        final AtomicBoolean frameWanted = new AtomicBoolean();
+        final PacketBatcher<byte[]> batcher = new PacketBatcher<>(
+                new PacketBatcher.FrameScheduler() {
+                    @Override
+                    public void scheduleFrame() {
+                        frameWanted.set(true);
+                    }
+                },
+                new PacketBatcher.Delivery<byte[]>() {
+                    @Override
+                    public void deliver(List<byte[]> batch, int dropped, long queuedAtMs) {
+                        String base64 = Base64.getEncoder().encodeToString(PacketRecords.frame(batch, dropped));
+                        batchBytes.addAndGet(base64.length());
+                    }
+                });
+        final AtomicLong events = new AtomicLong();
+        final CaptureProcessor.EventSink sink = new CaptureProcessor.EventSink() {
+            @Override
+            public boolean admit() {
+                return true;
+            }
+
+            @Override
+            public void onPacket(PacketView view, boolean incoming, long timestampMs, int previewOffset,
+                                 int appProtocol, long seq) {
+                events.incrementAndGet();
+                batcher.add(PacketRecords.encode(view, incoming, timestampMs, previewOffset, 0, appProtocol, seq),
+                        System.nanoTime() / 1_000_000);
+            }
+        };
+
+        CapturePipeline.WorkerFactory factory = new CapturePipeline.WorkerFactory() {
+            @Override
+            public CapturePipeline.Worker newWorker(int index) {
+                final CaptureProcessor processor = new CaptureProcessor(index, flowTables.partition(index), stats,
+                        history.partition(index), HISTORY_SNAP_LENGTH, taps, sink, report.stages);
+                return new CapturePipeline.Worker() {
+                    @Override
+                    public void process(ByteBuffer packet, boolean incoming, long timestampMs) {
+                        long start = System.nanoTime();
+                        processor.process(packet, incoming, timestampMs);
+                        report.perPacket.record(System.nanoTime() - start);
+                    }
+                };
+            }
+        };
+        CapturePipeline pipeline = null;
+        CapturePipeline.Worker inline = null;
+        PacketSink outgoing = null;
+        PacketSink incoming = null;
+        if (options.workers > 0) {
+            pipeline = new CapturePipeline(options.workers, MAX_PACKET_SIZE, factory);
+            pipeline.start();
+            outgoing = pipeline.sink(false);
+            incoming = pipeline.sink(true);
+        } else {
+            inline = factory.newWorker(0);
+        }
+
+        Heap heap = new Heap();
+        long started = System.nanoTime();
+        long lastFrame = started;
+        long offsetNanos = 0;
+        long firstNanos = Long.MIN_VALUE;
+        long lastNanos = 0;
+        try {
+            for (int loop = 0; loop < options.loops; loop++) {
+                try (PcapReader reader = PcapReader.open(capture)) {
+                    while (reader.next()) {
+                        ByteBuffer packet = reader.packet();
+                        long at = reader.timestampNanos() + offsetNanos;
+                        if (firstNanos == Long.MIN_VALUE) {
+                            firstNanos = at;
+                        }
+                        lastNanos = Math.max(lastNanos, at);
+                        if (options.speed > 0) {
+                            waitUntil(started + (long) ((at - firstNanos) / options.speed));
+                        }
+                        boolean isIncoming = reader.direction() == PcapReader.DIRECTION_UNKNOWN
+                                ? guessIncoming(packet)
+                                : reader.direction() == PcapReader.DIRECTION_INBOUND;
+                        report.packets++;
+                        report.bytes += packet.remaining();
+                        long nowMs = at / 1_000_000;
+                        if (pipeline == null) {
+                            inline.process(packet, isIncoming, nowMs);
+                        } else {
+                            if (options.speed <= 0) {
+                                int shard = pipeline.shardOf(packet, packet.position(), packet.remaining());
+                                while (pipeline.queued(shard) >= CapturePipeline.QUEUED_PER_DIRECTION) {
+                                    Thread.yield();
+                                }
+                            }
+                            (isIncoming ? incoming : outgoing).onPacket(packet);
+                        }
+                        long now = System.nanoTime();
+                        if (now - lastFrame >= FRAME_NANOS) {
+                            lastFrame = now;
+                            flowTables.expire(nowMs);
+                            if (frameWanted.getAndSet(false)) {
+                                batcher.onFrame(now / 1_000_000);
+                            }
+                        }
+                    }
+                    report.skipped += reader.skipped();
+                }
+                if (firstNanos == Long.MIN_VALUE) {
+                    break;
+                }
+                // The next pass starts a millisecond after this one's last packet
+                offsetNanos = lastNanos + 1_000_000 - firstNanos;
+            }
+            if (pipeline != null) {
+                awaitIdle(pipeline, report.packets);
+            }
+            report.elapsedNanos = System.nanoTime() - started;
+            heap.finish(report);
+        } finally {
+            if (pipeline != null) {
+                pipeline.stop();
+                for (int i = 0; i < pipeline.workers(); i++) {
+                    report.dropped += pipeline.dropped(i);
+                    report.failed += pipeline.failed(i);
+                }
+            }
+        }
+        // Everything still batched goes out as the final frames
+        long flushAt = System.nanoTime() / 1_000_000 + PacketBatcher.DEFAULT_MAX_DELAY_MS;
+        while (frameWanted.getAndSet(false)) {
+            batcher.onFrame(flushAt);
+        }
+        report.events = events.get();
+        report.eventsDropped = batcher.itemsDropped();
+        report.batches = batcher.batchesDelivered();
+        report.batchBytes = batchBytes.get();
+        report.flows = flowTables.size();
+        return report;
+    }
+
+    // Until every packet fed in has been processed or dropped
+    private static void awaitIdle(CapturePipeline pipeline, long packets) {
+        while (true) {
+            long done = 0;
+            for (int i = 0; i < pipeline.workers(); i++) {
+                done += pipeline.processed(i) + pipeline.dropped(i);
+            }
+            if (done >= packets) {
+                return;
+            }
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 2 * SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Direction for captures that don't record it: from a private or
+     * link-local address is outgoing, to one is incoming, and anything
+     * else counts as outgoing.
+     */
+    static boolean guessIncoming(ByteBuffer packet) {
+        int offset = packet.position();
+        int version = (packet.get(offset) >> 4) & 0xF;
+        if (version == 4 && packet.remaining() >= 20) {
+            if (isLocal4(packet.getInt(offset + 12))) {
+                return false;
+            }
+            return isLocal4(packet.getInt(offset + 16));
+        }
+        if (version == 6 && packet.remaining() >= 40) {
+            if (isLocal6(packet, offset + 8)) {
+                return false;
+            }
+            return isLocal6(packet, offset + 24);
+        }
+        return false;
+    }
+
+    private static boolean isLocal4(int address) {
+        int a = address >>> 24;
+        int b = (address >>> 16) & 0xFF;
+        return a == 10 || a == 127 || (a == 172 && (b & 0xF0) == 16) || (a == 192 && b == 168)
+                || (a == 100 && (b & 0xC0) == 64) || (a == 169 && b == 254);
+    }
+
+    private static boolean isLocal6(ByteBuffer packet, int index) {
+        int first = packet.get(index) & 0xFF;
+        int second = packet.get(index + 1) & 0xFF;
+        return (first & 0xFE) == 0xFC || (first == 0xFE && (second & 0xC0) == 0x80);
+    }
+
+    /** Allocation and GC counters at the start of a run. */
+    private static final class Heap {
+        private final long allocated = allocatedBytes();
+        private final long gcCount;
+        private final long gcMillis;
+
+        Heap() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            gcCount = count;
+            gcMillis = millis;
+        }
+
+        void finish(Report report) {
+            long end = allocatedBytes();
+            report.allocatedBytes = allocated >= 0 && end >= 0 ? end - allocated : -1;
+            Heap now = new Heap();
+            report.gcCount = now.gcCount - gcCount;
+            report.gcMillis = now.gcMillis - gcMillis;
+        }
+
+        // Bytes allocated so far by the threads alive now, or -1 where the JVM can't say
+        private static long allocatedBytes() {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return -1;
+            }
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+                return -1;
+            }
+            long total = 0;
+            for (long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                total += Math.max(0, bytes);
+            }
+            return total;
+        }
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        String path = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--speed": {
+                        String speed = args[++i];
+                        options.speed = speed.equals("max") ? MAX_SPEED
+                                : speed.equals("original") ? 1 : Double.parseDouble(speed);
+                        break;
+                    }
+                    case "--workers":
+                        options.workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--loops":
+                        options.loops = Integer.parseInt(args[++i]);
+                        break;
+                    case "--filter":
+                        options.filter = args[++i];
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || path != null) {
+                            throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                        }
+                        path = args[i];
+                }
+            }
+            if (path == null) {
+                throw new IllegalArgumentException("No capture file given");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: PcapReplay <capture.pcap|.pcapng> [--speed max|original|<multiplier>]"
+                    + " [--workers n] [--loops n] [--filter expression]");
+            System.exit(2);
+            return;
+        }
+        try {
+            System.out.print(run(new File(path), options));
+        } catch (IOException e) {
+            System.err.println("Replay failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
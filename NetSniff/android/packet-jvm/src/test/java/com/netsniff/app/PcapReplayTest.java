@@ -0,0 +1,105 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PcapReplayTest {
+    private static final int FLOWS = 8;
+    private static final int PER_FLOW = 25;
+
+    private File dir;
+    private File capture;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("replay").toFile();
+        PcapngWriter writer = new PcapngWriter(dir, 65535, 64 << 20, 60_000, 4);
+        long timestampUs = 1_700_000_000_000_000L;
+        for (int i = 0; i < PER_FLOW; i++) {
+            for (int flow = 0; flow < FLOWS; flow++) {
+                byte[] query = TestPackets.udp4(TestPackets.CLIENT, 40000 + flow, TestPackets.SERVER, 53,
+                        TestPackets.dnsQuery(i, "example.com", 1));
+                writer.writePacket(ByteBuffer.wrap(query), query.length, timestampUs, false, 0);
+                timestampUs += 100;
+            }
+        }
+        writer.close();
+        capture = writer.files().get(0);
+    }
+
+    @After
+    public void tearDown() {
+        capture.delete();
+        dir.delete();
+    }
+
+    private static PcapReplay.Options options(int workers, double speed) {
+        PcapReplay.Options options = new PcapReplay.Options();
+        options.workers = workers;
+        options.speed = speed;
+        return options;
+    }
+
+    @Test
+    public void replaysInlineThroughEveryStage() throws IOException {
+        PcapReplay.Report report = PcapReplay.run(capture, options(0, PcapReplay.MAX_SPEED));
+        int packets = FLOWS * PER_FLOW;
+        assertEquals(packets, report.packets);
+        assertEquals(0, report.dropped);
+        assertEquals(FLOWS, report.flows);
+        assertEquals(packets, report.events);
+        assertTrue(report.batches > 0);
+        assertTrue(report.batchBytes > 0);
+        assertEquals(packets, report.perPacket.count());
+        for (int stage = 0; stage < CaptureProcessor.STAGES; stage++) {
+            assertEquals(packets, report.stages[stage].count());
+        }
+        assertTrue(report.packetsPerSecond() > 0);
+        assertTrue(report.toString().contains("packets/s"));
+    }
+
+    @Test
+    public void pipelineAtFullSpeedLosesNothing() throws IOException {
+        PcapReplay.Options options = options(2, PcapReplay.MAX_SPEED);
+        options.loops = 3;
+        PcapReplay.Report report = PcapReplay.run(capture, options);
+        assertEquals(3 * FLOWS * PER_FLOW, report.packets);
+        assertEquals(0, report.dropped);
+        assertEquals(report.packets, report.perPacket.count());
+        assertEquals(FLOWS, report.flows);
+    }
+
+    @Test
+    public void originalTimingTakesAsLongAsTheCapture() throws IOException {
+        // 200 packets, 100 us apart: about 20 ms of traffic, so 10 ms at double speed
+        PcapReplay.Report report = PcapReplay.run(capture, options(1, 2));
+        assertEquals(FLOWS * PER_FLOW, report.packets);
+        assertTrue(report.elapsedNanos >= 9_000_000L);
+    }
+
+    @Test
+    public void filterAppliesBeforeCounting() throws IOException {
+        PcapReplay.Options options = options(0, PcapReplay.MAX_SPEED);
+        options.filter = "tcp";
+        PcapReplay.Report report = PcapReplay.run(capture, options);
+        assertEquals(FLOWS * PER_FLOW, report.packets);
+        assertEquals(0, report.events);
+        assertEquals(0, report.flows);
+    }
+
+    @Test
+    public void guessesDirectionFromPrivateAddresses() {
+        byte[] out = TestPackets.udp4(TestPackets.CLIENT, 40000, TestPackets.SERVER, 53, new byte[4]);
+        byte[] in = TestPackets.udp4(TestPackets.SERVER, 53, TestPackets.CLIENT, 40000, new byte[4]);
+        assertFalse(PcapReplay.guessIncoming(ByteBuffer.wrap(out)));
+        assertTrue(PcapReplay.guessIncoming(ByteBuffer.wrap(in)));
+    }
+}
@@ -0,0 +1,29 @@
+import React from 'react';
+import type { DeliveryStatus, FlowSummary } from '../plugins';
+
+interface DeliveryNoticeProps {
+  status: DeliveryStatus | null;
+  flowSummary: FlowSummary | null;
+  className?: string;
+}
+
+/** Tells the user packets are being sampled or summarised, and how many were not shown. */
+const DeliveryNotice: React.FC<DeliveryNoticeProps> = ({ status, flowSummary, className = '' }) => {
+  if (!status || status.mode === 'full') {
+    return null;
+  }
+  return (
+    <div className={`p-3 bg-yellow-100 dark:bg-yellow-800 text-yellow-900 dark:text-white rounded-lg text-sm ${className}`}>
+      <p className="font-medium">
+        {status.mode === 'sampled'
+          ? `Traffic is heavy: showing 1 in ${status.sampleRate} packets`
+          : `Traffic is heavy: showing flow totals only${flowSummary ? ` (${flowSummary.activeFlows} active flows)` : ''}`}
+      </p>
+      <p>
+        {status.shed} packets not shown, {status.dropped} dropped, display lag {status.lagMs} ms
+      </p>
+    </div>
+  );
+};
+
+export default DeliveryNotice;
@@ -1,4 +1,4 @@
-import React, { useState } from 'react';
+import React, { useEffect, useState } from 'react';
 import {
   IonList,
   IonItem,
@@ -23,13 +23,25 @@ import {
   IonTitle,
   IonButtons,
   IonBackButton,
-  IonText
+  IonText,
+  IonInput
 } from '@ionic/react';
-import { arrowUp, arrowDown, time, analytics, close } from 'ionicons/icons';
-import { usePackets } from '../context/PacketContext';
+import { arrowUp, arrowDown, time, analytics, close, chevronBack, chevronForward } from 'ionicons/icons';
+import { usePackets, usePacketPayload, HistoryPage } from '../context/PacketContext';
+import DeliveryNotice from './DeliveryNotice';
+import { ToyVpn } from '../plugins';
+import type { PacketQuery, CaptureFilesResult, AppTraffic } from '../plugins';
 import { formatDistanceToNow } from 'date-fns';
 import './PacketList.css';
 
+// Packets per page when browsing the native history
+const HISTORY_PAGE_SIZE = 100;
+// How often the recording's counters are refreshed while it runs
+const CAPTURE_FILES_REFRESH_MS = 2000;
+// How often per-app totals are refreshed while capturing, and how many are shown
+const APP_STATS_REFRESH_MS = 2000;
+const TOP_APPS = 5;
+
 const PacketList: React.FC = () => {
   const { 
     packets, 
@@ -41,15 +53,122 @@ const PacketList: React.FC = () => {
     requestVpnPermission,
     startCapture, 
     stopCapture, 
-    clearPackets 
+    clearPackets,
+    deliveryStatus,
+    flowSummary,
+    queryHistory
   } = usePackets();
   const [selectedPacket, setSelectedPacket] = useState<string | null>(null);
   const [isModalOpen, setIsModalOpen] = useState(false);
+  // A page of the native history, newest first; null shows the live list
+  const [historyPage, setHistoryPage] = useState<HistoryPage | null>(null);
+  const [historyLoading, setHistoryLoading] = useState(false);
+  
+  // PCAPNG files on the device, and the recording's counters while one runs
+  const [captureFiles, setCaptureFiles] = useState<CaptureFilesResult | null>(null);
+  // Apps using the most traffic, most bytes first
+  const [topApps, setTopApps] = useState<AppTraffic[]>([]);
+  // Capture filter as typed, as last applied (canonical form), and why it was refused
+  const [filterText, setFilterText] = useState('');
+  const [appliedFilter, setAppliedFilter] = useState('');
+  const [filterError, setFilterError] = useState<string | null>(null);
+  
+  const shownPackets = historyPage ? historyPage.packets : packets;
+  const isRecording = captureFiles?.recording ?? false;
+
+  const refreshCaptureFiles = async () => {
+    try {
+      setCaptureFiles(await ToyVpn.getCaptureFiles());
+    } catch (error) {
+      console.error('Failed to list capture files:', error);
+    }
+  };
+
+  useEffect(() => {
+    refreshCaptureFiles();
+  }, [isCapturing]);
+
+  useEffect(() => {
+    if (!isRecording) {
+      return;
+    }
+    const timer = setInterval(refreshCaptureFiles, CAPTURE_FILES_REFRESH_MS);
+    return () => clearInterval(timer);
+  }, [isRecording]);
+
+  useEffect(() => {
+    if (!isCapturing) {
+      return;
+    }
+    const refresh = async () => {
+      try {
+        const result = await ToyVpn.getAppStats();
+        setTopApps(result.apps.slice(0, TOP_APPS));
+      } catch (error) {
+        console.error('Failed to get per-app traffic:', error);
+      }
+    };
+    refresh();
+    const timer = setInterval(refresh, APP_STATS_REFRESH_MS);
+    return () => clearInterval(timer);
+  }, [isCapturing]);
+
+  const handleRecordingToggle = async () => {
+    try {
+      setCaptureFiles(isRecording ? await ToyVpn.stopCaptureFile() : await ToyVpn.startCaptureFile());
+    } catch (error) {
+      console.error('Failed to toggle capture file recording:', error);
+    }
+  };
+
+  const applyCaptureFilter = async () => {
+    try {
+      const result = await ToyVpn.setCaptureFilter({ filter: filterText });
+      setAppliedFilter(result.filter);
+      setFilterError(null);
+    } catch (error) {
+      setFilterError(error instanceof Error ? error.message : String(error));
+    }
+  };
+
+  const shareCaptureFile = async (name: string) => {
+    try {
+      await ToyVpn.shareCaptureFile({ name });
+    } catch (error) {
+      console.error('Failed to share capture file:', error);
+    }
+  };
   
   const getSelectedPacketData = () => {
-    return packets.find(packet => packet.id === selectedPacket);
+    return shownPackets.find(packet => packet.id === selectedPacket);
   };
 
+  // Read from the native history only while the details are open
+  const selectedPayload = usePacketPayload(getSelectedPacketData()?.seq, isModalOpen);
+
+  const loadHistory = async (query: PacketQuery, newestFirst: boolean) => {
+    setHistoryLoading(true);
+    try {
+      const page = await queryHistory({ limit: HISTORY_PAGE_SIZE, ...query });
+      if (!newestFirst) {
+        page.packets.reverse();
+      }
+      // Stay on the current page if there is nothing further that way
+      if (page.packets.length > 0 || !historyPage) {
+        setHistoryPage(page);
+      }
+    } catch (error) {
+      console.error('Failed to query packet history:', error);
+    } finally {
+      setHistoryLoading(false);
+    }
+  };
+
+  const newestShown = historyPage?.packets[0]?.seq ?? 0;
+  const oldestShown = historyPage?.packets[historyPage.packets.length - 1]?.seq ?? 0;
+  const showOlder = () => loadHistory({ fromSeq: oldestShown - 1, backward: true }, true);
+  const showNewer = () => loadHistory({ fromSeq: newestShown + 1 }, false);
+
   const handleCaptureToggle = async () => {
     try {
       if (isCapturing) {
@@ -77,6 +196,7 @@ const PacketList: React.FC = () => {
       case 'ICMP': return 'warning';
       case 'HTTP': return 'success';
       case 'DNS': return 'tertiary';
+      case 'TLS': return 'dark';
       default: return 'medium';
     }
   };
@@ -188,8 +308,126 @@ const PacketList: React.FC = () => {
         </IonCardContent>
       </IonCard>
 
+      {isCapturing && <DeliveryNotice status={deliveryStatus} flowSummary={flowSummary} className="mx-4 my-2" />}
+
+      {topApps.length > 0 && (
+        <IonCard className="dark:bg-gray-800 shadow-md rounded-xl mx-2 my-2">
+          <IonCardHeader>
+            <IonCardSubtitle className="text-gray-700 dark:text-gray-200 font-medium">Top Apps</IonCardSubtitle>
+          </IonCardHeader>
+          <IonCardContent className="dark:text-white text-sm">
+            <IonList>
+              {topApps.map((app) => (
+                <IonItem key={app.uid}>
+                  <IonLabel>
+                    <h3>{app.uid < 0 ? 'Unknown app' : app.packageName ?? `uid ${app.uid}`}</h3>
+                    <p>
+                      {app.flows} flows · {((app.bytesOut + app.bytesIn) / 1024).toFixed(1)} KB
+                      ({app.packetsOut} out, {app.packetsIn} in)
+                    </p>
+                  </IonLabel>
+                </IonItem>
+              ))}
+            </IonList>
+          </IonCardContent>
+        </IonCard>
+      )}
+
+      <IonCard className="dark:bg-gray-800 shadow-md rounded-xl mx-2 my-2">
+        <IonCardContent className="dark:text-white text-sm">
+          <IonItem lines="none">
+            <IonInput
+              value={filterText}
+              placeholder="Capture filter, e.g. tcp and port 443"
+              onIonInput={(e) => setFilterText(e.detail.value ?? '')}
+              onKeyDown={(e) => e.key === 'Enter' && applyCaptureFilter()}
+            />
+            <IonButton slot="end" fill="outline" onClick={applyCaptureFilter}>Apply</IonButton>
+          </IonItem>
+          {filterError ? (
+            <IonText color="danger"><p>{filterError}</p></IonText>
+          ) : appliedFilter && (
+            <p>Capturing only: {appliedFilter}</p>
+          )}
+        </IonCardContent>
+      </IonCard>
+
+      {captureFiles && captureFiles.status !== 'not_supported' && (
+        <IonCard className="dark:bg-gray-800 shadow-md rounded-xl mx-2 my-2">
+          <IonCardHeader>
+            <IonCardSubtitle className="text-gray-700 dark:text-gray-200 font-medium">Capture Files</IonCardSubtitle>
+          </IonCardHeader>
+          <IonCardContent className="dark:text-white text-sm">
+            <IonButton expand="block" fill={isRecording ? 'solid' : 'outline'} onClick={handleRecordingToggle}>
+              {isRecording ? 'Stop Recording' : 'Record to PCAPNG'}
+            </IonButton>
+            {captureFiles.recorder && (
+              <p>
+                {captureFiles.recorder.packetsWritten} packets written, {captureFiles.recorder.dropped} dropped
+                {captureFiles.recorder.slowWrites > 0 && `, ${captureFiles.recorder.slowWrites} slow writes (max ${captureFiles.recorder.maxWriteMs} ms)`}
+              </p>
+            )}
+            {captureFiles.files.length > 0 && (
+              <IonList>
+                {captureFiles.files.map((file) => (
+                  <IonItem key={file.name}>
+                    <IonLabel>
+                      <h3>{file.name}</h3>
+                      <p>{(file.size / 1024).toFixed(1)} KB{file.recording ? ' · recording' : ''}</p>
+                    </IonLabel>
+                    <IonButton slot="end" fill="clear" onClick={() => shareCaptureFile(file.name)}>Share</IonButton>
+                  </IonItem>
+                ))}
+              </IonList>
+            )}
+          </IonCardContent>
+        </IonCard>
+      )}
+
+      <IonGrid className="mx-2">
+        <IonRow>
+          {historyPage ? (
+            <>
+              <IonCol>
+                <IonButton expand="block" fill="outline" onClick={showNewer}
+                  disabled={historyLoading || newestShown >= historyPage.newestSeq}>
+                  <IonIcon icon={chevronBack} />
+                  <span>Newer</span>
+                </IonButton>
+              </IonCol>
+              <IonCol>
+                <IonButton expand="block" onClick={() => setHistoryPage(null)}>Live</IonButton>
+              </IonCol>
+              <IonCol>
+                <IonButton expand="block" fill="outline" onClick={showOlder}
+                  disabled={historyLoading || oldestShown <= historyPage.oldestSeq}>
+                  <span>Older</span>
+                  <IonIcon icon={chevronForward} />
+                </IonButton>
+              </IonCol>
+            </>
+          ) : (
+            <IonCol>
+              <IonButton expand="block" fill="outline" disabled={historyLoading}
+                onClick={() => loadHistory({ backward: true }, true)}>
+                Browse full history
+              </IonButton>
+            </IonCol>
+          )}
+        </IonRow>
+        {historyPage && (
+          <IonRow>
+            <IonCol className="text-sm text-gray-600 dark:text-gray-300 text-center">
+              {historyPage.packets.length > 0
+                ? `Packets #${oldestShown}–#${newestShown} of #${historyPage.oldestSeq}–#${historyPage.newestSeq}`
+                : 'No packets stored yet'}
+            </IonCol>
+          </IonRow>
+        )}
+      </IonGrid>
+
       <IonList className="packet-list bg-white dark:bg-gray-800 rounded-lg shadow-md mx-4 my-4">
-        {packets.map((packet) => (
+        {shownPackets.map((packet) => (
           <IonItem
             key={packet.id}
             button
@@ -289,7 +527,7 @@ const PacketList: React.FC = () => {
                       <h3 className="text-gray-700 dark:text-gray-200 font-semibold mb-2">Payload</h3>
                     </IonText>
                     <pre className="packet-data bg-gray-100 dark:bg-gray-700 p-4 rounded-lg text-gray-800 dark:text-white overflow-auto font-mono text-sm leading-relaxed mb-2">
-                      {getSelectedPacketData()!.payload}
+                      {selectedPayload ?? 'Loading…'}
                     </pre>
                   </IonCol>
                 </IonRow>
@@ -1,5 +1,8 @@
 import React, { createContext, useContext, useState, useEffect, ReactNode } from 'react';
-import { ToyVpn, PacketData } from '../plugins';
+import {
+  ToyVpn, PacketData, PacketBatch, PacketRecordsEvent, DeliveryStatus, FlowSummary, TrafficStats, PacketQuery,
+  PacketDissectionResult, PacketPayloadResult, decodePacketRecords, packetRecordToData,
+} from '../plugins';
 
 // Define the packet type
 export interface Packet extends PacketData {
@@ -7,6 +10,39 @@ export interface Packet extends PacketData {
   timestamp: number;
 }
 
+// One page read from the native capture history
+export interface HistoryPage {
+  packets: Packet[];
+  // Pass as fromSeq to continue in the same direction; 0 when there is nothing left
+  nextSeq: number;
+  oldestSeq: number;
+  newestSeq: number;
+}
+
+// Route ids of packets read from the history, e.g. /packet/seq-1234
+const HISTORY_ID_PREFIX = 'seq-';
+
+export const historySeqFromId = (id: string): number | null =>
+  id.startsWith(HISTORY_ID_PREFIX) ? Number(id.substring(HISTORY_ID_PREFIX.length)) || null : null;
+
+// Live packets the history kept are routed by their seq, so their details survive leaving the list
+const livePacketId = (seq: number | undefined): string =>
+  seq ? HISTORY_ID_PREFIX + seq : Math.random().toString(36).substring(7);
+
+const storedPackets = (data: string, seqs: number[]): Packet[] => {
+  const records = decodePacketRecords(data);
+  const result: Packet[] = [];
+  for (let i = 0; i < records.count; i++) {
+    result.push({
+      ...packetRecordToData(records, i),
+      id: HISTORY_ID_PREFIX + seqs[i],
+      seq: seqs[i],
+      timestamp: records.timestamp[i],
+    });
+  }
+  return result;
+};
+
 // Define the context shape
 interface PacketContextProps {
   packets: Packet[];
@@ -17,6 +53,13 @@ interface PacketContextProps {
   startCapture: () => Promise<void>;
   stopCapture: () => Promise<void>;
   clearPackets: () => void;
+  // Pages through every captured packet, not just the ones held in packets
+  queryHistory: (query: PacketQuery) => Promise<HistoryPage>;
+  getStoredPacket: (seq: number) => Promise<Packet | null>;
+  // Application-protocol fields of a stored packet, decoded natively on request
+  dissectStoredPacket: (seq: number) => Promise<PacketDissectionResult>;
+  // Kept bytes of a stored packet with a hex rendering; packet events carry none
+  getPacketPayload: (seq: number) => Promise<PacketPayloadResult>;
   stats: {
     totalPackets: number;
     incomingPackets: number;
@@ -24,9 +67,38 @@ interface PacketContextProps {
     totalBytes: number;
     protocolDistribution: { [key: string]: number };
   };
+  // Null until the native side reports; mode is 'full' while every packet is delivered
+  deliveryStatus: DeliveryStatus | null;
+  // Latest per-flow totals, refreshed while packets are being summarised
+  flowSummary: FlowSummary | null;
   error: string | null;
 }
 
+type DisplayedStats = PacketContextProps['stats'];
+
+// Native totals since the baseline, i.e. since the list was last cleared.
+// A baseline from an earlier session no longer applies.
+const statsSince = (current: TrafficStats | null, baseline: TrafficStats | null): DisplayedStats => {
+  if (!current) {
+    return { totalPackets: 0, incomingPackets: 0, outgoingPackets: 0, totalBytes: 0, protocolDistribution: {} };
+  }
+  const base = baseline && baseline.startedAt === current.startedAt ? baseline : null;
+  const protocolDistribution: { [key: string]: number } = {};
+  Object.keys(current.protocolDistribution).forEach(protocol => {
+    const count = current.protocolDistribution[protocol] - (base?.protocolDistribution[protocol] ?? 0);
+    if (count > 0) {
+      protocolDistribution[protocol] = count;
+    }
+  });
+  return {
+    totalPackets: current.totalPackets - (base?.totalPackets ?? 0),
+    incomingPackets: current.incomingPackets - (base?.incomingPackets ?? 0),
+    outgoingPackets: current.outgoingPackets - (base?.outgoingPackets ?? 0),
+    totalBytes: current.totalBytes - (base?.totalBytes ?? 0),
+    protocolDistribution,
+  };
+};
+
 // Create the context
 const PacketContext = createContext<PacketContextProps | undefined>(undefined);
 
@@ -37,20 +109,17 @@ export const PacketProvider: React.FC<{ children: ReactNode }> = ({ children })
   const [isConnecting, setIsConnecting] = useState(false);
   const [hasVpnPermission, setHasVpnPermission] = useState(false);
   const [error, setError] = useState<string | null>(null);
+  const [deliveryStatus, setDeliveryStatus] = useState<DeliveryStatus | null>(null);
+  const [flowSummary, setFlowSummary] = useState<FlowSummary | null>(null);
 
-  // Stats calculation
-  const stats = React.useMemo(() => {
-    return {
-      totalPackets: packets.length,
-      incomingPackets: packets.filter(p => p.direction === 'incoming').length,
-      outgoingPackets: packets.filter(p => p.direction === 'outgoing').length,
-      totalBytes: packets.reduce((acc, p) => acc + p.size, 0),
-      protocolDistribution: packets.reduce((acc, p) => {
-        acc[p.protocol] = (acc[p.protocol] || 0) + 1;
-        return acc;
-      }, {} as { [key: string]: number })
-    };
-  }, [packets]);
+  // Totals are counted natively for every packet; this side only keeps the latest snapshot
+  const [nativeStats, setNativeStats] = useState<TrafficStats | null>(null);
+  // Snapshot at the last clear, so cleared packets drop out of the totals
+  const [statsBaseline, setStatsBaseline] = useState<TrafficStats | null>(null);
+  const nativeStatsRef = React.useRef<TrafficStats | null>(null);
+  nativeStatsRef.current = nativeStats;
+
+  const stats = React.useMemo(() => statsSince(nativeStats, statsBaseline), [nativeStats, statsBaseline]);
 
   useEffect(() => {
     // Set up packet capture listener
@@ -62,38 +131,84 @@ export const PacketProvider: React.FC<{ children: ReactNode }> = ({ children })
         await ToyVpn.removeAllListeners();
         
         // Listen for the vpnStopped event
-        const vpnStoppedListener = await ToyVpn.addListener('vpnStopped', () => {
-          console.log("PacketContext: VPN stopped event received");
+        const vpnStoppedListener = await ToyVpn.addListener('vpnStopped', (result) => {
+          console.log("PacketContext: VPN stopped event received", result?.stopMs, "ms", result?.stages);
           setIsCapturing(false);
         });
         
-        // Add listener for packet capture events
-        const packetListener = await ToyVpn.addListener('packetCaptured', (data: PacketData) => {
+        // Packets arrive in batches; apply each batch with a single state update
+        const addPackets = (incoming: Packet[]) => {
           if (!isCapturing) {
-            console.log("PacketContext: Received packet while not capturing - VPN may still be running");
+            console.log("PacketContext: Received packets while not capturing - VPN may still be running");
             setIsCapturing(true);
           }
           
-          const packet: Packet = {
-            ...data,
-            id: Math.random().toString(36).substring(7),
-            timestamp: Date.now(),
-          };
+          // Newest first, matching the list order
+          incoming.reverse();
           
           setPackets(prevPackets => {
             // Keep only last 1000 packets to prevent memory issues
-            const newPackets = [packet, ...prevPackets];
+            const newPackets = [...incoming, ...prevPackets];
             if (newPackets.length > 1000) {
               return newPackets.slice(0, 1000);
             }
             return newPackets;
           });
+        };
+        
+        const packetListener = await ToyVpn.addListener('packetsCaptured', (batch: PacketBatch) => {
+          const now = Date.now();
+          addPackets(batch.packets.map(data => ({
+            ...data,
+            id: livePacketId(data.seq),
+            timestamp: now,
+          })));
+        });
+        
+        // Same packets when the native side is set to the binary encoding
+        const recordsListener = await ToyVpn.addListener('packetRecords', (event: PacketRecordsEvent) => {
+          const records = decodePacketRecords(event.data);
+          const incoming: Packet[] = [];
+          for (let i = 0; i < records.count; i++) {
+            const data = packetRecordToData(records, i);
+            incoming.push({
+              ...data,
+              id: livePacketId(data.seq),
+              timestamp: records.timestamp[i],
+            });
+          }
+          addPackets(incoming);
         });
         
+        // Sent when the native side starts or stops shedding packets because this page is behind
+        const deliveryStatusListener = await ToyVpn.addListener('deliveryStatus', (status: DeliveryStatus) => {
+          setDeliveryStatus(status);
+          if (status.mode === 'full') {
+            setFlowSummary(null);
+          }
+        });
+        
+        const flowSummaryListener = await ToyVpn.addListener('flowSummary', (summary: FlowSummary) => {
+          setFlowSummary(summary);
+        });
+        
+        const statsListener = await ToyVpn.addListener('statsUpdated', (update: TrafficStats) => {
+          setNativeStats(update);
+        });
+        
+        // Pick up a session that was already running, e.g. after the page reloads
+        ToyVpn.getStats()
+          .then(current => setNativeStats(prev => prev ?? current))
+          .catch((error: unknown) => console.error('Failed to read stats:', error));
+        
         // Store the listener handles for cleanup
         return () => {
           vpnStoppedListener.remove();
           packetListener.remove();
+          recordsListener.remove();
+          deliveryStatusListener.remove();
+          flowSummaryListener.remove();
+          statsListener.remove();
         };
       } catch (error: unknown) {
         console.error('Failed to setup packet listener:', error);
@@ -251,6 +366,7 @@ export const PacketProvider: React.FC<{ children: ReactNode }> = ({ children })
       // Clear packets
       console.log("PacketContext: Clearing packets from state");
       setPackets([]);
+      setStatsBaseline(nativeStatsRef.current);
       
       // Ensure UI state is updated
       setIsCapturing(false);
@@ -269,9 +385,33 @@ export const PacketProvider: React.FC<{ children: ReactNode }> = ({ children })
 
   const clearPackets = () => {
     setPackets([]);
+    setStatsBaseline(nativeStatsRef.current);
     setError(null);
   };
 
+  const queryHistory = async (query: PacketQuery): Promise<HistoryPage> => {
+    const result = await ToyVpn.queryPackets(query);
+    return {
+      packets: storedPackets(result.data, result.seqs),
+      nextSeq: result.nextSeq,
+      oldestSeq: result.oldestSeq,
+      newestSeq: result.newestSeq,
+    };
+  };
+
+  const getStoredPacket = async (seq: number): Promise<Packet | null> => {
+    const result = await ToyVpn.getPacket({ seq });
+    if (result.status !== 'success' || !result.data) {
+      return null;
+    }
+    return storedPackets(result.data, [seq])[0] ?? null;
+  };
+
+  const dissectStoredPacket = (seq: number): Promise<PacketDissectionResult> => ToyVpn.dissectPacket({ seq });
+
+  const getPacketPayload = (seq: number): Promise<PacketPayloadResult> =>
+    ToyVpn.getPacketPayload({ seq, render: 'hex' });
+
   useEffect(() => {
     const handleAppStateChange = async (state: { isActive: boolean }) => {
       // Handle app going to background or being terminated when VPN is active
@@ -362,7 +502,13 @@ export const PacketProvider: React.FC<{ children: ReactNode }> = ({ children })
       startCapture,
       stopCapture,
       clearPackets,
+      queryHistory,
+      getStoredPacket,
+      dissectStoredPacket,
+      getPacketPayload,
       stats,
+      deliveryStatus,
+      flowSummary,
       error
     }}>
       {children}
@@ -378,3 +524,35 @@ export const usePackets = () => {
   }
   return context;
 };
+
+// Hex rendering of a packet's kept bytes, fetched once enabled; null while loading.
+// Describes why nothing is shown for packets without a seq or no longer held.
+export const usePacketPayload = (seq: number | undefined, enabled: boolean): string | null => {
+  const { getPacketPayload } = usePackets();
+  const [payload, setPayload] = useState<{ seq: number | undefined; text: string } | null>(null);
+
+  useEffect(() => {
+    if (!enabled || payload?.seq === seq) {
+      return;
+    }
+    if (seq === undefined) {
+      setPayload({ seq, text: 'Payload bytes are not kept for this packet.' });
+      return;
+    }
+    let cancelled = false;
+    getPacketPayload(seq)
+      .then(result => {
+        if (cancelled) return;
+        const text = result.status !== 'success'
+          ? 'This packet is no longer held in the capture history.'
+          : result.length === 0 ? '(no payload)' : result.hex ?? '';
+        setPayload({ seq, text });
+      })
+      .catch(error => console.error('Failed to read packet payload:', error));
+    return () => {
+      cancelled = true;
+    };
+  }, [seq, enabled]);
+
+  return payload?.seq === seq ? payload.text : null;
+};
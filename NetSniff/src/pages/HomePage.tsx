@@ -19,10 +19,11 @@ import {
 } from "@ionic/react"
 import { useHistory } from "react-router-dom"
 import { usePackets } from "../context/PacketContext"
+import DeliveryNotice from "../components/DeliveryNotice"
 import "./HomePage.css" // Import the CSS file
 
 const HomePage: React.FC = () => {
-  const { packets, clearPackets, isCapturing, startCapture, stopCapture } = usePackets()
+  const { packets, clearPackets, isCapturing, startCapture, stopCapture, deliveryStatus, flowSummary } = usePackets()
   const [notification, setNotification] = useState<{message: string; type: 'success' | 'error' | 'info'}|null>(null)
   const history = useHistory()
   const [loading, setLoading] = useState(false)
@@ -172,6 +173,8 @@ const HomePage: React.FC = () => {
           </div>
         )}
         
+        {isCapturing && <DeliveryNotice status={deliveryStatus} flowSummary={flowSummary} className="mb-4" />}
+
         <IonButton expand="full" onClick={isCapturing ? handleStopCapture : handleStartCapture} disabled={loading} className="mb-3 main-button">
           <span className="font-medium">{isCapturing ? "Stop Capture" : "Start Capture"}</span>
           {loading && <IonSpinner name="crescent" />}
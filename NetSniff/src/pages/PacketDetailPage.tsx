@@ -1,4 +1,4 @@
-import React, { useState } from 'react';
+import React, { useEffect, useState } from 'react';
 import {
   IonPage,
   IonHeader,
@@ -17,16 +17,80 @@ import {
   IonIcon
 } from '@ionic/react';
 import { useParams, useHistory } from 'react-router-dom';
-import { usePackets } from '../context/PacketContext';
+import { usePackets, usePacketPayload, Packet, historySeqFromId } from '../context/PacketContext';
+import type { DissectedField, PacketDissectionResult } from '../plugins';
 import './PacketDetailPage.css';
 
+const DissectedFields: React.FC<{ fields: DissectedField[] }> = ({ fields }) => (
+  <ul className="dissected-fields">
+    {fields.map((field, index) => (
+      <li key={index}>
+        <span className="font-semibold">{field.name}</span>
+        {field.value !== undefined && <span>: {field.value}</span>}
+        {field.children && <DissectedFields fields={field.children} />}
+      </li>
+    ))}
+  </ul>
+);
+
 const PacketDetailPage: React.FC = () => {
   const { id } = useParams<{ id: string }>();
-  const { packets } = usePackets();
+  const { packets, getStoredPacket, dissectStoredPacket } = usePackets();
   const history = useHistory();
   const [selectedSegment, setSelectedSegment] = useState('info');
+  // Packets that have left the in-memory list can still be read from the native history
+  const [storedPacket, setStoredPacket] = useState<Packet | null>(null);
+  const [loadingStored, setLoadingStored] = useState(false);
+  // Fetched the first time the Decoded segment is opened, never up front
+  const [dissection, setDissection] = useState<PacketDissectionResult | null>(null);
+
+  const livePacket = packets.find(p => p.id === id);
+  const packet = livePacket ?? storedPacket;
+
+  useEffect(() => {
+    const seq = historySeqFromId(id);
+    if (livePacket || seq === null) {
+      return;
+    }
+    let cancelled = false;
+    setLoadingStored(true);
+    getStoredPacket(seq)
+      .then(found => {
+        if (!cancelled) setStoredPacket(found);
+      })
+      .catch(error => console.error('Failed to read stored packet:', error))
+      .finally(() => {
+        if (!cancelled) setLoadingStored(false);
+      });
+    return () => {
+      cancelled = true;
+    };
+  }, [id]);
+
+  const seq = packet?.seq;
+  const payload = usePacketPayload(seq, !!packet && selectedSegment === 'data');
+  useEffect(() => {
+    if (selectedSegment !== 'decoded' || seq === undefined || dissection?.seq === seq) {
+      return;
+    }
+    let cancelled = false;
+    dissectStoredPacket(seq)
+      .then(result => {
+        if (!cancelled) setDissection(result);
+      })
+      .catch(error => console.error('Failed to dissect packet:', error));
+    return () => {
+      cancelled = true;
+    };
+  }, [selectedSegment, seq]);
 
-  const packet = packets.find(p => p.id === id);
+  if (!packet && loadingStored) {
+    return (
+      <IonPage className="bg-white dark:bg-gray-900">
+        <IonContent className="ion-padding bg-white dark:bg-gray-900" />
+      </IonPage>
+    );
+  }
 
   if (!packet) {
     return (
@@ -68,6 +132,9 @@ const PacketDetailPage: React.FC = () => {
           <IonSegmentButton value="data" className="segment-button">
             <IonLabel className="font-medium">Data</IonLabel>
           </IonSegmentButton>
+          <IonSegmentButton value="decoded" className="segment-button">
+            <IonLabel className="font-medium">Decoded</IonLabel>
+          </IonSegmentButton>
         </IonSegment>
 
         {selectedSegment === 'info' && (
@@ -106,7 +173,32 @@ const PacketDetailPage: React.FC = () => {
         {selectedSegment === 'data' && (
           <IonCard className="detail-card dark:bg-gray-800 dark:text-white shadow-lg rounded-xl">
             <IonCardContent>
-              <pre className="packet-data bg-gray-100 dark:bg-gray-700 p-5 rounded-lg text-gray-800 dark:text-white overflow-auto font-mono text-sm leading-relaxed">{packet.payload}</pre>
+              <pre className="packet-data bg-gray-100 dark:bg-gray-700 p-5 rounded-lg text-gray-800 dark:text-white overflow-auto font-mono text-sm leading-relaxed">{payload ?? 'Loading…'}</pre>
+            </IonCardContent>
+          </IonCard>
+        )}
+
+        {selectedSegment === 'decoded' && (
+          <IonCard className="detail-card dark:bg-gray-800 dark:text-white shadow-lg rounded-xl">
+            <IonCardContent>
+              {seq === undefined ? (
+                <p className="text-gray-700 dark:text-gray-200">Decoding is available for packets read from the capture history.</p>
+              ) : !dissection || dissection.seq !== seq ? (
+                <p className="text-gray-700 dark:text-gray-200">Decoding…</p>
+              ) : dissection.status === 'success' && dissection.fields ? (
+                <div className="packet-data">
+                  <p className="font-semibold mb-2">
+                    {dissection.protocol}{dissection.truncated ? ' (truncated)' : ''}
+                  </p>
+                  <DissectedFields fields={dissection.fields} />
+                </div>
+              ) : (
+                <p className="text-gray-700 dark:text-gray-200">
+                  {dissection.status === 'not_found'
+                    ? 'This packet is no longer held in the capture history.'
+                    : 'No DNS, HTTP or TLS payload to decode.'}
+                </p>
+              )}
             </IonCardContent>
           </IonCard>
         )}
@@ -1,4 +1,5 @@
 import type { PluginListenerHandle } from '@capacitor/core';
+import { EMPTY_PACKET_RECORDS } from './packetRecords';
 
 export interface PacketData {
   source: string;
@@ -6,7 +7,285 @@ export interface PacketData {
   protocol: string;
   direction: 'incoming' | 'outgoing';
   size: number;
-  payload: string;
+  // Position in the native capture history; pass to getPacketPayload for the bytes
+  seq?: number;
+}
+
+// Packets arrive in frame-aligned batches rather than one event each
+export interface PacketBatch {
+  packets: PacketData[];
+  // Packets discarded natively since the previous batch because the UI fell behind
+  dropped: number;
+}
+
+export interface BatchOptions {
+  // Flush once this many packets are waiting; at most 65535
+  maxBatchSize?: number;
+  // Flush once the oldest waiting packet is this old
+  maxDelayMs?: number;
+  // Packets held while the UI is busy before the oldest are dropped
+  maxPending?: number;
+  // 'binary' switches packet events from packetsCaptured to packetRecords
+  encoding?: 'json' | 'binary';
+}
+
+// A batch of binary packet records, base64-encoded; see decodePacketRecords
+export interface PacketRecordsEvent {
+  data: string;
+}
+
+// How packets are being delivered while the UI keeps up ('full') or falls behind
+export interface DeliveryStatus {
+  // 'sampled' delivers one packet in sampleRate; 'summary' delivers only flowSummary events
+  mode: 'full' | 'sampled' | 'summary';
+  sampleRate: number;
+  // Smoothed delay between a batch being due and the page receiving it
+  lagMs: number;
+  // Running totals since the plugin loaded
+  delivered: number;
+  shed: number;
+  dropped: number;
+}
+
+export interface FlowSummaryEntry {
+  protocol: string;
+  // The endpoint that sent the first packet of the flow
+  source: string;
+  destination: string;
+  packetsOut: number;
+  packetsIn: number;
+  bytesOut: number;
+  bytesIn: number;
+  // Epoch milliseconds
+  firstSeen: number;
+  lastSeen: number;
+  // Owning app, -2 while being looked up, -1 if unknown
+  uid: number;
+  // Application protocol, e.g. 'DNS', once one has been recognised
+  application?: string;
+}
+
+// Traffic of one app since the VPN started
+export interface AppTraffic {
+  // -1 collects flows whose owner is unknown
+  uid: number;
+  packageName?: string;
+  flows: number;
+  packetsOut: number;
+  packetsIn: number;
+  bytesOut: number;
+  bytesIn: number;
+}
+
+export interface AppStatsResult {
+  status: string;
+  // False before Android 10, where every flow is reported under uid -1
+  attributionSupported: boolean;
+  // Most bytes first
+  apps: AppTraffic[];
+}
+
+// Lifetime totals for the current capture session, kept natively so they
+// include every packet, delivered to the page or not
+export interface TrafficStats {
+  totalPackets: number;
+  incomingPackets: number;
+  outgoingPackets: number;
+  totalBytes: number;
+  incomingBytes: number;
+  outgoingBytes: number;
+  // Packets per protocol name, e.g. { TCP: 120, UDP: 30 }
+  protocolDistribution: { [protocol: string]: number };
+  // When the session began and when these totals were read, epoch milliseconds; startedAt is 0 before any capture
+  startedAt: number;
+  timestamp: number;
+}
+
+// A counter of the current session: its total, and its rate over the last window
+export interface MetricCounter {
+  total: number;
+  perSecond: number;
+}
+
+// Distribution of one pipeline stage's time per packet, in microseconds
+export interface StageLatency {
+  count: number;
+  meanUs: number;
+  p50Us: number;
+  p90Us: number;
+  p99Us: number;
+  maxUs: number;
+}
+
+// Hot-path measurements of the native capture and forwarding pipeline, for a
+// diagnostics screen. Counters include tun.out/in.packets and .bytes (per
+// direction), drops.* and pool.*, and gc.blockingTimeMs, whose perSecond is
+// an estimate of GC pause in milliseconds per second; gauges include
+// queue.* depths and pool.inFlight; latency has read, capture.<stage>,
+// forward and bridge. Every map is empty before the VPN first starts.
+export interface PipelineMetrics {
+  counters: { [name: string]: MetricCounter };
+  gauges: { [name: string]: number };
+  latency: { [stage: string]: StageLatency };
+  // How long the per-second rates were measured over; 0 until a full window has passed
+  rateWindowMs: number;
+  timestamp: number;
+}
+
+// What stopVpn resolves with and vpnStopped carries, once the native side has stopped
+export interface VpnStopResult {
+  status: string;
+  // False if a pipeline stage was still running at the stop deadline, or the service never answered
+  success?: boolean;
+  // How long the whole stop took, and each pipeline stage (-1 for one left running)
+  stopMs?: number;
+  stages?: { [stage: string]: number };
+  message?: string;
+}
+
+export interface MetricsOptions {
+  // Period of metricsUpdated events, at least 250; 0 turns them off
+  intervalMs: number;
+}
+
+// Which stored packets a history query returns; every field is optional
+export interface PacketQueryFilter {
+  // Protocol name ('TCP') or IP protocol number
+  protocol?: string | number;
+  direction?: 'incoming' | 'outgoing';
+  // Matches either the source or destination port
+  port?: number;
+}
+
+export interface PacketQuery {
+  // First sequence number to look at; defaults to the oldest, or the newest when backward
+  fromSeq?: number;
+  // At most 1000 packets per page; defaults to 100
+  limit?: number;
+  // Walk towards older packets instead of newer ones
+  backward?: boolean;
+  filter?: PacketQueryFilter;
+}
+
+// One page of the native capture history
+export interface PacketQueryResult {
+  // Matching packets in the packetRecords layout; see decodePacketRecords
+  data: string;
+  // Sequence number of each record in data, in the same order
+  seqs: number[];
+  // Where the next page in the same direction starts; 0 when there is nothing left
+  nextSeq: number;
+  // Range the history currently holds; older packets have been overwritten
+  oldestSeq: number;
+  newestSeq: number;
+}
+
+export interface StoredPacketResult {
+  status: 'success' | 'not_found';
+  seq: number;
+  // A single-record batch, present when found
+  data?: string;
+}
+
+export interface PacketPayloadOptions {
+  seq: number;
+  // Bytes are counted from the start of the transport header; defaults to 0
+  offset?: number;
+  // Defaults to everything kept from offset on
+  length?: number;
+  // Adds a text rendering: 'hex' as space-separated pairs, 16 per line; 'ascii' with '.' for unprintable bytes
+  render?: 'hex' | 'ascii';
+}
+
+export interface PacketPayloadResult {
+  status: 'success' | 'not_found';
+  seq: number;
+  offset?: number;
+  length?: number;
+  // Bytes kept for the packet in all; only the start of large packets is kept
+  available?: number;
+  // The requested bytes, base64-encoded
+  data?: string;
+  hex?: string;
+  ascii?: string;
+}
+
+// One decoded field of an application payload, in wire order
+export interface DissectedField {
+  name: string;
+  // Absent for fields that only group their children
+  value?: string;
+  children?: DissectedField[];
+}
+
+export interface PacketDissectionResult {
+  // 'not_dissected' when the packet has no payload in a protocol we decode
+  status: 'success' | 'not_found' | 'not_dissected';
+  seq: number;
+  protocol?: string;
+  // The stored bytes ended before decoding did
+  truncated?: boolean;
+  fields?: DissectedField[];
+}
+
+export interface CaptureFilterResult {
+  status: string;
+  message?: string;
+  // The filter now in force, in canonical form; empty when everything is captured
+  filter: string;
+  // Packets the replaced filter had turned away
+  previousRejected: number;
+}
+
+// Limits for a PCAPNG recording; anything left out uses the native default
+export interface CaptureFileOptions {
+  // Bytes kept of each packet, at most 65535
+  snapLength?: number;
+  // A new file is started when the current one reaches this size or age
+  maxFileBytes?: number;
+  maxFileSeconds?: number;
+  // Older files are deleted beyond this many
+  maxFiles?: number;
+}
+
+export interface CaptureFile {
+  name: string;
+  size: number;
+  modified: number;
+  // True for the file currently being written
+  recording: boolean;
+}
+
+// Counters for the running recording
+export interface CaptureRecorderStats {
+  snapLength: number;
+  offered: number;
+  // Packets not written because the disk fell behind or failed
+  dropped: number;
+  queued: number;
+  packetsWritten: number;
+  bytesWritten: number;
+  filesStarted: number;
+  writeErrors: number;
+  // Writes that took 200 ms or more
+  slowWrites: number;
+  maxWriteMs: number;
+}
+
+export interface CaptureFilesResult {
+  status: string;
+  message?: string;
+  recording: boolean;
+  // Newest first
+  files: CaptureFile[];
+  recorder?: CaptureRecorderStats;
+}
+
+// Sent about once a second in 'summary' mode instead of individual packets
+export interface FlowSummary {
+  activeFlows: number;
+  // Most recently active first
+  flows: FlowSummaryEntry[];
 }
 
 // Define the interface for our ToyVpn plugin
@@ -17,18 +296,96 @@ export interface ToyVpnPlugin {
     serverPort?: string; 
     sharedSecret?: string;
   }): Promise<{ status: string; message?: string }>;
-  stopVpn(): Promise<{ status: string; message?: string }>;
+  stopVpn(): Promise<VpnStopResult>;
+  setBatchOptions(options: BatchOptions): Promise<{ status: string; message?: string }>;
+  getStats(): Promise<TrafficStats>;
+  getMetrics(): Promise<PipelineMetrics>;
+  setMetricsOptions(options: MetricsOptions): Promise<{ status: string; message?: string }>;
+  getAppStats(): Promise<AppStatsResult>;
+  queryPackets(query: PacketQuery): Promise<PacketQueryResult>;
+  getPacket(options: { seq: number }): Promise<StoredPacketResult>;
+  // Packet events carry no payload; its bytes are read back from the capture history here
+  getPacketPayload(options: PacketPayloadOptions): Promise<PacketPayloadResult>;
+  // Decodes a stored packet's DNS, HTTP or TLS payload; nothing is decoded until asked
+  dissectPacket(options: { seq: number }): Promise<PacketDissectionResult>;
+  // e.g. 'tcp and port 443', 'not host 10.0.0.1', 'udp or len > 1000'; empty clears it
+  setCaptureFilter(options: { filter: string }): Promise<CaptureFilterResult>;
+  startCaptureFile(options?: CaptureFileOptions): Promise<CaptureFilesResult>;
+  stopCaptureFile(): Promise<CaptureFilesResult>;
+  getCaptureFiles(): Promise<CaptureFilesResult>;
+  shareCaptureFile(options: { name: string }): Promise<{ status: string; message?: string }>;
   addListener(
-    eventName: 'packetCaptured',
-    listenerFunc: (packet: PacketData) => void
+    eventName: 'packetsCaptured',
+    listenerFunc: (batch: PacketBatch) => void
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'packetRecords',
+    listenerFunc: (event: PacketRecordsEvent) => void
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'deliveryStatus',
+    listenerFunc: (status: DeliveryStatus) => void
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'flowSummary',
+    listenerFunc: (summary: FlowSummary) => void
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'statsUpdated',
+    listenerFunc: (stats: TrafficStats) => void
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'metricsUpdated',
+    listenerFunc: (metrics: PipelineMetrics) => void
   ): Promise<PluginListenerHandle>;
   addListener(
     eventName: 'vpnStopped',
-    listenerFunc: () => void
+    listenerFunc: (result: VpnStopResult) => void
   ): Promise<PluginListenerHandle>;
   removeAllListeners(): Promise<void>;
 }
 
+const EMPTY_STATS: TrafficStats = {
+  totalPackets: 0,
+  incomingPackets: 0,
+  outgoingPackets: 0,
+  totalBytes: 0,
+  incomingBytes: 0,
+  outgoingBytes: 0,
+  protocolDistribution: {},
+  startedAt: 0,
+  timestamp: 0,
+};
+
+// An empty page: a batch header with no records
+const EMPTY_QUERY_RESULT: PacketQueryResult = {
+  data: EMPTY_PACKET_RECORDS,
+  seqs: [],
+  nextSeq: 0,
+  oldestSeq: 1,
+  newestSeq: 0,
+};
+
+const EMPTY_METRICS: PipelineMetrics = {
+  counters: {},
+  gauges: {},
+  latency: {},
+  rateWindowMs: 0,
+  timestamp: 0,
+};
+
+const NO_CAPTURE_FILES: CaptureFilesResult = {
+  status: 'not_supported',
+  recording: false,
+  files: [],
+};
+
+const NO_APP_STATS: AppStatsResult = {
+  status: 'not_supported',
+  attributionSupported: false,
+  apps: [],
+};
+
 // Define a mock implementation for development/testing
 const mockToyVpn: ToyVpnPlugin = {
   requestVpnPermission: async () => {
@@ -43,7 +400,33 @@ const mockToyVpn: ToyVpnPlugin = {
     console.log('[MOCK] Stopping VPN');
     return { status: 'stopped' };
   },
-  addListener: (eventName: 'packetCaptured' | 'vpnStopped', callback: any): Promise<PluginListenerHandle> => {
+  setBatchOptions: async (options: BatchOptions) => {
+    console.log('[MOCK] Setting batch options:', options);
+    return { status: 'success' };
+  },
+  getStats: async () => EMPTY_STATS,
+  getMetrics: async () => EMPTY_METRICS,
+  setMetricsOptions: async (options: MetricsOptions) => {
+    console.log('[MOCK] Setting metrics options:', options);
+    return { status: 'success' };
+  },
+  getAppStats: async () => NO_APP_STATS,
+  queryPackets: async () => EMPTY_QUERY_RESULT,
+  getPacket: async (options: { seq: number }) => ({ status: 'not_found', seq: options.seq }),
+  getPacketPayload: async (options: PacketPayloadOptions) => ({ status: 'not_found', seq: options.seq }),
+  dissectPacket: async (options: { seq: number }) => ({ status: 'not_found', seq: options.seq }),
+  setCaptureFilter: async (options: { filter: string }) => {
+    console.log('[MOCK] Setting capture filter:', options.filter);
+    return { status: 'success', filter: options.filter, previousRejected: 0 };
+  },
+  startCaptureFile: async (options?: CaptureFileOptions) => {
+    console.log('[MOCK] Starting capture file with options:', options);
+    return NO_CAPTURE_FILES;
+  },
+  stopCaptureFile: async () => NO_CAPTURE_FILES,
+  getCaptureFiles: async () => NO_CAPTURE_FILES,
+  shareCaptureFile: async () => ({ status: 'not_supported' }),
+  addListener: (eventName: 'packetsCaptured' | 'packetRecords' | 'deliveryStatus' | 'flowSummary' | 'statsUpdated' | 'metricsUpdated' | 'vpnStopped', callback: any): Promise<PluginListenerHandle> => {
     console.log('[MOCK] Adding listener for:', eventName);
     // Return a promise that resolves to a listener handle
     return Promise.resolve({
@@ -172,11 +555,9 @@ const ToyVpn = (() => {
       if (isNativeImplementation) {
         try {
           console.log("Calling native stopVpn");
-          // Wrap the native call in a Promise since it doesn't return one
+          // The shim's stopVpn settles once the service has stopped, with the stop's timings
           return new Promise((resolve) => {
-            // Call the native method
             const result = nativePlugin.stopVpn();
-            // Return the result as a Promise
             resolve(result || { status: 'stopped' });
           });
         } catch (error) {
@@ -188,7 +569,260 @@ const ToyVpn = (() => {
       // Mock implementation
       return Promise.resolve({ status: 'stopped' });
     },
-    addListener: (eventName: 'packetCaptured' | 'vpnStopped', callback: any): Promise<PluginListenerHandle> => {
+    setBatchOptions: async (options: BatchOptions) => {
+      if (isNativeImplementation) {
+        try {
+          console.log("Calling native setBatchOptions");
+          return new Promise((resolve) => {
+            const result = nativePlugin.setBatchOptions(options);
+            resolve(result || { status: 'success' });
+          });
+        } catch (error) {
+          console.error('Error calling native setBatchOptions:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve({ status: 'success' });
+    },
+    getStats: async () => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve) => {
+            const result = nativePlugin.getStats();
+            resolve(result || EMPTY_STATS);
+          });
+        } catch (error) {
+          console.error('Error calling native getStats:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve(EMPTY_STATS);
+    },
+    getMetrics: async () => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve) => {
+            resolve(nativePlugin.getMetrics() || EMPTY_METRICS);
+          });
+        } catch (error) {
+          console.error('Error calling native getMetrics:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve(EMPTY_METRICS);
+    },
+    setMetricsOptions: async (options: MetricsOptions) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.setMetricsOptions(options);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result || { status: 'success' });
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native setMetricsOptions:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve({ status: 'success' });
+    },
+    getAppStats: async () => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve) => {
+            resolve(nativePlugin.getAppStats() || NO_APP_STATS);
+          });
+        } catch (error) {
+          console.error('Error calling native getAppStats:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve(NO_APP_STATS);
+    },
+    queryPackets: async (query: PacketQuery) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.queryPackets(query);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result || EMPTY_QUERY_RESULT);
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native queryPackets:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve(EMPTY_QUERY_RESULT);
+    },
+    getPacket: async (options: { seq: number }) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.getPacket(options);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result || { status: 'not_found', seq: options.seq });
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native getPacket:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve({ status: 'not_found', seq: options.seq });
+    },
+    getPacketPayload: async (options: PacketPayloadOptions) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.getPacketPayload(options);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result || { status: 'not_found', seq: options.seq });
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native getPacketPayload:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve({ status: 'not_found', seq: options.seq });
+    },
+    dissectPacket: async (options: { seq: number }) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.dissectPacket(options);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result || { status: 'not_found', seq: options.seq });
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native dissectPacket:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve({ status: 'not_found', seq: options.seq });
+    },
+    setCaptureFilter: async (options: { filter: string }) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.setCaptureFilter(options);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result);
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native setCaptureFilter:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve({ status: 'success', filter: options.filter, previousRejected: 0 });
+    },
+    startCaptureFile: async (options?: CaptureFileOptions) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.startCaptureFile(options);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result || NO_CAPTURE_FILES);
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native startCaptureFile:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve(NO_CAPTURE_FILES);
+    },
+    stopCaptureFile: async () => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve) => {
+            resolve(nativePlugin.stopCaptureFile() || NO_CAPTURE_FILES);
+          });
+        } catch (error) {
+          console.error('Error calling native stopCaptureFile:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve(NO_CAPTURE_FILES);
+    },
+    getCaptureFiles: async () => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve) => {
+            resolve(nativePlugin.getCaptureFiles() || NO_CAPTURE_FILES);
+          });
+        } catch (error) {
+          console.error('Error calling native getCaptureFiles:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve(NO_CAPTURE_FILES);
+    },
+    shareCaptureFile: async (options: { name: string }) => {
+      if (isNativeImplementation) {
+        try {
+          return new Promise((resolve, reject) => {
+            const result = nativePlugin.shareCaptureFile(options);
+            if (result && result.status === 'error') {
+              reject(new Error(result.message));
+            } else {
+              resolve(result || { status: 'success' });
+            }
+          });
+        } catch (error) {
+          console.error('Error calling native shareCaptureFile:', error);
+          return Promise.reject(error);
+        }
+      }
+
+      // Mock implementation
+      return Promise.resolve({ status: 'not_supported' });
+    },
+    addListener: (eventName: 'packetsCaptured' | 'packetRecords' | 'deliveryStatus' | 'flowSummary' | 'statsUpdated' | 'metricsUpdated' | 'vpnStopped', callback: any): Promise<PluginListenerHandle> => {
       if (isNativeImplementation) {
         try {
           console.log("Calling native addListener");
@@ -241,3 +875,5 @@ const ToyVpn = (() => {
 
 // Export the plugin instance
 export { ToyVpn };
+export { decodePacketRecords, packetRecordToData } from './packetRecords';
+export type { PacketRecords } from './packetRecords';
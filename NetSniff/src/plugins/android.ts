@@ -1,5 +1,8 @@
 import { registerPlugin, PluginListenerHandle } from '@capacitor/core';
-import type { ToyVpnPlugin, PacketData } from './ToyVpn';
+import type { ToyVpnPlugin, PacketBatch, PacketRecordsEvent, DeliveryStatus, FlowSummary, TrafficStats, BatchOptions,
+    PacketQuery, PacketQueryResult, StoredPacketResult, CaptureFileOptions, CaptureFilesResult,
+    CaptureFilterResult, AppStatsResult, PacketDissectionResult, PacketPayloadOptions, PacketPayloadResult,
+    PipelineMetrics, MetricsOptions, VpnStopResult } from './ToyVpn';
 
 export class ToyVpnPluginAndroid implements ToyVpnPlugin {
     constructor() {
@@ -23,24 +26,117 @@ export class ToyVpnPluginAndroid implements ToyVpnPlugin {
         return capacitorWindow.Capacitor.Plugins.ToyVpn.startVpn(options);
     }
 
-    async stopVpn(): Promise<{ status: string }> {
+    async stopVpn(): Promise<VpnStopResult> {
         console.log('ToyVpnPluginAndroid.stopVpn called');
         // This will call the native implementation
         const capacitorWindow = window as any;
         return capacitorWindow.Capacitor.Plugins.ToyVpn.stopVpn();
     }
 
+    async setBatchOptions(options: BatchOptions): Promise<{ status: string; message?: string }> {
+        console.log('ToyVpnPluginAndroid.setBatchOptions called with options:', options);
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.setBatchOptions(options);
+    }
+
+    async getStats(): Promise<TrafficStats> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.getStats();
+    }
+
+    async getMetrics(): Promise<PipelineMetrics> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.getMetrics();
+    }
+
+    async setMetricsOptions(options: MetricsOptions): Promise<{ status: string; message?: string }> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.setMetricsOptions(options);
+    }
+
+    async getAppStats(): Promise<AppStatsResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.getAppStats();
+    }
+
+    async queryPackets(query: PacketQuery): Promise<PacketQueryResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.queryPackets(query);
+    }
+
+    async getPacket(options: { seq: number }): Promise<StoredPacketResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.getPacket(options);
+    }
+
+    async getPacketPayload(options: PacketPayloadOptions): Promise<PacketPayloadResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.getPacketPayload(options);
+    }
+
+    async dissectPacket(options: { seq: number }): Promise<PacketDissectionResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.dissectPacket(options);
+    }
+
+    async setCaptureFilter(options: { filter: string }): Promise<CaptureFilterResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.setCaptureFilter(options);
+    }
+
+    async startCaptureFile(options?: CaptureFileOptions): Promise<CaptureFilesResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.startCaptureFile(options || {});
+    }
+
+    async stopCaptureFile(): Promise<CaptureFilesResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.stopCaptureFile();
+    }
+
+    async getCaptureFiles(): Promise<CaptureFilesResult> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.getCaptureFiles();
+    }
+
+    async shareCaptureFile(options: { name: string }): Promise<{ status: string; message?: string }> {
+        const capacitorWindow = window as any;
+        return capacitorWindow.Capacitor.Plugins.ToyVpn.shareCaptureFile(options);
+    }
+
+    async addListener(
+        eventName: 'packetsCaptured',
+        listenerFunc: (batch: PacketBatch) => void
+    ): Promise<PluginListenerHandle>;
+    async addListener(
+        eventName: 'packetRecords',
+        listenerFunc: (event: PacketRecordsEvent) => void
+    ): Promise<PluginListenerHandle>;
+    async addListener(
+        eventName: 'deliveryStatus',
+        listenerFunc: (status: DeliveryStatus) => void
+    ): Promise<PluginListenerHandle>;
+    async addListener(
+        eventName: 'flowSummary',
+        listenerFunc: (summary: FlowSummary) => void
+    ): Promise<PluginListenerHandle>;
+    async addListener(
+        eventName: 'statsUpdated',
+        listenerFunc: (stats: TrafficStats) => void
+    ): Promise<PluginListenerHandle>;
     async addListener(
-        eventName: 'packetCaptured',
-        listenerFunc: (packet: PacketData) => void
+        eventName: 'metricsUpdated',
+        listenerFunc: (metrics: PipelineMetrics) => void
     ): Promise<PluginListenerHandle>;
     async addListener(
         eventName: 'vpnStopped',
-        listenerFunc: () => void
+        listenerFunc: (result: VpnStopResult) => void
     ): Promise<PluginListenerHandle>;
     async addListener(
-        eventName: 'packetCaptured' | 'vpnStopped',
-        listenerFunc: ((packet: PacketData) => void) | (() => void)
+        eventName: 'packetsCaptured' | 'packetRecords' | 'deliveryStatus' | 'flowSummary' | 'statsUpdated' | 'metricsUpdated' | 'vpnStopped',
+        listenerFunc: ((batch: PacketBatch) => void) | ((event: PacketRecordsEvent) => void)
+            | ((status: DeliveryStatus) => void) | ((summary: FlowSummary) => void)
+            | ((stats: TrafficStats) => void) | ((metrics: PipelineMetrics) => void) | ((result: VpnStopResult) => void)
     ): Promise<PluginListenerHandle> {
         console.log('ToyVpnPluginAndroid.addListener called for event:', eventName);
         const capacitorWindow = window as any;
@@ -0,0 +1,71 @@
+import { bench, describe } from 'vitest';
+import { decodePacketRecords, packetRecordToData } from './packetRecords';
+import type { PacketData } from './ToyVpn';
+
+// Compares one batch of packets delivered as JSON (the packetsCaptured event)
+// with the same packets as binary records (the packetRecords event).
+// Run with `npm run bench`.
+
+const BATCH_SIZE = 64;
+
+// Same layout as PacketRecords.encode, for IPv4 TCP packets; live events
+// carry no preview bytes
+const encodeBatch = (count: number): string => {
+  const recordLength = 28 + 8;
+  const bytes = new Uint8Array(8 + count * recordLength);
+  const view = new DataView(bytes.buffer);
+  view.setUint8(0, 2);
+  view.setUint16(2, count);
+  for (let i = 0; i < count; i++) {
+    const at = 8 + i * recordLength;
+    view.setUint8(at, 0x04 | (i % 2 ? 0x02 : 0));
+    view.setUint8(at + 1, 6);
+    view.setUint8(at + 2, 0x18);
+    view.setUint16(at + 4, 1400);
+    view.setUint16(at + 6, 40000 + i);
+    view.setUint16(at + 8, 443);
+    view.setFloat64(at + 12, 1700000000000 + i);
+    view.setFloat64(at + 20, 1000 + i);
+    view.setUint32(at + 28, 0x0a000002);
+    view.setUint32(at + 32, 0x8efa480e);
+  }
+  let binary = '';
+  for (let i = 0; i < bytes.length; i++) {
+    binary += String.fromCharCode(bytes[i]);
+  }
+  return btoa(binary);
+};
+
+const packets: PacketData[] = Array.from({ length: BATCH_SIZE }, (_, i) => ({
+  source: '10.0.0.2:' + (40000 + i),
+  destination: '142.250.72.14:443',
+  protocol: 'TCP',
+  direction: i % 2 ? 'incoming' : 'outgoing',
+  size: 1400,
+  seq: 1000 + i,
+}));
+
+const jsonEvent = JSON.stringify({ dropped: 0, packets });
+const binaryEvent = JSON.stringify({ data: encodeBatch(BATCH_SIZE) });
+
+console.log(
+  `bytes per packet across the bridge: json=${(jsonEvent.length / BATCH_SIZE).toFixed(1)}, ` +
+    `binary=${(binaryEvent.length / BATCH_SIZE).toFixed(1)}`
+);
+
+describe(`decode a batch of ${BATCH_SIZE} packets`, () => {
+  bench('json', () => {
+    JSON.parse(jsonEvent);
+  });
+
+  bench('binary into typed arrays', () => {
+    decodePacketRecords(JSON.parse(binaryEvent).data);
+  });
+
+  bench('binary expanded to PacketData', () => {
+    const records = decodePacketRecords(JSON.parse(binaryEvent).data);
+    for (let i = 0; i < records.count; i++) {
+      packetRecordToData(records, i);
+    }
+  });
+});
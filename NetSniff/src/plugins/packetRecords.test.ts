@@ -0,0 +1,47 @@
+import { decodePacketRecords, EMPTY_PACKET_RECORDS, formatPreview, packetRecordToData, RECORD_FLAG_IPV6, RECORD_FLAG_INCOMING } from './packetRecords';
+
+// Built by PacketRecordsTest.goldenBatch on the Java side
+const GOLDEN = 'AgAAAgAAAAcEBhIAACucQAG7AAhCeLz+VoewAEBEgAAAAAAACgAAAggICAicQAG7AAAAAQcRAAAAMRTpADUACEJ4vP5WnIAAQEUAAAAAAAAgAQ24AAAAAAAAAAAAAAAB/oAAAAAAAAACESL//jNEVRTpADUACQAA';
+
+test('decodes the batch encoded by PacketRecords.java', () => {
+  const records = decodePacketRecords(GOLDEN);
+  expect(records.count).toBe(2);
+  expect(records.dropped).toBe(7);
+
+  expect(records.protocol[0]).toBe(6);
+  expect(records.tcpFlags[0]).toBe(0x12);
+  expect(records.size[0]).toBe(43);
+  expect(records.timestamp[0]).toBe(1700000000123);
+  expect(formatPreview(records.bytes, records.previewOffset[0], records.previewLength[0])).toBe('9c 40 01 bb 00 00 00 01');
+  expect(records.sourceAddress[0]).toBe(0x0a000002);
+  expect(packetRecordToData(records, 0)).toEqual({
+    source: '10.0.0.2:40000',
+    destination: '8.8.8.8:443',
+    protocol: 'TCP',
+    direction: 'outgoing',
+    size: 43,
+    seq: 41,
+  });
+
+  expect(records.flags[1] & RECORD_FLAG_IPV6).toBeTruthy();
+  expect(records.flags[1] & RECORD_FLAG_INCOMING).toBeTruthy();
+  expect(packetRecordToData(records, 1)).toEqual({
+    source: '[2001:db8::1]:5353',
+    destination: '[fe80::211:22ff:fe33:4455]:53',
+    protocol: 'UDP',
+    direction: 'incoming',
+    size: 49,
+    seq: 42,
+  });
+});
+
+test('rejects a truncated batch', () => {
+  const bytes = Uint8Array.from(atob(GOLDEN), c => c.charCodeAt(0));
+  expect(() => decodePacketRecords(bytes.subarray(0, bytes.length - 1))).toThrow();
+});
+
+test('decodes the empty page fallback', () => {
+  const records = decodePacketRecords(EMPTY_PACKET_RECORDS);
+  expect(records.count).toBe(0);
+  expect(records.dropped).toBe(0);
+});
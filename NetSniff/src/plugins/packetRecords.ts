@@ -0,0 +1,198 @@
+import type { PacketData } from './ToyVpn';
+
+// Decoder for the binary batches delivered as 'packetRecords' events.
+// The layout is defined in PacketRecords.java; keep the two in step.
+
+export const PACKET_RECORDS_VERSION = 2;
+const BATCH_HEADER = 8;
+const RECORD_HEADER = 28;
+
+// A base64 batch with no records, for an empty history page
+export const EMPTY_PACKET_RECORDS = btoa(String.fromCharCode(PACKET_RECORDS_VERSION, 0, 0, 0, 0, 0, 0, 0));
+
+export const RECORD_FLAG_IPV6 = 0x01;
+export const RECORD_FLAG_INCOMING = 0x02;
+export const RECORD_FLAG_PORTS = 0x04;
+
+// One batch, decoded column by column so nothing is allocated per packet
+export interface PacketRecords {
+  count: number;
+  // Packets discarded natively since the previous batch
+  dropped: number;
+  flags: Uint8Array;
+  protocol: Uint8Array;
+  tcpFlags: Uint8Array;
+  // Dissector id from Dissectors.java, 0 if none
+  application: Uint8Array;
+  size: Uint16Array;
+  sourcePort: Uint16Array;
+  destinationPort: Uint16Array;
+  // Capture time, epoch milliseconds
+  timestamp: Float64Array;
+  // Sequence number in the native capture history, 0 if not kept
+  seq: Float64Array;
+  // Four words per record; IPv4 addresses use only the first
+  sourceAddress: Uint32Array;
+  destinationAddress: Uint32Array;
+  // Preview of record i is bytes.subarray(previewOffset[i], previewOffset[i] + previewLength[i])
+  previewOffset: Uint32Array;
+  previewLength: Uint16Array;
+  bytes: Uint8Array;
+}
+
+const PROTOCOL_NAMES: { [protocol: number]: string } = {
+  1: 'ICMP',
+  6: 'TCP',
+  17: 'UDP',
+  50: 'ESP',
+  58: 'ICMPv6',
+  89: 'OSPF',
+};
+
+// Ids assigned by the dissectors in Dissectors.withDefaults
+const APPLICATION_NAMES: { [application: number]: string } = {
+  1: 'DNS',
+  2: 'HTTP',
+  3: 'TLS',
+};
+
+const HEX = Array.from({ length: 256 }, (_, b) => b.toString(16).padStart(2, '0'));
+
+export const base64ToBytes = (data: string): Uint8Array => {
+  const binary = atob(data);
+  const bytes = new Uint8Array(binary.length);
+  for (let i = 0; i < binary.length; i++) {
+    bytes[i] = binary.charCodeAt(i);
+  }
+  return bytes;
+};
+
+export const decodePacketRecords = (data: string | Uint8Array): PacketRecords => {
+  const bytes = typeof data === 'string' ? base64ToBytes(data) : data;
+  const view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength);
+  if (bytes.byteLength < BATCH_HEADER || view.getUint8(0) !== PACKET_RECORDS_VERSION) {
+    throw new Error('Unsupported packet record batch');
+  }
+
+  const count = view.getUint16(2);
+  const records: PacketRecords = {
+    count,
+    dropped: view.getUint32(4),
+    flags: new Uint8Array(count),
+    protocol: new Uint8Array(count),
+    tcpFlags: new Uint8Array(count),
+    application: new Uint8Array(count),
+    size: new Uint16Array(count),
+    sourcePort: new Uint16Array(count),
+    destinationPort: new Uint16Array(count),
+    timestamp: new Float64Array(count),
+    seq: new Float64Array(count),
+    sourceAddress: new Uint32Array(count * 4),
+    destinationAddress: new Uint32Array(count * 4),
+    previewOffset: new Uint32Array(count),
+    previewLength: new Uint16Array(count),
+    bytes,
+  };
+
+  let offset = BATCH_HEADER;
+  for (let i = 0; i < count; i++) {
+    if (offset + RECORD_HEADER > bytes.byteLength) {
+      throw new Error('Truncated packet record batch');
+    }
+    const flags = view.getUint8(offset);
+    records.flags[i] = flags;
+    records.protocol[i] = view.getUint8(offset + 1);
+    records.tcpFlags[i] = view.getUint8(offset + 2);
+    records.application[i] = view.getUint8(offset + 3);
+    records.size[i] = view.getUint16(offset + 4);
+    records.sourcePort[i] = view.getUint16(offset + 6);
+    records.destinationPort[i] = view.getUint16(offset + 8);
+    records.previewLength[i] = view.getUint16(offset + 10);
+    records.timestamp[i] = view.getFloat64(offset + 12);
+    records.seq[i] = view.getFloat64(offset + 20);
+
+    const addressLength = flags & RECORD_FLAG_IPV6 ? 16 : 4;
+    const addresses = offset + RECORD_HEADER;
+    for (let word = 0; word < addressLength / 4; word++) {
+      records.sourceAddress[i * 4 + word] = view.getUint32(addresses + word * 4);
+      records.destinationAddress[i * 4 + word] = view.getUint32(addresses + addressLength + word * 4);
+    }
+    records.previewOffset[i] = addresses + 2 * addressLength;
+    offset = records.previewOffset[i] + records.previewLength[i];
+    if (offset > bytes.byteLength) {
+      throw new Error('Truncated packet record batch');
+    }
+  }
+  return records;
+};
+
+const formatIpv4 = (address: number): string =>
+  `${address >>> 24}.${(address >>> 16) & 0xff}.${(address >>> 8) & 0xff}.${address & 0xff}`;
+
+// RFC 5952 text form, matching PacketView.appendIpv6
+const formatIpv6 = (words: Uint32Array, start: number): string => {
+  const groups: number[] = [];
+  for (let word = 0; word < 4; word++) {
+    groups.push(words[start + word] >>> 16, words[start + word] & 0xffff);
+  }
+  let bestStart = -1;
+  let bestLength = 1;
+  let runStart = -1;
+  groups.forEach((group, index) => {
+    if (group !== 0) {
+      runStart = -1;
+      return;
+    }
+    if (runStart < 0) runStart = index;
+    if (index - runStart + 1 > bestLength) {
+      bestStart = runStart;
+      bestLength = index - runStart + 1;
+    }
+  });
+  if (bestStart < 0) {
+    return groups.map(group => group.toString(16)).join(':');
+  }
+  const head = groups.slice(0, bestStart).map(group => group.toString(16)).join(':');
+  const tail = groups.slice(bestStart + bestLength).map(group => group.toString(16)).join(':');
+  return `${head}::${tail}`;
+};
+
+const formatEndpoint = (records: PacketRecords, index: number, addresses: Uint32Array, port: number): string => {
+  const ipv6 = (records.flags[index] & RECORD_FLAG_IPV6) !== 0;
+  const address = ipv6 ? formatIpv6(addresses, index * 4) : formatIpv4(addresses[index * 4]);
+  if ((records.flags[index] & RECORD_FLAG_PORTS) === 0) {
+    return address;
+  }
+  return ipv6 ? `[${address}]:${port}` : `${address}:${port}`;
+};
+
+// Same text as HexDump: "xx" per byte, space separated, a line break every 16 bytes
+export const formatPreview = (bytes: Uint8Array, offset: number, length: number): string => {
+  let out = '';
+  for (let i = 0; i < length; i++) {
+    out += HEX[bytes[offset + i]];
+    if (i + 1 < length) {
+      out += (i + 1) % 16 === 0 ? ' \n' : ' ';
+    }
+  }
+  return out;
+};
+
+export const protocolName = (protocol: number): string => PROTOCOL_NAMES[protocol] ?? `IP(${protocol})`;
+
+// Expands one record into the same shape as a JSON packet event. The preview
+// bytes, if any, are left in records.bytes; see formatPreview.
+export const packetRecordToData = (records: PacketRecords, index: number): PacketData => {
+  const data: PacketData = {
+    source: formatEndpoint(records, index, records.sourceAddress, records.sourcePort[index]),
+    destination: formatEndpoint(records, index, records.destinationAddress, records.destinationPort[index]),
+    // Named after the application protocol when one was recognised, as JSON events are
+    protocol: APPLICATION_NAMES[records.application[index]] ?? protocolName(records.protocol[index]),
+    direction: records.flags[index] & RECORD_FLAG_INCOMING ? 'incoming' : 'outgoing',
+    size: records.size[index],
+  };
+  if (records.seq[index] > 0) {
+    data.seq = records.seq[index];
+  }
+  return data;
+};
@@ -1,6 +1,10 @@
 import { WebPlugin } from '@capacitor/core';
 import type { PluginListenerHandle } from '@capacitor/core';
-import type { ToyVpnPlugin, PacketData } from './ToyVpn';
+import type { ToyVpnPlugin, PacketBatch, PacketRecordsEvent, DeliveryStatus, FlowSummary, TrafficStats, BatchOptions,
+  PacketQuery, PacketQueryResult, StoredPacketResult, CaptureFileOptions, CaptureFilesResult,
+  CaptureFilterResult, AppStatsResult, PacketDissectionResult, PacketPayloadOptions, PacketPayloadResult,
+  PipelineMetrics, MetricsOptions, VpnStopResult } from './ToyVpn';
+import { EMPTY_PACKET_RECORDS } from './packetRecords';
 
 class ToyVpnPluginWebImpl extends WebPlugin implements ToyVpnPlugin {
   constructor() {
@@ -26,24 +30,120 @@ class ToyVpnPluginWebImpl extends WebPlugin implements ToyVpnPlugin {
     return { status: 'not_supported' };
   }
   
-  async stopVpn(): Promise<{ status: string }> {
+  async stopVpn(): Promise<VpnStopResult> {
     // Web implementation of stopVpn
     
     // On web, there's nothing to stop since we don't capture packets
     return { status: 'not_running' };
   }
   
+  async setBatchOptions(options: BatchOptions): Promise<{ status: string; message?: string }> {
+    // Nothing is batched on web since no packets are captured
+    return { status: 'not_supported' };
+  }
+  
+  async getStats(): Promise<TrafficStats> {
+    // Nothing is captured on web
+    return {
+      totalPackets: 0,
+      incomingPackets: 0,
+      outgoingPackets: 0,
+      totalBytes: 0,
+      incomingBytes: 0,
+      outgoingBytes: 0,
+      protocolDistribution: {},
+      startedAt: 0,
+      timestamp: Date.now(),
+    };
+  }
+  
+  async getMetrics(): Promise<PipelineMetrics> {
+    // No pipeline runs on web
+    return { counters: {}, gauges: {}, latency: {}, rateWindowMs: 0, timestamp: Date.now() };
+  }
+  
+  async setMetricsOptions(options: MetricsOptions): Promise<{ status: string; message?: string }> {
+    return { status: 'not_supported' };
+  }
+  
+  async getAppStats(): Promise<AppStatsResult> {
+    // Nothing is captured on web
+    return { status: 'not_supported', attributionSupported: false, apps: [] };
+  }
+  
+  async queryPackets(query: PacketQuery): Promise<PacketQueryResult> {
+    // No history on web; an empty page
+    return { data: EMPTY_PACKET_RECORDS, seqs: [], nextSeq: 0, oldestSeq: 1, newestSeq: 0 };
+  }
+  
+  async getPacket(options: { seq: number }): Promise<StoredPacketResult> {
+    return { status: 'not_found', seq: options.seq };
+  }
+  
+  async getPacketPayload(options: PacketPayloadOptions): Promise<PacketPayloadResult> {
+    // No history on web
+    return { status: 'not_found', seq: options.seq };
+  }
+  
+  async dissectPacket(options: { seq: number }): Promise<PacketDissectionResult> {
+    return { status: 'not_found', seq: options.seq };
+  }
+  
+  async setCaptureFilter(options: { filter: string }): Promise<CaptureFilterResult> {
+    // Nothing is captured on web, so there is nothing to filter
+    return { status: 'not_supported', filter: '', previousRejected: 0 };
+  }
+  
+  async startCaptureFile(options?: CaptureFileOptions): Promise<CaptureFilesResult> {
+    // No packets to record on web
+    return { status: 'not_supported', recording: false, files: [] };
+  }
+  
+  async stopCaptureFile(): Promise<CaptureFilesResult> {
+    return { status: 'not_supported', recording: false, files: [] };
+  }
+  
+  async getCaptureFiles(): Promise<CaptureFilesResult> {
+    return { status: 'not_supported', recording: false, files: [] };
+  }
+  
+  async shareCaptureFile(options: { name: string }): Promise<{ status: string; message?: string }> {
+    return { status: 'not_supported' };
+  }
+  
+  async addListener(
+    eventName: 'packetsCaptured',
+    listenerFunc: (batch: PacketBatch) => void
+  ): Promise<PluginListenerHandle>;
+  async addListener(
+    eventName: 'packetRecords',
+    listenerFunc: (event: PacketRecordsEvent) => void
+  ): Promise<PluginListenerHandle>;
+  async addListener(
+    eventName: 'deliveryStatus',
+    listenerFunc: (status: DeliveryStatus) => void
+  ): Promise<PluginListenerHandle>;
+  async addListener(
+    eventName: 'flowSummary',
+    listenerFunc: (summary: FlowSummary) => void
+  ): Promise<PluginListenerHandle>;
+  async addListener(
+    eventName: 'statsUpdated',
+    listenerFunc: (stats: TrafficStats) => void
+  ): Promise<PluginListenerHandle>;
   async addListener(
-    eventName: 'packetCaptured',
-    listenerFunc: (packet: PacketData) => void
+    eventName: 'metricsUpdated',
+    listenerFunc: (metrics: PipelineMetrics) => void
   ): Promise<PluginListenerHandle>;
   async addListener(
     eventName: 'vpnStopped',
-    listenerFunc: () => void
+    listenerFunc: (result: VpnStopResult) => void
   ): Promise<PluginListenerHandle>;
   async addListener(
-    eventName: 'packetCaptured' | 'vpnStopped',
-    listenerFunc: ((packet: PacketData) => void) | (() => void)
+    eventName: 'packetsCaptured' | 'packetRecords' | 'deliveryStatus' | 'flowSummary' | 'statsUpdated' | 'metricsUpdated' | 'vpnStopped',
+    listenerFunc: ((batch: PacketBatch) => void) | ((event: PacketRecordsEvent) => void)
+      | ((status: DeliveryStatus) => void) | ((summary: FlowSummary) => void)
+      | ((stats: TrafficStats) => void) | ((metrics: PipelineMetrics) => void) | ((result: VpnStopResult) => void)
   ): Promise<PluginListenerHandle> {
     // Adding listener for packet capture or vpn stopped event
     